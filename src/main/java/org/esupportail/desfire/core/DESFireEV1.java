@@ -10,33 +10,29 @@
  */
 package org.esupportail.desfire.core;
 
-import org.esupportail.desfire.core.util.*;
-import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ExclusiveSession;
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
 import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.smartcardio.CommandAPDU;
-import javax.smartcardio.ResponseAPDU;
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.security.SecureRandom;
-import java.util.Arrays;
-
 /**
  * Core DESFire EV1 implementation with direct card communication
  * This class handles actual APDU transmission and responses
+ *
+ * <p>The protocol logic lives in the stateless {@link DESFireEngine}; this
+ * class binds it to one {@link CardTransport} and one {@link SessionContext}.
+ * Without an explicit transport a {@link SimpleSCR} PC/SC reader is used.
  * 
  * @author Daniel Andrade (adapted)
  * @version 1.0.0
  */
-public class DESFireEV1 extends SimpleSCR {
+public class DESFireEV1 {
     
     protected final static Logger log = LoggerFactory.getLogger(DESFireEV1.class);
     
-    /** A file/key number that does not exist. */
-    private final static byte FAKE_NO = -1;
-
     // Command codes
     public enum Command {
         CREATE_APPLICATION(0xCA),
@@ -73,7 +69,8 @@ public class DESFireEV1 extends SimpleSCR {
         CHANGE_KEY_SETTINGS(0x54),
         GET_KEY_SETTINGS(0x45),
         CHANGE_KEY(0xC4),
-        GET_KEY_VERSION(0x64);
+        GET_KEY_VERSION(0x64),
+        ADDITIONAL_FRAME(0xAF);
 
         private final int code;
 
@@ -138,133 +135,110 @@ public class DESFireEV1 extends SimpleSCR {
         ENCIPHERED
     }
 
-    // Instance variables
-    private KeyType ktype;
-    private byte kno;
-    private byte[] aid;
-    private byte[] iv;
-    private byte[] skey;
-    private byte fileNo;
-    private byte[] fileSett;
-    private int code;
+    private final CardTransport transport;
+    private final DESFireEngine engine;
+    private final SessionContext session;
 
     public DESFireEV1() {
-        reset();
-        aid = new byte[3];
+        this(new SimpleSCR());
     }
 
-    @Override
-    public boolean disconnect() {
-        reset();
-        return super.disconnect();
+    public DESFireEV1(CardTransport transport) {
+        this(transport, new DESFireEngine());
     }
 
     /**
-     * Reset the attributes of this instance to their default values.
+     * @param engine the protocol engine, which may be shared with other instances
      */
-    private void reset() {
-        ktype = null;
-        kno = FAKE_NO;
-        iv = null;
-        skey = null;
-        fileNo = FAKE_NO;
-        fileSett = null;
+    public DESFireEV1(DESFireEngine engine) {
+        this(new SimpleSCR(), engine);
     }
 
-    // ================ AUTHENTICATION ================
+    public DESFireEV1(CardTransport transport, DESFireEngine engine) {
+        this.transport = transport;
+        this.engine = engine;
+        this.session = new SessionContext();
+    }
+
+    // ================ CONNECTION ================
 
     /**
-     * Mutual authentication between PCD and PICC.
+     * Connect to the card on the first reader (PC/SC transport only)
      */
-    public byte[] authenticate(byte[] key, byte keyNo, KeyType type) {
-        if (!validateKey(key, type))
-            return null;
-        if (type != KeyType.AES) {
-            setKeyVersion(key, 0, key.length, (byte) 0x00);
-        }
+    public boolean connect() {
+        return connect(0);
+    }
 
-        final byte[] iv0 = type == KeyType.AES ? new byte[16] : new byte[8];
-        byte[] apdu;
-        CommandAPDU command;
-        ResponseAPDU response;
-
-        // 1st message exchange
-        apdu = new byte[7];
-        apdu[0] = (byte) 0x90;
-        switch (type) {
-            case DES:
-            case TDES:
-                apdu[1] = (byte) Command.AUTHENTICATE_DES_2K3DES.getCode();
-                break;
-            case TKTDES:
-                apdu[1] = (byte) Command.AUTHENTICATE_3K3DES.getCode();
-                break;
-            case AES:
-                apdu[1] = (byte) Command.AUTHENTICATE_AES.getCode();
-                break;
-            default:
-                throw new DesfireException("Invalid key type: " + type);
+    /**
+     * Connect to the card on a reader (PC/SC transport only); other transports
+     * are connected when built
+     */
+    public boolean connect(int termNb) {
+        SimpleSCR reader = transport.unwrap(SimpleSCR.class);
+        if (reader != null) {
+            return reader.connect(termNb);
         }
-        apdu[4] = 0x01;
-        apdu[5] = keyNo;
-        command = new CommandAPDU(apdu);
-        response = transmit(command);
-        this.code = response.getSW2();
-        
-        if (response.getSW2() != 0xAF)
-            return null;
+        return transport.isConnected();
+    }
 
-        // step 3
-        byte[] randB = recv(key, response.getData(), type, iv0);
-        if (randB == null)
-            return null;
-        byte[] randBr = rotateLeft(randB);
-        byte[] randA = new byte[randB.length];
-        new SecureRandom().nextBytes(randA);
-
-        // step 3: encryption
-        byte[] plaintext = new byte[randA.length + randBr.length];
-        System.arraycopy(randA, 0, plaintext, 0, randA.length);
-        System.arraycopy(randBr, 0, plaintext, randA.length, randBr.length);
-        byte[] iv1 = Arrays.copyOfRange(response.getData(),
-                response.getData().length - iv0.length, response.getData().length);
-        byte[] ciphertext = send(key, plaintext, type, iv1);
-        if (ciphertext == null)
-            return null;
+    public boolean isConnected() {
+        return transport.isConnected();
+    }
 
-        // 2nd message exchange
-        apdu = new byte[5 + ciphertext.length + 1];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) 0xAF;
-        apdu[4] = (byte) ciphertext.length;
-        System.arraycopy(ciphertext, 0, apdu, 5, ciphertext.length);
-        command = new CommandAPDU(apdu);
-        response = transmit(command);
-        this.code = response.getSW2();
-        
-        if (response.getSW2() != 0x00)
-            return null;
+    public boolean disconnect() {
+        session.resetAuthentication();
+        SimpleSCR reader = transport.unwrap(SimpleSCR.class);
+        if (reader != null) {
+            return reader.disconnect();
+        }
+        try {
+            transport.close();
+            return true;
+        } catch (DesfireException e) {
+            log.error("Disconnect failed", e);
+            return false;
+        }
+    }
 
-        // step 5
-        byte[] iv2 = Arrays.copyOfRange(ciphertext,
-                ciphertext.length - iv0.length, ciphertext.length);
-        byte[] randAr = recv(key, response.getData(), type, iv2);
-        if (randAr == null)
+    /**
+     * Send a raw command to the card
+     * @return the response, status word included, or <code>null</code> on failure
+     * @throws DeadlineExceededException if a bound {@link org.esupportail.desfire.core.transport.Deadline} passed
+     */
+    public byte[] transmit(byte[] command) {
+        try {
+            return transport.transceive(command);
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (DesfireException e) {
+            log.error("APDU transmission failed", e);
             return null;
-        byte[] randAr2 = rotateLeft(randA);
-        for (int i = 0; i < randAr2.length; i++)
-            if (randAr[i] != randAr2[i])
-                return null;
+        }
+    }
 
-        // step 6 - generate session key
-        byte[] sessionKey = generateSessionKey(randA, randB, type);
+    /**
+     * Exclusive access to the card for a sequence of commands, released when
+     * the returned session is closed
+     */
+    public ExclusiveSession exclusive() {
+        return ExclusiveSession.open(transport);
+    }
 
-        this.ktype = type;
-        this.kno = keyNo;
-        this.iv = iv0;
-        this.skey = sessionKey;
+    // ================ AUTHENTICATION ================
 
-        return sessionKey;
+    /**
+     * Mutual authentication between PCD and PICC.
+     */
+    public byte[] authenticate(byte[] key, byte keyNo, KeyType type) {
+        return engine.authenticate(transport, session, key, keyNo, type);
+    }
+
+    /**
+     * Change a key with an enciphered cryptogram; must directly follow the
+     * authentication, see {@link DESFireEngine#changeKey}.
+     */
+    public boolean changeKey(byte keyNo, byte keyVersion, KeyType keyType, byte[] newKey, byte[] oldKey) {
+        return engine.changeKey(transport, session, keyNo, keyVersion, keyType, newKey, oldKey);
     }
 
     // ================ PICC LEVEL COMMANDS ================
@@ -273,123 +247,49 @@ public class DESFireEV1 extends SimpleSCR {
      * Get version information from PICC
      */
     public byte[] getVersion() {
-        byte[] apdu = {(byte) 0x90, (byte) Command.GET_VERSION.getCode(), 0x00, 0x00, 0x00};
-        return readDataFromCard(apdu);
+        return engine.getVersion(transport, session);
     }
 
     /**
      * Format PICC (destroys all data)
      */
     public boolean formatPICC() {
-        byte[] apdu = {(byte) 0x90, (byte) Command.FORMAT_PICC.getCode(), 0x00, 0x00, 0x00};
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-        
-        if (response.getSW2() == Response.OPERATION_OK.getCode()) {
-            reset(); // Formatting resets authentication
-            return true;
-        }
-        return false;
+        return engine.formatPICC(transport, session);
     }
 
     /**
      * Get free memory
      */
     public int getFreeMemory() {
-        byte[] apdu = {(byte) 0x90, (byte) Command.FREE_MEMORY.getCode(), 0x00, 0x00, 0x00};
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-        
-        if (response.getSW2() == Response.OPERATION_OK.getCode() && response.getData().length >= 3) {
-            byte[] data = response.getData();
-            return (data[0] & 0xFF) | ((data[1] & 0xFF) << 8) | ((data[2] & 0xFF) << 16);
-        }
-        return -1;
+        return engine.getFreeMemory(transport, session);
     }
 
     /**
      * Get application IDs
      */
     public byte[] getApplicationIds() {
-        return readDataFromCard(Command.GET_APPLICATION_IDS);
+        return engine.getApplicationIds(transport, session);
     }
 
     /**
      * Create application
      */
     public boolean createApplication(byte[] aid, byte keySettings, byte numberOfKeys) {
-        if (aid.length != 3) {
-            throw new DesfireException("AID must be 3 bytes");
-        }
-
-        byte[] apdu = new byte[10];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.CREATE_APPLICATION.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = 0x05;
-        System.arraycopy(aid, 0, apdu, 5, 3);
-        apdu[8] = keySettings;
-        apdu[9] = numberOfKeys;
-
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-
-        return response.getSW2() == Response.OPERATION_OK.getCode();
+        return engine.createApplication(transport, session, aid, keySettings, numberOfKeys);
     }
 
     /**
      * Delete application
      */
     public boolean deleteApplication(byte[] aid) {
-        if (aid.length != 3) {
-            throw new DesfireException("AID must be 3 bytes");
-        }
-
-        byte[] apdu = new byte[8];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.DELETE_APPLICATION.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = 0x03;
-        System.arraycopy(aid, 0, apdu, 5, 3);
-
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-
-        return response.getSW2() == Response.OPERATION_OK.getCode();
+        return engine.deleteApplication(transport, session, aid);
     }
 
     /**
      * Select application
      */
     public boolean selectApplication(byte[] aid) {
-        if (aid.length != 3) {
-            throw new DesfireException("AID must be 3 bytes");
-        }
-
-        byte[] apdu = new byte[8];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.SELECT_APPLICATION.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = 0x03;
-        System.arraycopy(aid, 0, apdu, 5, 3);
-
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-
-        if (response.getSW2() == Response.OPERATION_OK.getCode()) {
-            System.arraycopy(aid, 0, this.aid, 0, 3);
-            reset(); // Selection resets authentication
-            return true;
-        }
-        return false;
+        return engine.selectApplication(transport, session, aid);
     }
 
     // ================ FILE OPERATIONS ================
@@ -398,225 +298,82 @@ public class DESFireEV1 extends SimpleSCR {
      * Create standard data file
      */
     public boolean createStdDataFile(byte fileNo, byte commSettings, byte[] accessRights, int fileSize) {
-        byte[] apdu = new byte[12];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.CREATE_STD_DATA_FILE.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = 0x07;
-        apdu[5] = fileNo;
-        apdu[6] = commSettings;
-        System.arraycopy(accessRights, 0, apdu, 7, 2);
-        apdu[9] = (byte) (fileSize & 0xFF);
-        apdu[10] = (byte) ((fileSize >> 8) & 0xFF);
-        apdu[11] = (byte) ((fileSize >> 16) & 0xFF);
-
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-
-        return response.getSW2() == Response.OPERATION_OK.getCode();
+        return engine.createStdDataFile(transport, session, fileNo, commSettings, accessRights, fileSize);
+    }
+
+    /**
+     * Create backup data file
+     */
+    public boolean createBackupDataFile(byte fileNo, byte commSettings, byte[] accessRights, int fileSize) {
+        return engine.createBackupDataFile(transport, session, fileNo, commSettings, accessRights, fileSize);
     }
 
     /**
      * Read data from file
      */
     public byte[] readData(byte fileNo, int offset, int length) {
-        byte[] apdu = new byte[12];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.READ_DATA.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = 0x07;
-        apdu[5] = fileNo;
-        apdu[6] = (byte) (offset & 0xFF);
-        apdu[7] = (byte) ((offset >> 8) & 0xFF);
-        apdu[8] = (byte) ((offset >> 16) & 0xFF);
-        apdu[9] = (byte) (length & 0xFF);
-        apdu[10] = (byte) ((length >> 8) & 0xFF);
-        apdu[11] = (byte) ((length >> 16) & 0xFF);
-
-        return readDataFromCard(apdu);
+        return engine.readData(transport, session, fileNo, offset, length);
     }
 
     /**
      * Write data to file
      */
     public boolean writeData(byte fileNo, int offset, byte[] data) {
-        byte[] apdu = new byte[12 + data.length];
-        apdu[0] = (byte) 0x90;
-        apdu[1] = (byte) Command.WRITE_DATA.getCode();
-        apdu[2] = 0x00;
-        apdu[3] = 0x00;
-        apdu[4] = (byte) (7 + data.length);
-        apdu[5] = fileNo;
-        apdu[6] = (byte) (offset & 0xFF);
-        apdu[7] = (byte) ((offset >> 8) & 0xFF);
-        apdu[8] = (byte) ((offset >> 16) & 0xFF);
-        apdu[9] = (byte) (data.length & 0xFF);
-        apdu[10] = (byte) ((data.length >> 8) & 0xFF);
-        apdu[11] = (byte) ((data.length >> 16) & 0xFF);
-        System.arraycopy(data, 0, apdu, 12, data.length);
-
-        CommandAPDU command = new CommandAPDU(apdu);
-        ResponseAPDU response = transmit(command);
-        this.code = response.getSW2();
-
-        return response.getSW2() == Response.OPERATION_OK.getCode();
-    }
-
-    // ================ UTILITY METHODS ================
-
-    private byte[] readDataFromCard(Command cmd) {
-        byte[] apdu = {(byte) 0x90, (byte) cmd.getCode(), 0x00, 0x00, 0x00};
-        return readDataFromCard(apdu);
+        return engine.writeData(transport, session, fileNo, offset, data);
     }
 
-    private byte[] readDataFromCard(byte[] apdu) {
-        try {
-            ByteArrayOutputStream result = new ByteArrayOutputStream();
-            CommandAPDU command = new CommandAPDU(apdu);
-            ResponseAPDU response = transmit(command);
-            this.code = response.getSW2();
-
-            while (response.getSW2() == Response.ADDITIONAL_FRAME.getCode()) {
-                result.write(response.getData());
-                // Send additional frame command
-                byte[] moreApdu = {(byte) 0x90, (byte) 0xAF, 0x00, 0x00, 0x00};
-                command = new CommandAPDU(moreApdu);
-                response = transmit(command);
-                this.code = response.getSW2();
-            }
-
-            if (response.getSW2() == Response.OPERATION_OK.getCode()) {
-                result.write(response.getData());
-                return result.toByteArray();
-            }
-
-            return null;
-        } catch (IOException e) {
-            log.error("Error reading data from card", e);
-            return null;
-        }
-    }
-
-    private boolean validateKey(byte[] key, KeyType type) {
-        if (key == null) return false;
-        switch (type) {
-            case DES: return key.length == 8;
-            case TDES: return key.length == 16;
-            case TKTDES: return key.length == 24;
-            case AES: return key.length == 16;
-            default: return false;
-        }
-    }
-
-    private void setKeyVersion(byte[] key, int offset, int length, byte version) {
-        for (int i = offset; i < offset + length; i += 8) {
-            if (i + 7 < key.length) {
-                key[i + 7] = (byte) (key[i + 7] & 0xFE | version & 0x01);
-            }
-        }
-    }
-
-    private byte[] rotateLeft(byte[] data) {
-        if (data == null || data.length == 0) return data;
-        byte[] result = new byte[data.length];
-        System.arraycopy(data, 1, result, 0, data.length - 1);
-        result[data.length - 1] = data[0];
-        return result;
-    }
-
-    private byte[] generateSessionKey(byte[] randA, byte[] randB, KeyType type) {
-        switch (type) {
-            case DES:
-                byte[] skey8 = new byte[8];
-                System.arraycopy(randA, 0, skey8, 0, 4);
-                System.arraycopy(randB, 0, skey8, 4, 4);
-                return skey8;
-
-            case TDES:
-                byte[] skey16 = new byte[16];
-                System.arraycopy(randA, 0, skey16, 0, 4);
-                System.arraycopy(randB, 0, skey16, 4, 4);
-                System.arraycopy(randA, 4, skey16, 8, 4);
-                System.arraycopy(randB, 4, skey16, 12, 4);
-                return skey16;
-
-            case TKTDES:
-                byte[] skey24 = new byte[24];
-                System.arraycopy(randA, 0, skey24, 0, 4);
-                System.arraycopy(randB, 0, skey24, 4, 4);
-                System.arraycopy(randA, 6, skey24, 8, 4);
-                System.arraycopy(randB, 6, skey24, 12, 4);
-                System.arraycopy(randA, 12, skey24, 16, 4);
-                System.arraycopy(randB, 12, skey24, 20, 4);
-                return skey24;
-
-            case AES:
-                byte[] skeyAES = new byte[16];
-                System.arraycopy(randA, 0, skeyAES, 0, 4);
-                System.arraycopy(randB, 0, skeyAES, 4, 4);
-                System.arraycopy(randA, 12, skeyAES, 8, 4);
-                System.arraycopy(randB, 12, skeyAES, 12, 4);
-                return skeyAES;
-
-            default:
-                throw new DesfireException("Unknown key type: " + type);
-        }
-    }
-
-    private byte[] send(byte[] key, byte[] data, KeyType type, byte[] iv) {
-        switch (type) {
-            case DES:
-                return DES.encrypt(iv, key, data);
-            case TDES:
-            case TKTDES:
-                return TripleDES.encrypt(iv, key, data);
-            case AES:
-                return AES.encrypt(iv, key, data);
-            default:
-                return null;
-        }
+    /**
+     * Commit the pending writes of the selected application
+     */
+    public boolean commitTransaction() {
+        return engine.commitTransaction(transport, session);
     }
 
-    private byte[] recv(byte[] key, byte[] data, KeyType type, byte[] iv) {
-        switch (type) {
-            case DES:
-                return DES.decrypt(iv, key, data);
-            case TDES:
-            case TKTDES:
-                return TripleDES.decrypt(iv, key, data);
-            case AES:
-                return AES.decrypt(iv, key, data);
-            default:
-                return null;
-        }
+    /**
+     * Abort the pending writes of the selected application
+     */
+    public boolean abortTransaction() {
+        return engine.abortTransaction(transport, session);
     }
 
     // ================ GETTERS ================
 
     public int getLastResponseCode() {
-        return code;
+        return session.getLastStatus();
     }
 
     public boolean isAuthenticated() {
-        return skey != null;
+        return session.isAuthenticated();
     }
 
     public KeyType getCurrentKeyType() {
-        return ktype;
+        return session.getKeyType();
     }
 
     public byte getCurrentKeyNo() {
-        return kno;
+        return session.getKeyNo();
     }
 
     public byte[] getCurrentAid() {
-        return aid != null ? aid.clone() : null;
+        return session.getAid();
     }
 
     public byte[] getSessionKey() {
-        return skey != null ? skey.clone() : null;
+        return session.getSessionKey();
+    }
+
+    /**
+     * The protocol state of the connected card
+     */
+    public SessionContext getSessionContext() {
+        return session;
+    }
+
+    public CardTransport getTransport() {
+        return transport;
+    }
+
+    public DESFireEngine getEngine() {
+        return engine;
     }
 }
\ No newline at end of file
@@ -0,0 +1,479 @@
+package org.esupportail.desfire.core;
+
+import org.esupportail.desfire.core.DESFireEV1.Command;
+import org.esupportail.desfire.core.DESFireEV1.Response;
+import org.esupportail.desfire.core.util.CRC16;
+import org.esupportail.desfire.core.util.CRC32;
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.Deadline;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Stateless DESFire EV1 protocol engine.
+ *
+ * <p>Every call takes the transport to the card and the {@link SessionContext}
+ * of that card, so one engine instance can serve any number of cards from any
+ * number of threads without locking.
+ *
+ * <p>Commands are built in, and responses read from, the direct buffers of the
+ * {@link SessionContext}; status words are taken from the buffer tail, so an
+ * exchange, additional frames included, allocates nothing per APDU.
+ *
+ * <p>The {@link Deadline}s bound to the calling thread are checked before each APDU.
+ */
+public class DESFireEngine {
+
+    private static final Logger log = LoggerFactory.getLogger(DESFireEngine.class);
+
+    private final Random random;
+
+    public DESFireEngine() {
+        this.random = null;
+    }
+
+    /**
+     * Engine drawing the PCD random number of authentications from
+     * <code>random</code>. A seeded source makes them reproducible, so a
+     * recorded tap replays through {@link org.esupportail.desfire.core.transport.RecordedTransport};
+     * never use one with real keys.
+     */
+    public DESFireEngine(Random random) {
+        this.random = random;
+    }
+
+    // ================ AUTHENTICATION ================
+
+    /**
+     * Mutual authentication between PCD and PICC.
+     * @return the session key, or <code>null</code> on failure
+     */
+    public byte[] authenticate(CardTransport transport, SessionContext ctx, byte[] key, byte keyNo, KeyType type) {
+        if (!DesfireCrypto.validateKey(key, type))
+            return null;
+        if (type != KeyType.AES) {
+            DesfireCrypto.setKeyVersion(key, 0, key.length, (byte) 0x00);
+        }
+
+        final byte[] iv0 = new byte[DesfireCrypto.blockSize(type)];
+        int length;
+
+        // 1st message exchange
+        Command cmd;
+        switch (type) {
+            case DES:
+            case TDES:
+                cmd = Command.AUTHENTICATE_DES_2K3DES;
+                break;
+            case TKTDES:
+                cmd = Command.AUTHENTICATE_3K3DES;
+                break;
+            case AES:
+                cmd = Command.AUTHENTICATE_AES;
+                break;
+            default:
+                throw new DesfireException("Invalid key type: " + type);
+        }
+        command(ctx, cmd).put(keyNo);
+        length = exchange(transport, ctx, true);
+
+        if (ctx.getLastStatus() != Response.ADDITIONAL_FRAME.getCode())
+            return null;
+
+        // step 3
+        byte[] encRandB = data(ctx, length);
+        byte[] randB = DesfireCrypto.decrypt(key, encRandB, type, iv0);
+        if (randB == null)
+            return null;
+        byte[] randBr = DesfireCrypto.rotateLeft(randB);
+        byte[] randA = challenge(randB.length);
+
+        // step 3: encryption
+        byte[] plaintext = new byte[randA.length + randBr.length];
+        System.arraycopy(randA, 0, plaintext, 0, randA.length);
+        System.arraycopy(randBr, 0, plaintext, randA.length, randBr.length);
+        byte[] iv1 = Arrays.copyOfRange(encRandB, encRandB.length - iv0.length, encRandB.length);
+        byte[] ciphertext = DesfireCrypto.encrypt(key, plaintext, type, iv1);
+        if (ciphertext == null)
+            return null;
+
+        // 2nd message exchange
+        command(ctx, Command.ADDITIONAL_FRAME).put(ciphertext);
+        length = exchange(transport, ctx, true);
+
+        if (ctx.getLastStatus() != Response.OPERATION_OK.getCode())
+            return null;
+
+        // step 5
+        byte[] iv2 = Arrays.copyOfRange(ciphertext, ciphertext.length - iv0.length, ciphertext.length);
+        byte[] randAr = DesfireCrypto.decrypt(key, data(ctx, length), type, iv2);
+        if (randAr == null)
+            return null;
+        byte[] randAr2 = DesfireCrypto.rotateLeft(randA);
+        for (int i = 0; i < randAr2.length; i++)
+            if (randAr[i] != randAr2[i])
+                return null;
+
+        // step 6 - generate session key
+        byte[] sessionKey = DesfireCrypto.generateSessionKey(randA, randB, type);
+        ctx.authenticated(type, keyNo, iv0, sessionKey);
+
+        return sessionKey;
+    }
+
+    /**
+     * Change a key of the selected application (or the PICC master key).
+     *
+     * <p>The cryptogram is the new key (XORed with <code>oldKey</code> when another
+     * key than the authenticated one is changed), its version, the CRC of the
+     * session type and, for another key, the CRC of the new key, padded and
+     * enciphered with the session key. The engine keeps no MAC chaining, so
+     * the command must directly follow {@link #authenticate}. Changing the
+     * authenticated key ends the authentication.
+     *
+     * @param oldKey	the current value of the key, as stored on the card; only
+     *                  used when <code>keyNo</code> is not the authenticated key
+     */
+    public boolean changeKey(CardTransport transport, SessionContext ctx, byte keyNo, byte keyVersion,
+            KeyType newKeyType, byte[] newKey, byte[] oldKey) {
+        if (!ctx.isAuthenticated()) {
+            throw new DesfireException("ChangeKey requires an authentication");
+        }
+        if (!DesfireCrypto.validateKey(newKey, newKeyType)) {
+            throw new DesfireException("Invalid " + newKeyType + " key");
+        }
+        boolean other = (keyNo & 0x3F) != ctx.getKeyNo();
+        if (other && !DesfireCrypto.validateKey(oldKey, newKeyType)) {
+            throw new DesfireException("The current key is needed to change another key");
+        }
+
+        KeyType session = ctx.getKeyType();
+        byte[] key = cryptogramKey(newKey, newKeyType);
+        if (newKeyType != KeyType.AES) {
+            DesfireCrypto.setKeyVersion(key, 0, key.length, keyVersion);
+        }
+        byte keyNoFlags = keyNo;
+        if (Arrays.equals(ctx.getAid(), new byte[3]) && (keyNo & 0x3F) == 0) {
+            keyNoFlags |= newKeyType == KeyType.AES ? 0x80 : newKeyType == KeyType.TKTDES ? 0x40 : 0x00;
+        }
+
+        ByteBuffer plain = ByteBuffer.allocate(48);
+        if (other) {
+            byte[] old = cryptogramKey(oldKey, newKeyType);
+            for (int i = 0; i < key.length; i++) {
+                plain.put((byte) (key[i] ^ old[i]));
+            }
+        } else {
+            plain.put(key);
+        }
+        if (newKeyType == KeyType.AES) {
+            plain.put(keyVersion);
+        }
+        if (session == KeyType.AES || session == KeyType.TKTDES) {
+            byte[] crcInput = new byte[2 + plain.position()];
+            crcInput[0] = (byte) Command.CHANGE_KEY.getCode();
+            crcInput[1] = keyNoFlags;
+            plain.get(0, crcInput, 2, plain.position());
+            plain.put(CRC32.get(crcInput));
+            if (other) {
+                plain.put(CRC32.get(key));
+            }
+        } else {
+            byte[] data = new byte[plain.position()];
+            plain.get(0, data);
+            plain.put(CRC16.get(data));
+            if (other) {
+                plain.put(CRC16.get(key));
+            }
+        }
+        int block = DesfireCrypto.blockSize(session);
+        byte[] padded = new byte[(plain.position() + block - 1) / block * block];
+        plain.get(0, padded, 0, plain.position());
+
+        byte[] cryptogram = DesfireCrypto.encrypt(ctx.getSessionKey(), padded, session, ctx.getIv());
+        if (cryptogram == null) {
+            return false;
+        }
+        command(ctx, Command.CHANGE_KEY).put(keyNoFlags).put(cryptogram);
+        boolean ok = isOk(transport, ctx);
+        if (ok && !other) {
+            ctx.resetAuthentication();
+        }
+        return ok;
+    }
+
+    private byte[] challenge(int length) {
+        if (random == null) {
+            return DesfireCrypto.random(length);
+        }
+        byte[] challenge = new byte[length];
+        random.nextBytes(challenge);
+        return challenge;
+    }
+
+    /**
+     * Copy of a key as carried by the cryptogram, where a DES key is doubled
+     */
+    private static byte[] cryptogramKey(byte[] key, KeyType type) {
+        if (type != KeyType.DES) {
+            return key.clone();
+        }
+        byte[] doubled = Arrays.copyOf(key, 16);
+        System.arraycopy(key, 0, doubled, 8, 8);
+        return doubled;
+    }
+
+    // ================ PICC LEVEL COMMANDS ================
+
+    /**
+     * Get version information from PICC
+     */
+    public byte[] getVersion(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.GET_VERSION);
+        return readDataFromCard(transport, ctx);
+    }
+
+    /**
+     * Format PICC (destroys all data)
+     */
+    public boolean formatPICC(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.FORMAT_PICC);
+        if (isOk(transport, ctx)) {
+            ctx.resetAuthentication(); // Formatting resets authentication
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Get free memory, or -1 on failure
+     */
+    public int getFreeMemory(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.FREE_MEMORY);
+        int length = exchange(transport, ctx, false);
+
+        if (ctx.getLastStatus() == Response.OPERATION_OK.getCode() && length >= 3) {
+            return getInt24(ctx.responseBuffer(), 0);
+        }
+        return -1;
+    }
+
+    /**
+     * Get application IDs
+     */
+    public byte[] getApplicationIds(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.GET_APPLICATION_IDS);
+        return readDataFromCard(transport, ctx);
+    }
+
+    /**
+     * Create application
+     */
+    public boolean createApplication(CardTransport transport, SessionContext ctx, byte[] aid,
+                                     byte keySettings, byte numberOfKeys) {
+        checkAid(aid);
+        command(ctx, Command.CREATE_APPLICATION).put(aid).put(keySettings).put(numberOfKeys);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Delete application
+     */
+    public boolean deleteApplication(CardTransport transport, SessionContext ctx, byte[] aid) {
+        checkAid(aid);
+        command(ctx, Command.DELETE_APPLICATION).put(aid);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Select application
+     */
+    public boolean selectApplication(CardTransport transport, SessionContext ctx, byte[] aid) {
+        checkAid(aid);
+        command(ctx, Command.SELECT_APPLICATION).put(aid);
+        if (isOk(transport, ctx)) {
+            ctx.selected(aid); // Selection resets authentication
+            return true;
+        }
+        return false;
+    }
+
+    // ================ FILE OPERATIONS ================
+
+    /**
+     * Create standard data file
+     */
+    public boolean createStdDataFile(CardTransport transport, SessionContext ctx, byte fileNo, byte commSettings,
+                                     byte[] accessRights, int fileSize) {
+        ByteBuffer apdu = command(ctx, Command.CREATE_STD_DATA_FILE).put(fileNo).put(commSettings);
+        apdu.put(accessRights, 0, 2);
+        putInt24(apdu, fileSize);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Create backup data file, whose writes only show after {@link #commitTransaction}
+     */
+    public boolean createBackupDataFile(CardTransport transport, SessionContext ctx, byte fileNo, byte commSettings,
+                                        byte[] accessRights, int fileSize) {
+        ByteBuffer apdu = command(ctx, Command.CREATE_BACKUP_DATA_FILE).put(fileNo).put(commSettings);
+        apdu.put(accessRights, 0, 2);
+        putInt24(apdu, fileSize);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Read data from file
+     */
+    public byte[] readData(CardTransport transport, SessionContext ctx, byte fileNo, int offset, int length) {
+        ByteBuffer apdu = command(ctx, Command.READ_DATA).put(fileNo);
+        putInt24(apdu, offset);
+        putInt24(apdu, length);
+        return readDataFromCard(transport, ctx);
+    }
+
+    /**
+     * Write data to file
+     */
+    public boolean writeData(CardTransport transport, SessionContext ctx, byte fileNo, int offset, byte[] data) {
+        ByteBuffer apdu = command(ctx, Command.WRITE_DATA).put(fileNo);
+        putInt24(apdu, offset);
+        putInt24(apdu, data.length);
+        apdu.put(data);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Make the pending writes to the backup, value and record files of the selected application visible
+     */
+    public boolean commitTransaction(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.COMMIT_TRANSACTION);
+        return isOk(transport, ctx);
+    }
+
+    /**
+     * Discard the pending writes to the backup, value and record files of the selected application
+     */
+    public boolean abortTransaction(CardTransport transport, SessionContext ctx) {
+        command(ctx, Command.ABORT_TRANSACTION);
+        return isOk(transport, ctx);
+    }
+
+    // ================ TRANSMISSION ================
+
+    /**
+     * Send one raw APDU and record its status in the context
+     * @return the response, status word included
+     */
+    public byte[] transmit(CardTransport transport, SessionContext ctx, byte[] apdu) {
+        ByteBuffer command = ctx.commandBuffer();
+        command.clear();
+        command.put(apdu);
+        int length = send(transport, ctx);
+        return data(ctx, length + 2);
+    }
+
+    /**
+     * Start a native command in the context command buffer; Lc is set by {@link #exchange}
+     */
+    private static ByteBuffer command(SessionContext ctx, Command cmd) {
+        ByteBuffer apdu = ctx.commandBuffer();
+        apdu.clear();
+        return apdu.put((byte) 0x90).put((byte) cmd.getCode()).put((byte) 0x00).put((byte) 0x00).put((byte) 0x00);
+    }
+
+    /**
+     * Complete the command with its Lc (and Le if <code>le</code> and it has data), then send it
+     * @return the length of the response data, status word excluded
+     */
+    private int exchange(CardTransport transport, SessionContext ctx, boolean le) {
+        ByteBuffer apdu = ctx.commandBuffer();
+        int lc = apdu.position() - 5;
+        apdu.put(4, (byte) lc);
+        if (le && lc > 0) {
+            apdu.put((byte) 0x00);
+        }
+        return send(transport, ctx);
+    }
+
+    private int send(CardTransport transport, SessionContext ctx) {
+        if (transport == null) {
+            throw new TransportException("Not connected to a card");
+        }
+        Deadline.checkCurrent("APDU");
+        ByteBuffer apdu = ctx.commandBuffer();
+        ByteBuffer response = ctx.responseBuffer();
+        apdu.flip();
+        response.clear();
+        int length = transport.transceive(apdu, response);
+        if (length < 2) {
+            throw new TransportException("Response without status word");
+        }
+        ctx.setLastStatus(response.get(length - 1) & 0xFF);
+        return length - 2;
+    }
+
+    /**
+     * Send the command in the context buffer and collect the data of all 0xAF frames
+     */
+    private byte[] readDataFromCard(CardTransport transport, SessionContext ctx) {
+        ByteBuffer response = ctx.responseBuffer();
+        int total = 0;
+        int length = exchange(transport, ctx, false);
+
+        while (ctx.getLastStatus() == Response.ADDITIONAL_FRAME.getCode()) {
+            response.get(0, ctx.frames(total + length), total, length);
+            total += length;
+            // Send additional frame command
+            command(ctx, Command.ADDITIONAL_FRAME);
+            length = exchange(transport, ctx, false);
+        }
+
+        if (ctx.getLastStatus() == Response.OPERATION_OK.getCode()) {
+            response.get(0, ctx.frames(total + length), total, length);
+            return Arrays.copyOf(ctx.frames(0), total + length);
+        }
+
+        log.debug("Read stopped with status {}", Integer.toHexString(ctx.getLastStatus()));
+        return null;
+    }
+
+    private boolean isOk(CardTransport transport, SessionContext ctx) {
+        exchange(transport, ctx, false);
+        return ctx.getLastStatus() == Response.OPERATION_OK.getCode();
+    }
+
+    /**
+     * Copy of the first <code>length</code> bytes of the last response
+     */
+    private static byte[] data(SessionContext ctx, int length) {
+        byte[] data = new byte[length];
+        ctx.responseBuffer().get(0, data);
+        return data;
+    }
+
+    private static void checkAid(byte[] aid) {
+        if (aid.length != 3) {
+            throw new DesfireException("AID must be 3 bytes");
+        }
+    }
+
+    private static void putInt24(ByteBuffer apdu, int value) {
+        apdu.put((byte) (value & 0xFF));
+        apdu.put((byte) ((value >> 8) & 0xFF));
+        apdu.put((byte) ((value >> 16) & 0xFF));
+    }
+
+    private static int getInt24(ByteBuffer buffer, int index) {
+        return (buffer.get(index) & 0xFF) | ((buffer.get(index + 1) & 0xFF) << 8) | ((buffer.get(index + 2) & 0xFF) << 16);
+    }
+}
@@ -0,0 +1,143 @@
+package org.esupportail.desfire.core;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.model.KeyType;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Per-card protocol state used by {@link DESFireEngine}: selected application,
+ * authenticated key, IV, session key, current file settings and last status.
+ *
+ * <p>A context belongs to one card and must not be used by two threads at the
+ * same time; the engine itself keeps no state and can be shared freely. The
+ * context also owns the reusable I/O buffers of its card, so exchanges do not
+ * allocate per APDU.
+ */
+public class SessionContext {
+
+    /** A file/key number that does not exist. */
+    public static final byte FAKE_NO = -1;
+
+    private final byte[] aid = new byte[3];
+    private KeyType keyType;
+    private byte keyNo = FAKE_NO;
+    private byte[] iv;
+    private byte[] sessionKey;
+    private byte fileNo = FAKE_NO;
+    private byte[] fileSettings;
+    private int lastStatus;
+
+    // I/O buffers, allocated on first use
+    private ByteBuffer command;
+    private ByteBuffer response;
+    private byte[] frames = new byte[0];
+
+    /**
+     * Forget the authentication and file state (selection and formatting reset it on the card)
+     */
+    public void resetAuthentication() {
+        keyType = null;
+        keyNo = FAKE_NO;
+        iv = null;
+        sessionKey = null;
+        fileNo = FAKE_NO;
+        fileSettings = null;
+    }
+
+    void authenticated(KeyType keyType, byte keyNo, byte[] iv, byte[] sessionKey) {
+        this.keyType = keyType;
+        this.keyNo = keyNo;
+        this.iv = iv;
+        this.sessionKey = sessionKey;
+    }
+
+    void selected(byte[] aid) {
+        System.arraycopy(aid, 0, this.aid, 0, 3);
+        resetAuthentication();
+    }
+
+    // ================ GETTERS / SETTERS ================
+
+    public byte[] getAid() {
+        return aid.clone();
+    }
+
+    public KeyType getKeyType() {
+        return keyType;
+    }
+
+    public byte getKeyNo() {
+        return keyNo;
+    }
+
+    public byte[] getIv() {
+        return iv != null ? iv.clone() : null;
+    }
+
+    public byte[] getSessionKey() {
+        return sessionKey != null ? sessionKey.clone() : null;
+    }
+
+    public boolean isAuthenticated() {
+        return sessionKey != null;
+    }
+
+    public byte getFileNo() {
+        return fileNo;
+    }
+
+    public byte[] getFileSettings() {
+        return fileSettings != null ? fileSettings.clone() : null;
+    }
+
+    public void setFileSettings(byte fileNo, byte[] fileSettings) {
+        this.fileNo = fileNo;
+        this.fileSettings = fileSettings != null ? fileSettings.clone() : null;
+    }
+
+    /**
+     * SW2 of the last response received for this card
+     */
+    public int getLastStatus() {
+        return lastStatus;
+    }
+
+    void setLastStatus(int lastStatus) {
+        this.lastStatus = lastStatus;
+    }
+
+    // ================ I/O BUFFERS ================
+
+    /**
+     * Direct buffer for the next command: header, 255 data bytes and Le
+     */
+    ByteBuffer commandBuffer() {
+        if (command == null) {
+            command = ByteBuffer.allocateDirect(5 + 255 + 1);
+        }
+        return command;
+    }
+
+    /**
+     * Direct buffer holding the last response, status word included
+     */
+    ByteBuffer responseBuffer() {
+        if (response == null) {
+            response = ByteBuffer.allocateDirect(CardTransport.MAX_RESPONSE_LENGTH);
+        }
+        return response;
+    }
+
+    /**
+     * Scratch array for chained answers, grown to at least <code>capacity</code>
+     * bytes while keeping its content
+     */
+    byte[] frames(int capacity) {
+        if (frames.length < capacity) {
+            frames = Arrays.copyOf(frames, Math.max(capacity, 2 * frames.length));
+        }
+        return frames;
+    }
+}
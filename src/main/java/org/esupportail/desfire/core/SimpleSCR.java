@@ -10,22 +10,57 @@
  */
 package org.esupportail.desfire.core;
 
+import java.nio.ByteBuffer;
+
 import javax.smartcardio.*;
 
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.reader.TerminalRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 /**
  * A simple smart card reader. Uses the Java Smart Card I/O API which
  * communicates with smart cards using ISO/IEC 7816-4 APDUs.
  * 
+ * <p>This is the default {@link CardTransport} of {@link DESFireEV1}.
+ * 
  * @author	Daniel Andrade
  * @version	9.9.2013, 0.4
  */
-public class SimpleSCR {
+public class SimpleSCR implements CardTransport {
+
+	private final static Logger log = LoggerFactory.getLogger(SimpleSCR.class);
 
 	private final static String ATR_ULTRALIGHT_C = "3b 8f 80 01 80 4f 0c a0 00 00 03 06 03 00 03 00 00 00 00 68";
 	private final static String ATR_DESFIRE_EV1 = "3b 81 80 01 80 80";
 
 	protected Card card;
 	private CardChannel channel;
+	private final TerminalFactory factory;
+	private TerminalRegistry registry;
+	private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(5 + 255 + 1);
+	private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(MAX_RESPONSE_LENGTH);
+
+	public SimpleSCR() {
+		this((TerminalFactory) null);
+	}
+
+	/**
+	 * @param factory	the terminal factory to use, <code>null</code> for the default one
+	 */
+	public SimpleSCR(TerminalFactory factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @param registry	the cached readers to connect through
+	 */
+	public SimpleSCR(TerminalRegistry registry) {
+		this.factory = null;
+		this.registry = registry;
+	}
 
 	public boolean connect() {
 		return connect(0);
@@ -40,15 +75,21 @@ public class SimpleSCR {
 	}
 	
 	/**
-	 * Establishes a connection with a card. The first reader found is used.
+	 * Establishes a connection with a card on a reader of the
+	 * {@link TerminalRegistry}.
 	 * 
+	 * @param termNb	index of the reader
 	 * @return	<code>true</code> on success
 	 */
 	public boolean connect(int termNb) {
-		CardTerminals cardTerminals = TerminalFactory.getDefault().terminals();
+		TerminalRegistry terminals = getRegistry();
 
 		try {
-			CardTerminal terminal = cardTerminals.list().get(termNb);
+			CardTerminal terminal = terminals.get(termNb);
+			if (terminal == null) {
+				log.warn("No terminal {}, found {}", termNb, terminals.list().size());
+				return false;
+			}
 			if (!terminal.isCardPresent()) {
 				System.out.println("No smart card present on the terminal.");
 				return false;
@@ -60,12 +101,20 @@ public class SimpleSCR {
 		} catch (CardException e) {
 			e.printStackTrace();
 			System.out.println("Is reader connected?");
+			terminals.refresh(); // the reader may have been unplugged
 			return false;
 		}
 
 		return true;
 	}
 
+	private synchronized TerminalRegistry getRegistry() {
+		if (registry == null) {
+			registry = factory != null ? new TerminalRegistry(factory.terminals()) : TerminalRegistry.getDefault();
+		}
+		return registry;
+	}
+
 	/** Disconnect the connection with the card.
 	 * 
 	 * @return	<code>true</code> on success
@@ -102,14 +151,93 @@ public class SimpleSCR {
 	 */
 	public byte[] transmit(byte[] command) {
 		try {
-			ResponseAPDU response = channel.transmit(new CommandAPDU(command));
-			return response.getBytes();
-		} catch (CardException e) {
+			return transceive(command);
+		} catch (TransportException e) {
 			e.printStackTrace();
 			return null;
 		}
 	}
 
+	/**
+	 * Array exchange through reusable direct buffers: the only allocation is
+	 * the returned response.
+	 */
+	@Override
+	public synchronized byte[] transceive(byte[] command) {
+		ByteBuffer apdu = commandBuffer;
+		if (command.length > apdu.capacity()) {
+			apdu = ByteBuffer.wrap(command); // extended length APDU
+		} else {
+			apdu.clear();
+			apdu.put(command).flip();
+		}
+		responseBuffer.clear();
+		int length = transceive(apdu, responseBuffer);
+		byte[] response = new byte[length];
+		responseBuffer.get(0, response);
+		return response;
+	}
+
+	@Override
+	public int transceive(ByteBuffer command, ByteBuffer response) {
+		if (channel == null) {
+			throw new TransportException("Not connected to a card");
+		}
+		try {
+			return channel.transmit(command, response);
+		} catch (CardException | IllegalStateException e) {
+			throw new TransportException("APDU transmission failed", e);
+		}
+	}
+
+	@Override
+	public byte[] control(int controlCode, byte[] command) {
+		if (card == null) {
+			throw new TransportException("Not connected to a card");
+		}
+		try {
+			return card.transmitControlCommand(controlCode, command);
+		} catch (CardException | IllegalStateException e) {
+			throw new TransportException("Control command failed", e);
+		}
+	}
+
+	@Override
+	public void beginExclusive() {
+		if (card == null) {
+			throw new TransportException("Not connected to a card");
+		}
+		try {
+			card.beginExclusive();
+		} catch (CardException | IllegalStateException e) {
+			throw new TransportException("Exclusive access failed", e);
+		}
+	}
+
+	@Override
+	public void endExclusive() {
+		if (card == null) {
+			return; // disconnected inside the session, nothing left to release
+		}
+		try {
+			card.endExclusive();
+		} catch (CardException | IllegalStateException e) {
+			throw new TransportException("Releasing exclusive access failed", e);
+		}
+	}
+
+	@Override
+	public void close() {
+		disconnect();
+	}
+
+	/**
+	 * The basic channel of the connected card, or <code>null</code>.
+	 */
+	protected CardChannel getChannel() {
+		return channel;
+	}
+
 	protected ResponseAPDU transmit(CommandAPDU command) {
 		try {
 			ResponseAPDU response = channel.transmit(command);
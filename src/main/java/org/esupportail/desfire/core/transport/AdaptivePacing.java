@@ -0,0 +1,36 @@
+package org.esupportail.desfire.core.transport;
+
+/**
+ * Delay that starts at zero, doubles on each failure (at least <code>step</code>,
+ * at most <code>max</code>) and loses a quarter on each success, back to zero
+ * once below a tenth of <code>step</code>.
+ */
+public final class AdaptivePacing implements PacingPolicy {
+
+    private final long stepNanos;
+    private final long maxNanos;
+    private long delayNanos;
+
+    public AdaptivePacing(long stepNanos, long maxNanos) {
+        this.stepNanos = stepNanos;
+        this.maxNanos = maxNanos;
+    }
+
+    @Override
+    public synchronized long delayNanos() {
+        return delayNanos;
+    }
+
+    @Override
+    public synchronized void onSuccess() {
+        delayNanos -= delayNanos >> 2;
+        if (delayNanos < stepNanos / 10) {
+            delayNanos = 0;
+        }
+    }
+
+    @Override
+    public synchronized void onFailure() {
+        delayNanos = Math.min(maxNanos, Math.max(stepNanos, 2 * delayNanos));
+    }
+}
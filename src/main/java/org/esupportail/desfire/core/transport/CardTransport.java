@@ -0,0 +1,84 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Binary link to one card.
+ *
+ * <p>This is the only thing the protocol code needs from a reader, so PC/SC
+ * through <code>javax.smartcardio</code>, native bindings, remote readers and
+ * test doubles are interchangeable. Implementations throw
+ * {@link TransportException} when the link fails.
+ */
+public interface CardTransport extends AutoCloseable {
+
+    /** Room to reserve for a response: 256 data bytes and the status word. */
+    int MAX_RESPONSE_LENGTH = 258;
+
+    /**
+     * Send the command between the position and limit of <code>command</code>
+     * and put the response, status word included, at the position of
+     * <code>response</code>.
+     * @return the number of response bytes
+     */
+    int transceive(ByteBuffer command, ByteBuffer response);
+
+    /**
+     * Array convenience over {@link #transceive(ByteBuffer, ByteBuffer)}
+     * @return the response, status word included
+     */
+    default byte[] transceive(byte[] command) {
+        ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+        int length = transceive(ByteBuffer.wrap(command), response);
+        return Arrays.copyOf(response.array(), length);
+    }
+
+    /**
+     * Take exclusive access to the card for the calling thread until
+     * {@link #endExclusive()}, so the exchanges in between are not interleaved
+     * with other clients of the reader. Does nothing on transports without
+     * shared access.
+     * @see ExclusiveSession
+     */
+    default void beginExclusive() {
+    }
+
+    /**
+     * Release the access taken by {@link #beginExclusive()}
+     */
+    default void endExclusive() {
+    }
+
+    /**
+     * Send a control (escape) command to the reader rather than the card,
+     * as <code>Card.transmitControlCommand</code> does
+     * @return the reader answer
+     * @throws TransportException if the reader refuses the command or the
+     *         transport has no reader behind it
+     */
+    default byte[] control(int controlCode, byte[] command) {
+        throw new TransportException("Control commands are not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * This transport, or the one it decorates, as the given type
+     * @return <code>null</code> if neither is of that type
+     */
+    default <T extends CardTransport> T unwrap(Class<T> type) {
+        return type.isInstance(this) ? type.cast(this) : null;
+    }
+
+    /**
+     * Whether a card is reachable through this transport
+     */
+    boolean isConnected();
+
+    /**
+     * Release the link; the transport cannot be used afterwards
+     */
+    @Override
+    void close();
+}
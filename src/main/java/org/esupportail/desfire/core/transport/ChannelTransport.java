@@ -0,0 +1,121 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link CardTransport} over a <code>javax.smartcardio</code> channel
+ */
+public class ChannelTransport implements CardTransport {
+
+    private final CardChannel channel;
+    private final Card card; // disconnected on close, null when not owned
+    private volatile boolean closed;
+    private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(5 + 255 + 1);
+    private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(MAX_RESPONSE_LENGTH);
+
+    /**
+     * Transport over a channel owned by the caller
+     */
+    public ChannelTransport(CardChannel channel) {
+        this(channel, null);
+    }
+
+    /**
+     * Transport over the basic channel of a card, disconnected on {@link #close()}
+     */
+    public ChannelTransport(Card card) {
+        this(card.getBasicChannel(), card);
+    }
+
+    private ChannelTransport(CardChannel channel, Card card) {
+        this.channel = channel;
+        this.card = card;
+    }
+
+    @Override
+    public int transceive(ByteBuffer command, ByteBuffer response) {
+        if (closed) {
+            throw new TransportException("Transport closed");
+        }
+        try {
+            return channel.transmit(command, response);
+        } catch (CardException | IllegalStateException e) {
+            throw new TransportException("APDU transmission failed", e);
+        }
+    }
+
+    /**
+     * Array exchange through reusable direct buffers
+     */
+    @Override
+    public synchronized byte[] transceive(byte[] command) {
+        ByteBuffer apdu = commandBuffer;
+        if (command.length > apdu.capacity()) {
+            apdu = ByteBuffer.wrap(command); // extended length APDU
+        } else {
+            apdu.clear();
+            apdu.put(command).flip();
+        }
+        responseBuffer.clear();
+        int length = transceive(apdu, responseBuffer);
+        byte[] response = new byte[length];
+        responseBuffer.get(0, response);
+        return response;
+    }
+
+    @Override
+    public byte[] control(int controlCode, byte[] command) {
+        try {
+            return channel.getCard().transmitControlCommand(controlCode, command);
+        } catch (CardException | IllegalStateException e) {
+            throw new TransportException("Control command failed", e);
+        }
+    }
+
+    @Override
+    public void beginExclusive() {
+        try {
+            channel.getCard().beginExclusive();
+        } catch (CardException | IllegalStateException e) {
+            throw new TransportException("Exclusive access failed", e);
+        }
+    }
+
+    @Override
+    public void endExclusive() {
+        try {
+            channel.getCard().endExclusive();
+        } catch (CardException | IllegalStateException e) {
+            throw new TransportException("Releasing exclusive access failed", e);
+        }
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (card != null) {
+            try {
+                card.disconnect(false);
+            } catch (CardException e) {
+                throw new TransportException("Disconnect failed", e);
+            }
+        }
+    }
+
+    public CardChannel getChannel() {
+        return channel;
+    }
+}
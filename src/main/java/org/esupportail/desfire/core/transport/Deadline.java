@@ -0,0 +1,155 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+
+import java.time.Duration;
+
+/**
+ * Point in time after which an operation on the card must stop, which can
+ * also be cancelled early (user walked away, gate closed...).
+ *
+ * <p>A deadline bound to a thread applies to every APDU the thread sends:
+ * the engine checks it before each exchange and {@link DeadlineTransport}
+ * bounds the wait for the answer. Bound deadlines nest, the earliest one wins.
+ * <pre>
+ * Deadline deadline = Deadline.after(Duration.ofMillis(300));
+ * try (Deadline.Scope scope = deadline.bind()) {
+ *     desfire.selectApplication(aid);
+ *     data = desfire.readData((byte) 1, 0, 32);
+ * } catch (DeadlineExceededException e) {
+ *     log.warn("Tap abandoned at {}", e.getStep());
+ * }
+ * </pre>
+ */
+public final class Deadline {
+
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+
+    private final long start = System.nanoTime();
+    private final long deadlineNanos;
+    private final boolean bounded;
+    private volatile boolean cancelled;
+
+    private Deadline(long timeoutNanos, boolean bounded) {
+        this.deadlineNanos = start + timeoutNanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Deadline a given time from now
+     */
+    public static Deadline after(Duration timeout) {
+        return new Deadline(timeout.toNanos(), true);
+    }
+
+    /**
+     * Deadline that only passes when cancelled
+     */
+    public static Deadline none() {
+        return new Deadline(0, false);
+    }
+
+    /**
+     * Make the deadline pass now; operations bound to it stop before their next APDU
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isExpired() {
+        return cancelled || (bounded && deadlineNanos - System.nanoTime() <= 0);
+    }
+
+    /**
+     * Nanoseconds left, 0 once passed, {@link Long#MAX_VALUE} without a time limit
+     */
+    public long remainingNanos() {
+        if (cancelled) {
+            return 0;
+        }
+        return bounded ? Math.max(0, deadlineNanos - System.nanoTime()) : Long.MAX_VALUE;
+    }
+
+    public Duration getElapsed() {
+        return Duration.ofNanos(System.nanoTime() - start);
+    }
+
+    /**
+     * @throws DeadlineExceededException if the deadline passed before <code>step</code>
+     */
+    public void check(String step) {
+        if (isExpired()) {
+            throw new DeadlineExceededException((cancelled ? "Cancelled" : "Deadline exceeded") + " before " + step
+                    + " after " + getElapsed().toMillis() + " ms", step);
+        }
+    }
+
+    /**
+     * Apply the deadline to the calling thread until the scope is closed
+     */
+    public Scope bind() {
+        Scope scope = new Scope(this, CURRENT.get());
+        CURRENT.set(scope);
+        return scope;
+    }
+
+    /**
+     * Check the deadlines bound to the calling thread
+     * @throws DeadlineExceededException if one of them passed
+     */
+    public static void checkCurrent(String step) {
+        for (Scope scope = CURRENT.get(); scope != null; scope = scope.previous) {
+            scope.deadline.check(step);
+        }
+    }
+
+    /**
+     * Nanoseconds left before the earliest deadline bound to the calling thread,
+     * {@link Long#MAX_VALUE} if none
+     */
+    public static long currentRemainingNanos() {
+        long remaining = Long.MAX_VALUE;
+        for (Scope scope = CURRENT.get(); scope != null; scope = scope.previous) {
+            remaining = Math.min(remaining, scope.deadline.remainingNanos());
+        }
+        return remaining;
+    }
+
+    /**
+     * Binding of a deadline to a thread
+     */
+    public static final class Scope implements AutoCloseable {
+
+        private final Deadline deadline;
+        private final Scope previous;
+        private boolean closed;
+
+        private Scope(Deadline deadline, Scope previous) {
+            this.deadline = deadline;
+            this.previous = previous;
+        }
+
+        public Deadline getDeadline() {
+            return deadline;
+        }
+
+        @Override
+        public void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (CURRENT.get() == this) {
+                if (previous != null) {
+                    CURRENT.set(previous);
+                } else {
+                    CURRENT.remove();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link CardTransport} decorator bounding the time the caller waits for
+ * the card, so a card drifting out of the field cannot stall it in a PC/SC
+ * call.
+ *
+ * <p>Exchanges run on a worker thread of the transport while the caller
+ * waits at most the APDU timeout and the {@link Deadline}s bound to its
+ * thread. When the wait is given up, the card is disconnected so the stuck
+ * call returns, and {@link DeadlineExceededException} is thrown; reconnect
+ * to go on. Exclusive access is taken from the worker thread too, as PC/SC
+ * ties it to the thread that took it.
+ * <pre>
+ * DESFireEV1 desfire = new DESFireEV1(new DeadlineTransport(new SimpleSCR(), Duration.ofMillis(500)));
+ * </pre>
+ */
+public class DeadlineTransport implements CardTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(DeadlineTransport.class);
+
+    /** Longest wait between two looks at the bound deadlines, which bounds how long a cancel takes. */
+    private static final long SLICE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final long NO_LIMIT = Long.MAX_VALUE;
+
+    private final CardTransport delegate;
+    private final long apduTimeoutNanos;
+    private volatile ExecutorService worker;
+    private ByteBuffer command = ByteBuffer.allocate(5 + 255 + 1);
+    private ByteBuffer response = ByteBuffer.allocate(MAX_RESPONSE_LENGTH);
+
+    /**
+     * @param apduTimeout longest wait for the answer to one APDU
+     */
+    public DeadlineTransport(CardTransport delegate, Duration apduTimeout) {
+        this.delegate = delegate;
+        this.apduTimeoutNanos = apduTimeout.toNanos();
+    }
+
+    @Override
+    public synchronized int transceive(ByteBuffer command, ByteBuffer response) {
+        Deadline.checkCurrent("APDU");
+        ByteBuffer out = this.command.capacity() < command.remaining()
+                ? (this.command = ByteBuffer.allocate(command.remaining())) : this.command;
+        ByteBuffer in = this.response.capacity() < response.remaining()
+                ? (this.response = ByteBuffer.allocate(response.remaining())) : this.response;
+        out.clear();
+        out.put(command).flip();
+        in.clear().limit(response.remaining());
+        int length = call(() -> delegate.transceive(out, in), apduTimeoutNanos, true, "APDU");
+        response.put(in.flip());
+        return length;
+    }
+
+    @Override
+    public synchronized byte[] control(int controlCode, byte[] command) {
+        return call(() -> delegate.control(controlCode, command), apduTimeoutNanos, true, "control command");
+    }
+
+    /**
+     * Waits for other clients of the reader as long as the bound deadlines allow
+     */
+    @Override
+    public synchronized void beginExclusive() {
+        call(() -> {
+            delegate.beginExclusive();
+            return null;
+        }, NO_LIMIT, true, "exclusive access");
+    }
+
+    /**
+     * Waits the APDU timeout even past the bound deadlines, so a stopped flow
+     * still releases the card
+     */
+    @Override
+    public synchronized void endExclusive() {
+        call(() -> {
+            delegate.endExclusive();
+            return null;
+        }, apduTimeoutNanos, false, "end of exclusive access");
+    }
+
+    /**
+     * Run a call on the worker thread and wait for it
+     * @param bound whether the deadlines bound to the calling thread limit the wait
+     */
+    private <T> T call(Callable<T> task, long timeoutNanos, boolean bound, String step) {
+        long start = System.nanoTime();
+        Future<T> future = worker().submit(task);
+        try {
+            while (true) {
+                long wait = bound ? Deadline.currentRemainingNanos() : NO_LIMIT;
+                if (timeoutNanos != NO_LIMIT) {
+                    wait = Math.min(wait, timeoutNanos - (System.nanoTime() - start));
+                }
+                if (wait <= 0) {
+                    abandon(future);
+                    throw new DeadlineExceededException("Gave up waiting for the card after "
+                            + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms", step);
+                }
+                try {
+                    return future.get(Math.min(wait, SLICE_NANOS), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    // look at the deadlines again, one may have been cancelled
+                }
+            }
+        } catch (InterruptedException e) {
+            abandon(future);
+            Thread.currentThread().interrupt();
+            throw new TransportException("Interrupted while waiting for the card", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new TransportException("Card exchange failed", e.getCause());
+        }
+    }
+
+    private ExecutorService worker() {
+        ExecutorService executor = worker;
+        if (executor == null) {
+            executor = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "deadline-transport");
+                thread.setDaemon(true);
+                return thread;
+            });
+            worker = executor;
+        }
+        return executor;
+    }
+
+    /**
+     * Leave the stuck call to its thread and disconnect the card so it returns;
+     * the buffers it may still write go with it
+     */
+    private void abandon(Future<?> future) {
+        future.cancel(true);
+        ExecutorService stuck = worker;
+        worker = null;
+        if (stuck != null) {
+            stuck.shutdownNow();
+        }
+        command = ByteBuffer.allocate(command.capacity());
+        response = ByteBuffer.allocate(response.capacity());
+        Thread closer = new Thread(() -> {
+            try {
+                delegate.close();
+            } catch (RuntimeException e) {
+                log.debug("Disconnecting unresponsive card failed", e);
+            }
+        }, "deadline-transport-abort");
+        closer.setDaemon(true);
+        closer.start();
+        log.warn("Card did not answer in time, disconnected");
+    }
+
+    @Override
+    public <T extends CardTransport> T unwrap(Class<T> type) {
+        return type.isInstance(this) ? type.cast(this) : delegate.unwrap(type);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    /**
+     * Close the decorated transport; may be called from another thread to
+     * abort an exchange in progress
+     */
+    @Override
+    public void close() {
+        ExecutorService executor = worker;
+        worker = null;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        delegate.close();
+    }
+}
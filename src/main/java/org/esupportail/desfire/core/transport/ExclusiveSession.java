@@ -0,0 +1,87 @@
+package org.esupportail.desfire.core.transport;
+
+import java.time.Duration;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Exclusive access to a card for a block of exchanges.
+ * <pre>
+ * try (ExclusiveSession session = ExclusiveSession.open(transport)) {
+ *     // select, authenticate, write...
+ *     log.debug("done in {} ms", session.getElapsed().toMillis());
+ * }
+ * </pre>
+ *
+ * <p>Besides keeping other reader clients out between two commands, PC/SC
+ * then runs the whole block in one transaction instead of one per APDU.
+ * Sessions nest on a thread: only the outermost one takes and releases the
+ * card, inner ones just time their block.
+ */
+public final class ExclusiveSession implements AutoCloseable {
+
+    private static final ThreadLocal<Map<CardTransport, int[]>> DEPTHS = ThreadLocal.withInitial(IdentityHashMap::new);
+
+    private final CardTransport transport;
+    private final boolean outermost;
+    private final long startNanos;
+    private long endNanos;
+
+    private ExclusiveSession(CardTransport transport, boolean outermost) {
+        this.transport = transport;
+        this.outermost = outermost;
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Take exclusive access to the card of a transport, or join the session
+     * the calling thread already holds on it
+     */
+    public static ExclusiveSession open(CardTransport transport) {
+        Map<CardTransport, int[]> depths = DEPTHS.get();
+        int[] depth = depths.get(transport);
+        if (depth != null) {
+            depth[0]++;
+            return new ExclusiveSession(transport, false);
+        }
+        transport.beginExclusive();
+        depths.put(transport, new int[] {1});
+        return new ExclusiveSession(transport, true);
+    }
+
+    /**
+     * Whether this session took the card, rather than joining an enclosing one
+     */
+    public boolean isOutermost() {
+        return outermost;
+    }
+
+    /**
+     * Time spent in the block so far, or until {@link #close()}
+     */
+    public Duration getElapsed() {
+        return Duration.ofNanos((endNanos != 0 ? endNanos : System.nanoTime()) - startNanos);
+    }
+
+    public boolean isClosed() {
+        return endNanos != 0;
+    }
+
+    @Override
+    public void close() {
+        if (endNanos != 0) {
+            return;
+        }
+        endNanos = System.nanoTime();
+        Map<CardTransport, int[]> depths = DEPTHS.get();
+        int[] depth = depths.get(transport);
+        if (depth == null || --depth[0] > 0) {
+            return;
+        }
+        depths.remove(transport);
+        if (depths.isEmpty()) {
+            DEPTHS.remove();
+        }
+        transport.endExclusive();
+    }
+}
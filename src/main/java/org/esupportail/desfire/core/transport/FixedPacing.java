@@ -0,0 +1,28 @@
+package org.esupportail.desfire.core.transport;
+
+/**
+ * Constant delay, whatever the outcome of the exchanges
+ */
+public final class FixedPacing implements PacingPolicy {
+
+    static final FixedPacing NONE = new FixedPacing(0);
+
+    private final long delayNanos;
+
+    public FixedPacing(long delayNanos) {
+        this.delayNanos = delayNanos;
+    }
+
+    @Override
+    public long delayNanos() {
+        return delayNanos;
+    }
+
+    @Override
+    public void onSuccess() {
+    }
+
+    @Override
+    public void onFailure() {
+    }
+}
@@ -0,0 +1,47 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link CardTransport} answered by a function, for tests and card simulators.
+ *
+ * <p>The responder gets the command bytes and returns the full response,
+ * status word included.
+ */
+public class InMemoryTransport implements CardTransport {
+
+    private final UnaryOperator<byte[]> responder;
+    private volatile boolean closed;
+
+    public InMemoryTransport(UnaryOperator<byte[]> responder) {
+        this.responder = responder;
+    }
+
+    @Override
+    public int transceive(ByteBuffer command, ByteBuffer response) {
+        if (closed) {
+            throw new TransportException("Transport closed");
+        }
+        byte[] apdu = new byte[command.remaining()];
+        command.get(apdu);
+        byte[] answer = responder.apply(apdu);
+        if (answer == null || answer.length < 2) {
+            throw new TransportException("No response from card");
+        }
+        response.put(answer);
+        return answer.length;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+}
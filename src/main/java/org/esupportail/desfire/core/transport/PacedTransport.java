@@ -0,0 +1,107 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link CardTransport} decorator applying a {@link PacingPolicy}.
+ *
+ * <p>The delay runs from the end of the previous exchange, so time the caller
+ * spends between two APDUs counts towards it. Reader failures and transient
+ * status words (<code>6Fxx</code>, <code>6400</code>, DESFire
+ * <code>91CA</code> command aborted) are reported to the policy as failures.
+ */
+public class PacedTransport implements CardTransport {
+
+    private final CardTransport delegate;
+    private final PacingPolicy policy;
+    private long lastExchangeEnd;
+
+    public PacedTransport(CardTransport delegate, PacingPolicy policy) {
+        this.delegate = delegate;
+        this.policy = policy;
+    }
+
+    @Override
+    public synchronized int transceive(ByteBuffer command, ByteBuffer response) {
+        pace(policy, lastExchangeEnd);
+        int start = response.position();
+        try {
+            int length = delegate.transceive(command, response);
+            if (length >= 2 && isTransient(response.get(start + length - 2), response.get(start + length - 1))) {
+                policy.onFailure();
+            } else {
+                policy.onSuccess();
+            }
+            return length;
+        } catch (TransportException e) {
+            policy.onFailure();
+            throw e;
+        } finally {
+            lastExchangeEnd = System.nanoTime();
+        }
+    }
+
+    /**
+     * Wait until the policy delay has elapsed since <code>lastExchangeEnd</code>
+     * (a {@link System#nanoTime()} value, 0 if there was no exchange yet)
+     */
+    public static void pace(PacingPolicy policy, long lastExchangeEnd) {
+        long delay = policy.delayNanos();
+        if (delay <= 0 || lastExchangeEnd == 0) {
+            return;
+        }
+        long deadline = lastExchangeEnd + delay;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted while pacing");
+            }
+        }
+    }
+
+    /**
+     * Status words that a retry after a pause may clear
+     */
+    public static boolean isTransient(byte sw1, byte sw2) {
+        return sw1 == 0x6F || (sw1 == 0x64 && sw2 == 0x00) || (sw1 == (byte) 0x91 && sw2 == (byte) 0xCA);
+    }
+
+    @Override
+    public byte[] control(int controlCode, byte[] command) {
+        return delegate.control(controlCode, command);
+    }
+
+    @Override
+    public void beginExclusive() {
+        delegate.beginExclusive();
+    }
+
+    @Override
+    public void endExclusive() {
+        delegate.endExclusive();
+    }
+
+    @Override
+    public <T extends CardTransport> T unwrap(Class<T> type) {
+        return type.isInstance(this) ? type.cast(this) : delegate.unwrap(type);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+
+    public PacingPolicy getPolicy() {
+        return policy;
+    }
+}
@@ -0,0 +1,65 @@
+package org.esupportail.desfire.core.transport;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Pacing policies selected by reader name.
+ *
+ * <p>Rules are tried in insertion order and the first pattern found in the
+ * reader name wins; readers matching no rule are not paced. Each call to
+ * {@link #policyFor(String)} returns a new policy, since adaptive policies keep
+ * per-reader state.
+ * <pre>
+ * PacingConfig config = new PacingConfig()
+ *         .add("ACR1581", () -&gt; PacingPolicy.adaptive(Duration.ofMillis(100)))
+ *         .add("SAM", PacingPolicy::none);
+ * </pre>
+ */
+public class PacingConfig {
+
+    private static final class Rule {
+
+        final Pattern pattern;
+        final Supplier<PacingPolicy> policy;
+
+        Rule(Pattern pattern, Supplier<PacingPolicy> policy) {
+            this.pattern = pattern;
+            this.policy = policy;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * Adaptive pacing, up to the former fixed 100 ms, for ACS readers; none for the others
+     */
+    public static PacingConfig defaults() {
+        return new PacingConfig().add("ACS", () -> PacingPolicy.adaptive(Duration.ofMillis(100)));
+    }
+
+    /**
+     * @param pattern regular expression searched in the reader name
+     */
+    public PacingConfig add(String pattern, Supplier<PacingPolicy> policy) {
+        rules.add(new Rule(Pattern.compile(pattern), policy));
+        return this;
+    }
+
+    /**
+     * New policy for a reader
+     */
+    public PacingPolicy policyFor(String readerName) {
+        if (readerName != null) {
+            for (Rule rule : rules) {
+                if (rule.pattern.matcher(readerName).find()) {
+                    return rule.policy.get();
+                }
+            }
+        }
+        return PacingPolicy.none();
+    }
+}
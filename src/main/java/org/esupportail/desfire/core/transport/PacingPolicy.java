@@ -0,0 +1,51 @@
+package org.esupportail.desfire.core.transport;
+
+import java.time.Duration;
+
+/**
+ * Delay inserted between two APDUs sent to a reader.
+ *
+ * <p>Some readers (notably older ACS firmware) fail when commands follow each
+ * other too closely. A policy is stateful and belongs to one reader; see
+ * {@link PacingConfig} to pick one by reader name and {@link PacedTransport}
+ * to apply it.
+ */
+public interface PacingPolicy {
+
+    /**
+     * Minimum time between the end of an exchange and the start of the next one
+     */
+    long delayNanos();
+
+    /**
+     * The last exchange succeeded
+     */
+    void onSuccess();
+
+    /**
+     * The last exchange failed at the reader or returned a transient error
+     */
+    void onFailure();
+
+    /**
+     * No pacing at all
+     */
+    static PacingPolicy none() {
+        return FixedPacing.NONE;
+    }
+
+    /**
+     * The same delay after every APDU
+     */
+    static PacingPolicy fixed(Duration delay) {
+        return new FixedPacing(delay.toNanos());
+    }
+
+    /**
+     * No delay until the reader fails, then exponential back-off up to <code>max</code>
+     * and decay back to zero on success
+     */
+    static PacingPolicy adaptive(Duration max) {
+        return new AdaptivePacing(Duration.ofMillis(5).toNanos(), max.toNanos());
+    }
+}
@@ -0,0 +1,176 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.service.DesfireUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link CardTransport} replaying a recorded session.
+ *
+ * <p>Each command must match the next recorded one; the recorded response is
+ * then returned. A mismatch raises {@link TransportException}, which makes
+ * recorded sessions usable as regression tests of the protocol code.
+ *
+ * <p>Captures of {@link RecordingTransport} also carry the card response time
+ * of each exchange, which {@link Timing#ORIGINAL} reproduces so a captured tap
+ * can serve as a benchmark. Authentication sends fresh random data: it replays
+ * when both the recording and the replay run on an engine built with the same
+ * seeded source, see {@link org.esupportail.desfire.core.DESFireEngine#DESFireEngine(java.util.Random)}.
+ */
+public class RecordedTransport implements CardTransport {
+
+    /**
+     * How fast responses are served
+     */
+    public enum Timing {
+        /** as soon as the command arrives */
+        FAST,
+        /** after the recorded card response time */
+        ORIGINAL
+    }
+
+    /**
+     * One recorded command and its response
+     */
+    public static final class Exchange {
+
+        private final byte[] command;
+        private final byte[] response;
+        private final long sentNanos;
+        private final long durationNanos;
+
+        public Exchange(byte[] command, byte[] response) {
+            this(command, response, 0, 0);
+        }
+
+        /**
+         * @param response      <code>null</code> if the transport failed
+         * @param sentNanos     when the command was sent, from the session start
+         * @param durationNanos time until the response came back
+         */
+        public Exchange(byte[] command, byte[] response, long sentNanos, long durationNanos) {
+            this.command = command;
+            this.response = response;
+            this.sentNanos = sentNanos;
+            this.durationNanos = durationNanos;
+        }
+
+        public static Exchange of(String command, String response) {
+            return new Exchange(DesfireUtils.hexStringToByteArray(command), DesfireUtils.hexStringToByteArray(response));
+        }
+
+        public byte[] getCommand() {
+            return command;
+        }
+
+        public byte[] getResponse() {
+            return response;
+        }
+
+        public long getSentNanos() {
+            return sentNanos;
+        }
+
+        public long getDurationNanos() {
+            return durationNanos;
+        }
+    }
+
+    private final List<Exchange> exchanges;
+    private final Timing timing;
+    private boolean strict = true;
+    private int next;
+    private boolean closed;
+
+    public RecordedTransport(List<Exchange> exchanges) {
+        this(exchanges, Timing.FAST);
+    }
+
+    public RecordedTransport(List<Exchange> exchanges, Timing timing) {
+        this.exchanges = new ArrayList<>(exchanges);
+        this.timing = timing;
+    }
+
+    /**
+     * Replay a {@link RecordingTransport} capture file
+     */
+    public static RecordedTransport open(Path path, Timing timing) {
+        return new RecordedTransport(RecordingTransport.read(path), timing);
+    }
+
+    /**
+     * With strict matching off only CLA and INS of each command are checked
+     */
+    public synchronized RecordedTransport setStrict(boolean strict) {
+        this.strict = strict;
+        return this;
+    }
+
+    @Override
+    public synchronized int transceive(ByteBuffer command, ByteBuffer response) {
+        if (closed) {
+            throw new TransportException("Transport closed");
+        }
+        if (next >= exchanges.size()) {
+            throw new TransportException("Recording exhausted after " + next + " exchanges");
+        }
+        byte[] apdu = new byte[command.remaining()];
+        command.get(apdu);
+        Exchange exchange = exchanges.get(next);
+        if (!matches(exchange.command, apdu)) {
+            throw new TransportException("Unexpected command " + DesfireUtils.byteArrayToHexString(apdu)
+                    + " at exchange " + next + ", recorded " + DesfireUtils.byteArrayToHexString(exchange.command));
+        }
+        next++;
+        if (timing == Timing.ORIGINAL) {
+            waitNanos(exchange.durationNanos);
+        }
+        if (exchange.response == null) {
+            throw new TransportException("Recorded transport failure at exchange " + (next - 1));
+        }
+        response.put(exchange.response);
+        return exchange.response.length;
+    }
+
+    private boolean matches(byte[] recorded, byte[] apdu) {
+        if (strict) {
+            return Arrays.equals(recorded, apdu);
+        }
+        return recorded.length >= 2 && apdu.length >= 2 && recorded[0] == apdu[0] && recorded[1] == apdu[1];
+    }
+
+    private static void waitNanos(long nanos) {
+        long deadline = System.nanoTime() + nanos;
+        long remaining;
+        while ((remaining = deadline - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(remaining);
+            if (Thread.interrupted()) {
+                Thread.currentThread().interrupt();
+                throw new TransportException("Interrupted while replaying");
+            }
+        }
+    }
+
+    /**
+     * Number of recorded exchanges not replayed yet
+     */
+    public synchronized int remaining() {
+        return exchanges.size() - next;
+    }
+
+    @Override
+    public synchronized boolean isConnected() {
+        return !closed;
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+    }
+}
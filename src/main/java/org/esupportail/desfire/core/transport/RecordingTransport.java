@@ -0,0 +1,211 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link CardTransport} decorator appending every exchange to a binary
+ * capture file, for replay by {@link RecordedTransport}.
+ * <pre>
+ * try (CardTransport transport = new RecordingTransport(new SimpleSCR(), Paths.get("tap.dfr"))) {
+ *     DESFireCompleteService service = new DESFireCompleteService(transport);
+ *     service.connect();
+ *     ...
+ * }
+ * List&lt;RecordedTransport.Exchange&gt; tap = RecordingTransport.read(Paths.get("tap.dfr"));
+ * </pre>
+ *
+ * <p>Only the exchanges going through this decorator are captured: hand it to
+ * the service, as above. Calling {@link org.esupportail.desfire.core.SimpleSCR#transmit(byte[])}
+ * on the wrapped reader goes straight to the card and is not recorded.
+ *
+ * <p>The file is append-only: each transport adds a session record then one
+ * record per exchange, so several sessions can share a file. Numbers are big
+ * endian, times are nanoseconds from the session start.
+ * <pre>
+ * file     : i32 magic "DFR1", record*
+ * session  : u8 'S', i64 epochMillis
+ * exchange : u8 'X', i64 sentNanos, i64 durationNanos, u16 commandLength, command,
+ *            u16 responseLength (0xFFFF: the transport failed), response
+ * </pre>
+ * A capture that cannot be written is logged and never changes the outcome
+ * of the exchange; a record torn by a crash ends the file on reading.
+ */
+public class RecordingTransport implements CardTransport {
+
+    private static final Logger log = LoggerFactory.getLogger(RecordingTransport.class);
+
+    /** "DFR1" */
+    public static final int MAGIC = 0x44465231;
+
+    private static final byte SESSION = 'S';
+    private static final byte EXCHANGE = 'X';
+    private static final int FAILED = 0xFFFF;
+
+    private final CardTransport delegate;
+    private final FileChannel file;
+    private final long start;
+    private ByteBuffer record = ByteBuffer.allocateDirect(1 + 8 + 8 + 2 + 5 + 255 + 1 + 2 + MAX_RESPONSE_LENGTH);
+
+    /**
+     * Record the exchanges of a transport at the end of a capture file,
+     * created if needed
+     */
+    public RecordingTransport(CardTransport delegate, Path path) {
+        this.delegate = delegate;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            record.clear();
+            if (file.size() == 0) {
+                record.putInt(MAGIC);
+            }
+            record.put(SESSION).putLong(System.currentTimeMillis()).flip();
+            write();
+        } catch (IOException e) {
+            throw new TransportException("Failed to open capture file " + path, e);
+        }
+        start = System.nanoTime();
+    }
+
+    @Override
+    public synchronized int transceive(ByteBuffer command, ByteBuffer response) {
+        ByteBuffer apdu = command.duplicate();
+        int offset = response.position();
+        long sent = System.nanoTime();
+        int length = -1;
+        try {
+            length = delegate.transceive(command, response);
+            return length;
+        } finally {
+            long duration = System.nanoTime() - sent;
+            ByteBuffer answer = response.duplicate();
+            answer.limit(offset + Math.max(length, 0)).position(offset);
+            try {
+                append(sent - start, duration, apdu, length < 0 ? null : answer);
+            } catch (TransportException e) {
+                log.warn("Exchange not recorded", e);
+            }
+        }
+    }
+
+    private void append(long sentNanos, long durationNanos, ByteBuffer command, ByteBuffer response) {
+        int size = 1 + 8 + 8 + 2 + command.remaining() + 2 + (response != null ? response.remaining() : 0);
+        if (size > record.capacity()) {
+            record = ByteBuffer.allocateDirect(size); // extended length APDU
+        }
+        record.clear();
+        record.put(EXCHANGE).putLong(sentNanos).putLong(durationNanos);
+        record.putShort((short) command.remaining()).put(command);
+        if (response != null) {
+            record.putShort((short) response.remaining()).put(response);
+        } else {
+            record.putShort((short) FAILED);
+        }
+        record.flip();
+        try {
+            write();
+        } catch (IOException e) {
+            throw new TransportException("Failed to write capture file", e);
+        }
+    }
+
+    private void write() throws IOException {
+        while (record.hasRemaining()) {
+            file.write(record);
+        }
+    }
+
+    /**
+     * Load the exchanges of all sessions of a capture file, in order
+     */
+    public static List<RecordedTransport.Exchange> read(Path path) {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new TransportException("Failed to read capture file " + path, e);
+        }
+        if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+            throw new TransportException("Not a capture file: " + path);
+        }
+        List<RecordedTransport.Exchange> exchanges = new ArrayList<>();
+        while (buffer.hasRemaining()) {
+            int offset = buffer.position();
+            try {
+                byte type = buffer.get();
+                if (type == SESSION) {
+                    buffer.getLong();
+                } else if (type == EXCHANGE) {
+                    long sentNanos = buffer.getLong();
+                    long durationNanos = buffer.getLong();
+                    byte[] command = new byte[buffer.getShort() & 0xFFFF];
+                    buffer.get(command);
+                    int length = buffer.getShort() & 0xFFFF;
+                    byte[] response = null;
+                    if (length != FAILED) {
+                        response = new byte[length];
+                        buffer.get(response);
+                    }
+                    exchanges.add(new RecordedTransport.Exchange(command, response, sentNanos, durationNanos));
+                } else {
+                    throw new TransportException("Corrupted capture file " + path + " at " + offset);
+                }
+            } catch (BufferUnderflowException e) {
+                log.warn("Capture file {} ends with a truncated record at {}", path, offset);
+                break;
+            }
+        }
+        return exchanges;
+    }
+
+    @Override
+    public byte[] control(int controlCode, byte[] command) {
+        return delegate.control(controlCode, command);
+    }
+
+    @Override
+    public void beginExclusive() {
+        delegate.beginExclusive();
+    }
+
+    @Override
+    public void endExclusive() {
+        delegate.endExclusive();
+    }
+
+    @Override
+    public <T extends CardTransport> T unwrap(Class<T> type) {
+        return type.isInstance(this) ? type.cast(this) : delegate.unwrap(type);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    /**
+     * Close the capture file and the recorded transport
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new TransportException("Failed to close capture file", e);
+        } finally {
+            delegate.close();
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package org.esupportail.desfire.core.transport;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link CardTransport} decorator counting exchanges and the time spent
+ * waiting for their answers, failed exchanges included. Readers of the
+ * counters take differences around the commands they measure.
+ */
+public class TimingTransport implements CardTransport {
+
+    private final CardTransport delegate;
+    private final AtomicLong exchanges = new AtomicLong();
+    private final AtomicLong exchangeNanos = new AtomicLong();
+
+    public TimingTransport(CardTransport delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public int transceive(ByteBuffer command, ByteBuffer response) {
+        long start = System.nanoTime();
+        try {
+            return delegate.transceive(command, response);
+        } finally {
+            exchangeNanos.addAndGet(System.nanoTime() - start);
+            exchanges.incrementAndGet();
+        }
+    }
+
+    /**
+     * Exchanges so far
+     */
+    public long getExchanges() {
+        return exchanges.get();
+    }
+
+    /**
+     * Time spent in exchanges so far
+     */
+    public long getExchangeNanos() {
+        return exchangeNanos.get();
+    }
+
+    @Override
+    public byte[] control(int controlCode, byte[] command) {
+        return delegate.control(controlCode, command);
+    }
+
+    @Override
+    public void beginExclusive() {
+        delegate.beginExclusive();
+    }
+
+    @Override
+    public void endExclusive() {
+        delegate.endExclusive();
+    }
+
+    @Override
+    public <T extends CardTransport> T unwrap(Class<T> type) {
+        return type.isInstance(this) ? type.cast(this) : delegate.unwrap(type);
+    }
+
+    @Override
+    public boolean isConnected() {
+        return delegate.isConnected();
+    }
+
+    @Override
+    public void close() {
+        delegate.close();
+    }
+}
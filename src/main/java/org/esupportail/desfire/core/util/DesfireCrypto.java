@@ -0,0 +1,172 @@
+package org.esupportail.desfire.core.util;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+
+import java.security.SecureRandom;
+
+/**
+ * Stateless helpers shared by the DESFire authentication code paths:
+ * key checks, CBC encryption by key type and session key derivation.
+ */
+public class DesfireCrypto {
+
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	private DesfireCrypto() {
+		// cannot be instantiated
+	}
+
+	/**
+	 * Check the key length against the key type.
+	 *
+	 * @param key	the key
+	 * @param type	the key type
+	 * @return		<code>true</code> if the key can be used
+	 */
+	public static boolean validateKey(byte[] key, KeyType type) {
+		if (key == null) return false;
+		switch (type) {
+			case DES: return key.length == 8;
+			case TDES: return key.length == 16;
+			case TKTDES: return key.length == 24;
+			case AES: return key.length == 16;
+			default: return false;
+		}
+	}
+
+	/**
+	 * Store a key version in the parity bits of a (3)DES key.
+	 *
+	 * @param key		the key, modified in place
+	 * @param offset	the first key byte
+	 * @param length	the key length
+	 * @param version	the version bit to set
+	 */
+	public static void setKeyVersion(byte[] key, int offset, int length, byte version) {
+		for (int i = offset; i < offset + length; i += 8) {
+			if (i + 7 < key.length) {
+				key[i + 7] = (byte) (key[i + 7] & 0xFE | version & 0x01);
+			}
+		}
+	}
+
+	/**
+	 * Rotate a byte array one byte to the left.
+	 *
+	 * @param data	the array
+	 * @return		a new rotated array
+	 */
+	public static byte[] rotateLeft(byte[] data) {
+		if (data == null || data.length == 0) return data;
+		byte[] result = new byte[data.length];
+		System.arraycopy(data, 1, result, 0, data.length - 1);
+		result[data.length - 1] = data[0];
+		return result;
+	}
+
+	/**
+	 * Fill an array with random bytes (thread-safe).
+	 *
+	 * @param length	the number of bytes
+	 * @return			the random bytes
+	 */
+	public static byte[] random(int length) {
+		byte[] bytes = new byte[length];
+		RANDOM.nextBytes(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Derive the session key from both random numbers of the handshake.
+	 *
+	 * @param randA	the PCD random number
+	 * @param randB	the PICC random number
+	 * @param type	the key type
+	 * @return		the session key
+	 */
+	public static byte[] generateSessionKey(byte[] randA, byte[] randB, KeyType type) {
+		switch (type) {
+			case DES:
+				byte[] skey8 = new byte[8];
+				System.arraycopy(randA, 0, skey8, 0, 4);
+				System.arraycopy(randB, 0, skey8, 4, 4);
+				return skey8;
+
+			case TDES:
+				byte[] skey16 = new byte[16];
+				System.arraycopy(randA, 0, skey16, 0, 4);
+				System.arraycopy(randB, 0, skey16, 4, 4);
+				System.arraycopy(randA, 4, skey16, 8, 4);
+				System.arraycopy(randB, 4, skey16, 12, 4);
+				return skey16;
+
+			case TKTDES:
+				byte[] skey24 = new byte[24];
+				System.arraycopy(randA, 0, skey24, 0, 4);
+				System.arraycopy(randB, 0, skey24, 4, 4);
+				System.arraycopy(randA, 6, skey24, 8, 4);
+				System.arraycopy(randB, 6, skey24, 12, 4);
+				System.arraycopy(randA, 12, skey24, 16, 4);
+				System.arraycopy(randB, 12, skey24, 20, 4);
+				return skey24;
+
+			case AES:
+				byte[] skeyAES = new byte[16];
+				System.arraycopy(randA, 0, skeyAES, 0, 4);
+				System.arraycopy(randB, 0, skeyAES, 4, 4);
+				System.arraycopy(randA, 12, skeyAES, 8, 4);
+				System.arraycopy(randB, 12, skeyAES, 12, 4);
+				return skeyAES;
+
+			default:
+				throw new DesfireException("Unknown key type: " + type);
+		}
+	}
+
+	/**
+	 * CBC encryption with the cipher of the key type.
+	 *
+	 * @return	the cipher text, or <code>null</code> on error
+	 */
+	public static byte[] encrypt(byte[] key, byte[] data, KeyType type, byte[] iv) {
+		switch (type) {
+			case DES:
+				return DES.encrypt(iv, key, data);
+			case TDES:
+			case TKTDES:
+				return TripleDES.encrypt(iv, key, data);
+			case AES:
+				return AES.encrypt(iv, key, data);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * CBC decryption with the cipher of the key type.
+	 *
+	 * @return	the plain text, or <code>null</code> on error
+	 */
+	public static byte[] decrypt(byte[] key, byte[] data, KeyType type, byte[] iv) {
+		switch (type) {
+			case DES:
+				return DES.decrypt(iv, key, data);
+			case TDES:
+			case TKTDES:
+				return TripleDES.decrypt(iv, key, data);
+			case AES:
+				return AES.decrypt(iv, key, data);
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Size of the cipher block (and IV) for the key type.
+	 */
+	public static int blockSize(KeyType type) {
+		return type == KeyType.AES ? 16 : 8;
+	}
+
+}
@@ -0,0 +1,38 @@
+package org.esupportail.desfire.exceptions;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Exception for an operation stopped because its deadline passed or was
+ * cancelled, telling which step was stopped and which ones were done
+ */
+public class DeadlineExceededException extends DesfireException {
+
+    private final String step;
+    private final List<String> completedSteps;
+
+    public DeadlineExceededException(String message, String step) {
+        this(message, step, Collections.emptyList(), null);
+    }
+
+    public DeadlineExceededException(String message, String step, List<String> completedSteps, Throwable cause) {
+        super(message, cause);
+        this.step = step;
+        this.completedSteps = Collections.unmodifiableList(completedSteps);
+    }
+
+    /**
+     * The step that was not run, or not finished
+     */
+    public String getStep() {
+        return step;
+    }
+
+    /**
+     * Steps of the flow done before the deadline, in order
+     */
+    public List<String> getCompletedSteps() {
+        return completedSteps;
+    }
+}
@@ -0,0 +1,16 @@
+package org.esupportail.desfire.exceptions;
+
+/**
+ * Exception for failures of the link to the card (reader, PC/SC, network),
+ * as opposed to errors reported by the card itself
+ */
+public class TransportException extends DesfireException {
+
+    public TransportException(String message) {
+        super(message);
+    }
+
+    public TransportException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
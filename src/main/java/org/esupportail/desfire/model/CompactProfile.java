@@ -0,0 +1,331 @@
+package org.esupportail.desfire.model;
+
+import org.esupportail.desfire.service.DesfireUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, pre-decoded form of a {@link DesfireTag} profile.
+ *
+ * <p>Hex string fields of the POJO model are stored as bytes and sizes as
+ * primitives, so encoding a card never re-parses hex. Optional single-byte
+ * fields use <code>-1</code> for "not set" and optional byte fields use
+ * <code>null</code>. Instances are immutable: arrays are copied in and out,
+ * except by {@link ProfileCodec} which reads the fields and hands over the
+ * arrays it decodes. See {@link ProfileCodec} for the binary layout and
+ * {@link ProfileStore} for the memory-mapped store.
+ */
+public final class CompactProfile {
+
+    /** Value of an optional number that is not set. */
+    public static final int NONE = -1;
+
+    final boolean formatBeforeWrite;
+    final KeyType keyTypeStart;
+    final byte[] keyStart;
+    final KeyType keyTypeFinish;
+    final byte[] keyFinish;
+    final int keyVersionFinish;
+    final Application[] applications;
+
+    public CompactProfile(boolean formatBeforeWrite, KeyType keyTypeStart, byte[] keyStart,
+                          KeyType keyTypeFinish, byte[] keyFinish, int keyVersionFinish,
+                          Application[] applications) {
+        this(formatBeforeWrite, keyTypeStart, copy(keyStart), keyTypeFinish, copy(keyFinish), keyVersionFinish,
+                applications.clone(), false);
+    }
+
+    /**
+     * @param copy whether the arrays are copied; <code>false</code> when the caller hands them over
+     */
+    CompactProfile(boolean formatBeforeWrite, KeyType keyTypeStart, byte[] keyStart,
+                   KeyType keyTypeFinish, byte[] keyFinish, int keyVersionFinish,
+                   Application[] applications, boolean copy) {
+        this.formatBeforeWrite = formatBeforeWrite;
+        this.keyTypeStart = keyTypeStart;
+        this.keyStart = copy ? copy(keyStart) : keyStart;
+        this.keyTypeFinish = keyTypeFinish;
+        this.keyFinish = copy ? copy(keyFinish) : keyFinish;
+        this.keyVersionFinish = keyVersionFinish;
+        this.applications = copy ? applications.clone() : applications;
+    }
+
+    /**
+     * Compact form of a DESFire application
+     */
+    public static final class Application {
+
+        final int aid;
+        final byte[] isoId;
+        final byte[] isoName;
+        final byte[] lsbIsoId;
+        final Key[] keys;
+        final File[] files;
+
+        public Application(int aid, byte[] isoId, byte[] isoName, byte[] lsbIsoId, Key[] keys, File[] files) {
+            this(aid, isoId, isoName, lsbIsoId, keys, files, true);
+        }
+
+        Application(int aid, byte[] isoId, byte[] isoName, byte[] lsbIsoId, Key[] keys, File[] files,
+                    boolean copy) {
+            this.aid = aid;
+            this.isoId = copy ? copy(isoId) : isoId;
+            this.isoName = copy ? copy(isoName) : isoName;
+            this.lsbIsoId = copy ? copy(lsbIsoId) : lsbIsoId;
+            this.keys = copy ? keys.clone() : keys;
+            this.files = copy ? files.clone() : files;
+        }
+
+        /** 24-bit AID, or {@link #NONE} */
+        public int getAid() {
+            return aid;
+        }
+
+        /** AID as the 3 bytes sent to the card */
+        public byte[] getAidBytes() {
+            return new byte[] {(byte) (aid >> 16), (byte) (aid >> 8), (byte) aid};
+        }
+
+        public byte[] getIsoId() {
+            return copy(isoId);
+        }
+
+        public byte[] getIsoName() {
+            return copy(isoName);
+        }
+
+        public byte[] getLsbIsoId() {
+            return copy(lsbIsoId);
+        }
+
+        public Key[] getKeys() {
+            return keys.clone();
+        }
+
+        public File[] getFiles() {
+            return files.clone();
+        }
+    }
+
+    /**
+     * Compact form of a DESFire key
+     */
+    public static final class Key {
+
+        final int keyNo;
+        final int keyVersion;
+        final KeyType keyType;
+        final byte[] value;
+
+        public Key(int keyNo, int keyVersion, KeyType keyType, byte[] value) {
+            this(keyNo, keyVersion, keyType, value, true);
+        }
+
+        Key(int keyNo, int keyVersion, KeyType keyType, byte[] value, boolean copy) {
+            this.keyNo = keyNo;
+            this.keyVersion = keyVersion;
+            this.keyType = keyType;
+            this.value = copy ? copy(value) : value;
+        }
+
+        public int getKeyNo() {
+            return keyNo;
+        }
+
+        public int getKeyVersion() {
+            return keyVersion;
+        }
+
+        public KeyType getKeyType() {
+            return keyType;
+        }
+
+        public byte[] getValue() {
+            return copy(value);
+        }
+    }
+
+    /**
+     * Compact form of a DESFire file
+     */
+    public static final class File {
+
+        final int fileNo;
+        final int fileSize;
+        final int communicationSettings;
+        final byte[] fileSettings;
+        final byte[] fileKey;
+        final byte[] accessRights;
+        final byte[] initialValue;
+
+        public File(int fileNo, int fileSize, int communicationSettings, byte[] fileSettings,
+                    byte[] fileKey, byte[] accessRights, byte[] initialValue) {
+            this(fileNo, fileSize, communicationSettings, fileSettings, fileKey, accessRights, initialValue, true);
+        }
+
+        File(int fileNo, int fileSize, int communicationSettings, byte[] fileSettings,
+             byte[] fileKey, byte[] accessRights, byte[] initialValue, boolean copy) {
+            this.fileNo = fileNo;
+            this.fileSize = fileSize;
+            this.communicationSettings = communicationSettings;
+            this.fileSettings = copy ? copy(fileSettings) : fileSettings;
+            this.fileKey = copy ? copy(fileKey) : fileKey;
+            this.accessRights = copy ? copy(accessRights) : accessRights;
+            this.initialValue = copy ? copy(initialValue) : initialValue;
+        }
+
+        public int getFileNo() {
+            return fileNo;
+        }
+
+        public int getFileSize() {
+            return fileSize;
+        }
+
+        public int getCommunicationSettings() {
+            return communicationSettings;
+        }
+
+        public byte[] getFileSettings() {
+            return copy(fileSettings);
+        }
+
+        public byte[] getFileKey() {
+            return copy(fileKey);
+        }
+
+        public byte[] getAccessRights() {
+            return copy(accessRights);
+        }
+
+        public byte[] getInitialValue() {
+            return copy(initialValue);
+        }
+    }
+
+    // ================ GETTERS ================
+
+    public boolean isFormatBeforeWrite() {
+        return formatBeforeWrite;
+    }
+
+    public KeyType getKeyTypeStart() {
+        return keyTypeStart;
+    }
+
+    public byte[] getKeyStart() {
+        return copy(keyStart);
+    }
+
+    public KeyType getKeyTypeFinish() {
+        return keyTypeFinish;
+    }
+
+    public byte[] getKeyFinish() {
+        return copy(keyFinish);
+    }
+
+    public int getKeyVersionFinish() {
+        return keyVersionFinish;
+    }
+
+    public Application[] getApplications() {
+        return applications.clone();
+    }
+
+    private static byte[] copy(byte[] bytes) {
+        return bytes != null ? bytes.clone() : null;
+    }
+
+    // ================ CONVERTERS ================
+
+    /**
+     * Decode the hex fields of a POJO profile once
+     */
+    public static CompactProfile from(DesfireTag tag) {
+        List<DesfireApplication> apps = tag.getApplications() != null ? tag.getApplications() : new ArrayList<>();
+        Application[] applications = new Application[apps.size()];
+        for (int i = 0; i < applications.length; i++) {
+            applications[i] = from(apps.get(i));
+        }
+        return new CompactProfile(tag.isFormatBeforeWrite(), tag.getKeyTypeStart(), bytes(tag.getKeyStart()),
+                tag.getKeyTypeFinish(), bytes(tag.getKeyFinish()), number(tag.getKeyVersionFinish()), applications);
+    }
+
+    private static Application from(DesfireApplication app) {
+        List<DesfireKey> keyList = app.getKeys() != null ? app.getKeys() : new ArrayList<>();
+        Key[] keys = new Key[keyList.size()];
+        for (int i = 0; i < keys.length; i++) {
+            DesfireKey key = keyList.get(i);
+            keys[i] = new Key(number(key.getKeyNo()), number(key.getKeyVersion()), key.getKeyType(),
+                    bytes(key.getKeyValue()));
+        }
+
+        List<DesfireFile> fileList = app.getFiles() != null ? app.getFiles() : new ArrayList<>();
+        File[] files = new File[fileList.size()];
+        for (int i = 0; i < files.length; i++) {
+            DesfireFile file = fileList.get(i);
+            files[i] = new File(number(file.getFileNumber()), number(file.getFileSize()),
+                    number(file.getCommunicationSettings()), bytes(file.getFileSettings()),
+                    bytes(file.getFileKey()), bytes(file.getAccessRights()), bytes(file.getInitialValue()));
+        }
+
+        return new Application(number(app.getDesfireAppId()), bytes(app.getIsoId()), bytes(app.getIsoName()),
+                bytes(app.getLsbIsoId()), keys, files);
+    }
+
+    /**
+     * Rebuild the POJO profile (hex fields come back upper case)
+     */
+    public DesfireTag toTag() {
+        DesfireTag tag = new DesfireTag();
+        tag.setFormatBeforeWrite(formatBeforeWrite);
+        tag.setKeyTypeStart(keyTypeStart);
+        tag.setKeyStart(hex(keyStart));
+        tag.setKeyTypeFinish(keyTypeFinish);
+        tag.setKeyFinish(hex(keyFinish));
+        tag.setKeyVersionFinish(hex(keyVersionFinish, 2));
+
+        for (Application app : applications) {
+            DesfireApplication application = new DesfireApplication(hex(app.aid, 6));
+            application.setIsoId(hex(app.isoId));
+            application.setIsoName(hex(app.isoName));
+            application.setLsbIsoId(hex(app.lsbIsoId));
+            for (Key key : app.keys) {
+                application.addKey(new DesfireKey(hex(key.keyNo, 2), hex(key.value), hex(key.keyVersion, 2),
+                        key.keyType));
+            }
+            for (File file : app.files) {
+                DesfireFile desfireFile = new DesfireFile(hex(file.fileNo, 2), hex(file.fileSize, 0));
+                desfireFile.setCommunicationSettings(hex(file.communicationSettings, 2));
+                desfireFile.setFileSettings(hex(file.fileSettings));
+                desfireFile.setFileKey(hex(file.fileKey));
+                desfireFile.setAccessRights(hex(file.accessRights));
+                desfireFile.setInitialValue(hex(file.initialValue));
+                application.addFile(desfireFile);
+            }
+            tag.addApplication(application);
+        }
+        return tag;
+    }
+
+    private static byte[] bytes(String hex) {
+        return hex != null ? DesfireUtils.hexStringToByteArray(hex) : null;
+    }
+
+    private static int number(String hex) {
+        return hex != null ? Integer.parseInt(hex.replace(" ", ""), 16) : NONE;
+    }
+
+    private static String hex(byte[] bytes) {
+        return bytes != null ? DesfireUtils.byteArrayToHexString(bytes) : null;
+    }
+
+    private static String hex(int value, int digits) {
+        if (value == NONE) {
+            return null;
+        }
+        return digits > 0 ? String.format("%0" + digits + "X", value) : Integer.toHexString(value).toUpperCase();
+    }
+}
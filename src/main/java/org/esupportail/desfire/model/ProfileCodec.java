@@ -0,0 +1,189 @@
+package org.esupportail.desfire.model;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flat binary layout of a {@link CompactProfile}.
+ *
+ * <p>All numbers are big endian. Optional numbers are written as signed
+ * values with <code>-1</code> for "not set", byte fields as a u16 length
+ * followed by the bytes (<code>0xFFFF</code> for <code>null</code>) and key
+ * types as their ordinal (<code>0xFF</code> for <code>null</code>).
+ * <pre>
+ * profile : u8 flags, u8 keyTypeStart, bytes keyStart, u8 keyTypeFinish, bytes keyFinish,
+ *           i16 keyVersionFinish, u8 appCount, application*
+ * application : i32 aid, bytes isoId, bytes isoName, bytes lsbIsoId, u8 keyCount, key*, u8 fileCount, file*
+ * key  : i16 keyNo, i16 keyVersion, u8 keyType, bytes value
+ * file : i16 fileNo, i32 fileSize, i16 communicationSettings, bytes fileSettings, bytes fileKey,
+ *        bytes accessRights, bytes initialValue
+ * </pre>
+ *
+ * <p>The codec reads the profile fields directly and hands the arrays it
+ * decodes to the profile, so neither direction copies them.
+ */
+public final class ProfileCodec {
+
+    private static final int FLAG_FORMAT = 0x01;
+    private static final int NULL_LENGTH = 0xFFFF;
+    private static final int NULL_KEY_TYPE = 0xFF;
+    private static final KeyType[] KEY_TYPES = KeyType.values();
+
+    private ProfileCodec() {
+    }
+
+    /**
+     * Number of bytes {@link #write} needs for a profile
+     */
+    public static int encodedSize(CompactProfile profile) {
+        int size = 1 + 1 + size(profile.keyStart) + 1 + size(profile.keyFinish) + 2 + 1;
+        for (CompactProfile.Application app : profile.applications) {
+            size += 4 + size(app.isoId) + size(app.isoName) + size(app.lsbIsoId) + 1 + 1;
+            for (CompactProfile.Key key : app.keys) {
+                size += 2 + 2 + 1 + size(key.value);
+            }
+            for (CompactProfile.File file : app.files) {
+                size += 2 + 4 + 2 + size(file.fileSettings) + size(file.fileKey)
+                        + size(file.accessRights) + size(file.initialValue);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Encode a profile at the buffer position
+     */
+    public static void write(CompactProfile profile, ByteBuffer buffer) {
+        buffer.put((byte) (profile.formatBeforeWrite ? FLAG_FORMAT : 0));
+        putKeyType(buffer, profile.keyTypeStart);
+        putBytes(buffer, profile.keyStart);
+        putKeyType(buffer, profile.keyTypeFinish);
+        putBytes(buffer, profile.keyFinish);
+        buffer.putShort((short) profile.keyVersionFinish);
+
+        putCount(buffer, profile.applications.length);
+        for (CompactProfile.Application app : profile.applications) {
+            buffer.putInt(app.aid);
+            putBytes(buffer, app.isoId);
+            putBytes(buffer, app.isoName);
+            putBytes(buffer, app.lsbIsoId);
+
+            putCount(buffer, app.keys.length);
+            for (CompactProfile.Key key : app.keys) {
+                buffer.putShort((short) key.keyNo);
+                buffer.putShort((short) key.keyVersion);
+                putKeyType(buffer, key.keyType);
+                putBytes(buffer, key.value);
+            }
+
+            putCount(buffer, app.files.length);
+            for (CompactProfile.File file : app.files) {
+                buffer.putShort((short) file.fileNo);
+                buffer.putInt(file.fileSize);
+                buffer.putShort((short) file.communicationSettings);
+                putBytes(buffer, file.fileSettings);
+                putBytes(buffer, file.fileKey);
+                putBytes(buffer, file.accessRights);
+                putBytes(buffer, file.initialValue);
+            }
+        }
+    }
+
+    /**
+     * Encode a profile into a new array
+     */
+    public static byte[] encode(CompactProfile profile) {
+        ByteBuffer buffer = ByteBuffer.allocate(encodedSize(profile));
+        write(profile, buffer);
+        return buffer.array();
+    }
+
+    /**
+     * Decode a profile from the buffer position
+     */
+    public static CompactProfile read(ByteBuffer buffer) {
+        boolean format = (buffer.get() & FLAG_FORMAT) != 0;
+        KeyType keyTypeStart = getKeyType(buffer);
+        byte[] keyStart = getBytes(buffer);
+        KeyType keyTypeFinish = getKeyType(buffer);
+        byte[] keyFinish = getBytes(buffer);
+        int keyVersionFinish = buffer.getShort();
+
+        CompactProfile.Application[] applications = new CompactProfile.Application[buffer.get() & 0xFF];
+        for (int i = 0; i < applications.length; i++) {
+            int aid = buffer.getInt();
+            byte[] isoId = getBytes(buffer);
+            byte[] isoName = getBytes(buffer);
+            byte[] lsbIsoId = getBytes(buffer);
+
+            CompactProfile.Key[] keys = new CompactProfile.Key[buffer.get() & 0xFF];
+            for (int k = 0; k < keys.length; k++) {
+                int keyNo = buffer.getShort();
+                int keyVersion = buffer.getShort();
+                KeyType keyType = getKeyType(buffer);
+                keys[k] = new CompactProfile.Key(keyNo, keyVersion, keyType, getBytes(buffer), false);
+            }
+
+            CompactProfile.File[] files = new CompactProfile.File[buffer.get() & 0xFF];
+            for (int f = 0; f < files.length; f++) {
+                int fileNo = buffer.getShort();
+                int fileSize = buffer.getInt();
+                int communicationSettings = buffer.getShort();
+                files[f] = new CompactProfile.File(fileNo, fileSize, communicationSettings, getBytes(buffer),
+                        getBytes(buffer), getBytes(buffer), getBytes(buffer), false);
+            }
+            applications[i] = new CompactProfile.Application(aid, isoId, isoName, lsbIsoId, keys, files, false);
+        }
+        return new CompactProfile(format, keyTypeStart, keyStart, keyTypeFinish, keyFinish, keyVersionFinish,
+                applications, false);
+    }
+
+    private static int size(byte[] bytes) {
+        return 2 + (bytes != null ? bytes.length : 0);
+    }
+
+    private static void putCount(ByteBuffer buffer, int count) {
+        if (count > 0xFF) {
+            throw new DesfireException("Too many entries in profile: " + count);
+        }
+        buffer.put((byte) count);
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        if (bytes == null) {
+            buffer.putShort((short) NULL_LENGTH);
+            return;
+        }
+        if (bytes.length >= NULL_LENGTH) {
+            throw new DesfireException("Profile field too long: " + bytes.length);
+        }
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        int length = buffer.getShort() & 0xFFFF;
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void putKeyType(ByteBuffer buffer, KeyType keyType) {
+        buffer.put((byte) (keyType != null ? keyType.ordinal() : NULL_KEY_TYPE));
+    }
+
+    private static KeyType getKeyType(ByteBuffer buffer) {
+        int ordinal = buffer.get() & 0xFF;
+        if (ordinal == NULL_KEY_TYPE) {
+            return null;
+        }
+        if (ordinal >= KEY_TYPES.length) {
+            throw new DesfireException("Unknown key type " + ordinal);
+        }
+        return KEY_TYPES[ordinal];
+    }
+}
@@ -0,0 +1,126 @@
+package org.esupportail.desfire.model;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Read-only, memory-mapped file of {@link CompactProfile} records.
+ *
+ * <p>Opening a store maps the file and reads its header only; each
+ * {@link #get(int)} decodes one record straight from the mapping, so loading
+ * thousands of profiles needs neither Java deserialization nor an object
+ * graph per profile. Instances are safe for concurrent readers.
+ * <pre>
+ * header : i32 magic "DFP1", i32 count, i32 offset[count]
+ * records: {@link ProfileCodec} layout, one after the other
+ * </pre>
+ */
+public final class ProfileStore {
+
+    /** "DFP1" */
+    public static final int MAGIC = 0x44465031;
+
+    private final MappedByteBuffer mapping;
+    private final int count;
+
+    private ProfileStore(MappedByteBuffer mapping) {
+        this.mapping = mapping;
+        if (mapping.remaining() < 8 || mapping.getInt(0) != MAGIC) {
+            throw new DesfireException("Not a profile store");
+        }
+        this.count = mapping.getInt(4);
+        if (count < 0 || 8L + 4L * count > mapping.capacity()) {
+            throw new DesfireException("Corrupted profile store header");
+        }
+    }
+
+    /**
+     * Write profiles to a new store file
+     */
+    public static void write(Path file, Collection<CompactProfile> profiles) {
+        int headerSize = 8 + 4 * profiles.size();
+        long total = headerSize;
+        for (CompactProfile profile : profiles) {
+            total += ProfileCodec.encodedSize(profile);
+        }
+        if (total > Integer.MAX_VALUE) {
+            throw new DesfireException("Profile store larger than 2 GB");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) total);
+        buffer.putInt(MAGIC).putInt(profiles.size());
+        int offset = headerSize;
+        for (CompactProfile profile : profiles) {
+            buffer.putInt(offset);
+            offset += ProfileCodec.encodedSize(profile);
+        }
+        for (CompactProfile profile : profiles) {
+            ProfileCodec.write(profile, buffer);
+        }
+        buffer.flip();
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new DesfireException("Failed to write profile store " + file, e);
+        }
+    }
+
+    /**
+     * Map an existing store file
+     */
+    public static ProfileStore open(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return new ProfileStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new DesfireException("Failed to open profile store " + file, e);
+        }
+    }
+
+    /**
+     * Number of profiles in the store
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Decode the profile at an index
+     * @throws DesfireException if the record is corrupted
+     */
+    public CompactProfile get(int index) {
+        try {
+            return ProfileCodec.read(record(index));
+        } catch (BufferUnderflowException e) {
+            throw new DesfireException("Corrupted profile record " + index, e);
+        }
+    }
+
+    /**
+     * Raw encoded record at an index, as a read-only view of the mapping
+     */
+    public ByteBuffer record(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("Profile " + index + " of " + count);
+        }
+        int start = mapping.getInt(8 + 4 * index);
+        int end = index + 1 < count ? mapping.getInt(8 + 4 * (index + 1)) : mapping.capacity();
+        if (start < 0 || start > end || end > mapping.capacity()) {
+            throw new DesfireException("Corrupted profile store index at " + index);
+        }
+        ByteBuffer view = mapping.duplicate();
+        view.limit(end).position(start);
+        return view.slice();
+    }
+}
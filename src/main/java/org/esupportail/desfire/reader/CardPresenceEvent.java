@@ -0,0 +1,53 @@
+package org.esupportail.desfire.reader;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * A card arrived on or left a terminal
+ */
+public class CardPresenceEvent {
+
+    public enum Type {
+        INSERTED,
+        REMOVED
+    }
+
+    private final CardTerminal terminal;
+    private final Type type;
+    private final long nanoTime;
+    private final long timestamp;
+
+    public CardPresenceEvent(CardTerminal terminal, Type type, long nanoTime, long timestamp) {
+        this.terminal = terminal;
+        this.type = type;
+        this.nanoTime = nanoTime;
+        this.timestamp = timestamp;
+    }
+
+    public CardTerminal getTerminal() {
+        return terminal;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * {@link System#nanoTime()} at detection, for latency measurements
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * Wall-clock time of detection, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return type + " on " + terminal.getName() + " at " + timestamp;
+    }
+}
@@ -0,0 +1,10 @@
+package org.esupportail.desfire.reader;
+
+/**
+ * Receives the events of a {@link CardPresenceWatcher}, on the watcher thread
+ */
+@FunctionalInterface
+public interface CardPresenceListener {
+
+    void onCardEvent(CardPresenceEvent event);
+}
@@ -0,0 +1,140 @@
+package org.esupportail.desfire.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Watches all readers of a {@link CardTerminals} for card arrivals and
+ * removals from a single thread.
+ *
+ * <p>The thread blocks in {@link CardTerminals#waitForChange(long)}, so taps
+ * are seen as soon as PC/SC reports them, without polling each terminal.
+ * Cards already present when the watcher starts are reported as insertions.
+ * <pre>
+ * CardPresenceWatcher watcher = new CardPresenceWatcher();
+ * watcher.addListener(event -&gt; log.info("{}", event));
+ * watcher.start();
+ * </pre>
+ */
+public class CardPresenceWatcher implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(CardPresenceWatcher.class);
+
+    private final CardTerminals terminals;
+    private final long timeoutMillis;
+    private final List<CardPresenceListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile boolean running;
+    private Thread thread;
+
+    public CardPresenceWatcher() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    public CardPresenceWatcher(CardTerminals terminals) {
+        this(terminals, 500);
+    }
+
+    /**
+     * @param timeoutMillis longest single wait, which bounds how long {@link #stop()} takes
+     */
+    public CardPresenceWatcher(CardTerminals terminals, long timeoutMillis) {
+        this.terminals = terminals;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public void addListener(CardPresenceListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(CardPresenceListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Start the watcher thread
+     * @return <code>false</code> if it was already running
+     */
+    public synchronized boolean start() {
+        if (running) {
+            return false;
+        }
+        running = true;
+        thread = new Thread(this::run, "card-presence-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    /**
+     * Stop the watcher thread and wait for it to end
+     */
+    public synchronized void stop() {
+        running = false;
+        if (thread != null) {
+            try {
+                thread.join(timeoutMillis * 2);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            thread = null;
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                if (!terminals.waitForChange(timeoutMillis)) {
+                    continue;
+                }
+                long nanoTime = System.nanoTime();
+                long timestamp = System.currentTimeMillis();
+                // removals first, so a quick re-tap on one reader is seen in order
+                for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_REMOVAL)) {
+                    dispatch(new CardPresenceEvent(terminal, CardPresenceEvent.Type.REMOVED, nanoTime, timestamp));
+                }
+                for (CardTerminal terminal : terminals.list(CardTerminals.State.CARD_INSERTION)) {
+                    dispatch(new CardPresenceEvent(terminal, CardPresenceEvent.Type.INSERTED, nanoTime, timestamp));
+                }
+            } catch (CardException | IllegalStateException e) {
+                // no reader attached or PC/SC service restarting: retry after a pause
+                log.debug("Waiting for card change failed: {}", e.getMessage());
+                pause();
+            }
+        }
+    }
+
+    private void dispatch(CardPresenceEvent event) {
+        for (CardPresenceListener listener : listeners) {
+            try {
+                listener.onCardEvent(event);
+            } catch (RuntimeException e) {
+                log.error("Card presence listener failed on " + event, e);
+            }
+        }
+    }
+
+    private void pause() {
+        try {
+            Thread.sleep(timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Where a {@link ReaderPool} worker gets its cards from
+ */
+public interface CardSource {
+
+    /**
+     * Name of the reader, for statistics and logs
+     */
+    String getName();
+
+    /**
+     * Wait for the next card to work on; the worker closes the returned
+     * transport when its job is done
+     * @return <code>null</code> if no card came within the timeout
+     */
+    CardTransport awaitCard(long timeoutMillis) throws InterruptedException;
+
+    /**
+     * Cards tapped on a PC/SC reader: each card is served once and must be
+     * removed before the next one is connected
+     */
+    static CardSource of(CardTerminal terminal) {
+        return new TerminalCardSource(terminal);
+    }
+}
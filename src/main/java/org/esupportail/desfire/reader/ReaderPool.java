@@ -0,0 +1,263 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.DESFireEngine;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.service.DESFireCompleteService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardTerminal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs card jobs on several readers of one JVM, one worker thread and one
+ * {@link DESFireEngine} per reader.
+ *
+ * <p>Submitted jobs are spread over per-reader queues. A worker with a card
+ * on its reader takes the oldest job of its own queue, or steals the newest
+ * job of another queue when its own is empty, so a slow reader never holds
+ * back the rest of a batch.
+ * <pre>
+ * try (ReaderPool pool = ReaderPool.forTerminals(TerminalRegistry.getDefault().byRole(Role.CONTACTLESS))) {
+ *     for (DesfireTag profile : profiles) {
+ *         pool.submit(card -&gt; card.createApplicationComplete(...));
+ *     }
+ *     ...
+ *     pool.getStats().forEach(stats -&gt; log.info("{}", stats));
+ * }
+ * </pre>
+ */
+public class ReaderPool implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReaderPool.class);
+
+    private static final long POLL_MILLIS = 200;
+
+    /**
+     * Work done on one card
+     */
+    @FunctionalInterface
+    public interface CardJob<T> {
+        T run(DESFireCompleteService card) throws Exception;
+    }
+
+    private static final class Task<T> {
+
+        final CardJob<T> job;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+
+        Task(CardJob<T> job) {
+            this.job = job;
+        }
+    }
+
+    private final List<Worker> workers = new ArrayList<>();
+    private final Semaphore queued = new Semaphore(0); // one permit per task in the queues
+    private final AtomicInteger nextQueue = new AtomicInteger();
+    private final long start = System.nanoTime();
+    private volatile boolean running = true;
+
+    public ReaderPool(Collection<? extends CardSource> readers) {
+        if (readers.isEmpty()) {
+            throw new IllegalArgumentException("No reader for the pool");
+        }
+        for (CardSource reader : readers) {
+            workers.add(new Worker(reader));
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    /**
+     * Pool over PC/SC readers, serving each tapped card once
+     */
+    public static ReaderPool forTerminals(Collection<CardTerminal> terminals) {
+        List<CardSource> sources = new ArrayList<>();
+        for (CardTerminal terminal : terminals) {
+            sources.add(CardSource.of(terminal));
+        }
+        return new ReaderPool(sources);
+    }
+
+    /**
+     * Queue a job for the next available card
+     * @return the job result; cancelled if the pool is closed first
+     */
+    public <T> CompletableFuture<T> submit(CardJob<T> job) {
+        if (!running) {
+            throw new IllegalStateException("Reader pool closed");
+        }
+        Task<T> task = new Task<>(job);
+        workers.get(Math.floorMod(nextQueue.getAndIncrement(), workers.size())).queue.addLast(task);
+        queued.release();
+        if (!running) {
+            // closed meanwhile, after the queues were emptied
+            cancelQueued();
+        }
+        return task.result;
+    }
+
+    /**
+     * Jobs waiting for a card
+     */
+    public int getQueued() {
+        return queued.availablePermits();
+    }
+
+    /**
+     * Current statistics, one entry per reader
+     */
+    public List<ReaderStats> getStats() {
+        long uptime = System.nanoTime() - start;
+        List<ReaderStats> stats = new ArrayList<>();
+        for (Worker worker : workers) {
+            stats.add(new ReaderStats(worker.source.getName(), worker.jobs.get(), worker.failures.get(),
+                    worker.stolen.get(), worker.busyNanos.get(), uptime));
+        }
+        return stats;
+    }
+
+    /**
+     * Stop the workers once their current job is done; queued jobs are cancelled
+     */
+    @Override
+    public void close() {
+        running = false;
+        for (Worker worker : workers) {
+            try {
+                worker.thread.join(POLL_MILLIS * 10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        cancelQueued();
+    }
+
+    /**
+     * Cancel the queued tasks, taking their permits: a worker still holding
+     * a permit then always finds a task
+     */
+    private void cancelQueued() {
+        while (queued.tryAcquire()) {
+            Task<?> task = null;
+            while (task == null) {
+                for (Worker worker : workers) {
+                    if ((task = worker.queue.pollFirst()) != null) {
+                        break;
+                    }
+                }
+            }
+            task.result.cancel(false);
+        }
+    }
+
+    /**
+     * One reader and its job queue
+     */
+    private final class Worker implements Runnable {
+
+        final CardSource source;
+        final LinkedBlockingDeque<Task<?>> queue = new LinkedBlockingDeque<>();
+        final DESFireEngine engine = new DESFireEngine();
+        final Thread thread;
+        final AtomicLong jobs = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong stolen = new AtomicLong();
+        final AtomicLong busyNanos = new AtomicLong();
+
+        Worker(CardSource source) {
+            this.source = source;
+            this.thread = new Thread(this, "reader-pool-" + source.getName());
+            this.thread.setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    CardTransport card = source.awaitCard(POLL_MILLIS);
+                    if (card == null) {
+                        continue;
+                    }
+                    try {
+                        boolean acquired = false;
+                        while (running && !acquired) {
+                            // keep the card until a job comes
+                            acquired = queued.tryAcquire(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                        }
+                        if (acquired) {
+                            run(take(), card);
+                        }
+                    } finally {
+                        close(card);
+                    }
+                }
+            } catch (InterruptedException e) {
+                // pool closed
+            }
+        }
+
+        /**
+         * A permit is held, so some queue has a task
+         */
+        private Task<?> take() {
+            Task<?> task = queue.pollFirst();
+            while (task == null) {
+                for (Worker other : workers) {
+                    if (other != this && (task = other.queue.pollLast()) != null) {
+                        stolen.incrementAndGet();
+                        break;
+                    }
+                }
+                if (task == null) {
+                    task = queue.pollFirst();
+                }
+            }
+            return task;
+        }
+
+        /**
+         * An {@link Error} thrown by the job fails its future, then stops this worker
+         */
+        private <T> void run(Task<T> task, CardTransport card) {
+            long begin = System.nanoTime();
+            T result = null;
+            Throwable failure = null;
+            try {
+                result = task.job.run(new DESFireCompleteService(card, engine));
+            } catch (Throwable e) {
+                failure = e;
+                failures.incrementAndGet();
+                log.warn("Job failed on {}: {}", source.getName(), e.getMessage());
+            }
+            // statistics first, so they include the job once its result is visible
+            busyNanos.addAndGet(System.nanoTime() - begin);
+            jobs.incrementAndGet();
+            if (failure != null) {
+                task.result.completeExceptionally(failure);
+                if (failure instanceof Error) {
+                    throw (Error) failure;
+                }
+            } else {
+                task.result.complete(result);
+            }
+        }
+
+        private void close(CardTransport card) {
+            try {
+                card.close();
+            } catch (RuntimeException e) {
+                log.debug("Releasing card on {} failed", source.getName(), e);
+            }
+        }
+    }
+}
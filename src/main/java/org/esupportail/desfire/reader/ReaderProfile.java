@@ -0,0 +1,167 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Vendor control commands tuning a reader for DESFire traffic, sent through
+ * {@link CardTransport#control(int, byte[])} once a card is connected.
+ *
+ * <p>A command the reader refuses is skipped, leaving that setting at the
+ * reader default, so a profile never prevents a connection; refusals are
+ * logged in one debug line. With
+ * pcsc-lite the CCID driver only forwards escape commands when enabled in its
+ * <code>Info.plist</code> (<code>ifdDriverOptions</code> 0x0001).
+ */
+public final class ReaderProfile {
+
+    private static final Logger log = LoggerFactory.getLogger(ReaderProfile.class);
+
+    /** SCARD_CTL_CODE(3500), the escape code of CCID drivers */
+    private static final int ESCAPE_FUNCTION = 3500;
+
+    /** Reader defaults: no control command at all. */
+    public static final ReaderProfile DEFAULT = new ReaderProfile("default", Collections.emptyList());
+
+    /**
+     * ISO 14443-4 bit rates, in the order of the ACS speed codes
+     */
+    public enum BitRate {
+        KBPS_106,
+        KBPS_212,
+        KBPS_424,
+        KBPS_848
+    }
+
+    /**
+     * One control command of a profile
+     */
+    public static final class ControlCommand {
+
+        private final String description;
+        private final byte[] command;
+
+        public ControlCommand(String description, byte[] command) {
+            this.description = description;
+            this.command = command.clone();
+        }
+
+        public String getDescription() {
+            return description;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+
+        @Override
+        public String toString() {
+            return description + " (" + DesfireUtils.byteArrayToHexString(command) + ")";
+        }
+    }
+
+    private final String name;
+    private final List<ControlCommand> commands;
+
+    public ReaderProfile(String name, List<ControlCommand> commands) {
+        this.name = name;
+        this.commands = Collections.unmodifiableList(new ArrayList<>(commands));
+    }
+
+    /**
+     * ACS contactless readers (ACR1581, ACR1281, ACR1252): automatic PPS up
+     * to a bit rate in both directions and no buzzer on card detection.
+     * Auto PICC polling stays on, since PC/SC card detection relies on it.
+     */
+    public static ReaderProfile acs(BitRate maxBitRate) {
+        return acs(maxBitRate, true);
+    }
+
+    /**
+     * @param autoPolling <code>false</code> stops the reader polling for cards,
+     *                    for stations that connect on an external trigger
+     *                    rather than on card insertion events
+     */
+    public static ReaderProfile acs(BitRate maxBitRate, boolean autoPolling) {
+        List<ControlCommand> commands = new ArrayList<>();
+        byte speed = (byte) maxBitRate.ordinal();
+        commands.add(new ControlCommand("auto PPS " + maxBitRate, acsEscape(0x24, speed, speed)));
+        commands.add(new ControlCommand("buzzer off", acsEscape(0x21, (byte) 0x00)));
+        // bit 0 auto polling, bit 7 enforce ISO 14443-4, polling interval 250 ms
+        byte polling = (byte) (autoPolling ? 0x81 : 0x80);
+        commands.add(new ControlCommand("auto polling " + (autoPolling ? "on" : "off"), acsEscape(0x23, polling)));
+        return new ReaderProfile("acs-" + maxBitRate, commands);
+    }
+
+    /**
+     * ACS escape command <code>E0 00 00 ins Lc data</code>
+     */
+    private static byte[] acsEscape(int ins, byte... data) {
+        byte[] command = new byte[5 + data.length];
+        command[0] = (byte) 0xE0;
+        command[3] = (byte) ins;
+        command[4] = (byte) data.length;
+        System.arraycopy(data, 0, command, 5, data.length);
+        return command;
+    }
+
+    /**
+     * This profile followed by another control command
+     */
+    public ReaderProfile with(String description, byte[] command) {
+        List<ControlCommand> extended = new ArrayList<>(commands);
+        extended.add(new ControlCommand(description, command));
+        return new ReaderProfile(name, extended);
+    }
+
+    /**
+     * Control code of the escape function on this platform
+     */
+    public static int escapeControlCode() {
+        String os = System.getProperty("os.name", "").toLowerCase();
+        if (os.startsWith("windows")) {
+            return 0x00310000 | (ESCAPE_FUNCTION << 2); // FILE_DEVICE_SMARTCARD
+        }
+        return 0x42000000 + ESCAPE_FUNCTION; // pcsc-lite
+    }
+
+    /**
+     * Send the control commands, skipping those the reader refuses
+     * @return the number of commands the reader accepted
+     */
+    public int apply(CardTransport transport) {
+        int controlCode = escapeControlCode();
+        int applied = 0;
+        List<String> refused = new ArrayList<>();
+        for (ControlCommand command : commands) {
+            try {
+                transport.control(controlCode, command.command);
+                applied++;
+            } catch (TransportException e) {
+                refused.add(command.description + ": " + e.getMessage());
+            }
+        }
+        if (refused.isEmpty()) {
+            log.debug("Reader profile {}: {} control commands applied", name, applied);
+        } else {
+            log.debug("Reader profile {}: {}/{} control commands applied, reader defaults kept for {}", name,
+                    applied, commands.size(), refused);
+        }
+        return applied;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public List<ControlCommand> getCommands() {
+        return commands;
+    }
+}
@@ -0,0 +1,63 @@
+package org.esupportail.desfire.reader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * {@link ReaderProfile}s selected by reader name.
+ *
+ * <p>Rules are tried in insertion order and the first pattern found in the
+ * reader name wins; readers matching no rule get {@link ReaderProfile#DEFAULT}.
+ * <pre>
+ * ReaderProfiles profiles = new ReaderProfiles()
+ *         .add("ACR1581.*PICC", ReaderProfile.acs(ReaderProfile.BitRate.KBPS_424));
+ * </pre>
+ */
+public class ReaderProfiles {
+
+    private static final class Rule {
+
+        final Pattern pattern;
+        final ReaderProfile profile;
+
+        Rule(Pattern pattern, ReaderProfile profile) {
+            this.pattern = pattern;
+            this.profile = profile;
+        }
+    }
+
+    private final List<Rule> rules = new ArrayList<>();
+
+    /**
+     * 848 kbit/s and no buzzer for the ACS contactless readers, except their
+     * SAM slots; to be set explicitly, as it changes persistent reader settings
+     */
+    public static ReaderProfiles defaults() {
+        return new ReaderProfiles()
+                .add("SAM", ReaderProfile.DEFAULT)
+                .add("ACS ACR(1581|1281|1252)", ReaderProfile.acs(ReaderProfile.BitRate.KBPS_848));
+    }
+
+    /**
+     * @param pattern regular expression searched in the reader name
+     */
+    public ReaderProfiles add(String pattern, ReaderProfile profile) {
+        rules.add(new Rule(Pattern.compile(pattern), profile));
+        return this;
+    }
+
+    /**
+     * Profile of a reader
+     */
+    public ReaderProfile profileFor(String readerName) {
+        if (readerName != null) {
+            for (Rule rule : rules) {
+                if (rule.pattern.matcher(readerName).find()) {
+                    return rule.profile;
+                }
+            }
+        }
+        return ReaderProfile.DEFAULT;
+    }
+}
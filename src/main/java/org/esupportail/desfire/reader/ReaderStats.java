@@ -0,0 +1,67 @@
+package org.esupportail.desfire.reader;
+
+import java.time.Duration;
+
+/**
+ * Work done by one reader of a {@link ReaderPool}
+ */
+public class ReaderStats {
+
+    private final String reader;
+    private final long jobs;
+    private final long failures;
+    private final long stolen;
+    private final long busyNanos;
+    private final long uptimeNanos;
+
+    public ReaderStats(String reader, long jobs, long failures, long stolen, long busyNanos, long uptimeNanos) {
+        this.reader = reader;
+        this.jobs = jobs;
+        this.failures = failures;
+        this.stolen = stolen;
+        this.busyNanos = busyNanos;
+        this.uptimeNanos = uptimeNanos;
+    }
+
+    public String getReader() {
+        return reader;
+    }
+
+    /**
+     * Jobs run, failed ones included
+     */
+    public long getJobs() {
+        return jobs;
+    }
+
+    public long getFailures() {
+        return failures;
+    }
+
+    /**
+     * Jobs taken from the queue of another reader
+     */
+    public long getStolen() {
+        return stolen;
+    }
+
+    /**
+     * Time spent running jobs
+     */
+    public Duration getBusy() {
+        return Duration.ofNanos(busyNanos);
+    }
+
+    /**
+     * Jobs per second since the pool started
+     */
+    public double getThroughput() {
+        return uptimeNanos > 0 ? jobs * 1e9 / uptimeNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d jobs (%d failed, %d stolen), %.1f jobs/s, busy %d ms", reader, jobs, failures,
+                stolen, getThroughput(), getBusy().toMillis());
+    }
+}
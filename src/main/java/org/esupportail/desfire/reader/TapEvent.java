@@ -0,0 +1,79 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.util.Dump;
+
+/**
+ * A card tapped on or taken off a reader, with what was read from it on arrival
+ */
+public class TapEvent {
+
+    public enum Type {
+        ARRIVED,
+        REMOVED
+    }
+
+    private final Type type;
+    private final String readerName;
+    private final byte[] atr;
+    private final byte[] uid;
+    private final long nanoTime;
+    private final long timestamp;
+
+    public TapEvent(Type type, String readerName, byte[] atr, byte[] uid, long nanoTime, long timestamp) {
+        this.type = type;
+        this.readerName = readerName;
+        this.atr = atr;
+        this.uid = uid;
+        this.nanoTime = nanoTime;
+        this.timestamp = timestamp;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public String getReaderName() {
+        return readerName;
+    }
+
+    /**
+     * Answer to reset, or null if the card left before it could be read
+     */
+    public byte[] getAtr() {
+        return atr == null ? null : atr.clone();
+    }
+
+    /**
+     * UID as answered to <code>FF CA 00 00 00</code>, or null if it could not be read;
+     * removal events carry the UID read on arrival
+     */
+    public byte[] getUid() {
+        return uid == null ? null : uid.clone();
+    }
+
+    /**
+     * UID in the upper case hexadecimal form of {@code PcscUsbService.getCardId()}
+     */
+    public String getUidHex() {
+        return uid == null ? null : Dump.hex(uid, false).toUpperCase();
+    }
+
+    /**
+     * {@link System#nanoTime()} at detection, for latency measurements
+     */
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    /**
+     * Wall-clock time of detection, in milliseconds since the epoch
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + getUidHex() + " on " + readerName + " at " + timestamp;
+    }
+}
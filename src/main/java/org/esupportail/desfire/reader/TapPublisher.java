@@ -0,0 +1,197 @@
+package org.esupportail.desfire.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link Flow.Publisher} of the taps seen by a {@link CardPresenceWatcher}:
+ * a {@link TapEvent} with the ATR and UID of the card when it arrives, then
+ * one when it leaves.
+ *
+ * <p>The ATR and UID are read, and the events of a reader published, by a
+ * worker thread of that reader, so a slow card never holds back the watcher
+ * thread or the other readers.
+ *
+ * <p>Each subscriber gets its own buffer and pulls events with
+ * {@link Flow.Subscription#request(long)}. Events are offered without
+ * waiting: when a subscriber buffer is full the event is dropped for that
+ * subscriber only, so a slow consumer never holds back the readers or the
+ * other subscribers.
+ * <pre>
+ * try (TapPublisher taps = new TapPublisher(new CardPresenceWatcher()).start()) {
+ *     taps.subscribe(turnstile);
+ *     ...
+ * }
+ * </pre>
+ */
+public class TapPublisher implements Flow.Publisher<TapEvent>, CardPresenceListener, AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(TapPublisher.class);
+
+    private static final CommandAPDU GET_UID = new CommandAPDU(0xFF, 0xCA, 0x00, 0x00, 256);
+
+    private final CardPresenceWatcher watcher;
+    private final SubmissionPublisher<TapEvent> publisher;
+    private final Map<String, TapEvent> arrivals = new ConcurrentHashMap<>();
+    private final Map<String, ExecutorService> workers = new ConcurrentHashMap<>();
+    private final AtomicLong dropped = new AtomicLong();
+    private boolean startedWatcher;
+    private volatile boolean closed;
+
+    /**
+     * Publish the taps of a watcher to subscribers served by the common pool,
+     * once {@link #start() started}
+     */
+    public TapPublisher(CardPresenceWatcher watcher) {
+        this(watcher, ForkJoinPool.commonPool(), Flow.defaultBufferSize());
+    }
+
+    public TapPublisher(CardTerminals terminals) {
+        this(new CardPresenceWatcher(terminals));
+    }
+
+    /**
+     * @param executor runs the subscriber callbacks
+     * @param bufferCapacity events buffered per subscriber before dropping
+     */
+    public TapPublisher(CardPresenceWatcher watcher, Executor executor, int bufferCapacity) {
+        this.watcher = watcher;
+        this.publisher = new SubmissionPublisher<>(executor, bufferCapacity);
+    }
+
+    /**
+     * Listen to the watcher, and start it if it is not running yet; only a
+     * watcher started here is stopped on {@link #close()}
+     */
+    public synchronized TapPublisher start() {
+        watcher.addListener(this);
+        startedWatcher |= watcher.start();
+        return this;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super TapEvent> subscriber) {
+        publisher.subscribe(subscriber);
+    }
+
+    /**
+     * Hand the event to the worker of its reader
+     */
+    @Override
+    public void onCardEvent(CardPresenceEvent event) {
+        String readerName = event.getTerminal().getName();
+        try {
+            workers.computeIfAbsent(readerName, TapPublisher::worker).execute(() -> publish(event));
+        } catch (RejectedExecutionException e) {
+            log.debug("Tap event after close on {}", readerName);
+        }
+    }
+
+    private static ExecutorService worker(String readerName) {
+        return Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tap-publisher-" + readerName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private void publish(CardPresenceEvent event) {
+        if (closed) {
+            return;
+        }
+        String readerName = event.getTerminal().getName();
+        TapEvent tap;
+        if (event.getType() == CardPresenceEvent.Type.INSERTED) {
+            tap = arrival(event);
+            arrivals.put(readerName, tap);
+        } else {
+            TapEvent arrival = arrivals.remove(readerName);
+            tap = new TapEvent(TapEvent.Type.REMOVED, readerName, arrival != null ? arrival.getAtr() : null,
+                    arrival != null ? arrival.getUid() : null, event.getNanoTime(), event.getTimestamp());
+        }
+        publisher.offer(tap, (subscriber, lost) -> {
+            dropped.incrementAndGet();
+            log.debug("Tap event dropped for a slow subscriber: {}", lost);
+            return false;
+        });
+    }
+
+    /**
+     * Read the ATR and UID of the card that just arrived, sharing the card
+     * with whoever connects next
+     */
+    private TapEvent arrival(CardPresenceEvent event) {
+        CardTerminal terminal = event.getTerminal();
+        byte[] atr = null;
+        byte[] uid = null;
+        try {
+            Card card = terminal.connect("*");
+            try {
+                atr = card.getATR().getBytes();
+                ResponseAPDU response = card.getBasicChannel().transmit(GET_UID);
+                if (response.getSW() == 0x9000) {
+                    uid = response.getData();
+                }
+            } finally {
+                card.disconnect(false);
+            }
+        } catch (CardException | IllegalStateException e) {
+            log.debug("Reading card on {} failed: {}", terminal.getName(), e.getMessage());
+        }
+        return new TapEvent(TapEvent.Type.ARRIVED, terminal.getName(), atr, uid, event.getNanoTime(),
+                event.getTimestamp());
+    }
+
+    /**
+     * Events lost by slow subscribers, counted once per subscriber
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public int getNumberOfSubscribers() {
+        return publisher.getNumberOfSubscribers();
+    }
+
+    /**
+     * Stop the watcher if {@link #start()} started it, and complete the
+     * subscribers once they have consumed their buffers
+     */
+    @Override
+    public synchronized void close() {
+        watcher.removeListener(this);
+        if (startedWatcher) {
+            watcher.stop();
+        }
+        closed = true;
+        for (ExecutorService worker : workers.values()) {
+            worker.shutdown();
+        }
+        for (ExecutorService worker : workers.values()) {
+            try {
+                worker.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        publisher.close();
+    }
+}
@@ -0,0 +1,51 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ChannelTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * {@link CardSource} over a PC/SC reader
+ */
+class TerminalCardSource implements CardSource {
+
+    private static final Logger log = LoggerFactory.getLogger(TerminalCardSource.class);
+
+    private final CardTerminal terminal;
+    private boolean served; // the card on the reader has been handed out already
+
+    TerminalCardSource(CardTerminal terminal) {
+        this.terminal = terminal;
+    }
+
+    @Override
+    public String getName() {
+        return terminal.getName();
+    }
+
+    @Override
+    public CardTransport awaitCard(long timeoutMillis) {
+        try {
+            if (served) {
+                if (!terminal.waitForCardAbsent(timeoutMillis)) {
+                    return null;
+                }
+                served = false;
+            }
+            if (!terminal.waitForCardPresent(timeoutMillis)) {
+                return null;
+            }
+            CardTransport transport = new ChannelTransport(terminal.connect("*"));
+            served = true;
+            return transport;
+        } catch (CardException e) {
+            // card pulled while connecting, reader unplugged: wait for the next tap
+            log.debug("No card from {}: {}", terminal.getName(), e.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package org.esupportail.desfire.reader;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import javax.smartcardio.TerminalFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Cached view of the readers of a {@link CardTerminals}.
+ *
+ * <p>Readers are enumerated once and kept in an immutable snapshot, so
+ * lookups by index, name or {@link Role} do not go back to PC/SC. The
+ * snapshot is rebuilt by {@link #refresh()}, on a lookup miss (at most once
+ * per second) and, when registered on a {@link CardPresenceWatcher}, as soon
+ * as an event comes from a reader it does not know yet or a card removal
+ * comes from a reader that is no longer listed. A reader unplugged without a
+ * card on it raises no event and stays cached until the next refresh.
+ *
+ * <p>Roles are assigned from name patterns: by default readers whose name
+ * contains "SAM" are {@link Role#SAM}, every other reader is
+ * {@link Role#CONTACTLESS}.
+ */
+public class TerminalRegistry implements CardPresenceListener {
+
+    private static final Logger log = LoggerFactory.getLogger(TerminalRegistry.class);
+
+    private static final long MIN_MISS_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * What a reader is used for
+     */
+    public enum Role {
+        CONTACTLESS,
+        SAM
+    }
+
+    private static volatile TerminalRegistry defaultRegistry;
+
+    private final CardTerminals terminals;
+    private final Map<Role, Pattern> patterns = new EnumMap<>(Role.class);
+    private volatile Snapshot snapshot = Snapshot.EMPTY;
+    private long lastRefresh;
+
+    public TerminalRegistry() {
+        this(TerminalFactory.getDefault().terminals());
+    }
+
+    public TerminalRegistry(CardTerminals terminals) {
+        this.terminals = terminals;
+        patterns.put(Role.SAM, Pattern.compile("SAM"));
+        refresh();
+    }
+
+    /**
+     * Registry shared by everything using the default terminal factory
+     */
+    public static TerminalRegistry getDefault() {
+        TerminalRegistry registry = defaultRegistry;
+        if (registry == null) {
+            synchronized (TerminalRegistry.class) {
+                registry = defaultRegistry;
+                if (registry == null) {
+                    registry = new TerminalRegistry();
+                    defaultRegistry = registry;
+                }
+            }
+        }
+        return registry;
+    }
+
+    /**
+     * Readers with a name matching a regular expression (searched, not fully
+     * matched) get a role; <code>null</code> clears the pattern. A role
+     * without pattern other than CONTACTLESS matches no reader, CONTACTLESS
+     * without pattern matches readers having no other role.
+     */
+    public synchronized TerminalRegistry setPattern(Role role, String regex) {
+        if (regex == null) {
+            patterns.remove(role);
+        } else {
+            patterns.put(role, Pattern.compile(regex));
+        }
+        snapshot = new Snapshot(snapshot.all, patterns);
+        return this;
+    }
+
+    /**
+     * Name pattern of a role, <code>null</code> if none is set
+     */
+    public synchronized String getPattern(Role role) {
+        Pattern pattern = patterns.get(role);
+        return pattern != null ? pattern.pattern() : null;
+    }
+
+    /**
+     * Enumerate the readers again
+     */
+    public synchronized void refresh() {
+        List<CardTerminal> all;
+        try {
+            all = terminals.list();
+        } catch (CardException e) {
+            // SCARD_E_NO_READERS_AVAILABLE and friends
+            log.debug("Listing terminals failed: {}", e.getMessage());
+            all = Collections.emptyList();
+        }
+        snapshot = new Snapshot(all, patterns);
+        lastRefresh = System.nanoTime();
+        log.debug("Terminals: {}", snapshot.byName.keySet());
+    }
+
+    /**
+     * All readers, in enumeration order
+     */
+    public List<CardTerminal> list() {
+        return snapshot.all;
+    }
+
+    /**
+     * Reader at an index of {@link #list()}, or <code>null</code>
+     */
+    public CardTerminal get(int index) {
+        CardTerminal terminal = snapshot.get(index);
+        if (terminal == null && refreshOnMiss()) {
+            terminal = snapshot.get(index);
+        }
+        return terminal;
+    }
+
+    /**
+     * Reader by exact name, or <code>null</code>
+     */
+    public CardTerminal get(String name) {
+        CardTerminal terminal = snapshot.byName.get(name);
+        if (terminal == null && refreshOnMiss()) {
+            terminal = snapshot.byName.get(name);
+        }
+        return terminal;
+    }
+
+    /**
+     * Readers having a role, in enumeration order
+     */
+    public List<CardTerminal> byRole(Role role) {
+        List<CardTerminal> result = snapshot.byRole.get(role);
+        if (result.isEmpty() && refreshOnMiss()) {
+            result = snapshot.byRole.get(role);
+        }
+        return result;
+    }
+
+    /**
+     * First reader having a role, or <code>null</code>
+     */
+    public CardTerminal first(Role role) {
+        List<CardTerminal> result = byRole(role);
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Whether a reader has a role
+     */
+    public boolean hasRole(CardTerminal terminal, Role role) {
+        return snapshot.byRole.get(role).contains(terminal);
+    }
+
+    /**
+     * Hot-plug hook: an event from an unknown reader means a reader was
+     * plugged, a removal from a reader no longer listed means it was unplugged
+     */
+    @Override
+    public void onCardEvent(CardPresenceEvent event) {
+        String name = event.getTerminal().getName();
+        if (!snapshot.byName.containsKey(name)
+                || (event.getType() == CardPresenceEvent.Type.REMOVED && !isListed(name))) {
+            refresh();
+        }
+    }
+
+    private boolean isListed(String name) {
+        try {
+            for (CardTerminal terminal : terminals.list()) {
+                if (terminal.getName().equals(name)) {
+                    return true;
+                }
+            }
+        } catch (CardException e) {
+            log.debug("Listing terminals failed: {}", e.getMessage());
+        }
+        return false;
+    }
+
+    private synchronized boolean refreshOnMiss() {
+        if (System.nanoTime() - lastRefresh < MIN_MISS_REFRESH_NANOS) {
+            return false;
+        }
+        refresh();
+        return true;
+    }
+
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(Collections.emptyList(), Collections.emptyMap());
+
+        final List<CardTerminal> all;
+        final Map<String, CardTerminal> byName = new HashMap<>();
+        final Map<Role, List<CardTerminal>> byRole = new EnumMap<>(Role.class);
+
+        Snapshot(List<CardTerminal> terminals, Map<Role, Pattern> patterns) {
+            all = Collections.unmodifiableList(new ArrayList<>(terminals));
+            Map<Role, List<CardTerminal>> roles = new EnumMap<>(Role.class);
+            for (Role role : Role.values()) {
+                roles.put(role, new ArrayList<>());
+            }
+            for (CardTerminal terminal : all) {
+                byName.put(terminal.getName(), terminal);
+                boolean matched = false;
+                for (Map.Entry<Role, Pattern> entry : patterns.entrySet()) {
+                    if (entry.getValue().matcher(terminal.getName()).find()) {
+                        roles.get(entry.getKey()).add(terminal);
+                        matched = true;
+                    }
+                }
+                if (!matched && !patterns.containsKey(Role.CONTACTLESS)) {
+                    roles.get(Role.CONTACTLESS).add(terminal);
+                }
+            }
+            for (Map.Entry<Role, List<CardTerminal>> entry : roles.entrySet()) {
+                byRole.put(entry.getKey(), Collections.unmodifiableList(entry.getValue()));
+            }
+        }
+
+        CardTerminal get(int index) {
+            return index >= 0 && index < all.size() ? all.get(index) : null;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.AuthHandshakeService;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.esupportail.desfire.service.KeyDerivation;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * One node of a sharded authentication backend: runs the server side of
+ * DESFire 3-pass authentications for {@link ShardedAuthClient}s over TCP.
+ *
+ * <p>The handshakes in flight live in the {@link AuthHandshakeService} of
+ * this node only; clients send every step of a handshake to the node that
+ * began it. Keys never leave the node: they come from its
+ * {@link KeyProvider}, by card UID, AID and key number. See
+ * {@link BridgeProtocol} for the framing.
+ *
+ * <p>The protocol has no peer authentication and no encryption: FINISH
+ * returns the session key in clear, and anyone who can connect can run
+ * handshakes with the node keys. Nodes listen on the loopback interface
+ * unless given a bind address; exposed on a network, they must sit behind a
+ * secured transport (TLS tunnel, VPN or private segment) that only admits
+ * the {@link ShardedAuthClient}s.
+ * <pre>
+ * AuthNodeServer node = new AuthNodeServer(7400, AuthNodeServer.derived(masterKey, KeyDerivation.an10922(system)));
+ * node.start();
+ * </pre>
+ */
+public class AuthNodeServer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthNodeServer.class);
+
+    /** Printed on standard output by {@link #main} once listening, followed by the port. */
+    public static final String LISTENING = "LISTENING ";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    /**
+     * Key material of the node
+     */
+    @FunctionalInterface
+    public interface KeyProvider {
+        /**
+         * @return a copy of the key of the card, wiped after use; <code>null</code> if unknown
+         */
+        byte[] key(byte[] uid, byte[] aid, byte keyNo, KeyType keyType);
+    }
+
+    private final int port;
+    private final InetAddress bindAddress;
+    private final KeyProvider keys;
+    private final AuthHandshakeService handshakes;
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+    private ScheduledExecutorService evictor;
+
+    /**
+     * Node listening on the loopback interface only
+     * @param port TCP port, 0 for any free port
+     */
+    public AuthNodeServer(int port, KeyProvider keys) {
+        this(port, InetAddress.getLoopbackAddress(), keys, new AuthHandshakeService());
+    }
+
+    /**
+     * @param bindAddress local address to listen on, <code>null</code> for all;
+     *                    see the class comment before leaving the loopback interface
+     */
+    public AuthNodeServer(int port, InetAddress bindAddress, KeyProvider keys, AuthHandshakeService handshakes) {
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.keys = keys;
+        this.handshakes = handshakes;
+    }
+
+    /**
+     * Keys of every card derived from one master key, whatever the key number
+     */
+    public static KeyProvider derived(byte[] masterKey, KeyDerivation derivation) {
+        byte[] master = masterKey.clone();
+        // a copy, as the node wipes keys after use
+        return (uid, aid, keyNo, keyType) -> derivation.derive(master, keyType, uid, aid).clone();
+    }
+
+    /**
+     * Listen and serve connections from a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "auth-node-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        handshakes.scheduleEviction(evictor, Duration.ofSeconds(1));
+        Thread acceptor = new Thread(this::accept, "auth-node-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Authentication node listening on {}", serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Port actually listened on
+     */
+    public synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    /**
+     * Handshakes in flight on this node
+     */
+    public int getHandshakes() {
+        return handshakes.size();
+    }
+
+    private void accept() {
+        ServerSocket server = serverSocket;
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                connections.add(socket);
+                Thread thread = new Thread(() -> serve(socket), "auth-node-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Accepting authentication connection failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Steps are short computations, answered in request order on the
+     * connection thread
+     */
+    private void serve(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            while (true) {
+                BridgeProtocol.Frame frame = BridgeProtocol.read(in);
+                byte type = BridgeProtocol.OK;
+                byte[] payload;
+                try {
+                    payload = handle(frame);
+                } catch (RuntimeException e) {
+                    type = BridgeProtocol.ERROR;
+                    payload = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+                }
+                BridgeProtocol.write(out, frame.requestId, type, frame.channel, payload);
+                out.flush();
+            }
+        } catch (EOFException e) {
+            log.debug("Authentication client {} disconnected", socket.getRemoteSocketAddress());
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                log.warn("Authentication connection " + socket.getRemoteSocketAddress() + " failed", e);
+            }
+        } finally {
+            close(socket);
+            connections.remove(socket);
+        }
+    }
+
+    private byte[] handle(BridgeProtocol.Frame frame) {
+        ByteBuffer request = ByteBuffer.wrap(frame.payload);
+        switch (frame.type) {
+            case BridgeProtocol.BEGIN:
+                return begin(request);
+            case BridgeProtocol.RESPOND:
+                return handshakes.respond(request.getLong(), remaining(request));
+            case BridgeProtocol.FINISH:
+                byte[] sessionKey = handshakes.finish(request.getLong(), remaining(request));
+                return sessionKey != null ? sessionKey : EMPTY;
+            case BridgeProtocol.DISCARD:
+                handshakes.discard(request.getLong());
+                return EMPTY;
+            default:
+                throw new IllegalArgumentException("Unknown request type " + frame.type);
+        }
+    }
+
+    private byte[] begin(ByteBuffer request) {
+        byte keyNo = request.get();
+        KeyType keyType = KeyType.values()[request.get()];
+        byte[] aid = new byte[3];
+        request.get(aid);
+        byte[] uid = remaining(request);
+        byte[] key = keys.key(uid, aid, keyNo, keyType);
+        if (key == null) {
+            throw new IllegalArgumentException("No key " + keyNo + " for card " + DesfireUtils.byteArrayToHexString(uid));
+        }
+        AuthHandshakeService.Start start;
+        try {
+            start = handshakes.begin(keyNo, keyType, key);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+        byte[] command = start.getCommand();
+        return ByteBuffer.allocate(8 + command.length).putLong(start.getToken()).put(command).array();
+    }
+
+    private static byte[] remaining(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Closing authentication connection failed", e);
+        }
+    }
+
+    /**
+     * Stop listening and drop every connection; handshakes in flight are lost
+     */
+    @Override
+    public synchronized void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.debug("Closing authentication socket failed", e);
+            }
+            evictor.shutdownNow();
+        }
+        for (Socket socket : connections) {
+            close(socket);
+        }
+    }
+
+    /**
+     * Run a node in its own process: <code>port masterKeyHex [systemIdentifierHex [bindAddress]]</code>.
+     * Keys are the master key itself, or its AN10922 derivation when a system
+     * identifier is given (<code>-</code> for none). The node listens on the
+     * loopback interface unless given a bind address.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: AuthNodeServer port masterKeyHex [systemIdentifierHex [bindAddress]]");
+            System.exit(2);
+        }
+        byte[] masterKey = DesfireUtils.hexStringToByteArray(args[1]);
+        KeyProvider keys = args.length > 2 && !args[2].equals("-")
+                ? derived(masterKey, KeyDerivation.an10922(DesfireUtils.hexStringToByteArray(args[2])))
+                : derived(masterKey, KeyDerivation.none());
+        InetAddress bindAddress = args.length > 3 ? InetAddress.getByName(args[3]) : InetAddress.getLoopbackAddress();
+        AuthNodeServer node = new AuthNodeServer(Integer.parseInt(args[0]), bindAddress, keys,
+                new AuthHandshakeService());
+        node.start();
+        System.out.println(LISTENING + node.getPort());
+        System.out.flush();
+        Thread.currentThread().join();
+    }
+}
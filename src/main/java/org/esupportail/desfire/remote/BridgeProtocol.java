@@ -0,0 +1,94 @@
+package org.esupportail.desfire.remote;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Framing shared by {@link ReaderBridgeServer}, {@link AuthNodeServer} and
+ * {@link RemoteReaderClient}.
+ *
+ * <p>Every frame carries the id of the request it belongs to, so a client can
+ * send many requests before reading answers, and a channel number, so one
+ * connection serves many readers. Numbers are big endian.
+ * <pre>
+ * frame : i32 length (of what follows), i32 requestId, u8 type, u16 channel, payload
+ *
+ * OPEN     client -&gt; server, payload reader name (UTF-8); answered by OK with the new channel (u16)
+ * TRANSMIT client -&gt; server, payload command APDU; answered by OK with the response APDU
+ * CLOSE    client -&gt; server, no payload; answered by OK
+ * BEGIN    client -&gt; auth node, payload u8 keyNo, u8 keyType, AID (3), UID; answered by OK with i64 token, command APDU
+ * RESPOND  client -&gt; auth node, payload i64 token, card challenge; answered by OK with the answer APDU
+ * FINISH   client -&gt; auth node, payload i64 token, card answer; answered by OK with the session key, empty if the card failed
+ * DISCARD  client -&gt; auth node, payload i64 token; answered by OK
+ * OK       server -&gt; client
+ * ERROR    server -&gt; client, payload message (UTF-8)
+ * </pre>
+ */
+final class BridgeProtocol {
+
+    static final byte OPEN = 1;
+    static final byte TRANSMIT = 2;
+    static final byte CLOSE = 3;
+    static final byte OK = 4;
+    static final byte ERROR = 5;
+    static final byte BEGIN = 6;
+    static final byte RESPOND = 7;
+    static final byte FINISH = 8;
+    static final byte DISCARD = 9;
+
+    /** Header bytes counted in the frame length: request id, type, channel. */
+    static final int HEADER = 4 + 1 + 2;
+
+    /** Longest accepted payload, an extended APDU with some room. */
+    static final int MAX_PAYLOAD = 70000;
+
+    private BridgeProtocol() {
+    }
+
+    /**
+     * A decoded frame
+     */
+    static final class Frame {
+
+        final int requestId;
+        final byte type;
+        final int channel;
+        final byte[] payload;
+
+        Frame(int requestId, byte type, int channel, byte[] payload) {
+            this.requestId = requestId;
+            this.type = type;
+            this.channel = channel;
+            this.payload = payload;
+        }
+    }
+
+    /**
+     * Write a frame; callers serialize writers and flush
+     */
+    static void write(DataOutputStream out, int requestId, byte type, int channel, byte[] payload) throws IOException {
+        out.writeInt(HEADER + payload.length);
+        out.writeInt(requestId);
+        out.writeByte(type);
+        out.writeShort(channel);
+        out.write(payload);
+    }
+
+    /**
+     * Read the next frame
+     * @throws java.io.EOFException when the peer closed the connection
+     */
+    static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < HEADER || length - HEADER > MAX_PAYLOAD) {
+            throw new IOException("Invalid frame length " + length);
+        }
+        int requestId = in.readInt();
+        byte type = in.readByte();
+        int channel = in.readUnsignedShort();
+        byte[] payload = new byte[length - HEADER];
+        in.readFully(payload);
+        return new Frame(requestId, type, channel, payload);
+    }
+}
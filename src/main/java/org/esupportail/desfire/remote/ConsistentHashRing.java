@@ -0,0 +1,104 @@
+package org.esupportail.desfire.remote;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Immutable consistent hash ring spreading keys over members.
+ *
+ * <p>Each member is placed at many points of a 64-bit ring, named after its
+ * <code>toString()</code>, and a key belongs to the first member clockwise
+ * from its hash. Adding or removing a member only moves the keys of the arcs
+ * it gains or loses, so every process building a ring from the same
+ * membership list routes a key to the same member.
+ */
+public final class ConsistentHashRing<N> {
+
+    /** Points per member, enough for a spread within a few percent. */
+    public static final int DEFAULT_POINTS = 160;
+
+    private final NavigableMap<Long, N> ring = new TreeMap<>();
+    private final List<N> members;
+
+    public ConsistentHashRing(Collection<? extends N> members) {
+        this(members, DEFAULT_POINTS);
+    }
+
+    /**
+     * @param points points of each member on the ring
+     */
+    public ConsistentHashRing(Collection<? extends N> members, int points) {
+        this.members = Collections.unmodifiableList(new ArrayList<>(new LinkedHashSet<>(members)));
+        for (N member : this.members) {
+            for (int i = 0; i < points; i++) {
+                ring.put(hash((member + "#" + i).getBytes(StandardCharsets.UTF_8)), member);
+            }
+        }
+    }
+
+    /**
+     * Member owning a key
+     * @throws IllegalStateException if the ring has no member
+     */
+    public N route(byte[] key) {
+        if (ring.isEmpty()) {
+            throw new IllegalStateException("No member in the ring");
+        }
+        Map.Entry<Long, N> owner = ring.ceilingEntry(hash(key));
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    public N route(String key) {
+        return route(key.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Every member in the order a key falls back to them: its owner first,
+     * then the next distinct members clockwise
+     */
+    public List<N> preferences(byte[] key) {
+        Set<N> order = new LinkedHashSet<>();
+        long hash = hash(key);
+        for (N member : ring.tailMap(hash, true).values()) {
+            if (order.add(member) && order.size() == members.size()) {
+                return new ArrayList<>(order);
+            }
+        }
+        for (N member : ring.headMap(hash, false).values()) {
+            if (order.add(member) && order.size() == members.size()) {
+                break;
+            }
+        }
+        return new ArrayList<>(order);
+    }
+
+    public List<N> getMembers() {
+        return members;
+    }
+
+    /**
+     * First 8 bytes of the MD5 digest, as in ketama
+     */
+    static long hash(byte[] key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key);
+            long hash = 0;
+            for (int i = 0; i < 8; i++) {
+                hash = (hash << 8) | (digest[i] & 0xFF);
+            }
+            return hash;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+}
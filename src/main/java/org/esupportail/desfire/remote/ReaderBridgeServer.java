@@ -0,0 +1,345 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ChannelTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.reader.TerminalRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Exposes local readers to {@link RemoteReaderClient}s over TCP.
+ *
+ * <p>Each connection reads requests as they come and runs the opening and
+ * the APDUs of each reader on a worker of its own, so pipelined requests to
+ * one reader keep their order while different readers work in parallel, and
+ * a slow card connection does not hold back the other readers. Answers are
+ * written as soon as they are ready; see {@link BridgeProtocol} for the
+ * framing.
+ *
+ * <p>The protocol has no peer authentication and no encryption: anyone who
+ * can connect can send raw APDUs to the local cards. The server listens on
+ * the loopback interface unless given a bind address; exposed on a network,
+ * it must sit behind a secured transport (TLS tunnel, VPN or private
+ * segment) that only admits the {@link RemoteReaderClient}s.
+ * <pre>
+ * ReaderBridgeServer server = new ReaderBridgeServer(7300, ReaderBridgeServer.pcsc(TerminalRegistry.getDefault()));
+ * server.start();
+ * </pre>
+ */
+public class ReaderBridgeServer implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ReaderBridgeServer.class);
+
+    private final int port;
+    private final InetAddress bindAddress;
+    private final Function<String, CardTransport> opener;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private ServerSocket serverSocket;
+
+    /**
+     * Server listening on the loopback interface only
+     * @param port   TCP port, 0 for any free port
+     * @param opener opens a transport to the card on the named reader
+     */
+    public ReaderBridgeServer(int port, Function<String, CardTransport> opener) {
+        this(port, InetAddress.getLoopbackAddress(), opener);
+    }
+
+    /**
+     * @param bindAddress local address to listen on, <code>null</code> for all;
+     *                    see the class comment before leaving the loopback interface
+     */
+    public ReaderBridgeServer(int port, InetAddress bindAddress, Function<String, CardTransport> opener) {
+        this.port = port;
+        this.bindAddress = bindAddress;
+        this.opener = opener;
+    }
+
+    /**
+     * Opener connecting to the card on a PC/SC reader by name; an empty name
+     * selects the first contactless reader
+     */
+    public static Function<String, CardTransport> pcsc(TerminalRegistry terminals) {
+        return name -> {
+            CardTerminal terminal = name.isEmpty() ? terminals.first(TerminalRegistry.Role.CONTACTLESS)
+                    : terminals.get(name);
+            if (terminal == null) {
+                throw new TransportException("No reader " + name);
+            }
+            try {
+                return new ChannelTransport(terminal.connect("*"));
+            } catch (CardException e) {
+                throw new TransportException("Connection to " + terminal.getName() + " failed", e);
+            }
+        };
+    }
+
+    /**
+     * Listen and serve connections from a background thread
+     */
+    public synchronized void start() throws IOException {
+        if (serverSocket != null) {
+            return;
+        }
+        serverSocket = new ServerSocket(port, 50, bindAddress);
+        Thread acceptor = new Thread(this::accept, "reader-bridge-" + serverSocket.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+        log.info("Reader bridge listening on {}", serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * Port actually listened on
+     */
+    public synchronized int getPort() {
+        return serverSocket != null ? serverSocket.getLocalPort() : port;
+    }
+
+    private void accept() {
+        ServerSocket server = serverSocket;
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                Thread thread = new Thread(connection, "reader-bridge-" + socket.getRemoteSocketAddress());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    log.warn("Accepting bridge connection failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop listening and drop every connection, closing their readers
+     */
+    @Override
+    public synchronized void close() {
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                log.debug("Closing bridge socket failed", e);
+            }
+        }
+        for (Connection connection : connections) {
+            connection.shutdown();
+        }
+    }
+
+    /**
+     * One client connection and the readers it opened
+     */
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+        private final Map<Integer, Channel> channels = new ConcurrentHashMap<>();
+        private DataOutputStream out;
+        private int nextChannel;
+
+        Connection(Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                while (true) {
+                    handle(BridgeProtocol.read(in));
+                }
+            } catch (EOFException e) {
+                log.debug("Bridge client {} disconnected", socket.getRemoteSocketAddress());
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    log.warn("Bridge connection " + socket.getRemoteSocketAddress() + " failed", e);
+                }
+            } finally {
+                shutdown();
+                connections.remove(this);
+            }
+        }
+
+        private void handle(BridgeProtocol.Frame frame) throws IOException {
+            switch (frame.type) {
+                case BridgeProtocol.OPEN:
+                    open(frame);
+                    break;
+                case BridgeProtocol.TRANSMIT:
+                    Channel channel = channel(frame);
+                    if (channel != null) {
+                        submit(channel, frame, () -> channel.transport.transceive(frame.payload));
+                    }
+                    break;
+                case BridgeProtocol.CLOSE:
+                    Channel closing = channel(frame);
+                    if (closing != null) {
+                        channels.remove(frame.channel);
+                        submit(closing, frame, () -> {
+                            closing.transport.close();
+                            return new byte[0];
+                        });
+                        closing.worker.shutdown();
+                    }
+                    break;
+                default:
+                    reply(frame.requestId, BridgeProtocol.ERROR, frame.channel, "Unknown request type " + frame.type);
+                    break;
+            }
+        }
+
+        private void open(BridgeProtocol.Frame frame) throws IOException {
+            String name = new String(frame.payload, StandardCharsets.UTF_8);
+            int number = freeChannel();
+            if (number < 0) {
+                reply(frame.requestId, BridgeProtocol.ERROR, 0, "Cannot open reader " + name + ": no free channel");
+                return;
+            }
+            Channel channel = new Channel(number);
+            channels.put(number, channel);
+            // the client only learns the number from the answer, so nothing else is queued before
+            channel.worker.execute(() -> {
+                try {
+                    try {
+                        channel.transport = opener.apply(name);
+                    } catch (RuntimeException e) {
+                        channels.remove(number, channel);
+                        channel.worker.shutdown();
+                        reply(frame.requestId, BridgeProtocol.ERROR, 0, "Cannot open reader " + name + ": " + e.getMessage());
+                        return;
+                    }
+                    reply(frame.requestId, BridgeProtocol.OK, number, new byte[] {(byte) (number >> 8), (byte) number});
+                } catch (IOException e) {
+                    log.debug("Answering bridge client failed", e);
+                }
+            });
+        }
+
+        /**
+         * Next channel number not in use, or -1 when all are
+         */
+        private int freeChannel() {
+            for (int i = 0; i <= 0xFFFF; i++) {
+                int number = nextChannel++ & 0xFFFF;
+                if (!channels.containsKey(number)) {
+                    return number;
+                }
+            }
+            return -1;
+        }
+
+        private Channel channel(BridgeProtocol.Frame frame) throws IOException {
+            Channel channel = channels.get(frame.channel);
+            if (channel == null) {
+                reply(frame.requestId, BridgeProtocol.ERROR, frame.channel, "Channel " + frame.channel + " not open");
+            }
+            return channel;
+        }
+
+        private void submit(Channel channel, BridgeProtocol.Frame frame, Supplier<byte[]> exchange) throws IOException {
+            try {
+                channel.worker.execute(() -> {
+                    try {
+                        byte[] response = exchange.get();
+                        reply(frame.requestId, BridgeProtocol.OK, frame.channel, response);
+                    } catch (RuntimeException e) {
+                        sendError(frame, e);
+                    } catch (IOException e) {
+                        log.debug("Answering bridge client failed", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                reply(frame.requestId, BridgeProtocol.ERROR, frame.channel, "Channel " + frame.channel + " closed");
+            }
+        }
+
+        private void sendError(BridgeProtocol.Frame frame, RuntimeException e) {
+            try {
+                reply(frame.requestId, BridgeProtocol.ERROR, frame.channel, String.valueOf(e.getMessage()));
+            } catch (IOException io) {
+                log.debug("Answering bridge client failed", io);
+            }
+        }
+
+        private void reply(int requestId, byte type, int channel, String message) throws IOException {
+            reply(requestId, type, channel, message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void reply(int requestId, byte type, int channel, byte[] payload) throws IOException {
+            synchronized (out) {
+                BridgeProtocol.write(out, requestId, type, channel, payload);
+                out.flush();
+            }
+        }
+
+        synchronized void shutdown() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.debug("Closing bridge connection failed", e);
+            }
+            for (Channel channel : channels.values()) {
+                try {
+                    channel.worker.execute(() -> {
+                        if (channel.transport == null) {
+                            return; // opening failed
+                        }
+                        try {
+                            channel.transport.close();
+                        } catch (RuntimeException e) {
+                            log.debug("Closing bridged reader failed", e);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // opening failed meanwhile, nothing to close
+                }
+                channel.worker.shutdown();
+            }
+            channels.clear();
+        }
+    }
+
+    /**
+     * A reader and the worker opening it, then running its APDUs in request order
+     */
+    private static final class Channel {
+
+        final ExecutorService worker;
+        CardTransport transport; // set and used on the worker
+
+        Channel(int number) {
+            this.worker = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "reader-bridge-channel-" + number);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.exceptions.TransportException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connection to a {@link ReaderBridgeServer}, shared by the
+ * {@link RemoteTransport}s of all readers opened through it.
+ *
+ * <p>Requests are written as soon as they are issued and matched to their
+ * answers by request id on a background thread, so callers can pipeline
+ * APDUs with {@link RemoteTransport#transmitAsync(byte[])} and many readers
+ * share one socket.
+ * <pre>
+ * try (RemoteReaderClient client = new RemoteReaderClient("edge-01", 7300)) {
+ *     DESFireEV1 desfire = new DESFireEV1(client.open("ACS ACR1581 1S Dual Reader PICC 0"));
+ *     ...
+ * }
+ * </pre>
+ */
+public class RemoteReaderClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(RemoteReaderClient.class);
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    /** Longest wait for an answer, opening a reader included */
+    static final long ANSWER_TIMEOUT_MILLIS = 30000;
+
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final Map<Integer, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextRequest = new AtomicInteger();
+    private volatile boolean closed;
+
+    public RemoteReaderClient(String host, int port) {
+        socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setTcpNoDelay(true);
+            out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread receiver = new Thread(() -> receive(in), "remote-reader-" + host + ":" + port);
+            receiver.setDaemon(true);
+            receiver.start();
+        } catch (IOException e) {
+            close();
+            throw new TransportException("Connection to reader bridge " + host + ":" + port + " failed", e);
+        }
+    }
+
+    /**
+     * Open the card on a reader of the bridge; an empty name selects the
+     * bridge default reader
+     */
+    public RemoteTransport open(String readerName) {
+        byte[] channel = RemoteTransport.await(request(BridgeProtocol.OPEN, 0, readerName.getBytes(StandardCharsets.UTF_8)));
+        return new RemoteTransport(this, ((channel[0] & 0xFF) << 8) | (channel[1] & 0xFF), readerName);
+    }
+
+    /**
+     * Send a request; the future completes with the answer payload or
+     * fails with {@link TransportException}
+     */
+    CompletableFuture<byte[]> request(byte type, int channel, byte[] payload) {
+        if (closed) {
+            throw new TransportException("Reader bridge connection closed");
+        }
+        int requestId = nextRequest.incrementAndGet();
+        CompletableFuture<byte[]> future = new CompletableFuture<>();
+        pending.put(requestId, future);
+        if (closed) {
+            // close() may have drained the pending requests before this one was added
+            pending.remove(requestId);
+            throw new TransportException("Reader bridge connection closed");
+        }
+        try {
+            synchronized (out) {
+                BridgeProtocol.write(out, requestId, type, channel, payload);
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            close();
+            throw new TransportException("Sending to reader bridge failed", e);
+        }
+        return future;
+    }
+
+    private void receive(DataInputStream in) {
+        try {
+            while (true) {
+                BridgeProtocol.Frame frame = BridgeProtocol.read(in);
+                CompletableFuture<byte[]> future = pending.remove(frame.requestId);
+                if (future == null) {
+                    log.warn("Answer to unknown request {}", frame.requestId);
+                    continue;
+                }
+                if (frame.type == BridgeProtocol.OK) {
+                    future.complete(frame.payload);
+                } else {
+                    future.completeExceptionally(new TransportException(
+                            "Reader bridge: " + new String(frame.payload, StandardCharsets.UTF_8)));
+                }
+            }
+        } catch (IOException e) {
+            if (!closed) {
+                log.warn("Reader bridge connection lost", e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Close the connection; pending requests fail and the bridge closes the
+     * readers opened through it
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            log.debug("Closing reader bridge connection failed", e);
+        }
+        TransportException failure = new TransportException("Reader bridge connection closed");
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<byte[]> future = pending.remove(requestId);
+            if (future != null) {
+                future.completeExceptionally(failure);
+            }
+        }
+    }
+}
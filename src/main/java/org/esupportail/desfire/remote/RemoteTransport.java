@@ -0,0 +1,96 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * {@link CardTransport} to a card on a reader of a {@link ReaderBridgeServer},
+ * opened with {@link RemoteReaderClient#open(String)}
+ */
+public class RemoteTransport implements CardTransport {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final RemoteReaderClient client;
+    private final int channel;
+    private final String readerName;
+    private volatile boolean closed;
+
+    RemoteTransport(RemoteReaderClient client, int channel, String readerName) {
+        this.client = client;
+        this.channel = channel;
+        this.readerName = readerName;
+    }
+
+    @Override
+    public int transceive(ByteBuffer command, ByteBuffer response) {
+        byte[] apdu = new byte[command.remaining()];
+        command.get(apdu);
+        byte[] answer = await(transmitAsync(apdu));
+        response.put(answer);
+        return answer.length;
+    }
+
+    @Override
+    public byte[] transceive(byte[] command) {
+        return await(transmitAsync(command));
+    }
+
+    /**
+     * Send a command without waiting for the previous ones to be answered;
+     * the bridge runs the commands of a reader in the order they were sent
+     * @return the future response, status word included
+     */
+    public CompletableFuture<byte[]> transmitAsync(byte[] command) {
+        if (closed) {
+            throw new TransportException("Transport closed");
+        }
+        return client.request(BridgeProtocol.TRANSMIT, channel, command);
+    }
+
+    static byte[] await(CompletableFuture<byte[]> future) {
+        try {
+            return future.get(RemoteReaderClient.ANSWER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new TransportException("No answer from the reader bridge in "
+                    + RemoteReaderClient.ANSWER_TIMEOUT_MILLIS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransportException("Interrupted while waiting for the reader bridge", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransportException) {
+                throw (TransportException) e.getCause();
+            }
+            throw new TransportException("Reader bridge request failed", e.getCause());
+        }
+    }
+
+    public String getReaderName() {
+        return readerName;
+    }
+
+    @Override
+    public boolean isConnected() {
+        return !closed && !client.isClosed();
+    }
+
+    /**
+     * Close the card on the bridge; the client connection stays open
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        if (!client.isClosed()) {
+            await(client.request(BridgeProtocol.CLOSE, channel, EMPTY));
+        }
+    }
+}
@@ -0,0 +1,249 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Client of a sharded authentication backend made of {@link AuthNodeServer}s.
+ *
+ * <p>A handshake is begun on the member owning its routing key, the card UID
+ * or the reader id, on a {@link ConsistentHashRing} of the membership list;
+ * if that member cannot be reached the next one on the ring takes it. Every
+ * later step goes to the member that began the handshake, which alone holds
+ * its state, so changing the membership never breaks handshakes in flight on
+ * members still running. One connection per member is shared by all threads.
+ * <pre>
+ * try (ShardedAuthClient auth = new ShardedAuthClient(members)) {
+ *     byte[] sessionKey = auth.authenticate(card, uid, aid, (byte) 0x00, KeyType.AES);
+ * }
+ * </pre>
+ */
+public class ShardedAuthClient implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedAuthClient.class);
+
+    private volatile ConsistentHashRing<InetSocketAddress> ring;
+    private final Map<InetSocketAddress, RemoteReaderClient> connections = new ConcurrentHashMap<>();
+
+    /**
+     * A handshake begun on a member
+     */
+    public static class Handshake {
+
+        private final InetSocketAddress member;
+        private final long token;
+        private final byte[] command;
+
+        Handshake(InetSocketAddress member, long token, byte[] command) {
+            this.member = member;
+            this.token = token;
+            this.command = command;
+        }
+
+        /**
+         * Member holding the handshake state
+         */
+        public InetSocketAddress getMember() {
+            return member;
+        }
+
+        public long getToken() {
+            return token;
+        }
+
+        /**
+         * Authenticate APDU to send to the card
+         */
+        public byte[] getCommand() {
+            return command.clone();
+        }
+    }
+
+    public ShardedAuthClient(Collection<InetSocketAddress> members) {
+        setMembers(members);
+    }
+
+    /**
+     * Replace the membership list; connections to members gone are closed
+     */
+    public void setMembers(Collection<InetSocketAddress> members) {
+        ConsistentHashRing<InetSocketAddress> next = new ConsistentHashRing<>(members);
+        ring = next;
+        for (InetSocketAddress member : connections.keySet()) {
+            if (!next.getMembers().contains(member)) {
+                RemoteReaderClient connection = connections.remove(member);
+                if (connection != null) {
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    public List<InetSocketAddress> getMembers() {
+        return ring.getMembers();
+    }
+
+    /**
+     * Member a routing key belongs to
+     */
+    public InetSocketAddress route(byte[] routingKey) {
+        return ring.route(routingKey);
+    }
+
+    /**
+     * Begin a handshake on the member owning the card UID
+     */
+    public Handshake begin(byte[] uid, byte[] aid, byte keyNo, KeyType keyType) {
+        return begin(uid, uid, aid, keyNo, keyType);
+    }
+
+    /**
+     * Begin a handshake on the member owning the reader, so the cards of one
+     * reader share a member
+     */
+    public Handshake begin(String readerId, byte[] uid, byte[] aid, byte keyNo, KeyType keyType) {
+        return begin(readerId.getBytes(StandardCharsets.UTF_8), uid, aid, keyNo, keyType);
+    }
+
+    private Handshake begin(byte[] routingKey, byte[] uid, byte[] aid, byte keyNo, KeyType keyType) {
+        if (aid.length != 3) {
+            throw new DesfireException("AID must be 3 bytes");
+        }
+        byte[] request = ByteBuffer.allocate(2 + 3 + uid.length)
+                .put(keyNo).put((byte) keyType.ordinal()).put(aid).put(uid).array();
+        TransportException failure = null;
+        for (InetSocketAddress member : ring.preferences(routingKey)) {
+            try {
+                ByteBuffer answer = ByteBuffer.wrap(request(member, BridgeProtocol.BEGIN, request));
+                long token = answer.getLong();
+                byte[] command = new byte[answer.remaining()];
+                answer.get(command);
+                return new Handshake(member, token, command);
+            } catch (TransportException e) {
+                if (!isUnreachable(member)) {
+                    throw e; // the member refused the handshake
+                }
+                log.warn("Authentication member {} unreachable, trying the next one", member);
+                failure = e;
+            }
+        }
+        throw failure != null ? failure : new TransportException("No authentication member");
+    }
+
+    /**
+     * Answer the card challenge, the data of its 91AF response
+     * @return the APDU to send to the card
+     */
+    public byte[] respond(Handshake handshake, byte[] encRandB) {
+        return request(handshake.member, BridgeProtocol.RESPOND, withToken(handshake, encRandB));
+    }
+
+    /**
+     * Check the card answer, the data of its 9100 response
+     * @return the session key, or <code>null</code> if the card failed verification
+     */
+    public byte[] finish(Handshake handshake, byte[] encRandAr) {
+        byte[] sessionKey = request(handshake.member, BridgeProtocol.FINISH, withToken(handshake, encRandAr));
+        return sessionKey.length > 0 ? sessionKey : null;
+    }
+
+    /**
+     * Abandon a handshake, e.g. after the card left the field
+     */
+    public void discard(Handshake handshake) {
+        request(handshake.member, BridgeProtocol.DISCARD, withToken(handshake, new byte[0]));
+    }
+
+    /**
+     * Run a whole handshake between a card and the member owning its UID
+     * @return the session key, or <code>null</code> if the card or the member refused
+     */
+    public byte[] authenticate(CardTransport card, byte[] uid, byte[] aid, byte keyNo, KeyType keyType) {
+        Handshake handshake = begin(uid, aid, keyNo, keyType);
+        boolean finished = false;
+        try {
+            byte[] challenge = card.transceive(handshake.getCommand());
+            if (!hasStatus(challenge, 0xAF)) {
+                return null;
+            }
+            byte[] answer = card.transceive(respond(handshake, data(challenge)));
+            if (!hasStatus(answer, 0x00)) {
+                return null;
+            }
+            finished = true;
+            return finish(handshake, data(answer));
+        } finally {
+            if (!finished) {
+                discardQuietly(handshake);
+            }
+        }
+    }
+
+    private void discardQuietly(Handshake handshake) {
+        try {
+            discard(handshake);
+        } catch (DesfireException e) {
+            log.debug("Discarding handshake {} failed", handshake.token, e);
+        }
+    }
+
+    private static boolean hasStatus(byte[] response, int status) {
+        return response != null && response.length >= 2 && response[response.length - 2] == (byte) 0x91
+                && response[response.length - 1] == (byte) status;
+    }
+
+    private static byte[] data(byte[] response) {
+        return Arrays.copyOf(response, response.length - 2);
+    }
+
+    private static byte[] withToken(Handshake handshake, byte[] data) {
+        return ByteBuffer.allocate(8 + data.length).putLong(handshake.token).put(data).array();
+    }
+
+    private byte[] request(InetSocketAddress member, byte type, byte[] payload) {
+        return RemoteTransport.await(connection(member).request(type, 0, payload));
+    }
+
+    private RemoteReaderClient connection(InetSocketAddress member) {
+        RemoteReaderClient connection = connections.get(member);
+        if (connection == null || connection.isClosed()) {
+            synchronized (connections) {
+                connection = connections.get(member);
+                if (connection == null || connection.isClosed()) {
+                    connection = new RemoteReaderClient(member.getHostString(), member.getPort());
+                    connections.put(member, connection);
+                }
+            }
+        }
+        return connection;
+    }
+
+    /**
+     * A refused request leaves the connection open, a lost member does not
+     */
+    private boolean isUnreachable(InetSocketAddress member) {
+        RemoteReaderClient connection = connections.get(member);
+        return connection == null || connection.isClosed();
+    }
+
+    @Override
+    public void close() {
+        for (RemoteReaderClient connection : connections.values()) {
+            connection.close();
+        }
+        connections.clear();
+    }
+}
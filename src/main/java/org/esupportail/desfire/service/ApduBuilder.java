@@ -0,0 +1,248 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.exceptions.DesfireException;
+
+/**
+ * Stateless builders for raw DESFire APDUs.
+ * Every method returns a freshly allocated command and keeps no state,
+ * so they can be called concurrently from any number of threads.
+ */
+public final class ApduBuilder {
+
+    private ApduBuilder() {
+        // Utility class - prevent instantiation
+    }
+
+    // ================ PICC LEVEL COMMANDS ================
+
+    /**
+     * Get version information from the PICC
+     */
+    public static byte[] getVersion() {
+        return simple(ApduCommand.GET_VERSION);
+    }
+
+    /**
+     * Get free memory available on PICC
+     */
+    public static byte[] getFreeMemory() {
+        return simple(ApduCommand.GET_FREE_MEMORY);
+    }
+
+    /**
+     * Format the PICC (destroys all data)
+     */
+    public static byte[] formatPicc() {
+        return simple(ApduCommand.FORMAT_PICC);
+    }
+
+    /**
+     * Get list of application IDs
+     */
+    public static byte[] getApplicationIds() {
+        return simple(ApduCommand.GET_APPLICATION_IDS);
+    }
+
+    /**
+     * Create a new application
+     */
+    public static byte[] createApplication(byte[] aid, byte keySettings, byte numberOfKeys) {
+        checkAid(aid);
+
+        byte[] apdu = new byte[10];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = ApduCommand.CREATE_APPLICATION;
+        apdu[4] = 0x05; // data length
+        System.arraycopy(aid, 0, apdu, 5, 3);
+        apdu[8] = keySettings;
+        apdu[9] = numberOfKeys;
+        return apdu;
+    }
+
+    /**
+     * Delete an application
+     */
+    public static byte[] deleteApplication(byte[] aid) {
+        return withAid(ApduCommand.DELETE_APPLICATION, aid);
+    }
+
+    // ================ APPLICATION LEVEL COMMANDS ================
+
+    /**
+     * Select an application
+     */
+    public static byte[] selectApplication(byte[] aid) {
+        return withAid(ApduCommand.SELECT_APPLICATION, aid);
+    }
+
+    /**
+     * Get file IDs in current application
+     */
+    public static byte[] getFileIds() {
+        return simple(ApduCommand.GET_FILE_IDS);
+    }
+
+    /**
+     * Get file settings
+     */
+    public static byte[] getFileSettings(byte fileNo) {
+        return new byte[] {(byte) 0x90, ApduCommand.GET_FILE_SETTINGS, 0x00, 0x00, 0x01, fileNo};
+    }
+
+    /**
+     * Create standard data file
+     */
+    public static byte[] createStdDataFile(byte fileNo, byte commSettings, byte[] accessRights, int fileSize) {
+        byte[] apdu = new byte[12];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = ApduCommand.CREATE_STD_DATA_FILE;
+        apdu[4] = 0x07; // data length
+        apdu[5] = fileNo;
+        apdu[6] = commSettings;
+        System.arraycopy(accessRights, 0, apdu, 7, 2);
+        putInt24(apdu, 9, fileSize);
+        return apdu;
+    }
+
+    // ================ DATA MANIPULATION COMMANDS ================
+
+    /**
+     * Read data from file
+     */
+    public static byte[] readData(byte fileNo, int offset, int length) {
+        byte[] apdu = new byte[12];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = ApduCommand.READ_DATA;
+        apdu[4] = 0x07; // data length
+        apdu[5] = fileNo;
+        putInt24(apdu, 6, offset);
+        putInt24(apdu, 9, length);
+        return apdu;
+    }
+
+    /**
+     * Write data to file
+     */
+    public static byte[] writeData(byte fileNo, int offset, byte[] data) {
+        return writeData(fileNo, offset, data, 0, data.length);
+    }
+
+    /**
+     * Write a slice of <code>data</code> to file
+     */
+    public static byte[] writeData(byte fileNo, int offset, byte[] data, int from, int length) {
+        byte[] apdu = new byte[12 + length];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = ApduCommand.WRITE_DATA;
+        apdu[4] = (byte) (7 + length); // data length
+        apdu[5] = fileNo;
+        putInt24(apdu, 6, offset);
+        putInt24(apdu, 9, length);
+        System.arraycopy(data, from, apdu, 12, length);
+        return apdu;
+    }
+
+    // ================ AUTHENTICATION COMMANDS ================
+
+    /**
+     * Start authentication (step 1)
+     */
+    public static byte[] authenticate(byte keyNo, KeyType keyType) {
+        byte[] apdu = new byte[7];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = authenticationCommand(keyType);
+        apdu[4] = 0x01; // data length
+        apdu[5] = keyNo;
+        apdu[6] = 0x00; // Le
+        return apdu;
+    }
+
+    /**
+     * Change key (plain key body, see {@link DESFireApduService#changeKey})
+     */
+    public static byte[] changeKey(byte keyNo, byte keyVersion, KeyType keyType, byte[] newKey) {
+        int keyLength = getKeyLength(keyType);
+        byte[] apdu = new byte[7 + keyLength + 1];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = ApduCommand.CHANGE_KEY;
+        apdu[4] = (byte) (keyLength + 1); // data length
+        apdu[5] = keyNo;
+        System.arraycopy(newKey, 0, apdu, 6, keyLength);
+        apdu[6 + keyLength] = keyVersion;
+        return apdu;
+    }
+
+    // ================ UTILITY METHODS ================
+
+    /**
+     * Continue reading additional frames
+     */
+    public static byte[] additionalFrame() {
+        return simple(ApduCommand.ADDITIONAL_FRAME);
+    }
+
+    /**
+     * Get card UID
+     */
+    public static byte[] getCardUid() {
+        return simple(ApduCommand.GET_CARD_UID);
+    }
+
+    /**
+     * Authentication command code matching the key type
+     */
+    public static byte authenticationCommand(KeyType keyType) {
+        switch (keyType) {
+            case DES:
+            case TDES:
+                return ApduCommand.AUTHENTICATE_DES_2K3DES;
+            case TKTDES:
+                return ApduCommand.AUTHENTICATE_3K3DES;
+            case AES:
+                return ApduCommand.AUTHENTICATE_AES;
+            default:
+                throw new DesfireException("Unsupported key type: " + keyType);
+        }
+    }
+
+    /**
+     * Key length in bytes for the key type
+     */
+    public static int getKeyLength(KeyType keyType) {
+        switch (keyType) {
+            case DES: return 8;
+            case TDES: return 16;
+            case TKTDES: return 24;
+            case AES: return 16;
+            default: throw new DesfireException("Unknown key type: " + keyType);
+        }
+    }
+
+    private static byte[] simple(byte command) {
+        return new byte[] {(byte) 0x90, command, 0x00, 0x00, 0x00};
+    }
+
+    private static byte[] withAid(byte command, byte[] aid) {
+        checkAid(aid);
+
+        byte[] apdu = new byte[8];
+        apdu[0] = (byte) 0x90;
+        apdu[1] = command;
+        apdu[4] = 0x03; // data length
+        System.arraycopy(aid, 0, apdu, 5, 3);
+        return apdu;
+    }
+
+    private static void checkAid(byte[] aid) {
+        if (aid.length != 3) {
+            throw new DesfireException("AID must be 3 bytes");
+        }
+    }
+
+    private static void putInt24(byte[] apdu, int offset, int value) {
+        apdu[offset] = (byte) (value & 0xFF);
+        apdu[offset + 1] = (byte) ((value >> 8) & 0xFF);
+        apdu[offset + 2] = (byte) ((value >> 16) & 0xFF);
+    }
+}
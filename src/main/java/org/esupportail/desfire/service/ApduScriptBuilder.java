@@ -0,0 +1,139 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.DesfireTag;
+import org.esupportail.desfire.model.KeyType;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stateless builder turning a {@link DesfireTag} profile, or its
+ * {@link CompactProfile} form, into the ordered APDU script that personalizes
+ * one card.
+ *
+ * <p>Authentication entries only carry the first handshake frame: the
+ * encoding machine completes the 3-pass exchange with its own key material.
+ * Instances are immutable and can be shared between threads.
+ */
+public final class ApduScriptBuilder {
+
+    /** AID of the PICC level application. */
+    public static final byte[] PICC_AID = {0x00, 0x00, 0x00};
+
+    /** Largest payload sent in one WriteData frame. */
+    public static final int MAX_WRITE_CHUNK = 52;
+
+    private static final byte[] DEFAULT_ACCESS_RIGHTS = {0x00, 0x00};
+
+    private final byte keySettings;
+
+    public ApduScriptBuilder() {
+        this((byte) 0x0F);
+    }
+
+    /**
+     * @param keySettings key settings used when creating applications
+     */
+    public ApduScriptBuilder(byte keySettings) {
+        this.keySettings = keySettings;
+    }
+
+    /**
+     * Build the ordered APDU script of a profile
+     */
+    public List<byte[]> build(DesfireTag profile) {
+        return build(CompactProfile.from(profile));
+    }
+
+    /**
+     * Build the ordered APDU script of a pre-decoded profile
+     */
+    public List<byte[]> build(CompactProfile profile) {
+        List<byte[]> script = new ArrayList<>();
+        KeyType piccKeyType = profile.getKeyTypeStart() != null ? profile.getKeyTypeStart() : KeyType.DES;
+
+        script.add(ApduBuilder.selectApplication(PICC_AID));
+        script.add(ApduBuilder.authenticate((byte) 0x00, piccKeyType));
+        if (profile.isFormatBeforeWrite()) {
+            script.add(ApduBuilder.formatPicc());
+        }
+
+        for (CompactProfile.Application application : profile.getApplications()) {
+            addApplication(script, application);
+        }
+
+        if (profile.getKeyFinish() != null && profile.getKeyTypeFinish() != null) {
+            script.add(ApduBuilder.selectApplication(PICC_AID));
+            script.add(ApduBuilder.authenticate((byte) 0x00, piccKeyType));
+            script.add(ApduBuilder.changeKey((byte) 0x00, orZero(profile.getKeyVersionFinish()),
+                    profile.getKeyTypeFinish(), profile.getKeyFinish()));
+        }
+        return script;
+    }
+
+    private void addApplication(List<byte[]> script, CompactProfile.Application application) {
+        byte[] aid = application.getAidBytes();
+        CompactProfile.Key[] keys = application.getKeys();
+        KeyType keyType = keys.length == 0 || keys[0].getKeyType() == null ? KeyType.DES : keys[0].getKeyType();
+        int numberOfKeys = Math.max(keys.length, 1);
+
+        script.add(ApduBuilder.createApplication(aid, keySettings, (byte) (numberOfKeys | keyTypeFlag(keyType))));
+        script.add(ApduBuilder.selectApplication(aid));
+        script.add(ApduBuilder.authenticate((byte) 0x00, keyType));
+
+        for (CompactProfile.File file : application.getFiles()) {
+            addFile(script, file);
+        }
+
+        // Changing key 0 ends the session, so it goes last
+        CompactProfile.Key masterKey = null;
+        for (CompactProfile.Key key : keys) {
+            byte keyNo = orZero(key.getKeyNo());
+            if (keyNo == 0x00) {
+                masterKey = key;
+            } else if (key.getValue() != null) {
+                script.add(changeKey(keyNo, key, keyType));
+            }
+        }
+        if (masterKey != null && masterKey.getValue() != null) {
+            script.add(changeKey((byte) 0x00, masterKey, keyType));
+        }
+    }
+
+    private void addFile(List<byte[]> script, CompactProfile.File file) {
+        byte fileNo = orZero(file.getFileNo());
+        byte[] accessRights = file.getAccessRights() != null ? file.getAccessRights() : DEFAULT_ACCESS_RIGHTS;
+        int fileSize = Math.max(file.getFileSize(), 0);
+
+        script.add(ApduBuilder.createStdDataFile(fileNo, orZero(file.getCommunicationSettings()), accessRights, fileSize));
+
+        byte[] data = file.getInitialValue();
+        if (data != null) {
+            for (int offset = 0; offset < data.length; offset += MAX_WRITE_CHUNK) {
+                int length = Math.min(MAX_WRITE_CHUNK, data.length - offset);
+                script.add(ApduBuilder.writeData(fileNo, offset, data, offset, length));
+            }
+        }
+    }
+
+    private static byte[] changeKey(byte keyNo, CompactProfile.Key key, KeyType appKeyType) {
+        KeyType keyType = key.getKeyType() != null ? key.getKeyType() : appKeyType;
+        return ApduBuilder.changeKey(keyNo, orZero(key.getKeyVersion()), keyType, key.getValue());
+    }
+
+    /**
+     * Key type flag OR-ed into the number of keys of CreateApplication
+     */
+    static int keyTypeFlag(KeyType keyType) {
+        switch (keyType) {
+            case TKTDES: return 0x40;
+            case AES: return 0x80;
+            default: return 0x00;
+        }
+    }
+
+    private static byte orZero(int value) {
+        return value != CompactProfile.NONE ? (byte) value : 0x00;
+    }
+}
@@ -0,0 +1,134 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ChannelTransport;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardChannel;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Replays an APDU script over a single card transport.
+ *
+ * <p>Scripts are read lazily, one line at a time. Each line holds an APDU in hex,
+ * optionally followed by the expected status word (see {@link ExpectedStatus#parse}):
+ * <pre>
+ * # comment
+ * 905A000003000000 9100
+ * 9060000000       91AF
+ * 90AF000000       91XX
+ * </pre>
+ * Lines without an expectation use the executor default. Execution stops at the
+ * first response that does not match.
+ */
+public class ApduScriptExecutor {
+
+    private static final Logger log = LoggerFactory.getLogger(ApduScriptExecutor.class);
+
+    private final CardTransport transport;
+    private final ExpectedStatus defaultExpected;
+    private final ByteBuffer command = ByteBuffer.allocateDirect(261);
+    private final ByteBuffer response = ByteBuffer.allocateDirect(CardTransport.MAX_RESPONSE_LENGTH);
+
+    public ApduScriptExecutor(CardChannel channel) {
+        this(new ChannelTransport(channel));
+    }
+
+    public ApduScriptExecutor(CardChannel channel, ExpectedStatus defaultExpected) {
+        this(new ChannelTransport(channel), defaultExpected);
+    }
+
+    public ApduScriptExecutor(CardTransport transport) {
+        this(transport, ExpectedStatus.DESFIRE_OK);
+    }
+
+    public ApduScriptExecutor(CardTransport transport, ExpectedStatus defaultExpected) {
+        this.transport = transport;
+        this.defaultExpected = defaultExpected;
+    }
+
+    /**
+     * Execute a script file
+     */
+    public ScriptResult execute(Path script) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(script, StandardCharsets.US_ASCII)) {
+            return execute(reader);
+        }
+    }
+
+    /**
+     * Execute a script read line by line from <code>reader</code>
+     */
+    public ScriptResult execute(BufferedReader reader) throws IOException {
+        ScriptResult result = new ScriptResult();
+        int lineNumber = 0;
+        String line;
+
+        while ((line = reader.readLine()) != null) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.charAt(0) == '#') {
+                continue;
+            }
+
+            int space = line.indexOf(' ');
+            byte[] apdu = decode(line, space < 0 ? line.length() : space, lineNumber);
+            ExpectedStatus expected = space < 0 ? defaultExpected : expected(line.substring(space).trim(), lineNumber);
+
+            long start = System.nanoTime();
+            command.clear();
+            command.put(apdu).flip();
+            response.clear();
+            int length = transport.transceive(command, response);
+            long nanos = System.nanoTime() - start;
+
+            if (length < 2) {
+                throw new DesfireException("Response without status word at line " + lineNumber);
+            }
+            int sw = ((response.get(length - 2) & 0xFF) << 8) | (response.get(length - 1) & 0xFF);
+            ScriptResult.Step step = new ScriptResult.Step(lineNumber, apdu, sw, length, nanos, expected);
+            result.add(step);
+
+            if (!step.isMatched()) {
+                log.warn("Script stopped: {}", step);
+                break;
+            }
+        }
+        return result;
+    }
+
+    private byte[] decode(String line, int end, int lineNumber) {
+        if (end % 2 != 0) {
+            throw new DesfireException("Odd number of hex digits at line " + lineNumber);
+        }
+        if (end / 2 > command.capacity()) {
+            throw new DesfireException("APDU of " + end / 2 + " bytes, longer than " + command.capacity()
+                    + ", at line " + lineNumber);
+        }
+        byte[] apdu = new byte[end / 2];
+        for (int i = 0; i < end; i += 2) {
+            int hi = Character.digit(line.charAt(i), 16);
+            int lo = Character.digit(line.charAt(i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new DesfireException("Invalid hex digit at line " + lineNumber);
+            }
+            apdu[i / 2] = (byte) ((hi << 4) | lo);
+        }
+        return apdu;
+    }
+
+    private static ExpectedStatus expected(String status, int lineNumber) {
+        try {
+            return ExpectedStatus.parse(status);
+        } catch (DesfireException e) {
+            throw new DesfireException(e.getMessage() + " at line " + lineNumber, e);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.Deadline;
+import org.esupportail.desfire.core.transport.ExclusiveSession;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Non-blocking facade of a {@link DESFireCompleteService}: every command
+ * returns a {@link CompletableFuture} and runs on an executor.
+ *
+ * <p>Commands of one card go through a single-writer queue: submitters only
+ * append to a lock-free queue, and at most one executor task at a time drains
+ * it, so commands run one after the other in submission order without any
+ * lock. The commands found queued together are run in one
+ * {@link ExclusiveSession}, which spares a PC/SC transaction per command.
+ * Their futures are completed once the session is closed and the queue is
+ * open to the next drain, so dependent stages never run while the card is held.
+ * Commands the executor refuses to run fail with its
+ * {@link RejectedExecutionException}.
+ * <pre>
+ * AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(transport));
+ * card.selectApplication(aid)
+ *         .thenCompose(selected -&gt; card.readData((byte) 1, 0, 32))
+ *         .thenAccept(data -&gt; ...);
+ * </pre>
+ */
+public class AsyncDESFireService {
+
+    private static final Logger log = LoggerFactory.getLogger(AsyncDESFireService.class);
+
+    /** Commands run in one exclusive session before letting other clients in. */
+    private static final int MAX_BATCH = 64;
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private final DESFireCompleteService card;
+    private final Executor executor;
+    private final Queue<Task<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private final AtomicLong batches = new AtomicLong();
+
+    /**
+     * A queued command and its outcome, kept until the card is released
+     */
+    private static final class Task<T> {
+
+        final Function<DESFireCompleteService, T> command;
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        T value;
+        Throwable failure;
+
+        Task(Function<DESFireCompleteService, T> command) {
+            this.command = command;
+        }
+
+        void run(DESFireCompleteService card) {
+            try {
+                value = command.apply(card);
+            } catch (Throwable e) {
+                failure = e;
+            }
+        }
+
+        void complete() {
+            if (failure != null) {
+                result.completeExceptionally(failure);
+            } else {
+                result.complete(value);
+            }
+        }
+    }
+
+    /**
+     * Facade running commands on a shared pool of daemon threads, used only
+     * while a card has commands queued
+     */
+    public AsyncDESFireService(DESFireCompleteService card) {
+        this(card, sharedExecutor());
+    }
+
+    public AsyncDESFireService(DESFireCompleteService card, Executor executor) {
+        this.card = card;
+        this.executor = executor;
+    }
+
+    private static ExecutorService sharedExecutor() {
+        ExecutorService executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (AsyncDESFireService.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "desfire-async");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Queue any operation on the card
+     */
+    public <T> CompletableFuture<T> submit(Function<DESFireCompleteService, T> command) {
+        Task<T> task = new Task<>(command);
+        queue.add(task);
+        schedule();
+        return task.result;
+    }
+
+    private void schedule() {
+        if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                Task<?> task;
+                while ((task = queue.poll()) != null) {
+                    task.result.completeExceptionally(e);
+                }
+                draining.set(false);
+                schedule(); // commands queued while failing the others
+            }
+        }
+    }
+
+    private void drain() {
+        List<Task<?>> done = new ArrayList<>();
+        try {
+            Task<?> task = queue.poll();
+            if (task != null) {
+                done.add(task);
+                batches.incrementAndGet();
+                ExclusiveSession session = openSession();
+                try {
+                    task.run(card);
+                    while (done.size() < MAX_BATCH && (task = queue.poll()) != null) {
+                        done.add(task);
+                        task.run(card);
+                    }
+                } finally {
+                    closeSession(session);
+                }
+            }
+        } finally {
+            draining.set(false);
+            schedule(); // commands queued after the last poll
+            for (Task<?> task : done) {
+                task.complete();
+            }
+        }
+    }
+
+    /**
+     * The commands run anyway without exclusive access, and report their own
+     * errors if the card is gone
+     */
+    private ExclusiveSession openSession() {
+        try {
+            return card.exclusive();
+        } catch (RuntimeException e) {
+            log.debug("Running commands without exclusive access: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private void closeSession(ExclusiveSession session) {
+        if (session == null) {
+            return;
+        }
+        try {
+            session.close();
+        } catch (DesfireException e) {
+            log.warn("Releasing exclusive access failed", e);
+        }
+    }
+
+    /**
+     * Number of drains so far, each one holding the card for the commands queued together
+     */
+    public long getBatches() {
+        return batches.get();
+    }
+
+    public DESFireCompleteService getCard() {
+        return card;
+    }
+
+    // ================ CARD COMMANDS ================
+
+    public CompletableFuture<byte[]> authenticate(byte[] key, byte keyNo, KeyType type) {
+        return submit(card -> card.authenticate(key, keyNo, type));
+    }
+
+    public CompletableFuture<byte[]> getVersion() {
+        return submit(DESFireCompleteService::getVersion);
+    }
+
+    public CompletableFuture<Boolean> formatPICC() {
+        return submit(DESFireCompleteService::formatPICC);
+    }
+
+    public CompletableFuture<Integer> getFreeMemory() {
+        return submit(DESFireCompleteService::getFreeMemory);
+    }
+
+    public CompletableFuture<byte[]> getApplicationIds() {
+        return submit(DESFireCompleteService::getApplicationIds);
+    }
+
+    public CompletableFuture<Boolean> createApplication(byte[] aid, byte keySettings, byte numberOfKeys) {
+        return submit(card -> card.createApplication(aid, keySettings, numberOfKeys));
+    }
+
+    public CompletableFuture<Boolean> deleteApplication(byte[] aid) {
+        return submit(card -> card.deleteApplication(aid));
+    }
+
+    public CompletableFuture<Boolean> selectApplication(byte[] aid) {
+        return submit(card -> card.selectApplication(aid));
+    }
+
+    public CompletableFuture<Boolean> createStdDataFile(byte fileNo, byte commSettings, byte[] accessRights,
+                                                        int fileSize) {
+        return submit(card -> card.createStdDataFile(fileNo, commSettings, accessRights, fileSize));
+    }
+
+    public CompletableFuture<Boolean> createBackupDataFile(byte fileNo, byte commSettings, byte[] accessRights,
+                                                           int fileSize) {
+        return submit(card -> card.createBackupDataFile(fileNo, commSettings, accessRights, fileSize));
+    }
+
+    public CompletableFuture<byte[]> readData(byte fileNo, int offset, int length) {
+        return submit(card -> card.readData(fileNo, offset, length));
+    }
+
+    public CompletableFuture<Boolean> writeData(byte fileNo, int offset, byte[] data) {
+        return submit(card -> card.writeData(fileNo, offset, data));
+    }
+
+    public CompletableFuture<byte[]> getFileIds() {
+        return submit(DESFireCompleteService::getFileIds);
+    }
+
+    public CompletableFuture<byte[]> getFileSettings(byte fileNo) {
+        return submit(card -> card.getFileSettings(fileNo));
+    }
+
+    public CompletableFuture<Boolean> changeFileSettings(byte fileNo, byte commSettings, byte[] accessRights) {
+        return submit(card -> card.changeFileSettings(fileNo, commSettings, accessRights));
+    }
+
+    public CompletableFuture<Boolean> deleteFile(byte fileNo) {
+        return submit(card -> card.deleteFile(fileNo));
+    }
+
+    public CompletableFuture<byte[]> getKeySettings() {
+        return submit(DESFireCompleteService::getKeySettings);
+    }
+
+    public CompletableFuture<Boolean> changeKeySettings(byte keySettings) {
+        return submit(card -> card.changeKeySettings(keySettings));
+    }
+
+    public CompletableFuture<Boolean> changeKey(byte keyNo, byte keyVersion, KeyType keyType, byte[] newKey,
+                                                byte[] currentKey) {
+        return submit(card -> card.changeKey(keyNo, keyVersion, keyType, newKey, currentKey));
+    }
+
+    public CompletableFuture<byte[]> getCardUID() {
+        return submit(DESFireCompleteService::getCardUID);
+    }
+
+    public CompletableFuture<String> getVersionComplete() {
+        return submit(DESFireCompleteService::getVersionComplete);
+    }
+
+    public CompletableFuture<byte[]> transmit(byte[] command) {
+        return submit(card -> card.transmit(command));
+    }
+
+    // ================ HIGH-LEVEL OPERATIONS ================
+
+    public CompletableFuture<Boolean> initializeCard(byte[] piccMasterKey, KeyType keyType) {
+        return submit(card -> card.initializeCard(piccMasterKey, keyType));
+    }
+
+    public CompletableFuture<Boolean> createApplicationComplete(byte[] aid, byte keySettings, byte numberOfKeys,
+                                                                byte[] appMasterKey, KeyType keyType) {
+        return submit(card -> card.createApplicationComplete(aid, keySettings, numberOfKeys, appMasterKey, keyType));
+    }
+
+    /**
+     * The deadline also runs while the command waits in the queue
+     */
+    public CompletableFuture<Boolean> createApplicationComplete(byte[] aid, byte keySettings, byte numberOfKeys,
+                                                                byte[] appMasterKey, KeyType keyType,
+                                                                Deadline deadline) {
+        return submit(card -> card.createApplicationComplete(aid, keySettings, numberOfKeys, appMasterKey, keyType,
+                deadline));
+    }
+
+    public CompletableFuture<byte[]> readFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
+                                                      byte fileNo, int offset, int length) {
+        return submit(card -> card.readFileComplete(aid, keyNo, keyType, key, fileNo, offset, length));
+    }
+
+    /**
+     * The deadline also runs while the command waits in the queue
+     */
+    public CompletableFuture<byte[]> readFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
+                                                      byte fileNo, int offset, int length, Deadline deadline) {
+        return submit(card -> card.readFileComplete(aid, keyNo, keyType, key, fileNo, offset, length, deadline));
+    }
+
+    public CompletableFuture<Boolean> writeFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
+                                                        byte fileNo, int offset, byte[] data) {
+        return submit(card -> card.writeFileComplete(aid, keyNo, keyType, key, fileNo, offset, data));
+    }
+}
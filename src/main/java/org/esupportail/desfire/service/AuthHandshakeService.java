@@ -0,0 +1,263 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.SecureRandom;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Server-side 3-pass authentication for cards behind remote readers.
+ *
+ * <p>Unlike {@link DESFireAuthService}, no handshake state is kept in the
+ * service instance: each in-flight handshake lives in a concurrent table keyed
+ * by a random 64-bit token from a {@link SecureRandom}, and every step is a function of that token and
+ * the cryptogram relayed from the card. Entries expire after a TTL, so one
+ * instance can run any number of concurrent handshakes.
+ * <pre>
+ * Start start = service.begin(keyNo, KeyType.AES, key);  // send start.getCommand()
+ * byte[] apdu = service.respond(start.getToken(), data);  // data of the 91AF answer
+ * byte[] sessionKey = service.finish(start.getToken(), data2);
+ * </pre>
+ */
+public class AuthHandshakeService {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthHandshakeService.class);
+
+    private final Map<Long, Pending> handshakes = new ConcurrentHashMap<>();
+    private final SecureRandom tokens = new SecureRandom();
+    private final long ttlNanos;
+
+    /**
+     * First step of a handshake: the token and the APDU to relay to the card
+     */
+    public static class Start {
+
+        private final long token;
+        private final byte[] command;
+
+        Start(long token, byte[] command) {
+            this.token = token;
+            this.command = command;
+        }
+
+        public long getToken() {
+            return token;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+    }
+
+    /**
+     * Immutable state of one in-flight handshake
+     */
+    private static final class Pending {
+
+        final KeyType keyType;
+        final byte keyNo;
+        final byte[] key;
+        final byte[] randA;  // null until the card challenge was answered
+        final byte[] randB;
+        final byte[] iv;     // IV of the next decryption
+        final long expiresAt;
+
+        Pending(KeyType keyType, byte keyNo, byte[] key, byte[] randA, byte[] randB, byte[] iv, long expiresAt) {
+            this.keyType = keyType;
+            this.keyNo = keyNo;
+            this.key = key;
+            this.randA = randA;
+            this.randB = randB;
+            this.iv = iv;
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+
+    public AuthHandshakeService() {
+        this(Duration.ofSeconds(5));
+    }
+
+    /**
+     * @param ttl how long an unfinished handshake is kept
+     */
+    public AuthHandshakeService(Duration ttl) {
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    /**
+     * Step 1: register a handshake and build the authenticate command
+     */
+    public Start begin(byte keyNo, KeyType keyType, byte[] key) {
+        if (!DesfireCrypto.validateKey(key, keyType)) {
+            throw new DesfireException("Invalid key for type " + keyType);
+        }
+        byte[] keyCopy = key.clone();
+        if (keyType != KeyType.AES) {
+            DesfireCrypto.setKeyVersion(keyCopy, 0, keyCopy.length, (byte) 0x00);
+        }
+
+        Pending pending = new Pending(keyType, keyNo, keyCopy, null, null,
+                new byte[DesfireCrypto.blockSize(keyType)], System.nanoTime() + ttlNanos);
+        long token;
+        do {
+            token = tokens.nextLong();
+        } while (token == 0 || handshakes.putIfAbsent(token, pending) != null);
+
+        return new Start(token, ApduBuilder.authenticate(keyNo, keyType));
+    }
+
+    /**
+     * Step 2: decrypt the card challenge (encrypted randB) and build the
+     * answer APDU; the handshake is discarded if this fails
+     */
+    public byte[] respond(long token, byte[] encRandB) {
+        Pending pending = lookup(token);
+        boolean answered = false;
+        try {
+            if (pending.randA != null) {
+                throw new DesfireException("Handshake " + token + " already answered");
+            }
+            int length = randomLength(pending.keyType);
+            if (encRandB == null || encRandB.length != length) {
+                throw new DesfireException("Card challenge of handshake " + token + " must be " + length
+                        + " bytes, got " + (encRandB == null ? 0 : encRandB.length));
+            }
+
+            byte[] randB = DesfireCrypto.decrypt(pending.key, encRandB, pending.keyType, pending.iv);
+            if (randB == null) {
+                throw new DesfireException("Failed to decrypt randB");
+            }
+            byte[] randA = DesfireCrypto.random(randB.length);
+            byte[] randBr = DesfireCrypto.rotateLeft(randB);
+
+            byte[] plaintext = new byte[randA.length + randBr.length];
+            System.arraycopy(randA, 0, plaintext, 0, randA.length);
+            System.arraycopy(randBr, 0, plaintext, randA.length, randBr.length);
+            int block = pending.iv.length;
+            byte[] iv1 = Arrays.copyOfRange(encRandB, encRandB.length - block, encRandB.length);
+            byte[] ciphertext = DesfireCrypto.encrypt(pending.key, plaintext, pending.keyType, iv1);
+            if (ciphertext == null) {
+                throw new DesfireException("Failed to encrypt response");
+            }
+
+            byte[] iv2 = Arrays.copyOfRange(ciphertext, ciphertext.length - block, ciphertext.length);
+            Pending next = new Pending(pending.keyType, pending.keyNo, pending.key, randA, randB, iv2, pending.expiresAt);
+            if (!handshakes.replace(token, pending, next)) {
+                throw new DesfireException("Handshake " + token + " changed concurrently");
+            }
+            answered = true;
+
+            byte[] apdu = new byte[5 + ciphertext.length + 1];
+            apdu[0] = (byte) 0x90;
+            apdu[1] = ApduCommand.ADDITIONAL_FRAME;
+            apdu[4] = (byte) ciphertext.length;
+            System.arraycopy(ciphertext, 0, apdu, 5, ciphertext.length);
+            return apdu;
+        } finally {
+            if (!answered) {
+                discard(token);
+            }
+        }
+    }
+
+    /**
+     * Length of randA and randB: 16 bytes with 3K3DES and AES, 8 otherwise
+     */
+    private static int randomLength(KeyType keyType) {
+        return keyType == KeyType.TKTDES || keyType == KeyType.AES ? 16 : 8;
+    }
+
+    /**
+     * Step 3: verify the card answer (encrypted randA') and end the handshake
+     * @return the session key, or <code>null</code> if the card failed verification
+     */
+    public byte[] finish(long token, byte[] encRandAr) {
+        Pending pending = lookup(token);
+        if (pending.randA == null) {
+            throw new DesfireException("Handshake " + token + " not answered yet");
+        }
+        if (!handshakes.remove(token, pending)) {
+            throw new DesfireException("Handshake " + token + " changed concurrently");
+        }
+
+        try {
+            byte[] randAr = DesfireCrypto.decrypt(pending.key, encRandAr, pending.keyType, pending.iv);
+            if (randAr == null || !Arrays.equals(randAr, DesfireCrypto.rotateLeft(pending.randA))) {
+                log.debug("Handshake {} failed card verification", token);
+                return null;
+            }
+            return DesfireCrypto.generateSessionKey(pending.randA, pending.randB, pending.keyType);
+        } finally {
+            Arrays.fill(pending.key, (byte) 0);
+        }
+    }
+
+    /**
+     * Abandon a handshake, e.g. after the card left the field
+     */
+    public void discard(long token) {
+        Pending pending = handshakes.remove(token);
+        if (pending != null) {
+            Arrays.fill(pending.key, (byte) 0);
+        }
+    }
+
+    /**
+     * Remove all expired handshakes
+     * @return the number of handshakes removed
+     */
+    public int evictExpired() {
+        long now = System.nanoTime();
+        int evicted = 0;
+        for (Iterator<Map.Entry<Long, Pending>> it = handshakes.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Pending> entry = it.next();
+            if (entry.getValue().isExpired(now) && handshakes.remove(entry.getKey(), entry.getValue())) {
+                Arrays.fill(entry.getValue().key, (byte) 0);
+                evicted++;
+            }
+        }
+        return evicted;
+    }
+
+    /**
+     * Run {@link #evictExpired()} periodically on the given scheduler
+     */
+    public ScheduledFuture<?> scheduleEviction(ScheduledExecutorService scheduler, Duration period) {
+        long millis = period.toMillis();
+        return scheduler.scheduleAtFixedRate(this::evictExpired, millis, millis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Number of handshakes in flight
+     */
+    public int size() {
+        return handshakes.size();
+    }
+
+    private Pending lookup(long token) {
+        Pending pending = handshakes.get(token);
+        if (pending == null) {
+            throw new DesfireException("Unknown handshake " + token);
+        }
+        if (pending.isExpired(System.nanoTime())) {
+            discard(token);
+            throw new DesfireException("Handshake " + token + " expired");
+        }
+        return pending;
+    }
+}
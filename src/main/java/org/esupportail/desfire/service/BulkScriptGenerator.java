@@ -0,0 +1,165 @@
+package org.esupportail.desfire.service;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Generates personalization APDU scripts for many cards at once.
+ *
+ * <p>Scripts are rendered in parallel with a stateless {@link ApduScriptBuilder}
+ * and written in job order to a single file through a buffered {@link FileChannel}.
+ * Two output formats are supported:
+ * <ul>
+ * <li>{@link Format#LINES}: a <code># UID</code> line per card followed by one
+ * APDU hex string per line</li>
+ * <li>{@link Format#BINARY}: a <code>DFS1</code> header, then per card
+ * <code>u8 uidLength, uid, u16 apduCount</code> and <code>u16 length, apdu</code>
+ * for each APDU (big endian)</li>
+ * </ul>
+ * Both are meant for encoders that finish the authentications themselves:
+ * like {@link ApduScriptBuilder} scripts, they only carry the first frame of
+ * each handshake, so {@link ApduScriptExecutor} cannot replay them as they are.
+ */
+public class BulkScriptGenerator {
+
+    private static final Logger log = LoggerFactory.getLogger(BulkScriptGenerator.class);
+
+    /** Header of {@link Format#BINARY} files ("DFS1"). */
+    public static final int BINARY_MAGIC = 0x44465331;
+
+    private static final int DEFAULT_BUFFER_SIZE = 256 * 1024;
+    private static final byte[] HEX = "0123456789ABCDEF".getBytes();
+
+    public enum Format {
+        LINES,
+        BINARY
+    }
+
+    private final ApduScriptBuilder builder;
+    private final Format format;
+    private final int bufferSize;
+
+    public BulkScriptGenerator(Format format) {
+        this(new ApduScriptBuilder(), format, DEFAULT_BUFFER_SIZE);
+    }
+
+    public BulkScriptGenerator(ApduScriptBuilder builder, Format format, int bufferSize) {
+        this.builder = builder;
+        this.format = format;
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * Render the scripts of all jobs and write them to <code>output</code>
+     * @return the number of card scripts written
+     */
+    public long generate(Stream<ScriptJob> jobs, Path output) throws IOException {
+        long start = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(output, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            if (format == Format.BINARY) {
+                buffer.putInt(BINARY_MAGIC);
+            }
+
+            long[] count = new long[1];
+            try {
+                jobs.parallel()
+                    .map(this::render)
+                    .forEachOrdered(record -> {
+                        write(channel, buffer, record);
+                        count[0]++;
+                    });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            flush(channel, buffer);
+            log.debug("Generated {} card scripts in {} ms", count[0], (System.nanoTime() - start) / 1_000_000);
+            return count[0];
+        }
+    }
+
+    /**
+     * Render the script of one job in the configured format
+     */
+    public byte[] render(ScriptJob job) {
+        List<byte[]> script = builder.build(job.getProfile());
+        return format == Format.BINARY ? renderBinary(job.getUid(), script) : renderLines(job.getUid(), script);
+    }
+
+    private static byte[] renderLines(String uid, List<byte[]> script) {
+        int size = 3 + uid.length();
+        for (byte[] apdu : script) {
+            size += apdu.length * 2 + 1;
+        }
+
+        byte[] record = new byte[size];
+        int pos = 0;
+        record[pos++] = '#';
+        record[pos++] = ' ';
+        for (int i = 0; i < uid.length(); i++) {
+            record[pos++] = (byte) uid.charAt(i);
+        }
+        record[pos++] = '\n';
+        for (byte[] apdu : script) {
+            for (byte b : apdu) {
+                record[pos++] = HEX[(b >> 4) & 0x0F];
+                record[pos++] = HEX[b & 0x0F];
+            }
+            record[pos++] = '\n';
+        }
+        return record;
+    }
+
+    private static byte[] renderBinary(String uid, List<byte[]> script) {
+        byte[] uidBytes = DesfireUtils.hexStringToByteArray(uid);
+        int size = 1 + uidBytes.length + 2;
+        for (byte[] apdu : script) {
+            size += 2 + apdu.length;
+        }
+
+        ByteBuffer record = ByteBuffer.allocate(size);
+        record.put((byte) uidBytes.length).put(uidBytes);
+        record.putShort((short) script.size());
+        for (byte[] apdu : script) {
+            record.putShort((short) apdu.length).put(apdu);
+        }
+        return record.array();
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer, byte[] record) {
+        try {
+            if (record.length > buffer.remaining()) {
+                flush(channel, buffer);
+            }
+            if (record.length > buffer.capacity()) {
+                ByteBuffer large = ByteBuffer.wrap(record);
+                while (large.hasRemaining()) {
+                    channel.write(large);
+                }
+            } else {
+                buffer.put(record);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
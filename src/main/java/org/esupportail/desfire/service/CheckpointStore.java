@@ -0,0 +1,88 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.util.Dump;
+
+import java.util.Arrays;
+
+/**
+ * Last confirmed offsets of payloads being written to cards, by card UID,
+ * application and file, so a write cut by a card removal can resume where
+ * it stopped.
+ *
+ * <p>A checkpoint also holds a checksum of its payload: resuming is only
+ * allowed for the very same payload.
+ * @see ResumableWriter
+ */
+public interface CheckpointStore {
+
+    /**
+     * Offset confirmed for a payload, 0 if there is none or it was for another payload
+     */
+    int load(Key key, int checksum);
+
+    /**
+     * Record that the payload is written up to <code>offset</code>
+     */
+    void save(Key key, int checksum, int offset);
+
+    /**
+     * Forget the checkpoint of a completed payload
+     */
+    void remove(Key key);
+
+    /**
+     * A file of an application of a card
+     */
+    final class Key {
+
+        private final byte[] uid;
+        private final byte[] aid;
+        private final byte fileNo;
+
+        public Key(byte[] uid, byte[] aid, byte fileNo) {
+            if (aid.length != 3) {
+                throw new IllegalArgumentException("AID must be 3 bytes");
+            }
+            if (uid.length > 255) {
+                throw new IllegalArgumentException("UID too long");
+            }
+            this.uid = uid.clone();
+            this.aid = aid.clone();
+            this.fileNo = fileNo;
+        }
+
+        public byte[] getUid() {
+            return uid.clone();
+        }
+
+        public byte[] getAid() {
+            return aid.clone();
+        }
+
+        public byte getFileNo() {
+            return fileNo;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return fileNo == other.fileNo && Arrays.equals(uid, other.uid) && Arrays.equals(aid, other.aid);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(uid) + Arrays.hashCode(aid)) + fileNo;
+        }
+
+        @Override
+        public String toString() {
+            return Dump.hex(uid, false) + "/" + Dump.hex(aid, false) + "/" + fileNo;
+        }
+    }
+}
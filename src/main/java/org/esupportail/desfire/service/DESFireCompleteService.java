@@ -1,11 +1,20 @@
 package org.esupportail.desfire.service;
 
 import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.DESFireEngine;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.Deadline;
+import org.esupportail.desfire.core.transport.ExclusiveSession;
 import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
 import org.esupportail.desfire.exceptions.DesfireException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Complete DESFire service combining APDU generation and card communication
  * This service provides both high-level operations and direct card access
@@ -22,6 +31,24 @@ public class DESFireCompleteService extends DESFireEV1 {
         this.authService = new DESFireAuthService();
         this.apduService = new DESFireApduService();
     }
+
+    /**
+     * Service talking to the card through the given transport
+     */
+    public DESFireCompleteService(CardTransport transport) {
+        super(transport);
+        this.authService = new DESFireAuthService();
+        this.apduService = new DESFireApduService();
+    }
+
+    /**
+     * Service talking to the card through the given transport with a given engine
+     */
+    public DESFireCompleteService(CardTransport transport, DESFireEngine engine) {
+        super(transport, engine);
+        this.authService = new DESFireAuthService();
+        this.apduService = new DESFireApduService();
+    }
     
     // ================ HIGH-LEVEL OPERATIONS ================
     
@@ -32,6 +59,8 @@ public class DESFireCompleteService extends DESFireEV1 {
         try {
             log.debug("Starting complete authentication process");
             return super.authenticate(key, keyNo, keyType) != null;
+        } catch (DeadlineExceededException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Authentication failed", e);
             return false;
@@ -39,10 +68,10 @@ public class DESFireCompleteService extends DESFireEV1 {
     }
     
     /**
-     * Initialize card for first use
+     * Initialize card for first use, with exclusive access to the card
      */
     public boolean initializeCard(byte[] piccMasterKey, KeyType keyType) {
-        try {
+        try (FlowSession session = flowSession()) {
             // First authenticate with default key (all zeros)
             byte[] defaultKey = new byte[getKeyLength(keyType)];
             if (!authenticateWithCard((byte) 0x00, keyType, defaultKey)) {
@@ -56,7 +85,7 @@ public class DESFireCompleteService extends DESFireEV1 {
                 return false;
             }
             
-            log.info("Card initialized successfully");
+            log.info("Card initialized successfully in {} ms", session.getElapsed().toMillis());
             return true;
             
         } catch (Exception e) {
@@ -66,39 +95,59 @@ public class DESFireCompleteService extends DESFireEV1 {
     }
     
     /**
-     * Create application with keys and files
+     * Create application with keys and files, with exclusive access to the card
      */
     public boolean createApplicationComplete(byte[] aid, byte keySettings, byte numberOfKeys,
                                            byte[] appMasterKey, KeyType keyType) {
-        try {
+        return createApplicationComplete(aid, keySettings, numberOfKeys, appMasterKey, keyType, Deadline.none());
+    }
+
+    /**
+     * Create application with keys and files, stopping before the next APDU once the deadline passes
+     * @throws DeadlineExceededException telling the steps done, if the deadline passed or was cancelled
+     */
+    public boolean createApplicationComplete(byte[] aid, byte keySettings, byte numberOfKeys,
+                                           byte[] appMasterKey, KeyType keyType, Deadline deadline) {
+        Steps steps = new Steps(deadline);
+        try (Deadline.Scope scope = deadline.bind(); FlowSession session = flowSession()) {
             // Create application
+            steps.next("create application");
             if (!super.createApplication(aid, keySettings, numberOfKeys)) {
+                steps.failed();
                 log.error("Failed to create application");
                 return false;
             }
             
             // Select new application
+            steps.next("select application");
             if (!super.selectApplication(aid)) {
+                steps.failed();
                 log.error("Failed to select new application");
                 return false;
             }
             
             // Authenticate with default key (all zeros)
+            steps.next("authenticate");
             byte[] defaultKey = new byte[getKeyLength(keyType)];
             if (!authenticateWithCard((byte) 0x00, keyType, defaultKey)) {
+                steps.failed();
                 log.error("Failed to authenticate with new application");
                 return false;
             }
             
             // Change application master key
+            steps.next("change application master key");
             if (!changeKey((byte) 0x00, (byte) 0x00, keyType, appMasterKey, defaultKey)) {
+                steps.failed();
                 log.error("Failed to change application master key");
                 return false;
             }
             
-            log.info("Application created and configured successfully");
+            log.info("Application created and configured successfully in {} ms", session.getElapsed().toMillis());
             return true;
             
+        } catch (DeadlineExceededException e) {
+            throw steps.exceeded(e);
         } catch (Exception e) {
             log.error("Application creation failed", e);
             return false;
@@ -110,24 +159,41 @@ public class DESFireCompleteService extends DESFireEV1 {
      */
     public byte[] readFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
                                   byte fileNo, int offset, int length) {
-        try {
+        return readFileComplete(aid, keyNo, keyType, key, fileNo, offset, length, Deadline.none());
+    }
+
+    /**
+     * Read file with automatic authentication if needed, stopping before the next APDU once the deadline passes
+     * @throws DeadlineExceededException telling the steps done, if the deadline passed or was cancelled
+     */
+    public byte[] readFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
+                                  byte fileNo, int offset, int length, Deadline deadline) {
+        Steps steps = new Steps(deadline);
+        try (Deadline.Scope scope = deadline.bind(); FlowSession session = flowSession()) {
             // Select application
+            steps.next("select application");
             if (!super.selectApplication(aid)) {
+                steps.failed();
                 log.error("Failed to select application");
                 return null;
             }
             
             // Authenticate if needed
             if (!isAuthenticated()) {
+                steps.next("authenticate");
                 if (!authenticateWithCard(keyNo, keyType, key)) {
+                    steps.failed();
                     log.error("Failed to authenticate");
                     return null;
                 }
             }
             
             // Read data
+            steps.next("read data");
             return super.readData(fileNo, offset, length);
             
+        } catch (DeadlineExceededException e) {
+            throw steps.exceeded(e);
         } catch (Exception e) {
             log.error("File read failed", e);
             return null;
@@ -139,7 +205,7 @@ public class DESFireCompleteService extends DESFireEV1 {
      */
     public boolean writeFileComplete(byte[] aid, byte keyNo, KeyType keyType, byte[] key,
                                    byte fileNo, int offset, byte[] data) {
-        try {
+        try (FlowSession session = flowSession()) {
             // Select application
             if (!super.selectApplication(aid)) {
                 log.error("Failed to select application");
@@ -230,28 +296,16 @@ public class DESFireCompleteService extends DESFireEV1 {
     }
     
     /**
-     * Change key
+     * Change key; <code>currentKey</code> is needed when changing another key
+     * than the authenticated one
      */
+    @Override
     public boolean changeKey(byte keyNo, byte keyVersion, KeyType keyType, 
                            byte[] newKey, byte[] currentKey) {
-        // This is a simplified implementation
-        // Full implementation would handle proper encryption and key diversification
         try {
-            byte[] apdu = new byte[8 + getKeyLength(keyType)];
-            apdu[0] = (byte) 0x90;
-            apdu[1] = (byte) 0xC4; // CHANGE_KEY
-            apdu[2] = 0x00;
-            apdu[3] = 0x00;
-            apdu[4] = (byte) (1 + getKeyLength(keyType));
-            apdu[5] = keyNo;
-            System.arraycopy(newKey, 0, apdu, 6, getKeyLength(keyType));
-            apdu[6 + getKeyLength(keyType)] = keyVersion;
-            
-            byte[] response = transmit(apdu);
-            return response != null && response.length >= 2 && 
-                   response[response.length - 2] == (byte) 0x91 && 
-                   response[response.length - 1] == 0x00;
-                   
+            return super.changeKey(keyNo, keyVersion, keyType, newKey, currentKey);
+        } catch (DeadlineExceededException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Change key failed", e);
             return false;
@@ -499,4 +553,89 @@ public class DESFireCompleteService extends DESFireEV1 {
     public DESFireApduService getApduService() {
         return apduService;
     }
+
+    private FlowSession flowSession() {
+        return new FlowSession(exclusive());
+    }
+
+    /**
+     * Exclusive access held by a flow. The flow is over when the card is
+     * released, so a failure to release it is logged and does not change
+     * the result of the flow
+     */
+    private static final class FlowSession implements AutoCloseable {
+
+        private final ExclusiveSession session;
+
+        FlowSession(ExclusiveSession session) {
+            this.session = session;
+        }
+
+        Duration getElapsed() {
+            return session.getElapsed();
+        }
+
+        @Override
+        public void close() {
+            try {
+                session.close();
+            } catch (DesfireException e) {
+                log.warn("Releasing exclusive access failed", e);
+            }
+        }
+    }
+
+    /**
+     * Progress of a flow against its deadline
+     */
+    private final class Steps {
+
+        private final Deadline deadline;
+        private final List<String> done = new ArrayList<>();
+        private String current;
+        private DeadlineExceededException reported;
+
+        Steps(Deadline deadline) {
+            this.deadline = deadline;
+        }
+
+        /**
+         * Start the next step if the deadline allows it
+         */
+        void next(String step) {
+            if (current != null) {
+                done.add(current);
+            }
+            current = step;
+            if (deadline.isExpired()) {
+                throw exceeded(null);
+            }
+        }
+
+        /**
+         * The current step failed: report the deadline if it is the cause
+         */
+        void failed() {
+            if (deadline.isExpired()) {
+                throw exceeded(null);
+            }
+        }
+
+        /**
+         * The flow was stopped in the current step; the card state is then
+         * unknown, so the authentication is forgotten
+         */
+        DeadlineExceededException exceeded(DeadlineExceededException cause) {
+            if (cause != null && cause == reported) {
+                return reported;
+            }
+            getSessionContext().resetAuthentication();
+            String reason = deadline.isCancelled() ? "Cancelled"
+                    : deadline.isExpired() ? "Deadline exceeded" : "Card did not answer";
+            log.warn("{} at step '{}' after {} ms, done: {}", reason, current, deadline.getElapsed().toMillis(), done);
+            reported = new DeadlineExceededException(reason + " at step '" + current + "' after "
+                    + deadline.getElapsed().toMillis() + " ms", current, new ArrayList<>(done), cause);
+            return reported;
+        }
+    }
 }
\ No newline at end of file
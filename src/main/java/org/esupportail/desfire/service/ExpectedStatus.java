@@ -0,0 +1,96 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+
+/**
+ * Expected status word of a script step: one or more SW values compared under a mask
+ */
+public final class ExpectedStatus {
+
+    /** Accepts any status word. */
+    public static final ExpectedStatus ANY = new ExpectedStatus(0x0000, new int[] {0x0000});
+
+    /** DESFire success codes: 9100, 91AF (more frames) and ISO 9000. */
+    public static final ExpectedStatus DESFIRE_OK = of(0x9100, 0x91AF, 0x9000);
+
+    private final int mask;
+    private final int[] values;
+
+    private ExpectedStatus(int mask, int[] values) {
+        this.mask = mask;
+        this.values = values;
+    }
+
+    /**
+     * Match any of the given status words exactly
+     */
+    public static ExpectedStatus of(int... values) {
+        return new ExpectedStatus(0xFFFF, values.clone());
+    }
+
+    /**
+     * Match <code>(sw &amp; mask) == (value &amp; mask)</code>
+     */
+    public static ExpectedStatus masked(int value, int mask) {
+        return new ExpectedStatus(mask & 0xFFFF, new int[] {value & mask & 0xFFFF});
+    }
+
+    /**
+     * Parse a script expectation: <code>9100</code>, <code>91XX</code>
+     * (X nibbles are wildcards) or <code>9100/FF00</code> (explicit mask)
+     * @throws DesfireException if <code>s</code> is not one of these forms
+     */
+    public static ExpectedStatus parse(String s) {
+        int slash = s.indexOf('/');
+        if (slash >= 0) {
+            try {
+                return masked(Integer.parseInt(s.substring(0, slash), 16),
+                        Integer.parseInt(s.substring(slash + 1), 16));
+            } catch (NumberFormatException e) {
+                throw new DesfireException("Invalid expected status: " + s, e);
+            }
+        }
+        if (s.length() != 4) {
+            throw new DesfireException("Invalid expected status: " + s);
+        }
+        int value = 0;
+        int mask = 0;
+        for (int i = 0; i < 4; i++) {
+            char c = s.charAt(i);
+            value <<= 4;
+            mask <<= 4;
+            if (c != 'X' && c != 'x') {
+                int digit = Character.digit(c, 16);
+                if (digit < 0) {
+                    throw new DesfireException("Invalid expected status: " + s);
+                }
+                value |= digit;
+                mask |= 0x0F;
+            }
+        }
+        return masked(value, mask);
+    }
+
+    /**
+     * Check a status word against this expectation
+     */
+    public boolean matches(int sw) {
+        int masked = sw & mask;
+        for (int value : values) {
+            if (masked == (value & mask)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int value : values) {
+            if (sb.length() > 0) sb.append('|');
+            sb.append(String.format("%04X", value));
+        }
+        return mask == 0xFFFF ? sb.toString() : sb + "/" + String.format("%04X", mask);
+    }
+}
@@ -0,0 +1,174 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link CheckpointStore} in a local file, surviving restarts.
+ *
+ * <p>Each change is appended and flushed to disk before {@link #save} returns,
+ * so a confirmed offset is never lost; the file is rewritten with the live
+ * checkpoints when it is opened with mostly stale records, or with a record
+ * cut by a crash. Numbers are big endian.
+ * <pre>
+ * file   : i32 magic "DFC1", record*
+ * record : u8 uidLength, uid, aid[3], u8 fileNo, i32 checksum, i32 offset (-1: removed)
+ * </pre>
+ */
+public class FileCheckpointStore implements CheckpointStore, AutoCloseable {
+
+    /** "DFC1" */
+    public static final int MAGIC = 0x44464331;
+
+    private static final int REMOVED = -1;
+
+    private final Path path;
+    private final Map<Key, long[]> checkpoints = new HashMap<>();
+    private final ByteBuffer record = ByteBuffer.allocate(1 + 255 + 3 + 1 + 4 + 4);
+    private FileChannel file;
+    private boolean torn;
+
+    /**
+     * Open a store file, created if needed
+     */
+    public FileCheckpointStore(Path path) {
+        this.path = path;
+        int records = Files.exists(path) ? replay() : 0;
+        try {
+            if (torn || records > 2 * checkpoints.size() + 64) {
+                compact();
+            }
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.APPEND);
+            if (file.size() == 0) {
+                record.clear();
+                record.putInt(MAGIC).flip();
+                write();
+            }
+        } catch (IOException e) {
+            throw new DesfireException("Failed to open checkpoint store " + path, e);
+        }
+    }
+
+    /**
+     * Load the checkpoints of the file; a record cut by a crash ends the replay
+     * @return the number of records read
+     */
+    private int replay() {
+        ByteBuffer buffer;
+        try {
+            buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        } catch (IOException e) {
+            throw new DesfireException("Failed to read checkpoint store " + path, e);
+        }
+        if (!buffer.hasRemaining()) {
+            return 0;
+        }
+        if (buffer.remaining() < 4 || buffer.getInt() != MAGIC) {
+            throw new DesfireException("Not a checkpoint store: " + path);
+        }
+        int records = 0;
+        while (buffer.hasRemaining()) {
+            int uidLength = buffer.get(buffer.position()) & 0xFF;
+            if (buffer.remaining() < 1 + uidLength + 3 + 1 + 4 + 4) {
+                torn = true;
+                break;
+            }
+            buffer.get();
+            byte[] uid = new byte[uidLength];
+            byte[] aid = new byte[3];
+            buffer.get(uid).get(aid);
+            Key key = new Key(uid, aid, buffer.get());
+            int checksum = buffer.getInt();
+            int offset = buffer.getInt();
+            if (offset == REMOVED) {
+                checkpoints.remove(key);
+            } else {
+                checkpoints.put(key, new long[] {checksum, offset});
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Rewrite the file with the live checkpoints, replacing it atomically
+     */
+    private void compact() throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            file = out;
+            record.clear();
+            record.putInt(MAGIC).flip();
+            write();
+            for (Map.Entry<Key, long[]> checkpoint : checkpoints.entrySet()) {
+                append(checkpoint.getKey(), (int) checkpoint.getValue()[0], (int) checkpoint.getValue()[1], false);
+            }
+            out.force(true);
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public synchronized int load(Key key, int checksum) {
+        long[] checkpoint = checkpoints.get(key);
+        return checkpoint != null && (int) checkpoint[0] == checksum ? (int) checkpoint[1] : 0;
+    }
+
+    @Override
+    public synchronized void save(Key key, int checksum, int offset) {
+        append(key, checksum, offset, true);
+        checkpoints.put(key, new long[] {checksum, offset});
+    }
+
+    @Override
+    public synchronized void remove(Key key) {
+        if (checkpoints.remove(key) != null) {
+            append(key, 0, REMOVED, true);
+        }
+    }
+
+    private void append(Key key, int checksum, int offset, boolean sync) {
+        byte[] uid = key.getUid();
+        record.clear();
+        record.put((byte) uid.length).put(uid).put(key.getAid()).put(key.getFileNo());
+        record.putInt(checksum).putInt(offset).flip();
+        try {
+            write();
+            if (sync) {
+                file.force(false);
+            }
+        } catch (IOException e) {
+            throw new DesfireException("Failed to write checkpoint store " + path, e);
+        }
+    }
+
+    private void write() throws IOException {
+        while (record.hasRemaining()) {
+            file.write(record);
+        }
+    }
+
+    public synchronized int size() {
+        return checkpoints.size();
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new DesfireException("Failed to close checkpoint store " + path, e);
+        }
+    }
+}
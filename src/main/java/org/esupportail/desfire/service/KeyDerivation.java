@@ -0,0 +1,109 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.util.AES;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.KeyType;
+
+import java.util.Arrays;
+
+/**
+ * Derives the keys of one card from the master keys of a profile, so no two
+ * cards share a key.
+ */
+@FunctionalInterface
+public interface KeyDerivation {
+
+    /** AID the PICC master key is derived with. */
+    byte[] PICC_AID = {0x00, 0x00, 0x00};
+
+    /**
+     * Key of a card for the application <code>aid</code>
+     */
+    byte[] derive(byte[] masterKey, KeyType keyType, byte[] uid, byte[] aid);
+
+    /**
+     * Profile keys used as they are
+     */
+    static KeyDerivation none() {
+        return (masterKey, keyType, uid, aid) -> masterKey;
+    }
+
+    /**
+     * NXP AN10922 AES-128 diversification: CMAC of
+     * <code>01 || UID || AID || systemIdentifier</code>, padded to two blocks
+     * @param systemIdentifier up to 21 bytes naming the system, may be empty
+     */
+    static KeyDerivation an10922(byte[] systemIdentifier) {
+        byte[] system = systemIdentifier.clone();
+        return (masterKey, keyType, uid, aid) -> {
+            if (keyType != KeyType.AES) {
+                throw new DesfireException("AN10922 derivation is only implemented for AES keys, not " + keyType);
+            }
+            byte[] input = new byte[1 + uid.length + aid.length + system.length];
+            input[0] = 0x01;
+            System.arraycopy(uid, 0, input, 1, uid.length);
+            System.arraycopy(aid, 0, input, 1 + uid.length, aid.length);
+            System.arraycopy(system, 0, input, 1 + uid.length + aid.length, system.length);
+            return an10922Cmac(masterKey, input);
+        };
+    }
+
+    /**
+     * AES CMAC of the diversification input, which AN10922 always pads to 32 bytes
+     */
+    private static byte[] an10922Cmac(byte[] key, byte[] input) {
+        if (input.length > 32) {
+            throw new DesfireException("Diversification input longer than 32 bytes");
+        }
+        byte[] k1 = shiftXor(AES.encrypt(new byte[16], key, new byte[16]));
+        byte[] block = Arrays.copyOf(input, 32);
+        byte[] subKey = k1;
+        if (input.length < 32) {
+            block[input.length] = (byte) 0x80;
+            subKey = shiftXor(k1);
+        }
+        for (int i = 0; i < 16; i++) {
+            block[16 + i] ^= subKey[i];
+        }
+        return Arrays.copyOfRange(AES.encrypt(new byte[16], key, block), 16, 32);
+    }
+
+    /**
+     * CMAC subkey step: shift left one bit, XOR 0x87 on carry
+     */
+    private static byte[] shiftXor(byte[] value) {
+        byte[] shifted = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            shifted[i] = (byte) ((value[i] << 1) | (i < 15 ? (value[i + 1] & 0xFF) >>> 7 : 0));
+        }
+        if ((value[0] & 0x80) != 0) {
+            shifted[15] ^= (byte) 0x87;
+        }
+        return shifted;
+    }
+
+    /**
+     * The profile with the keys derived for one card; the PICC master key is
+     * derived with {@link #PICC_AID}
+     */
+    default CompactProfile derive(CompactProfile profile, byte[] uid) {
+        CompactProfile.Application[] applications = new CompactProfile.Application[profile.getApplications().length];
+        for (int i = 0; i < applications.length; i++) {
+            CompactProfile.Application app = profile.getApplications()[i];
+            CompactProfile.Key[] keys = new CompactProfile.Key[app.getKeys().length];
+            for (int k = 0; k < keys.length; k++) {
+                CompactProfile.Key key = app.getKeys()[k];
+                byte[] value = key.getValue() != null && key.getKeyType() != null
+                        ? derive(key.getValue(), key.getKeyType(), uid, app.getAidBytes()) : key.getValue();
+                keys[k] = new CompactProfile.Key(key.getKeyNo(), key.getKeyVersion(), key.getKeyType(), value);
+            }
+            applications[i] = new CompactProfile.Application(app.getAid(), app.getIsoId(), app.getIsoName(),
+                    app.getLsbIsoId(), keys, app.getFiles());
+        }
+        byte[] keyFinish = profile.getKeyFinish() != null && profile.getKeyTypeFinish() != null
+                ? derive(profile.getKeyFinish(), profile.getKeyTypeFinish(), uid, PICC_AID) : profile.getKeyFinish();
+        return new CompactProfile(profile.isFormatBeforeWrite(), profile.getKeyTypeStart(), profile.getKeyStart(),
+                profile.getKeyTypeFinish(), keyFinish, profile.getKeyVersionFinish(), applications);
+    }
+}
@@ -0,0 +1,32 @@
+package org.esupportail.desfire.service;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link CheckpointStore} kept in memory, lost when the process ends
+ */
+public class MemoryCheckpointStore implements CheckpointStore {
+
+    private final Map<Key, long[]> checkpoints = new ConcurrentHashMap<>();
+
+    @Override
+    public int load(Key key, int checksum) {
+        long[] checkpoint = checkpoints.get(key);
+        return checkpoint != null && (int) checkpoint[0] == checksum ? (int) checkpoint[1] : 0;
+    }
+
+    @Override
+    public void save(Key key, int checksum, int offset) {
+        checkpoints.put(key, new long[] {checksum, offset});
+    }
+
+    @Override
+    public void remove(Key key) {
+        checkpoints.remove(key);
+    }
+
+    public int size() {
+        return checkpoints.size();
+    }
+}
@@ -1,19 +1,24 @@
 package org.esupportail.desfire.service;
 
+import java.nio.ByteBuffer;
 import java.security.Security;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 
 import javax.smartcardio.Card;
 import javax.smartcardio.CardException;
 import javax.smartcardio.CardTerminal;
 import javax.smartcardio.CardTerminals;
-import javax.smartcardio.CommandAPDU;
-import javax.smartcardio.ResponseAPDU;
 import javax.smartcardio.TerminalFactory;
 
 import org.apache.log4j.Logger;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ChannelTransport;
+import org.esupportail.desfire.core.transport.PacedTransport;
+import org.esupportail.desfire.core.transport.PacingConfig;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.reader.ReaderProfiles;
+import org.esupportail.desfire.reader.TerminalRegistry;
 import javax.smartcardio.*;
 
 //import jnasmartcardio.Smartcardio;
@@ -26,13 +31,22 @@ public class PcscUsbService {
 	private Card card;
 	private CardTerminal cardTerminal;
 	private TerminalFactory context;
-	public List<CardTerminal> terminals;
+	private PacingConfig pacingConfig = PacingConfig.defaults();
+	private PacedTransport transport; // one per connection, so pacing state is shared by all callers
+	private ReaderProfiles readerProfiles = new ReaderProfiles();
+	private final ByteBuffer commandBuffer = ByteBuffer.allocateDirect(5 + 255 + 1);
+	private final ByteBuffer responseBuffer = ByteBuffer.allocateDirect(CardTransport.MAX_RESPONSE_LENGTH);
+	private TerminalRegistry terminals;
+
+	/**
+	 * Default reader name pattern of the contactless role
+	 */
+	public final static String DEFAULT_READER_PATTERN = "ACS ACR1581 1S Dual Reader\\(1\\)";
 	
 	public PcscUsbService() {
 //		Security.addProvider(new Smartcardio());
 		try {
-			TerminalFactory factory = TerminalFactory.getDefault();
-			terminals = factory.terminals().list();
+			terminals = new TerminalRegistry().setPattern(TerminalRegistry.Role.CONTACTLESS, DEFAULT_READER_PATTERN);
 
 //			context = TerminalFactory.getInstance("PC/SC", null, Smartcardio.PROVIDER_NAME);
 //			terminals = context.terminals();
@@ -40,25 +54,44 @@ public class PcscUsbService {
 			log.error("Exception retrieving context", e);
 		}
 	}
+
+	/**
+	 * @param terminals	cached readers; the first contactless one is used by {@link #connection()}
+	 */
+	public PcscUsbService(TerminalRegistry terminals) {
+		this.terminals = terminals;
+	}
+
+	/**
+	 * Readers known to the service, e.g. to change their role patterns
+	 */
+	public TerminalRegistry getTerminalRegistry() {
+		return terminals;
+	}
 	
+	/**
+	 * Short poll for card removal; to react to taps without polling use
+	 * {@link org.esupportail.desfire.reader.CardPresenceWatcher}
+	 */
 	public boolean isCardOnTerminal() throws CardException{
 		return cardTerminal.waitForCardAbsent(2);
 	}
 	
 	public String connection() throws CardException{
-		for (CardTerminal terminal : terminals) {
-//			if(!terminal.getName().contains("ACS ACR1581 1S Dual Reader(1)") && !terminal.getName().contains("SAM Reader") && terminal.isCardPresent()){
-			if(terminal.getName().contains("ACS ACR1581 1S Dual Reader(1)")){
-				cardTerminal = terminal;
-				try{
-					card = cardTerminal.connect("*");
-					return cardTerminal.getName();
-				}catch(Exception e){
-					log.error("pcsc connection error", e);
-				}
+		for (CardTerminal terminal : terminals.byRole(TerminalRegistry.Role.CONTACTLESS)) {
+			cardTerminal = terminal;
+			try{
+				card = cardTerminal.connect("*");
+				readerProfiles.profileFor(cardTerminal.getName()).apply(new ChannelTransport(card.getBasicChannel()));
+				transport = new PacedTransport(new ChannelTransport(card.getBasicChannel()),
+						pacingConfig.policyFor(cardTerminal.getName()));
+				return cardTerminal.getName();
+			}catch(Exception e){
+				log.error("pcsc connection error", e);
 			}
 		}
-		throw new CardException("No NFC reader found with card on it - NFC reader found : " + getNamesOfTerminals(terminals));
+		terminals.refresh(); // reader unplugged or replaced
+		throw new CardException("No NFC reader found with card on it - NFC reader found : " + getNamesOfTerminals(terminals.list()));
 	}
 
 	private String getNamesOfTerminals(List<CardTerminal> terminals) throws CardException {
@@ -69,11 +102,17 @@ public class PcscUsbService {
 		return terminalsNames.toString();
 	}
 
+	/**
+	 * Poll every reader once; see {@link org.esupportail.desfire.reader.CardPresenceWatcher}
+	 * for event-driven detection. Unless a contactless pattern other than
+	 * {@link #DEFAULT_READER_PATTERN} is configured, any reader but the SAM
+	 * ones counts.
+	 */
 	public boolean isCardPresent() throws CardException{
 		try {
-			for (CardTerminal terminal : terminals) {
+			for (CardTerminal terminal : polledReaders()) {
 			try {
-				if(!terminal.getName().contains("6121") && !terminal.getName().contains("SAM Reader") && terminal.isCardPresent()) return true; 
+				if(terminal.isCardPresent()) return true; 
 			} catch (CardException e) {
 				log.info("Pas de carte");
 			}
@@ -84,27 +123,88 @@ public class PcscUsbService {
 		return false;
 	}
 	
-	public String sendAPDU(String apdu) throws CardException{
-		ResponseAPDU answer = null;
+	private List<CardTerminal> polledReaders() {
+		String pattern = terminals.getPattern(TerminalRegistry.Role.CONTACTLESS);
+		if (pattern != null && !pattern.equals(DEFAULT_READER_PATTERN)) {
+			return terminals.byRole(TerminalRegistry.Role.CONTACTLESS);
+		}
+		List<CardTerminal> readers = new ArrayList<CardTerminal>();
+		for (CardTerminal terminal : terminals.list()) {
+			if (!terminals.hasRole(terminal, TerminalRegistry.Role.SAM) && !terminal.getName().contains("6121")) {
+				readers.add(terminal);
+			}
+		}
+		return readers;
+	}
+	
+	public synchronized String sendAPDU(String apdu) throws CardException{
 		log.info("sending apdu : " + apdu);
-		answer = card.getBasicChannel().transmit(new CommandAPDU(hexStringToByteArray(apdu)));
-        try {
-            Thread.sleep(100);
-        } catch (InterruptedException e) { throw new RuntimeException(e);}
-
-        String response = byteArrayToHexString(answer.getBytes());
+		int length = exchange(apdu);
+        String response = byteArrayToHexString(responseBuffer, 0, length);
 		log.info("response of apdu : " + response);
 		return response;
 	}
 
-	public String getCardId() throws CardException{
-		ResponseAPDU answer;
-		answer = card.getBasicChannel().transmit(new CommandAPDU(hexStringToByteArray("FFCA000000")));
-		byte[] uid = Arrays.copyOfRange(answer.getBytes(), 0, answer.getBytes().length-2);
-		return byteArrayToHexString(uid);
+	/**
+	 * Send a hex command through the reusable direct buffers and the paced
+	 * transport of the connection; the response, status word included, is
+	 * left in {@link #responseBuffer}.
+	 */
+	private int exchange(String apdu) throws CardException {
+		commandBuffer.clear();
+		String hex = apdu.replace(" ", "");
+		for (int i = 0; i < hex.length(); i += 2) {
+			commandBuffer.put((byte) ((Character.digit(hex.charAt(i), 16) << 4) + Character.digit(hex.charAt(i+1), 16)));
+		}
+		commandBuffer.flip();
+		responseBuffer.clear();
+		try {
+			return transport.transceive(commandBuffer, responseBuffer);
+		} catch (TransportException e) {
+			if (e.getCause() instanceof CardException) {
+				throw (CardException) e.getCause();
+			}
+			throw new CardException(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Basic channel of the connected card, e.g. for {@link ApduScriptExecutor}
+	 */
+	public CardChannel getChannel() {
+		return card.getBasicChannel();
+	}
+
+	/**
+	 * Transport over the connected card, e.g. for {@link DESFireCompleteService};
+	 * the same instance until the next {@link #connection()}, so its pacing
+	 * also covers {@link #sendAPDU(String)}
+	 */
+	public CardTransport getTransport() {
+		return transport;
+	}
+
+	public synchronized String getCardId() throws CardException{
+		int length = exchange("FFCA000000");
+		return byteArrayToHexString(responseBuffer, 0, length - 2);
 	
 	}
 	
+	/**
+	 * Pacing rules by reader name, applied at the next {@link #connection()}
+	 */
+	public void setPacingConfig(PacingConfig pacingConfig) {
+		this.pacingConfig = pacingConfig;
+	}
+
+	/**
+	 * Reader tuning by reader name, applied at the next {@link #connection()};
+	 * none by default, {@link ReaderProfiles#defaults()} tunes the ACS readers
+	 */
+	public void setReaderProfiles(ReaderProfiles readerProfiles) {
+		this.readerProfiles = readerProfiles;
+	}
+
 	public void disconnect() throws PcscException{
 		try {
 			card.disconnect(false);
@@ -138,5 +238,18 @@ public class PcscUsbService {
 
 		return new String(hexChars);
 	}
+
+	private static String byteArrayToHexString(ByteBuffer buffer, int offset, int length) {
+		char[] hexChars = new char[length*2];
+		int v;
+
+		for(int j=0; j < length; j++) {
+			v = buffer.get(offset + j) & 0xFF;
+			hexChars[j*2] = hexArray[v>>>4];
+			hexChars[j*2 + 1] = hexArray[v & 0x0F];
+		}
+
+		return new String(hexChars);
+	}
 	
 }
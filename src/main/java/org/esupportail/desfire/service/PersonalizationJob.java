@@ -0,0 +1,34 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.DesfireTag;
+
+/**
+ * One card to personalize in a {@link PersonalizationPipeline}: any card
+ * tapped gets the profile, and the id tracks the job in the journal
+ */
+public class PersonalizationJob {
+
+    private final long id; // Unique within a journal
+    private final CompactProfile profile;
+
+    public PersonalizationJob(long id, CompactProfile profile) {
+        this.id = id;
+        this.profile = profile;
+    }
+
+    /**
+     * Decodes the profile; share one {@link CompactProfile} between jobs to avoid it
+     */
+    public PersonalizationJob(long id, DesfireTag profile) {
+        this(id, CompactProfile.from(profile));
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public CompactProfile getProfile() {
+        return profile;
+    }
+}
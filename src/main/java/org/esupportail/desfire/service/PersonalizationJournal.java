@@ -0,0 +1,284 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.util.Dump;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only, memory-mapped write-ahead journal of a personalization run:
+ * which job was started, encoded, verified or failed on which card.
+ *
+ * <p>Records are written straight into the mapping, so they survive a crash
+ * of the process as soon as {@link #append} returns. Writing them to disk,
+ * against a power loss, is batched: every <code>syncEvery</code> records
+ * and at least every <code>syncInterval</code>. Reopening the journal
+ * replays it, so a run restarts where it stopped; a record cut by a crash
+ * fails its checksum and ends the replay. Numbers are big endian, the file
+ * is grown by doubling and the unused tail is zeros.
+ * <pre>
+ * file   : i32 magic "DFJ1", record*
+ * record : u8 state, i64 jobId, i64 epochMillis, u8 uidLength, uid, i32 crc32 of the previous fields
+ * </pre>
+ */
+public class PersonalizationJournal implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(PersonalizationJournal.class);
+
+    /** "DFJ1" */
+    public static final int MAGIC = 0x44464A31;
+
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int MAX_RECORD = 1 + 8 + 8 + 1 + 255 + 4;
+
+    /**
+     * Progress of a job on a card
+     */
+    public enum State {
+        /** The job was given a card; its outcome is unknown until a later record. */
+        STARTED,
+        /** The card was written. */
+        ENCODED,
+        /** The card was written and checked: the job is over. */
+        DONE,
+        /** The card could not be personalized; the job needs another one. */
+        FAILED;
+
+        byte code() {
+            return (byte) (ordinal() + 1);
+        }
+
+        static State of(int code) {
+            return code >= 1 && code <= values().length ? values()[code - 1] : null;
+        }
+    }
+
+    private final Path path;
+    private final FileChannel file;
+    private MappedByteBuffer mapping;
+    private int position;
+    private int syncedPosition;
+    private int unsynced;
+    private final int syncEvery;
+    private final ScheduledExecutorService syncer;
+
+    // replayed and live state
+    private final Map<Long, State> jobs = new HashMap<>();
+    private final Map<Long, byte[]> jobCards = new HashMap<>();
+    private final Set<String> personalizedCards = new HashSet<>();
+    private final Set<String> usedCards = new HashSet<>();
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Journal syncing every 64 records and at least every second
+     */
+    public PersonalizationJournal(Path path) {
+        this(path, 64, Duration.ofSeconds(1));
+    }
+
+    public PersonalizationJournal(Path path, int syncEvery, Duration syncInterval) {
+        this.path = path;
+        this.syncEvery = syncEvery;
+        try {
+            file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE);
+            map((int) Math.max(INITIAL_SIZE, Math.min(Integer.MAX_VALUE, file.size())));
+        } catch (IOException e) {
+            throw new DesfireException("Failed to open personalization journal " + path, e);
+        }
+        if (mapping.getInt(0) == 0) {
+            mapping.putInt(0, MAGIC);
+            position = 4;
+        } else if (mapping.getInt(0) != MAGIC) {
+            close();
+            throw new DesfireException("Not a personalization journal: " + path);
+        } else {
+            replay();
+        }
+        syncedPosition = position;
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "journal-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long interval = syncInterval.toMillis();
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    private void map(int size) throws IOException {
+        mapping = file.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void replay() {
+        position = 4;
+        int records = 0;
+        while (position + 1 + 8 + 8 + 1 <= mapping.capacity()) {
+            State state = State.of(mapping.get(position));
+            if (state == null) {
+                break;
+            }
+            int uidLength = mapping.get(position + 17) & 0xFF;
+            int length = 1 + 8 + 8 + 1 + uidLength;
+            if (position + length + 4 > mapping.capacity() || mapping.getInt(position + length) != checksum(position, length)) {
+                log.warn("Personalization journal {} ends with a torn record at {}", path, position);
+                break;
+            }
+            byte[] uid = new byte[uidLength];
+            mapping.get(position + 18, uid);
+            apply(state, mapping.getLong(position + 1), uid);
+            position += length + 4;
+            records++;
+        }
+        // clear a torn tail so later records are not mistaken for it
+        for (int i = position; i < Math.min(mapping.capacity(), position + MAX_RECORD); i++) {
+            mapping.put(i, (byte) 0);
+        }
+        log.info("Personalization journal {} replayed: {} records, {} cards done", path, records,
+                personalizedCards.size());
+    }
+
+    private int checksum(int offset, int length) {
+        crc.reset();
+        crc.update(mapping.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    private void apply(State state, long jobId, byte[] uid) {
+        usedCards.add(Dump.hex(uid, false));
+        if (jobs.get(jobId) == State.DONE) {
+            return;
+        }
+        jobs.put(jobId, state);
+        jobCards.put(jobId, uid);
+        if (state == State.DONE) {
+            personalizedCards.add(Dump.hex(uid, false));
+        }
+    }
+
+    /**
+     * Record the progress of a job on a card
+     */
+    public synchronized void append(State state, long jobId, byte[] uid) {
+        int length = 1 + 8 + 8 + 1 + uid.length;
+        if (position + length + 4 > mapping.capacity()) {
+            grow();
+        }
+        mapping.put(position, state.code());
+        mapping.putLong(position + 1, jobId);
+        mapping.putLong(position + 9, System.currentTimeMillis());
+        mapping.put(position + 17, (byte) uid.length);
+        mapping.put(position + 18, uid);
+        mapping.putInt(position + length, checksum(position, length));
+        position += length + 4;
+        apply(state, jobId, uid);
+        if (++unsynced >= syncEvery) {
+            sync();
+        }
+    }
+
+    private void grow() {
+        sync();
+        try {
+            map((int) Math.min(Integer.MAX_VALUE, 2L * mapping.capacity()));
+        } catch (IOException e) {
+            throw new DesfireException("Failed to grow personalization journal " + path, e);
+        }
+    }
+
+    /**
+     * Write the records appended since the last sync to disk
+     */
+    public synchronized void sync() {
+        if (position > syncedPosition) {
+            mapping.force(syncedPosition, position - syncedPosition);
+            syncedPosition = position;
+            unsynced = 0;
+        }
+    }
+
+    /**
+     * Last state of a job, <code>null</code> if it never started
+     */
+    public synchronized State getState(long jobId) {
+        return jobs.get(jobId);
+    }
+
+    public synchronized boolean isDone(long jobId) {
+        return jobs.get(jobId) == State.DONE;
+    }
+
+    /**
+     * Whether a card already completed a job
+     */
+    public synchronized boolean isPersonalized(byte[] uid) {
+        return personalizedCards.contains(Dump.hex(uid, false));
+    }
+
+    /**
+     * Whether a card has a record, whatever its outcome: it may hold part of
+     * a profile
+     */
+    public synchronized boolean isUsed(byte[] uid) {
+        return usedCards.contains(Dump.hex(uid, false));
+    }
+
+    /**
+     * Card of the last record of a job
+     */
+    public synchronized byte[] getCard(long jobId) {
+        byte[] uid = jobCards.get(jobId);
+        return uid != null ? uid.clone() : null;
+    }
+
+    /**
+     * Jobs started but not done, in no particular order: the cards they were
+     * on may or may not hold their profile
+     */
+    public synchronized Set<Long> getUnfinished() {
+        Set<Long> unfinished = new LinkedHashSet<>();
+        for (Map.Entry<Long, State> job : jobs.entrySet()) {
+            if (job.getValue() != State.DONE) {
+                unfinished.add(job.getKey());
+            }
+        }
+        return Collections.unmodifiableSet(unfinished);
+    }
+
+    public synchronized int getDoneCount() {
+        return personalizedCards.size();
+    }
+
+    @Override
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+        }
+        synchronized (this) {
+            if (mapping != null) {
+                sync();
+            }
+        }
+        try {
+            file.close();
+        } catch (IOException e) {
+            throw new DesfireException("Failed to close personalization journal " + path, e);
+        }
+    }
+}
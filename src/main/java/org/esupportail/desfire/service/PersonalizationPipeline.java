@@ -0,0 +1,270 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.util.Dump;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.reader.ReaderPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bulk personalization: jobs from a source are encoded on the cards of a
+ * {@link ReaderPool}, with keys derived per card, then verified.
+ *
+ * <p>Every step goes to a {@link PersonalizationJournal} before the next one
+ * starts, so a run started again over the same journal and job source skips
+ * the jobs already done and never encodes a card twice: a card the journal
+ * has seen before is refused. A job whose card failed, or whose outcome the
+ * journal does not know after a crash, is encoded again on another card. A
+ * job whose card was encoded just before a crash is not encoded again: it is
+ * finished, verified then marked done, when its card is presented during a
+ * restarted run, and stays unfinished otherwise.
+ * <pre>
+ * try (ReaderPool pool = ReaderPool.forTerminals(...);
+ *      PersonalizationJournal journal = new PersonalizationJournal(Paths.get("run.journal"))) {
+ *     PipelineStats stats = new PersonalizationPipeline(pool, journal)
+ *             .setKeyDerivation(KeyDerivation.an10922(systemIdentifier))
+ *             .run(jobs);
+ *     log.info("{}", stats);
+ * }
+ * </pre>
+ */
+public class PersonalizationPipeline {
+
+    private static final Logger log = LoggerFactory.getLogger(PersonalizationPipeline.class);
+
+    private static final byte[] GET_UID = {(byte) 0xFF, (byte) 0xCA, 0x00, 0x00, 0x00};
+
+    /**
+     * Writes a profile to a card
+     */
+    @FunctionalInterface
+    public interface Encoder {
+        /**
+         * @throws Exception if the card could not be written
+         */
+        void encode(DESFireCompleteService card, CompactProfile profile) throws Exception;
+    }
+
+    /**
+     * Checks a card holds a profile
+     */
+    @FunctionalInterface
+    public interface Verifier {
+        boolean verify(DESFireCompleteService card, CompactProfile profile) throws Exception;
+    }
+
+    private enum Outcome { DONE, REJECTED, FAILED }
+
+    private final ReaderPool pool;
+    private final PersonalizationJournal journal;
+    private Encoder encoder = new ProfileEncoder();
+    private Verifier verifier = new ProfileEncoder();
+    private KeyDerivation keyDerivation = KeyDerivation.none();
+    private int maxAttempts = 3;
+    private int maxInFlight = 64;
+
+    private final Map<String, PersonalizationJob> encoded = new ConcurrentHashMap<>(); // by card UID
+    private final AtomicLong done = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong rejectedCards = new AtomicLong();
+    private volatile long firstCard;
+    private volatile long finished;
+
+    public PersonalizationPipeline(ReaderPool pool, PersonalizationJournal journal) {
+        this.pool = pool;
+        this.journal = journal;
+    }
+
+    public PersonalizationPipeline setEncoder(Encoder encoder) {
+        this.encoder = encoder;
+        return this;
+    }
+
+    public PersonalizationPipeline setVerifier(Verifier verifier) {
+        this.verifier = verifier;
+        return this;
+    }
+
+    public PersonalizationPipeline setKeyDerivation(KeyDerivation keyDerivation) {
+        this.keyDerivation = keyDerivation;
+        return this;
+    }
+
+    /**
+     * Cards a job is tried on before it is given up, 3 by default
+     */
+    public PersonalizationPipeline setMaxAttempts(int maxAttempts) {
+        this.maxAttempts = maxAttempts;
+        return this;
+    }
+
+    /**
+     * Jobs taken from the source ahead of the readers, 64 by default
+     */
+    public PersonalizationPipeline setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        return this;
+    }
+
+    /**
+     * Personalize a card for each job not yet done in the journal, and wait
+     * for the last one
+     */
+    public PipelineStats run(Iterator<PersonalizationJob> jobs) throws InterruptedException {
+        Set<Long> unfinished = journal.getUnfinished();
+        if (!unfinished.isEmpty()) {
+            log.warn("{} jobs of an earlier run are unfinished", unfinished.size());
+        }
+        finished = 0;
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        while (jobs.hasNext()) {
+            PersonalizationJob job = jobs.next();
+            if (journal.isDone(job.getId())) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            if (journal.getState(job.getId()) == PersonalizationJournal.State.ENCODED) {
+                encoded.put(Dump.hex(journal.getCard(job.getId()), false), job);
+                continue;
+            }
+            inFlight.acquire();
+            submit(job, 1, inFlight);
+        }
+        inFlight.acquire(maxInFlight);
+        inFlight.release(maxInFlight);
+        if (!encoded.isEmpty()) {
+            log.warn("{} jobs encoded before a crash were not finished, their cards were not presented: {}",
+                    encoded.size(), encoded.keySet());
+        }
+        journal.sync();
+        finished = System.nanoTime();
+        PipelineStats stats = getStats();
+        log.info("Personalization run over: {}", stats);
+        return stats;
+    }
+
+    /**
+     * The job keeps its permit until it is done or given up
+     */
+    private void submit(PersonalizationJob job, int attempt, Semaphore inFlight) {
+        CompletableFuture<Outcome> result;
+        try {
+            result = pool.submit(card -> personalize(card, job));
+        } catch (IllegalStateException e) {
+            log.error("Job {} not run: {}", job.getId(), e.getMessage());
+            failed.incrementAndGet();
+            inFlight.release();
+            return;
+        }
+        result.whenComplete((outcome, error) -> {
+            if (outcome == Outcome.DONE) {
+                done.incrementAndGet();
+                inFlight.release();
+            } else if (outcome == Outcome.REJECTED) {
+                submit(job, attempt, inFlight);
+            } else if (attempt < maxAttempts && !result.isCancelled()) {
+                retries.incrementAndGet();
+                submit(job, attempt + 1, inFlight);
+            } else {
+                log.error("Job {} given up after {} attempts", job.getId(), attempt);
+                failed.incrementAndGet();
+                inFlight.release();
+            }
+        });
+    }
+
+    private Outcome personalize(DESFireCompleteService card, PersonalizationJob job) throws Exception {
+        if (firstCard == 0) {
+            firstCard = System.nanoTime();
+        }
+        byte[] uid = readUid(card);
+        PersonalizationJob earlier = encoded.remove(Dump.hex(uid, false));
+        if (earlier != null) {
+            finish(card, earlier, uid);
+            return Outcome.REJECTED;
+        }
+        if (journal.isUsed(uid)) {
+            log.info("Card {} already used, job {} waits for another one", Dump.hex(uid, false), job.getId());
+            rejectedCards.incrementAndGet();
+            return Outcome.REJECTED;
+        }
+
+        journal.append(PersonalizationJournal.State.STARTED, job.getId(), uid);
+        try {
+            CompactProfile profile = keyDerivation.derive(job.getProfile(), uid);
+            encoder.encode(card, profile);
+            journal.append(PersonalizationJournal.State.ENCODED, job.getId(), uid);
+            if (!verifier.verify(card, profile)) {
+                throw new DesfireException("Card " + Dump.hex(uid, false) + " does not hold the profile");
+            }
+        } catch (Exception e) {
+            journal.append(PersonalizationJournal.State.FAILED, job.getId(), uid);
+            log.warn("Job {} failed on card {}: {}", job.getId(), Dump.hex(uid, false), e.getMessage());
+            return Outcome.FAILED;
+        }
+        journal.append(PersonalizationJournal.State.DONE, job.getId(), uid);
+        return Outcome.DONE;
+    }
+
+    /**
+     * Verify a card encoded before a crash and mark its job done; on failure
+     * the job is left to the next run, which encodes it on another card
+     */
+    private void finish(DESFireCompleteService card, PersonalizationJob job, byte[] uid) {
+        boolean verified;
+        try {
+            verified = verifier.verify(card, keyDerivation.derive(job.getProfile(), uid));
+        } catch (Exception e) {
+            log.warn("Verifying card {} of job {} failed: {}", Dump.hex(uid, false), job.getId(), e.getMessage());
+            verified = false;
+        }
+        if (verified) {
+            journal.append(PersonalizationJournal.State.DONE, job.getId(), uid);
+            done.incrementAndGet();
+            log.info("Job {} encoded before a crash finished on card {}", job.getId(), Dump.hex(uid, false));
+        } else {
+            journal.append(PersonalizationJournal.State.FAILED, job.getId(), uid);
+            failed.incrementAndGet();
+            log.warn("Card {} does not hold the profile of job {}", Dump.hex(uid, false), job.getId());
+        }
+    }
+
+    /**
+     * UID from the reader, or from GetVersion on readers without FF CA
+     */
+    static byte[] readUid(DESFireEV1 card) {
+        byte[] response = card.transmit(GET_UID);
+        if (response != null && response.length > 2
+                && response[response.length - 2] == (byte) 0x90 && response[response.length - 1] == 0x00) {
+            return Arrays.copyOf(response, response.length - 2);
+        }
+        byte[] version = card.getVersion();
+        if (version != null && version.length >= 21) {
+            return Arrays.copyOfRange(version, 14, 21);
+        }
+        throw new DesfireException("Card UID could not be read");
+    }
+
+    /**
+     * Progress of the current or last run
+     */
+    public PipelineStats getStats() {
+        long start = firstCard;
+        long end = finished != 0 ? finished : System.nanoTime();
+        return new PipelineStats(done.get(), failed.get(), skipped.get(), retries.get(), rejectedCards.get(),
+                start != 0 ? end - start : 0);
+    }
+}
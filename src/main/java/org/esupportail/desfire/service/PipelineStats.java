@@ -0,0 +1,80 @@
+package org.esupportail.desfire.service;
+
+import java.time.Duration;
+
+/**
+ * Progress of a {@link PersonalizationPipeline} run
+ */
+public class PipelineStats {
+
+    private final long done;
+    private final long failed;
+    private final long skipped;
+    private final long retries;
+    private final long rejectedCards;
+    private final long elapsedNanos;
+
+    public PipelineStats(long done, long failed, long skipped, long retries, long rejectedCards, long elapsedNanos) {
+        this.done = done;
+        this.failed = failed;
+        this.skipped = skipped;
+        this.retries = retries;
+        this.rejectedCards = rejectedCards;
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Cards personalized and verified in this run
+     */
+    public long getDone() {
+        return done;
+    }
+
+    /**
+     * Jobs given up after their last attempt
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Jobs already done in the journal of an earlier run
+     */
+    public long getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Attempts on another card after a failure
+     */
+    public long getRetries() {
+        return retries;
+    }
+
+    /**
+     * Cards tapped that already held a profile
+     */
+    public long getRejectedCards() {
+        return rejectedCards;
+    }
+
+    /**
+     * Time since the first card of the run was tapped
+     */
+    public Duration getElapsed() {
+        return Duration.ofNanos(elapsedNanos);
+    }
+
+    /**
+     * Cards done per minute since the first card of the run was tapped
+     */
+    public double getCardsPerMinute() {
+        return elapsedNanos > 0 ? done * 60e9 / elapsedNanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d done, %d failed, %d skipped, %d retries, %d rejected cards in %d ms (%.1f cards/min)",
+                done, failed, skipped, retries, rejectedCards, getElapsed().toMillis(), getCardsPerMinute());
+    }
+}
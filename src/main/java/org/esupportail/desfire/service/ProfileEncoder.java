@@ -0,0 +1,223 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.ExclusiveSession;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.KeyType;
+
+import java.util.Arrays;
+
+/**
+ * Writes a {@link CompactProfile} to a card through a
+ * {@link DESFireCompleteService}, in the order of {@link ApduScriptBuilder},
+ * and checks it was written.
+ *
+ * <p>New applications are authenticated with the all zero key, and keys are
+ * changed with the enciphered ChangeKey of {@link DESFireCompleteService#changeKey},
+ * each right after a fresh authentication. Instances are immutable and can be
+ * shared between readers.
+ */
+public class ProfileEncoder implements PersonalizationPipeline.Encoder, PersonalizationPipeline.Verifier {
+
+    private final byte keySettings;
+
+    public ProfileEncoder() {
+        this((byte) 0x0F);
+    }
+
+    /**
+     * @param keySettings key settings used when creating applications
+     */
+    public ProfileEncoder(byte keySettings) {
+        this.keySettings = keySettings;
+    }
+
+    /**
+     * @throws DesfireException naming the step the card refused
+     */
+    @Override
+    public void encode(DESFireCompleteService card, CompactProfile profile) {
+        KeyType piccKeyType = profile.getKeyTypeStart() != null ? profile.getKeyTypeStart() : KeyType.DES;
+        byte[] piccKey = profile.getKeyStart() != null
+                ? profile.getKeyStart() : new byte[ApduBuilder.getKeyLength(piccKeyType)];
+
+        try (ExclusiveSession session = card.exclusive()) {
+            authenticatePicc(card, piccKeyType, piccKey);
+            if (profile.isFormatBeforeWrite()) {
+                check(card, card.formatPICC(), "format PICC");
+            }
+
+            for (CompactProfile.Application application : profile.getApplications()) {
+                authenticatePicc(card, piccKeyType, piccKey);
+                encode(card, application);
+            }
+
+            if (profile.getKeyFinish() != null && profile.getKeyTypeFinish() != null) {
+                authenticatePicc(card, piccKeyType, piccKey);
+                check(card, card.changeKey((byte) 0x00, orZero(profile.getKeyVersionFinish()),
+                        profile.getKeyTypeFinish(), profile.getKeyFinish(), piccKey), "change PICC master key");
+            }
+        }
+    }
+
+    private void authenticatePicc(DESFireCompleteService card, KeyType keyType, byte[] key) {
+        check(card, card.selectApplication(ApduScriptBuilder.PICC_AID), "select PICC");
+        check(card, card.authenticateWithCard((byte) 0x00, keyType, key.clone()), "authenticate PICC");
+    }
+
+    private void encode(DESFireCompleteService card, CompactProfile.Application application) {
+        byte[] aid = application.getAidBytes();
+        CompactProfile.Key[] keys = application.getKeys();
+        KeyType keyType = keys.length == 0 || keys[0].getKeyType() == null ? KeyType.DES : keys[0].getKeyType();
+        int numberOfKeys = Math.max(keys.length, 1);
+        byte[] defaultKey = new byte[ApduBuilder.getKeyLength(keyType)];
+
+        check(card, card.createApplication(aid, keySettings,
+                (byte) (numberOfKeys | ApduScriptBuilder.keyTypeFlag(keyType))), "create application");
+        check(card, card.selectApplication(aid), "select application");
+        check(card, card.authenticateWithCard((byte) 0x00, keyType, defaultKey), "authenticate application");
+
+        for (CompactProfile.File file : application.getFiles()) {
+            encode(card, file);
+        }
+
+        // Changing key 0 ends the session, so it goes last
+        CompactProfile.Key masterKey = null;
+        for (CompactProfile.Key key : keys) {
+            byte keyNo = orZero(key.getKeyNo());
+            if (keyNo == 0x00) {
+                masterKey = key;
+            } else if (key.getValue() != null) {
+                check(card, card.authenticateWithCard((byte) 0x00, keyType, defaultKey.clone()),
+                        "authenticate application");
+                changeKey(card, keyNo, key, keyType, defaultKey);
+            }
+        }
+        if (masterKey != null && masterKey.getValue() != null) {
+            check(card, card.authenticateWithCard((byte) 0x00, keyType, defaultKey.clone()),
+                    "authenticate application");
+            changeKey(card, (byte) 0x00, masterKey, keyType, defaultKey);
+        }
+    }
+
+    private void encode(DESFireCompleteService card, CompactProfile.File file) {
+        byte fileNo = orZero(file.getFileNo());
+        byte[] accessRights = file.getAccessRights() != null ? file.getAccessRights() : new byte[2];
+        check(card, card.createStdDataFile(fileNo, orZero(file.getCommunicationSettings()), accessRights,
+                Math.max(file.getFileSize(), 0)), "create file " + fileNo);
+
+        byte[] data = file.getInitialValue();
+        if (data != null) {
+            for (int offset = 0; offset < data.length; offset += ApduScriptBuilder.MAX_WRITE_CHUNK) {
+                int length = Math.min(ApduScriptBuilder.MAX_WRITE_CHUNK, data.length - offset);
+                byte[] chunk = new byte[length];
+                System.arraycopy(data, offset, chunk, 0, length);
+                check(card, card.writeData(fileNo, offset, chunk), "write file " + fileNo);
+            }
+        }
+    }
+
+    private static void changeKey(DESFireCompleteService card, byte keyNo, CompactProfile.Key key,
+                                  KeyType appKeyType, byte[] currentKey) {
+        KeyType keyType = key.getKeyType() != null ? key.getKeyType() : appKeyType;
+        check(card, card.changeKey(keyNo, orZero(key.getKeyVersion()), keyType, key.getValue(), currentKey),
+                "change key " + keyNo);
+    }
+
+    /**
+     * Every application of the profile is on the card, each of its keys
+     * authenticates, the plain files it initialized read back their initial
+     * value and the PICC master key is the finish key
+     */
+    @Override
+    public boolean verify(DESFireCompleteService card, CompactProfile profile) {
+        check(card, card.selectApplication(ApduScriptBuilder.PICC_AID), "select PICC");
+        byte[] aids = card.getApplicationIds();
+        if (aids == null) {
+            return false;
+        }
+        for (CompactProfile.Application application : profile.getApplications()) {
+            if (!contains(aids, application.getAidBytes()) || !verify(card, application)) {
+                return false;
+            }
+        }
+
+        if (profile.getKeyFinish() != null && profile.getKeyTypeFinish() != null) {
+            check(card, card.selectApplication(ApduScriptBuilder.PICC_AID), "select PICC");
+            return card.authenticateWithCard((byte) 0x00, profile.getKeyTypeFinish(), profile.getKeyFinish().clone());
+        }
+        return true;
+    }
+
+    private boolean verify(DESFireCompleteService card, CompactProfile.Application application) {
+        CompactProfile.Key[] keys = application.getKeys();
+        KeyType keyType = keys.length == 0 || keys[0].getKeyType() == null ? KeyType.DES : keys[0].getKeyType();
+        if (!card.selectApplication(application.getAidBytes())) {
+            return false;
+        }
+        for (int keyNo = 0; keyNo < Math.max(keys.length, 1); keyNo++) {
+            if (!authenticate(card, keys, keyNo, keyType)) {
+                return false;
+            }
+        }
+
+        for (CompactProfile.File file : application.getFiles()) {
+            byte[] expected = file.getInitialValue();
+            if (expected == null || orZero(file.getCommunicationSettings()) != 0x00) {
+                continue;
+            }
+            // read key, or read&write key, unless one of them is free
+            byte[] accessRights = file.getAccessRights() != null ? file.getAccessRights() : new byte[2];
+            int readKey = (accessRights[1] >> 4) & 0x0F;
+            int readWriteKey = (accessRights[0] >> 4) & 0x0F;
+            if (readKey != 0x0E && readWriteKey != 0x0E) {
+                int keyNo = readKey != 0x0F ? readKey : readWriteKey;
+                if (keyNo == 0x0F) {
+                    continue;
+                }
+                if (!authenticate(card, keys, keyNo, keyType)) {
+                    return false;
+                }
+            }
+            byte[] data = card.readData(orZero(file.getFileNo()), 0, expected.length);
+            if (!Arrays.equals(data, expected)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean authenticate(DESFireCompleteService card, CompactProfile.Key[] keys, int keyNo,
+                                        KeyType appKeyType) {
+        KeyType keyType = appKeyType;
+        byte[] value = null;
+        for (CompactProfile.Key key : keys) {
+            if (orZero(key.getKeyNo()) == keyNo) {
+                keyType = key.getKeyType() != null ? key.getKeyType() : appKeyType;
+                value = key.getValue();
+            }
+        }
+        byte[] keyValue = value != null ? value.clone() : new byte[ApduBuilder.getKeyLength(keyType)];
+        return card.authenticateWithCard((byte) keyNo, keyType, keyValue);
+    }
+
+    private static boolean contains(byte[] aids, byte[] aid) {
+        for (int i = 0; i + 3 <= aids.length; i += 3) {
+            if (aids[i] == aid[0] && aids[i + 1] == aid[1] && aids[i + 2] == aid[2]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void check(DESFireCompleteService card, boolean done, String step) {
+        if (!done) {
+            throw new DesfireException(String.format("Card refused to %s: status %02X", step,
+                    card.getLastResponseCode() & 0xFF));
+        }
+    }
+
+    private static byte orZero(int value) {
+        return value != CompactProfile.NONE ? (byte) value : 0x00;
+    }
+}
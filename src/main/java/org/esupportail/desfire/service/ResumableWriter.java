@@ -0,0 +1,159 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a payload to a data file in chunks acknowledged one by one, so a
+ * write cut by a card removal resumes at the next tap of the same card.
+ *
+ * <p>For standard data files the offset confirmed by the card is recorded
+ * in a {@link CheckpointStore} after each chunk. Backup data files are
+ * committed once the whole payload is written, so partial data is never
+ * visible; as the card drops uncommitted writes when it leaves the field, a
+ * backup payload resumes from its start.
+ * <pre>
+ * ResumableWriter writer = new ResumableWriter(new FileCheckpointStore(Paths.get("checkpoints.dfc")));
+ * // application selected and authenticated as the file requires
+ * ResumableWriter.Result result = writer.write(desfire, tap.getUid(), aid, (byte) 1, 0, payload, false);
+ * if (!result.isComplete()) {
+ *     display("Keep the card on the reader");
+ * }
+ * </pre>
+ */
+public class ResumableWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(ResumableWriter.class);
+
+    /** Data of one WriteData command fitting in a single DESFire frame. */
+    public static final int DEFAULT_CHUNK_SIZE = 48;
+
+    /** Data of the longest WriteData command in a short APDU. */
+    public static final int MAX_CHUNK_SIZE = 255 - 7;
+
+    /**
+     * Outcome of a write
+     */
+    public static final class Result {
+
+        private final boolean complete;
+        private final int resumedFrom;
+        private final int confirmed;
+        private final int length;
+
+        Result(boolean complete, int resumedFrom, int confirmed, int length) {
+            this.complete = complete;
+            this.resumedFrom = resumedFrom;
+            this.confirmed = confirmed;
+            this.length = length;
+        }
+
+        /**
+         * Whether the whole payload is written, and committed for a backup file
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+
+        /**
+         * Payload offset this write started from, 0 unless it resumed an earlier one
+         */
+        public int getResumedFrom() {
+            return resumedFrom;
+        }
+
+        /**
+         * Payload bytes the card holds for good
+         */
+        public int getConfirmed() {
+            return confirmed;
+        }
+
+        public int getLength() {
+            return length;
+        }
+
+        @Override
+        public String toString() {
+            return (complete ? "complete" : "incomplete") + " " + confirmed + "/" + length
+                    + (resumedFrom > 0 ? " resumed from " + resumedFrom : "");
+        }
+    }
+
+    private final CheckpointStore store;
+    private final int chunkSize;
+
+    public ResumableWriter(CheckpointStore store) {
+        this(store, DEFAULT_CHUNK_SIZE);
+    }
+
+    public ResumableWriter(CheckpointStore store, int chunkSize) {
+        if (chunkSize < 1 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new IllegalArgumentException("Chunk size must be between 1 and " + MAX_CHUNK_SIZE);
+        }
+        this.store = store;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Write a payload to a file of the selected application, resuming an
+     * earlier write of the same payload to the same card
+     * @param uid UID of the card, as read on tap
+     * @param aid the selected application, part of the checkpoint key
+     * @param offset file offset of the payload
+     * @param backup whether the file is a backup data file, to commit at the end
+     * @return how far the write got; failures of the card or transport end the write without exception
+     */
+    public Result write(DESFireEV1 card, byte[] uid, byte[] aid, byte fileNo, int offset, byte[] data,
+                        boolean backup) {
+        CheckpointStore.Key key = new CheckpointStore.Key(uid, aid, fileNo);
+        int checksum = checksum(offset, data, backup);
+        int done = backup ? 0 : store.load(key, checksum);
+        if (done > data.length) {
+            done = 0;
+        }
+        int resumedFrom = done;
+        if (done > 0) {
+            log.debug("Resuming write of {} at {}/{}", key, done, data.length);
+        }
+        try {
+            while (done < data.length) {
+                int length = Math.min(chunkSize, data.length - done);
+                if (!card.writeData(fileNo, offset + done, Arrays.copyOfRange(data, done, done + length))) {
+                    log.warn("Write of {} stopped at {}/{}, status {}", key, done, data.length,
+                            Integer.toHexString(card.getLastResponseCode()));
+                    return new Result(false, resumedFrom, backup ? 0 : done, data.length);
+                }
+                done += length;
+                if (!backup) {
+                    store.save(key, checksum, done);
+                }
+            }
+            if (backup && !card.commitTransaction()) {
+                log.warn("Commit of {} failed, status {}", key, Integer.toHexString(card.getLastResponseCode()));
+                return new Result(false, resumedFrom, 0, data.length);
+            }
+        } catch (DesfireException e) {
+            log.warn("Write of {} interrupted at {}/{}: {}", key, done, data.length, e.getMessage());
+            return new Result(false, resumedFrom, backup ? 0 : done, data.length);
+        }
+        store.remove(key);
+        return new Result(true, resumedFrom, data.length, data.length);
+    }
+
+    /**
+     * Identifies the payload, so a checkpoint is not applied to different data
+     */
+    private static int checksum(int offset, byte[] data, boolean backup) {
+        CRC32 crc = new CRC32();
+        crc.update(new byte[] {(byte) (offset >> 24), (byte) (offset >> 16), (byte) (offset >> 8), (byte) offset,
+                (byte) (backup ? 1 : 0)});
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+}
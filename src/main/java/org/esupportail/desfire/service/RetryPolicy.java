@@ -0,0 +1,125 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+import org.esupportail.desfire.exceptions.TransportException;
+
+import javax.smartcardio.CardNotPresentException;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Which failures to retry, how many times, and how long to wait in between:
+ * the wait starts at <code>initialBackoff</code> and doubles on each retry,
+ * up to <code>maxBackoff</code>.
+ * <pre>
+ * RetryPolicy policy = new RetryPolicy(4, Duration.ofMillis(10), Duration.ofMillis(200),
+ *         RetryPolicy.Failure.COMMAND_ABORTED, RetryPolicy.Failure.CARD_REMOVED);
+ * </pre>
+ */
+public final class RetryPolicy {
+
+    /**
+     * Failures worth another attempt
+     */
+    public enum Failure {
+        /** Reader or link failure with the card still there. */
+        TRANSPORT,
+        /** The card left the field. */
+        CARD_REMOVED,
+        /** DESFire <code>91CA</code>: the previous command was interrupted. */
+        COMMAND_ABORTED,
+        /** DESFire <code>911E</code>: CRC or MAC mismatch, usually a garbled frame. */
+        INTEGRITY_ERROR
+    }
+
+    private final int maxAttempts;
+    private final long initialBackoffNanos;
+    private final long maxBackoffNanos;
+    private final Set<Failure> retryOn;
+
+    /**
+     * @param maxAttempts attempts in all, the first one included
+     * @param retryOn failures to retry, all of them if none is given
+     */
+    public RetryPolicy(int maxAttempts, Duration initialBackoff, Duration maxBackoff, Failure... retryOn) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("At least one attempt is needed");
+        }
+        this.maxAttempts = maxAttempts;
+        this.initialBackoffNanos = initialBackoff.toNanos();
+        this.maxBackoffNanos = maxBackoff.toNanos();
+        this.retryOn = Collections.unmodifiableSet(retryOn.length == 0
+                ? EnumSet.allOf(Failure.class) : EnumSet.copyOf(Arrays.asList(retryOn)));
+    }
+
+    /**
+     * Three attempts, 10 then 20 ms apart, on every failure
+     */
+    public static RetryPolicy defaults() {
+        return new RetryPolicy(3, Duration.ofMillis(10), Duration.ofMillis(200));
+    }
+
+    /**
+     * Single attempt
+     */
+    public static RetryPolicy none() {
+        return new RetryPolicy(1, Duration.ZERO, Duration.ZERO);
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    public Set<Failure> getRetryOn() {
+        return retryOn;
+    }
+
+    /**
+     * Whether to try again after <code>attempt</code> (1 for the first) failed
+     */
+    public boolean shouldRetry(Failure failure, int attempt) {
+        return failure != null && attempt < maxAttempts && retryOn.contains(failure);
+    }
+
+    /**
+     * Wait before retry number <code>retry</code> (1 for the first)
+     */
+    public long backoffNanos(int retry) {
+        long backoff = initialBackoffNanos << Math.min(retry - 1, 30);
+        return backoff < 0 ? maxBackoffNanos : Math.min(maxBackoffNanos, backoff);
+    }
+
+    /**
+     * Failure behind an exception, or <code>null</code> if it is not one to retry
+     */
+    public static Failure classify(Throwable error) {
+        if (error instanceof DeadlineExceededException) {
+            return null; // out of time: another attempt cannot help
+        }
+        for (Throwable cause = error; cause != null; cause = cause.getCause()) {
+            String message = cause.getMessage();
+            if (cause instanceof CardNotPresentException || (message != null
+                    && (message.contains("SCARD_W_REMOVED_CARD") || message.contains("SCARD_E_NO_SMARTCARD")))) {
+                return Failure.CARD_REMOVED;
+            }
+        }
+        return error instanceof TransportException ? Failure.TRANSPORT : null;
+    }
+
+    /**
+     * Failure behind a DESFire status (SW2), or <code>null</code> if it is not one to retry
+     */
+    public static Failure classify(int status) {
+        if (status == DESFireEV1.Response.COMMAND_ABORTED.getCode()) {
+            return Failure.COMMAND_ABORTED;
+        }
+        if (status == DESFireEV1.Response.INTEGRITY_ERROR.getCode()) {
+            return Failure.INTEGRITY_ERROR;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,249 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.Deadline;
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+
+/**
+ * {@link DESFireCompleteService} facade retrying the steps that fail on
+ * transient RF and reader errors, as classified by {@link RetryPolicy}.
+ *
+ * <p>Only idempotent steps (reads, selection, authentication) are retried;
+ * the others are tried once, so a write is never applied twice. Before a
+ * retry the card is reconnected if it was lost, and the selected
+ * application and authentication are restored, since the card drops them
+ * on these errors.
+ * <pre>
+ * RetryingDESFireService card = new RetryingDESFireService(service, RetryPolicy.defaults());
+ * card.selectApplication(aid);
+ * card.authenticate(key, (byte) 0, KeyType.AES);
+ * byte[] data = card.readData((byte) 1, 0, 32);
+ * log.info("{} retries, {} recovered", card.getRetries(), card.getRecovered());
+ * </pre>
+ *
+ * <p>Steps failing without an exception are classified with the last status
+ * word, so this applies to the commands run by {@link org.esupportail.desfire.core.DESFireEngine}.
+ */
+public class RetryingDESFireService {
+
+    private static final Logger log = LoggerFactory.getLogger(RetryingDESFireService.class);
+
+    private final DESFireCompleteService card;
+    private final RetryPolicy policy;
+    private BooleanSupplier reconnect;
+
+    // state restored before a retry
+    private byte[] aid;
+    private byte[] key;
+    private byte keyNo;
+    private KeyType keyType;
+
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong recovered = new AtomicLong();
+    private final AtomicLong givenUp = new AtomicLong();
+    private final Map<RetryPolicy.Failure, AtomicLong> failures = new EnumMap<>(RetryPolicy.Failure.class);
+
+    public RetryingDESFireService(DESFireCompleteService card, RetryPolicy policy) {
+        this.card = card;
+        this.policy = policy;
+        this.reconnect = card::connect;
+        for (RetryPolicy.Failure failure : RetryPolicy.Failure.values()) {
+            failures.put(failure, new AtomicLong());
+        }
+    }
+
+    /**
+     * How to get the card back once it was lost; reconnects on the first
+     * reader by default
+     */
+    public void setReconnect(BooleanSupplier reconnect) {
+        this.reconnect = reconnect;
+    }
+
+    /**
+     * Run a step, again while it fails with a retryable failure if it is idempotent
+     * @param operation fails by throwing, or by returning <code>null</code>, <code>false</code> or a
+     *                  negative number (e.g. -1 from {@link DESFireCompleteService#getFreeMemory()})
+     * @return the result of the last attempt
+     */
+    public <T> T call(String step, boolean idempotent, Function<DESFireCompleteService, T> operation) {
+        for (int attempt = 1; ; attempt++) {
+            T result = null;
+            DesfireException error = null;
+            RetryPolicy.Failure failure;
+            try {
+                result = operation.apply(card);
+                failure = isFailure(result) ? classifyFailedResult() : null;
+            } catch (DeadlineExceededException e) {
+                throw e;
+            } catch (DesfireException e) {
+                error = e;
+                failure = RetryPolicy.classify(e);
+            }
+            if (failure == null) {
+                if (error != null) {
+                    throw error;
+                }
+                if (attempt > 1 && !isFailure(result)) {
+                    recovered.incrementAndGet();
+                }
+                return result;
+            }
+            failures.get(failure).incrementAndGet();
+            long backoff = policy.backoffNanos(attempt);
+            if (!idempotent || !policy.shouldRetry(failure, attempt) || backoff > Deadline.currentRemainingNanos()) {
+                givenUp.incrementAndGet();
+                log.warn("{} failed with {} after {} attempt(s)", step, failure, attempt);
+                if (error != null) {
+                    throw error;
+                }
+                return result;
+            }
+            retries.incrementAndGet();
+            log.debug("{} failed with {}, retrying in {} us", step, failure, backoff / 1000);
+            LockSupport.parkNanos(backoff);
+            recover(failure);
+        }
+    }
+
+    private static boolean isFailure(Object result) {
+        return result == null || Boolean.FALSE.equals(result)
+                || ((result instanceof Integer || result instanceof Long) && ((Number) result).longValue() < 0);
+    }
+
+    private RetryPolicy.Failure classifyFailedResult() {
+        RetryPolicy.Failure failure = RetryPolicy.classify(card.getLastResponseCode());
+        if (failure == null && !card.isConnected()) {
+            failure = RetryPolicy.Failure.CARD_REMOVED;
+        }
+        return failure;
+    }
+
+    /**
+     * Get the card back in the state the failed step expected
+     */
+    private void recover(RetryPolicy.Failure failure) {
+        card.getSessionContext().resetAuthentication();
+        try {
+            if ((failure == RetryPolicy.Failure.CARD_REMOVED || failure == RetryPolicy.Failure.TRANSPORT)
+                    && !card.isConnected() && !reconnect.getAsBoolean()) {
+                log.debug("Reconnecting to the card failed");
+                return;
+            }
+            if (aid != null && !card.selectApplication(aid)) {
+                log.debug("Selecting application again failed");
+                return;
+            }
+            if (key != null && card.authenticate(key.clone(), keyNo, keyType) == null) {
+                log.debug("Authenticating again failed");
+            }
+        } catch (DeadlineExceededException e) {
+            throw e;
+        } catch (DesfireException e) {
+            log.debug("Restoring the card session failed: {}", e.getMessage());
+        }
+    }
+
+    // ================ STATISTICS ================
+
+    /**
+     * Attempts made after a failure
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * Steps that succeeded after at least one retry
+     */
+    public long getRecovered() {
+        return recovered.get();
+    }
+
+    /**
+     * Steps that failed with a retryable failure and were not, or no more, retried
+     */
+    public long getGivenUp() {
+        return givenUp.get();
+    }
+
+    /**
+     * Failed attempts of a kind, retried or not
+     */
+    public long getFailures(RetryPolicy.Failure failure) {
+        return failures.get(failure).get();
+    }
+
+    public DESFireCompleteService getCard() {
+        return card;
+    }
+
+    // ================ IDEMPOTENT COMMANDS ================
+
+    public byte[] getVersion() {
+        return call("GetVersion", true, DESFireCompleteService::getVersion);
+    }
+
+    public byte[] getApplicationIds() {
+        return call("GetApplicationIDs", true, DESFireCompleteService::getApplicationIds);
+    }
+
+    public int getFreeMemory() {
+        return call("FreeMemory", true, DESFireCompleteService::getFreeMemory);
+    }
+
+    public boolean selectApplication(byte[] aid) {
+        boolean selected = call("SelectApplication", true, card -> card.selectApplication(aid));
+        this.aid = selected ? aid.clone() : null;
+        this.key = null;
+        return selected;
+    }
+
+    public byte[] authenticate(byte[] key, byte keyNo, KeyType keyType) {
+        byte[] sessionKey = call("Authenticate", true, card -> card.authenticate(key.clone(), keyNo, keyType));
+        this.key = sessionKey != null ? key.clone() : null;
+        this.keyNo = keyNo;
+        this.keyType = keyType;
+        return sessionKey;
+    }
+
+    public byte[] readData(byte fileNo, int offset, int length) {
+        return call("ReadData", true, card -> card.readData(fileNo, offset, length));
+    }
+
+    public byte[] getFileIds() {
+        return call("GetFileIDs", true, DESFireCompleteService::getFileIds);
+    }
+
+    public byte[] getFileSettings(byte fileNo) {
+        return call("GetFileSettings", true, card -> card.getFileSettings(fileNo));
+    }
+
+    public byte[] getKeySettings() {
+        return call("GetKeySettings", true, DESFireCompleteService::getKeySettings);
+    }
+
+    // ================ OTHER COMMANDS, TRIED ONCE ================
+
+    public boolean createApplication(byte[] aid, byte keySettings, byte numberOfKeys) {
+        return call("CreateApplication", false, card -> card.createApplication(aid, keySettings, numberOfKeys));
+    }
+
+    public boolean deleteApplication(byte[] aid) {
+        return call("DeleteApplication", false, card -> card.deleteApplication(aid));
+    }
+
+    public boolean writeData(byte fileNo, int offset, byte[] data) {
+        return call("WriteData", false, card -> card.writeData(fileNo, offset, data));
+    }
+}
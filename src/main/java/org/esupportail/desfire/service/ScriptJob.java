@@ -0,0 +1,33 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.DesfireTag;
+
+/**
+ * One card of a bulk personalization run: the card UID and the profile to encode
+ */
+public class ScriptJob {
+
+    private final String uid; // Card UID (hex string)
+    private final CompactProfile profile;
+
+    public ScriptJob(String uid, CompactProfile profile) {
+        this.uid = uid;
+        this.profile = profile;
+    }
+
+    /**
+     * Decodes the profile; share one {@link CompactProfile} between jobs to avoid it
+     */
+    public ScriptJob(String uid, DesfireTag profile) {
+        this(uid, CompactProfile.from(profile));
+    }
+
+    public String getUid() {
+        return uid;
+    }
+
+    public CompactProfile getProfile() {
+        return profile;
+    }
+}
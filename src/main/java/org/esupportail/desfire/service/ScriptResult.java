@@ -0,0 +1,100 @@
+package org.esupportail.desfire.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Outcome of an APDU script run: per-step status words and timings
+ */
+public class ScriptResult {
+
+    private final List<Step> steps = new ArrayList<>();
+    private Step failedStep;
+
+    /**
+     * One executed APDU of a script
+     */
+    public static class Step {
+
+        private final int lineNumber;
+        private final byte[] command;
+        private final int sw;
+        private final int responseLength;
+        private final long nanos;
+        private final ExpectedStatus expected;
+
+        Step(int lineNumber, byte[] command, int sw, int responseLength, long nanos, ExpectedStatus expected) {
+            this.lineNumber = lineNumber;
+            this.command = command;
+            this.sw = sw;
+            this.responseLength = responseLength;
+            this.nanos = nanos;
+            this.expected = expected;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public byte[] getCommand() {
+            return command.clone();
+        }
+
+        public int getSw() {
+            return sw;
+        }
+
+        public int getResponseLength() {
+            return responseLength;
+        }
+
+        public long getNanos() {
+            return nanos;
+        }
+
+        public ExpectedStatus getExpected() {
+            return expected;
+        }
+
+        public boolean isMatched() {
+            return expected.matches(sw);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("line %d: %s -> %04X (expected %s, %d us)", lineNumber,
+                    DesfireUtils.byteArrayToHexString(command), sw, expected, nanos / 1000);
+        }
+    }
+
+    void add(Step step) {
+        steps.add(step);
+        if (failedStep == null && !step.isMatched()) {
+            failedStep = step;
+        }
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+
+    public boolean isSuccess() {
+        return failedStep == null;
+    }
+
+    /**
+     * The step whose status word did not match, or <code>null</code>
+     */
+    public Step getFailedStep() {
+        return failedStep;
+    }
+
+    public long getTotalNanos() {
+        long total = 0;
+        for (Step step : steps) {
+            total += step.nanos;
+        }
+        return total;
+    }
+}
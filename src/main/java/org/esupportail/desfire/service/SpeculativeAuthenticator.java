@@ -0,0 +1,290 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.transport.Deadline;
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Opt-in speculative authentication: as soon as a card is connected, its
+ * UID is read and the most likely application is selected and authenticated
+ * on a worker thread, while the application still decides what to do.
+ *
+ * <p>The candidates are the applications and keys configured with
+ * {@link #addCandidate}; the one claimed most often so far is tried. If the
+ * application then claims that application and key, the card is handed over
+ * already authenticated; otherwise the speculation is discarded, stopping
+ * before its next APDU, and the application authenticates as usual.
+ * <pre>
+ * SpeculativeAuthenticator speculative = new SpeculativeAuthenticator()
+ *         .addCandidate(aid, (byte) 0x01, KeyType.AES, readKey);
+ * try (SpeculativeAuthenticator.Speculation speculation = speculative.speculate(desfire)) {
+ *     Account account = accounts.find(speculation.getUid());
+ *     if (!speculation.claim(aid, (byte) 0x01)) {
+ *         desfire.selectApplication(aid);
+ *         desfire.authenticate(readKey, (byte) 0x01, KeyType.AES);
+ *     }
+ *     ...
+ * }
+ * </pre>
+ */
+public class SpeculativeAuthenticator {
+
+    private static final Logger log = LoggerFactory.getLogger(SpeculativeAuthenticator.class);
+
+    private static volatile ExecutorService defaultExecutor;
+
+    private final Executor executor;
+    private final List<Candidate> candidates = new CopyOnWriteArrayList<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong discarded = new AtomicLong();
+
+    /**
+     * An application and key worth authenticating ahead
+     */
+    private static final class Candidate {
+
+        final byte[] aid;
+        final byte keyNo;
+        final KeyType keyType;
+        final byte[] key;
+        final AtomicLong claims = new AtomicLong();
+
+        Candidate(byte[] aid, byte keyNo, KeyType keyType, byte[] key) {
+            this.aid = aid;
+            this.keyNo = keyNo;
+            this.keyType = keyType;
+            this.key = key;
+        }
+
+        boolean matches(byte[] aid, byte keyNo) {
+            return Arrays.equals(this.aid, aid) && this.keyNo == keyNo;
+        }
+    }
+
+    /**
+     * Speculations running on a shared pool of daemon threads
+     */
+    public SpeculativeAuthenticator() {
+        this(sharedExecutor());
+    }
+
+    public SpeculativeAuthenticator(Executor executor) {
+        this.executor = executor;
+    }
+
+    private static ExecutorService sharedExecutor() {
+        ExecutorService executor = defaultExecutor;
+        if (executor == null) {
+            synchronized (SpeculativeAuthenticator.class) {
+                executor = defaultExecutor;
+                if (executor == null) {
+                    executor = Executors.newCachedThreadPool(runnable -> {
+                        Thread thread = new Thread(runnable, "desfire-speculative");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    defaultExecutor = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    /**
+     * Add an application and key to authenticate ahead; until claims tell
+     * otherwise, the first candidate added is the most likely
+     */
+    public SpeculativeAuthenticator addCandidate(byte[] aid, byte keyNo, KeyType keyType, byte[] key) {
+        if (aid.length != 3) {
+            throw new DesfireException("AID must be 3 bytes");
+        }
+        candidates.add(new Candidate(aid.clone(), keyNo, keyType, key.clone()));
+        return this;
+    }
+
+    /**
+     * Start reading the UID and authenticating the most likely candidate on a
+     * connected card. Until the speculation is claimed or discarded, the card
+     * must not be used.
+     */
+    public Speculation speculate(DESFireEV1 card) {
+        Speculation speculation = new Speculation(card, mostLikely());
+        executor.execute(speculation::run);
+        return speculation;
+    }
+
+    private Candidate mostLikely() {
+        Candidate best = null;
+        for (Candidate candidate : candidates) {
+            if (best == null || candidate.claims.get() > best.claims.get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Speculations claimed with the application and key they authenticated
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Speculations claimed with another application or key
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Speculations that could not authenticate
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * Speculations dropped without a claim
+     */
+    public long getDiscarded() {
+        return discarded.get();
+    }
+
+    /**
+     * One card being authenticated ahead
+     */
+    public final class Speculation implements AutoCloseable {
+
+        private final DESFireEV1 card;
+        private final Candidate candidate;
+        private final Deadline deadline = Deadline.none();
+        private final CompletableFuture<byte[]> uid = new CompletableFuture<>();
+        private final CompletableFuture<Boolean> authenticated = new CompletableFuture<>();
+        private final AtomicBoolean settled = new AtomicBoolean();
+
+        Speculation(DESFireEV1 card, Candidate candidate) {
+            this.card = card;
+            this.candidate = candidate;
+        }
+
+        private void run() {
+            try (Deadline.Scope scope = deadline.bind()) {
+                uid.complete(PersonalizationPipeline.readUid(card));
+                if (candidate == null) {
+                    authenticated.complete(false);
+                    return;
+                }
+                boolean done = card.selectApplication(candidate.aid)
+                        && card.authenticate(candidate.key, candidate.keyNo, candidate.keyType) != null;
+                authenticated.complete(done);
+            } catch (DeadlineExceededException e) {
+                // discarded
+                card.getSessionContext().resetAuthentication();
+                authenticated.complete(false);
+            } catch (RuntimeException e) {
+                log.debug("Speculative authentication failed: {}", e.getMessage());
+                card.getSessionContext().resetAuthentication();
+                uid.completeExceptionally(e);
+                authenticated.complete(false);
+            } finally {
+                uid.complete(null); // discarded before the UID was read
+            }
+        }
+
+        /**
+         * UID of the card, waiting only for its reading
+         * @return <code>null</code> if discarded first
+         * @throws DesfireException if the card did not answer
+         */
+        public byte[] getUid() {
+            byte[] value = await(uid);
+            return value != null ? value.clone() : null;
+        }
+
+        /**
+         * Take the card for an application and key, waiting for the speculation to end
+         * @return <code>true</code> if the card is handed over with this application
+         *         selected and this key authenticated; <code>false</code> if the
+         *         caller must select and authenticate itself
+         */
+        public boolean claim(byte[] aid, byte keyNo) {
+            boolean done = Boolean.TRUE.equals(await(authenticated));
+            if (!settled.compareAndSet(false, true)) {
+                throw new IllegalStateException("Speculation already claimed or discarded");
+            }
+            for (Candidate other : candidates) {
+                if (other.matches(aid, keyNo)) {
+                    other.claims.incrementAndGet();
+                }
+            }
+            if (candidate == null || !candidate.matches(aid, keyNo)) {
+                misses.incrementAndGet();
+                return false;
+            }
+            if (!done) {
+                failures.incrementAndGet();
+                return false;
+            }
+            hits.incrementAndGet();
+            return true;
+        }
+
+        /**
+         * Stop the speculation before its next APDU and wait for it, leaving
+         * the card free and unauthenticated
+         */
+        public void discard() {
+            if (!settled.compareAndSet(false, true)) {
+                return;
+            }
+            deadline.cancel();
+            await(authenticated);
+            card.getSessionContext().resetAuthentication();
+            discarded.incrementAndGet();
+        }
+
+        /**
+         * Same as {@link #discard()} unless already claimed
+         */
+        @Override
+        public void close() {
+            discard();
+        }
+
+        private <T> T await(CompletableFuture<T> future) {
+            try {
+                return future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                deadline.cancel();
+                throw new DesfireException("Interrupted while waiting for the speculation", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof DesfireException) {
+                    throw (DesfireException) e.getCause();
+                }
+                throw new DesfireException("Speculation failed", e.getCause());
+            } catch (CancellationException e) {
+                throw new DesfireException("Speculation cancelled", e);
+            }
+        }
+    }
+}
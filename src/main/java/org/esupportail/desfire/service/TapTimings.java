@@ -0,0 +1,73 @@
+package org.esupportail.desfire.service;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Timings learnt from the {@link TapTransaction}s of a reader, to estimate
+ * how long a step will take on the next card: an exponentially weighted
+ * moving average of the time per APDU, and per step of the number of APDUs
+ * it sends. Recent taps weigh most, so the estimates follow a slower card
+ * or a reader under load within a few steps. Thread safe.
+ */
+public class TapTimings {
+
+    /** Weight of the newest sample in the averages. */
+    public static final double DEFAULT_ALPHA = 0.25;
+
+    private final double alpha;
+    private double apduNanos;
+    private final Map<String, Double> stepApdus = new HashMap<>();
+
+    /**
+     * Starting from 15 ms per APDU, a slow ISO 14443-4 exchange
+     */
+    public TapTimings() {
+        this(Duration.ofMillis(15), DEFAULT_ALPHA);
+    }
+
+    /**
+     * @param initialApduTime time per APDU assumed before any measure
+     * @param alpha           weight of the newest sample, in ]0, 1]
+     */
+    public TapTimings(Duration initialApduTime, double alpha) {
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("Weight must be in ]0, 1]: " + alpha);
+        }
+        this.alpha = alpha;
+        this.apduNanos = initialApduTime.toNanos();
+    }
+
+    /**
+     * Time a step is expected to take
+     * @param declaredApdus APDUs the step sends, used until it was measured
+     */
+    public synchronized long estimateNanos(String step, int declaredApdus) {
+        return (long) Math.ceil(stepApdus.getOrDefault(step, (double) declaredApdus) * apduNanos);
+    }
+
+    /**
+     * Fold in a step that sent <code>apdus</code> APDUs in <code>nanos</code>
+     */
+    public synchronized void record(String step, long apdus, long nanos) {
+        stepApdus.merge(step, (double) apdus, (average, sample) -> average + alpha * (sample - average));
+        if (apdus > 0) {
+            apduNanos += alpha * ((double) nanos / apdus - apduNanos);
+        }
+    }
+
+    /**
+     * Current average time per APDU
+     */
+    public synchronized Duration getApduTime() {
+        return Duration.ofNanos((long) apduNanos);
+    }
+
+    /**
+     * Current average number of APDUs of a step, <code>NaN</code> if never measured
+     */
+    public synchronized double getApdus(String step) {
+        return stepApdus.getOrDefault(step, Double.NaN);
+    }
+}
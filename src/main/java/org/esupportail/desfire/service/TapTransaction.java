@@ -0,0 +1,332 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.ExclusiveSession;
+import org.esupportail.desfire.core.transport.TimingTransport;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Steps of one tap run by priority within a time budget, the RF contact a
+ * card is expected to stay in the field.
+ *
+ * <p>Durations are estimated from {@link TapTimings} (the usual number of
+ * APDUs of a step times the current time per APDU, with a safety margin).
+ * The critical steps run first, all or nothing: they are only started if
+ * the budget covers the sum of their estimates, and they run as one card
+ * transaction, committed after the last one and aborted if one fails, so
+ * their writes to backup, value and record files are kept or dropped
+ * together. A failed group is reported failed as a whole and stops the
+ * transaction. Each lesser step is then started if it fits the remaining
+ * budget, and left out while smaller ones may still fit. Steps not started
+ * are deferred, to be added to the transaction of the next tap, if critical
+ * or declared deferrable, and skipped otherwise.
+ *
+ * <p>APDUs and their time are counted by a {@link TimingTransport} if the
+ * card transport has one, otherwise taken from the declared number of APDUs
+ * and the step duration. A transaction can be run on any number of cards, one
+ * at a time.
+ * <pre>
+ * TapTransaction tap = new TapTransaction(timings, Duration.ofMillis(250))
+ *         .step("debit", TapTransaction.Priority.CRITICAL, 6, card -&gt; debit(card, amount))
+ *         .deferrableStep("log", TapTransaction.Priority.OPTIONAL, 3, card -&gt; appendLog(card))
+ *         .addAll(pending);
+ * TapTransaction.Result result = tap.run(card);
+ * pending = result.getDeferred();
+ * </pre>
+ */
+public class TapTransaction {
+
+    private static final Logger log = LoggerFactory.getLogger(TapTransaction.class);
+
+    /**
+     * Run order of the steps; steps of a priority run in the order added
+     */
+    public enum Priority {
+        /** Must be done, all or nothing: the tap is incomplete without it. */
+        CRITICAL,
+        NORMAL,
+        /** Nice to have. */
+        OPTIONAL
+    }
+
+    /**
+     * Work of a step on the card
+     */
+    @FunctionalInterface
+    public interface Action {
+        /**
+         * @return <code>false</code> if the card refused the step
+         */
+        boolean run(DESFireCompleteService card) throws Exception;
+    }
+
+    /**
+     * One step, reusable on the next tap
+     */
+    public static final class Step {
+
+        private final String name;
+        private final Priority priority;
+        private final int apdus;
+        private final boolean deferrable;
+        private final Action action;
+
+        Step(String name, Priority priority, int apdus, boolean deferrable, Action action) {
+            this.name = name;
+            this.priority = priority;
+            this.apdus = apdus;
+            this.deferrable = deferrable;
+            this.action = action;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /**
+         * APDUs the step was declared to send
+         */
+        public int getApdus() {
+            return apdus;
+        }
+
+        public boolean isDeferrable() {
+            return deferrable;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + priority + ")";
+        }
+    }
+
+    /**
+     * Outcome of a transaction on one card
+     */
+    public static final class Result {
+
+        private final List<Step> completed = new ArrayList<>();
+        private final List<Step> failed = new ArrayList<>();
+        private final List<Step> deferred = new ArrayList<>();
+        private final List<Step> skipped = new ArrayList<>();
+        private long elapsedNanos;
+        private boolean criticalMissing;
+
+        /**
+         * Whether every critical step was done
+         */
+        public boolean isComplete() {
+            return !criticalMissing;
+        }
+
+        public List<Step> getCompleted() {
+            return Collections.unmodifiableList(completed);
+        }
+
+        /**
+         * Steps run and refused by the card, or failed
+         */
+        public List<Step> getFailed() {
+            return Collections.unmodifiableList(failed);
+        }
+
+        /**
+         * Steps not started, to run on the next tap
+         */
+        public List<Step> getDeferred() {
+            return Collections.unmodifiableList(deferred);
+        }
+
+        /**
+         * Steps not started and dropped
+         */
+        public List<Step> getSkipped() {
+            return Collections.unmodifiableList(skipped);
+        }
+
+        public Duration getElapsed() {
+            return Duration.ofNanos(elapsedNanos);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s in %d ms: done %s, failed %s, deferred %s, skipped %s",
+                    isComplete() ? "Complete" : "Incomplete", getElapsed().toMillis(), completed, failed, deferred,
+                    skipped);
+        }
+    }
+
+    private final TapTimings timings;
+    private final long budgetNanos;
+    private double margin = 1.25;
+    private final List<Step> steps = new ArrayList<>();
+
+    /**
+     * @param timings shared by the transactions of a reader
+     * @param budget  time the card is expected to stay in the field
+     */
+    public TapTransaction(TapTimings timings, Duration budget) {
+        this.timings = timings;
+        this.budgetNanos = budget.toNanos();
+    }
+
+    /**
+     * Factor applied to the estimates, 1.25 by default
+     */
+    public TapTransaction setMargin(double margin) {
+        this.margin = margin;
+        return this;
+    }
+
+    /**
+     * Add a step dropped if it cannot run on this tap
+     * @param apdus APDUs the step sends, the estimate until it was measured
+     */
+    public TapTransaction step(String name, Priority priority, int apdus, Action action) {
+        steps.add(new Step(name, priority, apdus, priority == Priority.CRITICAL, action));
+        return this;
+    }
+
+    /**
+     * Add a step deferred to the next tap if it cannot run on this one
+     */
+    public TapTransaction deferrableStep(String name, Priority priority, int apdus, Action action) {
+        steps.add(new Step(name, priority, apdus, true, action));
+        return this;
+    }
+
+    /**
+     * Add steps deferred by an earlier tap
+     */
+    public TapTransaction addAll(Collection<Step> deferred) {
+        steps.addAll(deferred);
+        return this;
+    }
+
+    /**
+     * Estimated time of a step with the current timings, margin included
+     */
+    public Duration estimate(Step step) {
+        return Duration.ofNanos((long) (timings.estimateNanos(step.name, step.apdus) * margin));
+    }
+
+    /**
+     * Run the steps on a card, with exclusive access to it
+     */
+    public Result run(DESFireCompleteService card) {
+        long start = System.nanoTime();
+        Result result = new Result();
+        List<Step> order = new ArrayList<>(steps);
+        order.sort(Comparator.comparing(Step::getPriority)); // stable
+        TimingTransport timing = card.getTransport().unwrap(TimingTransport.class);
+        List<Step> critical = new ArrayList<>();
+        for (Step step : order) {
+            if (step.priority == Priority.CRITICAL) {
+                critical.add(step);
+            }
+        }
+
+        try (ExclusiveSession session = card.exclusive()) {
+            boolean stopped = !critical.isEmpty() && !runCritical(critical, card, timing, start, result);
+            for (Step step : order.subList(critical.size(), order.size())) {
+                long remaining = budgetNanos - (System.nanoTime() - start);
+                if (stopped || estimate(step).toNanos() > remaining) {
+                    (step.deferrable ? result.deferred : result.skipped).add(step);
+                } else if (run(step, card, timing)) {
+                    result.completed.add(step);
+                } else {
+                    result.failed.add(step);
+                }
+            }
+        }
+        result.elapsedNanos = System.nanoTime() - start;
+        log.debug("Tap transaction: {}", result);
+        return result;
+    }
+
+    /**
+     * Run the critical steps as one card transaction, if the budget left
+     * covers them all
+     */
+    private boolean runCritical(List<Step> critical, DESFireCompleteService card, TimingTransport timing,
+                                long start, Result result) {
+        long needed = 0;
+        for (Step step : critical) {
+            needed += estimate(step).toNanos();
+        }
+        result.criticalMissing = true;
+        if (needed > budgetNanos - (System.nanoTime() - start)) {
+            result.deferred.addAll(critical);
+            return false;
+        }
+        for (Step step : critical) {
+            if (!run(step, card, timing)) {
+                abort(card);
+                result.failed.addAll(critical);
+                return false;
+            }
+        }
+        if (!commit(card)) {
+            result.failed.addAll(critical);
+            return false;
+        }
+        result.completed.addAll(critical);
+        result.criticalMissing = false;
+        return true;
+    }
+
+    private boolean commit(DESFireCompleteService card) {
+        try {
+            return card.commitTransaction();
+        } catch (RuntimeException e) {
+            log.warn("Committing tap transaction failed: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void abort(DESFireCompleteService card) {
+        try {
+            card.abortTransaction();
+        } catch (RuntimeException e) {
+            // card gone: the pending writes are dropped anyway
+            log.debug("Aborting tap transaction failed: {}", e.getMessage());
+        }
+    }
+
+    private boolean run(Step step, DESFireCompleteService card, TimingTransport timing) {
+        long apdus = timing != null ? timing.getExchanges() : 0;
+        long exchangeNanos = timing != null ? timing.getExchangeNanos() : 0;
+        long begin = System.nanoTime();
+        try {
+            return step.action.run(card);
+        } catch (Exception e) {
+            log.warn("Tap step {} failed: {}", step.name, e.getMessage());
+            return false;
+        } finally {
+            if (timing != null) {
+                timings.record(step.name, timing.getExchanges() - apdus, timing.getExchangeNanos() - exchangeNanos);
+            } else {
+                timings.record(step.name, step.apdus, System.nanoTime() - begin);
+            }
+        }
+    }
+
+    public TapTimings getTimings() {
+        return timings;
+    }
+
+    public List<Step> getSteps() {
+        return Collections.unmodifiableList(steps);
+    }
+}
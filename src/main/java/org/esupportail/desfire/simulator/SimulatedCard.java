@@ -0,0 +1,154 @@
+package org.esupportail.desfire.simulator;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.transport.ChannelTransport;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <code>javax.smartcardio</code> view of a {@link SimulatedPicc}, so code
+ * written against {@link Card} and {@link CardChannel} runs unchanged
+ * against simulated cards.
+ */
+public class SimulatedCard extends Card {
+
+    /** ATR of a DESFire EV1 behind a PC/SC contactless reader. */
+    private static final byte[] ATR_DESFIRE_EV1 = {0x3B, (byte) 0x81, (byte) 0x80, 0x01, (byte) 0x80, (byte) 0x80};
+
+    private final SimulatedPicc picc;
+    private final CardChannel channel = new Channel();
+    private final ReentrantLock exclusive = new ReentrantLock();
+    private volatile boolean connected = true;
+
+    public SimulatedCard() {
+        this(new SimulatedPicc());
+    }
+
+    public SimulatedCard(SimulatedPicc picc) {
+        this.picc = picc;
+    }
+
+    public SimulatedPicc getPicc() {
+        return picc;
+    }
+
+    /**
+     * Transport over the basic channel; closing it disconnects the card
+     */
+    public CardTransport transport() {
+        return new ChannelTransport(this);
+    }
+
+    @Override
+    public ATR getATR() {
+        return new ATR(ATR_DESFIRE_EV1);
+    }
+
+    @Override
+    public String getProtocol() {
+        return "T=1";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+        checkConnected();
+        return channel;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+        throw new CardException("Logical channels are not supported");
+    }
+
+    @Override
+    public void beginExclusive() throws CardException {
+        checkConnected();
+        exclusive.lock();
+    }
+
+    @Override
+    public void endExclusive() throws CardException {
+        if (!exclusive.isHeldByCurrentThread()) {
+            throw new IllegalStateException("Exclusive access not held by this thread");
+        }
+        exclusive.unlock();
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+        throw new CardException("Control commands are not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) {
+        if (reset) {
+            picc.reset();
+        }
+        connected = false;
+    }
+
+    private void checkConnected() {
+        if (!connected) {
+            throw new IllegalStateException("Card has been disconnected");
+        }
+    }
+
+    /**
+     * Basic channel: transmits straight to the PICC
+     */
+    private final class Channel extends CardChannel {
+
+        @Override
+        public Card getCard() {
+            return SimulatedCard.this;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) {
+            checkConnected();
+            return new ResponseAPDU(process(command.getBytes()));
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+            checkConnected();
+            if (response.remaining() < CardTransport.MAX_RESPONSE_LENGTH) {
+                throw new IllegalArgumentException("Insufficient space in response buffer");
+            }
+            byte[] apdu = new byte[command.remaining()];
+            command.get(apdu);
+            byte[] answer = process(apdu);
+            response.put(answer);
+            return answer.length;
+        }
+
+        @Override
+        public void close() {
+            throw new IllegalStateException("Cannot close basic logical channel");
+        }
+
+        /**
+         * Other threads wait while one holds exclusive access, as other PC/SC clients do
+         */
+        private byte[] process(byte[] apdu) {
+            exclusive.lock();
+            try {
+                return picc.process(apdu);
+            } finally {
+                exclusive.unlock();
+            }
+        }
+    }
+}
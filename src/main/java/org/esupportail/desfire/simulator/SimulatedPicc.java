@@ -0,0 +1,1146 @@
+package org.esupportail.desfire.simulator;
+
+import org.esupportail.desfire.core.util.CRC16;
+import org.esupportail.desfire.core.util.CRC32;
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.ApduResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Software DESFire EV1 PICC.
+ *
+ * <p>Implements the native command set spoken by the library: application
+ * management, standard, backup, value and linear/cyclic record files with
+ * commit/abort transactions, the 3-pass DES/2K3DES/3K3DES/AES authentication
+ * through {@link DesfireCrypto}, additional frames for long answers and the
+ * status codes of {@link ApduResponse}. The reader pseudo-APDU
+ * <code>FF CA 00 00 00</code> returns the UID.
+ *
+ * <p>ChangeKey takes the enciphered cryptogram of a real card, checked against
+ * the session key with zero IV (CRC16 after a DES/2K3DES authentication,
+ * CRC32 otherwise, XOR with the current key when changing another key). The
+ * PICC master key type follows the 0x80 (AES) / 0x40 (3K3DES) flags of the key
+ * number, 2K3DES keys are told from DES ones by their halves.
+ *
+ * <p>Simplifications: data is always exchanged in plain whatever the
+ * communication settings (no MAC or encryption after authentication), there
+ * is no IV chaining between commands, and ChangeKey also accepts the plain key
+ * body built by {@link org.esupportail.desfire.service.ApduBuilder#changeKey}
+ * for APDU scripts. Access rights and key settings are enforced.
+ *
+ * <p>Each instance is one card; {@link #process(byte[])} is synchronized, so
+ * many cards can be driven concurrently from different threads.
+ */
+public class SimulatedPicc {
+
+    /** Data bytes per response frame before 91AF chaining. */
+    public static final int FRAME_SIZE = 59;
+
+    private static final int PICC_AID = 0x000000;
+    private static final int FREE_ACCESS = 0x0E;
+    private static final int NO_KEY = -1;
+
+    private static final int FILE_STD = 0x00;
+    private static final int FILE_BACKUP = 0x01;
+    private static final int FILE_VALUE = 0x02;
+    private static final int FILE_LINEAR_RECORD = 0x03;
+    private static final int FILE_CYCLIC_RECORD = 0x04;
+
+    private static final byte[] SW_ISO_OK = {(byte) 0x90, 0x00};
+    private static final byte[] SW_ISO_INS_NOT_SUPPORTED = {0x6D, 0x00};
+    private static final byte[] SW_ISO_CLA_NOT_SUPPORTED = {0x6E, 0x00};
+
+    private final byte[] uid;
+    private final int capacity;
+    private final Map<Integer, Application> applications = new TreeMap<>();
+
+    // session state
+    private Application selected;
+    private int authenticatedKey = NO_KEY;
+    private byte[] sessionKey;
+    private KeyType sessionKeyType;
+    private Handshake handshake;
+    private byte[] pendingOutput;  // remaining data of a chained answer
+    private int pendingOffset;
+    private boolean versionFrames;
+
+    /**
+     * Application with its keys and files
+     */
+    private static final class Application {
+
+        final int aid;
+        int keySettings;
+        KeyType keyType;
+        final byte[][] keys;
+        final byte[] keyVersions;
+        final Map<Integer, SimulatedFile> files = new TreeMap<>();
+
+        Application(int aid, int keySettings, int numberOfKeys, KeyType keyType) {
+            this.aid = aid;
+            this.keySettings = keySettings;
+            this.keyType = keyType;
+            this.keys = new byte[numberOfKeys][];
+            this.keyVersions = new byte[numberOfKeys];
+            for (int i = 0; i < numberOfKeys; i++) {
+                keys[i] = new byte[keyType == KeyType.DES ? 8 : keyLength(keyType)];
+            }
+        }
+
+        KeyType keyTypeOf(int keyNo) {
+            // A DES application accepts 2K3DES keys once changed
+            return keyType == KeyType.DES && keys[keyNo].length == 16 ? KeyType.TDES : keyType;
+        }
+    }
+
+    /**
+     * State between the two frames of an authentication
+     */
+    private static final class Handshake {
+
+        final int keyNo;
+        final KeyType keyType;
+        final byte[] key;
+        final byte[] randB;
+        final byte[] lastBlock;
+
+        Handshake(int keyNo, KeyType keyType, byte[] key, byte[] randB, byte[] lastBlock) {
+            this.keyNo = keyNo;
+            this.keyType = keyType;
+            this.key = key;
+            this.randB = randB;
+            this.lastBlock = lastBlock;
+        }
+    }
+
+    /**
+     * Blank 8 KB card with a random UID
+     */
+    public SimulatedPicc() {
+        this(randomUid(), 8192);
+    }
+
+    /**
+     * Blank card: PICC master key is the all-zero DES key, key settings 0x0F
+     * @param uid      the 7 byte UID
+     * @param capacity user memory in bytes
+     */
+    public SimulatedPicc(byte[] uid, int capacity) {
+        if (uid.length != 7) {
+            throw new IllegalArgumentException("UID must be 7 bytes");
+        }
+        this.uid = uid.clone();
+        this.capacity = capacity;
+        applications.put(PICC_AID, new Application(PICC_AID, 0x0F, 1, KeyType.DES));
+        reset();
+    }
+
+    private static byte[] randomUid() {
+        byte[] uid = DesfireCrypto.random(7);
+        uid[0] = 0x04; // NXP
+        return uid;
+    }
+
+    public byte[] getUid() {
+        return uid.clone();
+    }
+
+    /**
+     * Field reset: PICC level selected, no authentication
+     */
+    public synchronized void reset() {
+        selected = applications.get(PICC_AID);
+        clearAuthentication();
+        pendingOutput = null;
+    }
+
+    /**
+     * Process one command APDU
+     * @return the response, status word included
+     */
+    public synchronized byte[] process(byte[] apdu) {
+        if (apdu.length >= 2 && (apdu[0] & 0xFF) == 0xFF) {
+            return processReader(apdu);
+        }
+        if (apdu.length < 5 || (apdu[0] & 0xFF) != 0x90) {
+            return SW_ISO_CLA_NOT_SUPPORTED.clone();
+        }
+        int lc = apdu[4] & 0xFF;
+        if (apdu.length < 5 + lc) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        int command = apdu[1] & 0xFF;
+        byte[] data = Arrays.copyOfRange(apdu, 5, 5 + lc);
+
+        if (command == 0xAF) {
+            return additionalFrame(data);
+        }
+        pendingOutput = null;
+        versionFrames = false;
+        if (handshake != null) {
+            handshake = null;
+            clearAuthentication();
+        }
+
+        try {
+            return execute(command, data);
+        } catch (ArrayIndexOutOfBoundsException e) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+    }
+
+    private byte[] processReader(byte[] apdu) {
+        if (apdu.length >= 4 && (apdu[1] & 0xFF) == 0xCA && apdu[2] == 0x00) {
+            byte[] response = Arrays.copyOf(uid, uid.length + 2);
+            System.arraycopy(SW_ISO_OK, 0, response, uid.length, 2);
+            return response;
+        }
+        return SW_ISO_INS_NOT_SUPPORTED.clone();
+    }
+
+    private byte[] execute(int command, byte[] data) {
+        switch (command) {
+            case 0x0A: return authenticate(data, null);
+            case 0x1A: return authenticate(data, KeyType.TKTDES);
+            case 0xAA: return authenticate(data, KeyType.AES);
+            case 0x45: return getKeySettings();
+            case 0x54: return changeKeySettings(data);
+            case 0xC4: return changeKey(data);
+            case 0x64: return getKeyVersion(data);
+            case 0xCA: return createApplication(data);
+            case 0xDA: return deleteApplication(data);
+            case 0x6A: return getApplicationIds();
+            case 0x5A: return selectApplication(data);
+            case 0xFC: return formatPicc();
+            case 0x60: return getVersion();
+            case 0x6E: return getFreeMemory();
+            case 0x51: return getCardUid();
+            case 0x6F: return getFileIds();
+            case 0xF5: return getFileSettings(data);
+            case 0x5F: return changeFileSettings(data);
+            case 0xCD: return createDataFile(data, FILE_STD);
+            case 0xCB: return createDataFile(data, FILE_BACKUP);
+            case 0xCC: return createValueFile(data);
+            case 0xC1: return createRecordFile(data, FILE_LINEAR_RECORD);
+            case 0xC0: return createRecordFile(data, FILE_CYCLIC_RECORD);
+            case 0xDF: return deleteFile(data);
+            case 0xBD: return readData(data);
+            case 0x3D: return writeData(data);
+            case 0x6C: return getValue(data);
+            case 0x0C: return changeValue(data, 0x0C);
+            case 0xDC: return changeValue(data, 0xDC);
+            case 0x1C: return changeValue(data, 0x1C);
+            case 0x3B: return writeRecord(data);
+            case 0xBB: return readRecords(data);
+            case 0xEB: return clearRecordFile(data);
+            case 0xC7: return commitTransaction();
+            case 0xA7: return abortTransaction();
+            default: return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+    }
+
+    // ================ AUTHENTICATION ================
+
+    private byte[] authenticate(byte[] data, KeyType requested) {
+        clearAuthentication();
+        if (data.length != 1) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        int keyNo = data[0] & 0xFF;
+        if (keyNo >= selected.keys.length) {
+            return status(ApduResponse.NO_SUCH_KEY);
+        }
+
+        KeyType keyType = selected.keyTypeOf(keyNo);
+        if (requested == KeyType.AES && keyType != KeyType.AES
+                || requested == null && (keyType == KeyType.AES || keyType == KeyType.TKTDES)
+                || requested == KeyType.TKTDES && keyType == KeyType.AES) {
+            return status(ApduResponse.AUTHENTICATION_ERROR);
+        }
+
+        byte[] key = selected.keys[keyNo].clone();
+        if (keyType != KeyType.AES) {
+            DesfireCrypto.setKeyVersion(key, 0, key.length, (byte) 0x00);
+        }
+        int block = DesfireCrypto.blockSize(keyType);
+        byte[] randB = DesfireCrypto.random(keyType == KeyType.TKTDES ? 16 : block);
+        byte[] encRandB = DesfireCrypto.encrypt(key, randB, keyType, new byte[block]);
+        handshake = new Handshake(keyNo, keyType, key, randB,
+                Arrays.copyOfRange(encRandB, encRandB.length - block, encRandB.length));
+        return response(encRandB, ApduResponse.ADDITIONAL_FRAME);
+    }
+
+    private byte[] finishAuthentication(byte[] ciphertext) {
+        Handshake hs = handshake;
+        handshake = null;
+        int block = DesfireCrypto.blockSize(hs.keyType);
+        if (ciphertext.length != 2 * hs.randB.length) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+
+        byte[] plain = DesfireCrypto.decrypt(hs.key, ciphertext, hs.keyType, hs.lastBlock);
+        int half = hs.randB.length;
+        byte[] randA = Arrays.copyOfRange(plain, 0, half);
+        if (!Arrays.equals(Arrays.copyOfRange(plain, half, 2 * half), DesfireCrypto.rotateLeft(hs.randB))) {
+            return status(ApduResponse.AUTHENTICATION_ERROR);
+        }
+
+        byte[] iv = Arrays.copyOfRange(ciphertext, ciphertext.length - block, ciphertext.length);
+        byte[] answer = DesfireCrypto.encrypt(hs.key, DesfireCrypto.rotateLeft(randA), hs.keyType, iv);
+        authenticatedKey = hs.keyNo;
+        sessionKey = DesfireCrypto.generateSessionKey(randA, hs.randB, hs.keyType);
+        sessionKeyType = hs.keyType;
+        return response(answer, ApduResponse.OPERATION_OK);
+    }
+
+    private void clearAuthentication() {
+        authenticatedKey = NO_KEY;
+        sessionKey = null;
+        sessionKeyType = null;
+        handshake = null;
+    }
+
+    /**
+     * Session key of the current authentication, or <code>null</code>
+     */
+    public synchronized byte[] getSessionKey() {
+        return sessionKey != null ? sessionKey.clone() : null;
+    }
+
+    // ================ KEY MANAGEMENT ================
+
+    private byte[] getKeySettings() {
+        return response(new byte[] {(byte) selected.keySettings,
+                (byte) (selected.keys.length | keyTypeFlag(selected.keyType))}, ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] changeKeySettings(byte[] data) {
+        if (authenticatedKey != 0) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        if ((selected.keySettings & 0x08) == 0) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        selected.keySettings = data[0] & 0xFF;
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] changeKey(byte[] data) {
+        int keyNo = data[0] & 0x3F;
+        if (keyNo >= selected.keys.length) {
+            return status(ApduResponse.NO_SUCH_KEY);
+        }
+        int changeKeyNo = (selected.keySettings >> 4) & 0x0F;
+        boolean allowed;
+        if (keyNo == 0 || changeKeyNo == 0) {
+            allowed = authenticatedKey == 0 && (keyNo != 0 || (selected.keySettings & 0x01) != 0);
+        } else if (changeKeyNo == 0x0E) {
+            allowed = authenticatedKey == keyNo;
+        } else {
+            allowed = changeKeyNo != 0x0F && authenticatedKey == changeKeyNo;
+        }
+        if (!allowed) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        if ((data.length - 1) % DesfireCrypto.blockSize(sessionKeyType) == 0) {
+            return changeKeyEnciphered(data, keyNo);
+        }
+
+        int keyLength = data.length - 2;
+        KeyType keyType = selected.keyType;
+        if (selected.aid == PICC_AID) {
+            // the PICC master key may change type, flagged in the key number
+            keyType = (data[0] & 0x80) != 0 ? KeyType.AES : (data[0] & 0x40) != 0 ? KeyType.TKTDES
+                    : keyLength == 24 ? KeyType.TKTDES : KeyType.DES;
+        }
+        boolean valid = keyType == KeyType.DES ? keyLength == 8 || keyLength == 16
+                : keyLength == keyLength(keyType);
+        if (!valid) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        selected.keyType = keyType;
+        selected.keys[keyNo] = Arrays.copyOfRange(data, 1, 1 + keyLength);
+        selected.keyVersions[keyNo] = data[1 + keyLength];
+        if (keyNo == authenticatedKey) {
+            clearAuthentication();
+        }
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    /**
+     * ChangeKey with the cryptogram of a real card
+     */
+    private byte[] changeKeyEnciphered(byte[] data, int keyNo) {
+        KeyType keyType = selected.keyType;
+        if (selected.aid == PICC_AID) {
+            keyType = (data[0] & 0x80) != 0 ? KeyType.AES : (data[0] & 0x40) != 0 ? KeyType.TKTDES : KeyType.DES;
+        }
+        int keyLength = keyType == KeyType.DES ? 16 : keyLength(keyType);
+        boolean other = keyNo != authenticatedKey;
+        boolean crc32 = sessionKeyType == KeyType.AES || sessionKeyType == KeyType.TKTDES;
+        int crcLength = crc32 ? 4 : 2;
+        int length = keyLength + (keyType == KeyType.AES ? 1 : 0);
+
+        byte[] plain = DesfireCrypto.decrypt(sessionKey, Arrays.copyOfRange(data, 1, data.length),
+                sessionKeyType, new byte[DesfireCrypto.blockSize(sessionKeyType)]);
+        if (plain == null || plain.length < length + crcLength * (other ? 2 : 1)) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+
+        byte[] crc;
+        if (crc32) {
+            byte[] input = new byte[2 + length];
+            input[0] = (byte) 0xC4;
+            input[1] = data[0];
+            System.arraycopy(plain, 0, input, 2, length);
+            crc = CRC32.get(input);
+        } else {
+            crc = CRC16.get(plain, 0, length);
+        }
+        byte[] key = Arrays.copyOf(plain, keyLength);
+        if (other) {
+            byte[] old = selected.keys[keyNo];
+            for (int i = 0; i < keyLength; i++) {
+                key[i] ^= old[i % old.length];
+            }
+            byte[] keyCrc = crc32 ? CRC32.get(key) : CRC16.get(key);
+            crc = Arrays.copyOf(crc, 2 * crcLength);
+            System.arraycopy(keyCrc, 0, crc, crcLength, crcLength);
+        }
+        int end = length + crc.length;
+        if (!Arrays.equals(Arrays.copyOfRange(plain, length, end), crc)) {
+            return status(ApduResponse.INTEGRITY_ERROR);
+        }
+        for (int i = end; i < plain.length; i++) {
+            if (plain[i] != 0) {
+                return status(ApduResponse.INTEGRITY_ERROR);
+            }
+        }
+
+        if (keyType == KeyType.DES && Arrays.equals(key, 0, 8, key, 8, 16)) {
+            key = Arrays.copyOf(key, 8);
+        }
+        selected.keyType = keyType;
+        selected.keys[keyNo] = key;
+        selected.keyVersions[keyNo] = keyType == KeyType.AES ? plain[keyLength] : (byte) (key[7] & 0x01);
+        if (keyNo == authenticatedKey) {
+            clearAuthentication();
+        }
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] getKeyVersion(byte[] data) {
+        int keyNo = data[0] & 0x3F;
+        if (keyNo >= selected.keys.length) {
+            return status(ApduResponse.NO_SUCH_KEY);
+        }
+        return response(new byte[] {selected.keyVersions[keyNo]}, ApduResponse.OPERATION_OK);
+    }
+
+    // ================ PICC LEVEL ================
+
+    private byte[] createApplication(byte[] data) {
+        if (selected.aid != PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        if (data.length != 5) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        if (!masterOrFree()) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int aid = int24(data, 0);
+        if (applications.containsKey(aid)) {
+            return status(ApduResponse.DUPLICATE_ERROR);
+        }
+        int numberOfKeys = data[4] & 0x0F;
+        if (numberOfKeys < 1 || numberOfKeys > 14 || aid == PICC_AID) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (applications.size() > 28) {
+            return status(ApduResponse.COUNT_ERROR);
+        }
+        KeyType keyType = (data[4] & 0x80) != 0 ? KeyType.AES : (data[4] & 0x40) != 0 ? KeyType.TKTDES : KeyType.DES;
+        applications.put(aid, new Application(aid, data[3] & 0xFF, numberOfKeys, keyType));
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] deleteApplication(byte[] data) {
+        if (data.length != 3) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        int aid = int24(data, 0);
+        Application application = applications.get(aid);
+        if (application == null || aid == PICC_AID) {
+            return status(ApduResponse.APPLICATION_NOT_FOUND);
+        }
+        boolean piccMaster = selected.aid == PICC_AID && masterOrFree();
+        boolean appMaster = selected == application && authenticatedKey == 0;
+        if (!piccMaster && !appMaster) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        applications.remove(aid);
+        if (selected == application) {
+            selected = applications.get(PICC_AID);
+            clearAuthentication();
+        }
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] getApplicationIds() {
+        if (selected.aid != PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        if ((selected.keySettings & 0x02) == 0 && authenticatedKey != 0) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int aid : applications.keySet()) {
+            if (aid != PICC_AID) {
+                out.write(aid);
+                out.write(aid >> 8);
+                out.write(aid >> 16);
+            }
+        }
+        return chained(out.toByteArray());
+    }
+
+    private byte[] selectApplication(byte[] data) {
+        if (data.length != 3) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        Application application = applications.get(int24(data, 0));
+        if (application == null) {
+            return status(ApduResponse.APPLICATION_NOT_FOUND);
+        }
+        selected = application;
+        clearAuthentication();
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] formatPicc() {
+        if (selected.aid != PICC_AID || authenticatedKey != 0) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        applications.keySet().removeIf(aid -> aid != PICC_AID);
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] getVersion() {
+        byte[] version = new byte[28];
+        byte[] hardware = {0x04, 0x01, 0x01, 0x01, 0x00, 0x1A, 0x05};
+        byte[] software = {0x04, 0x01, 0x01, 0x01, 0x00, 0x1A, 0x05};
+        System.arraycopy(hardware, 0, version, 0, 7);
+        System.arraycopy(software, 0, version, 7, 7);
+        System.arraycopy(uid, 0, version, 14, 7);
+        version[26] = 0x01; // production week
+        version[27] = 0x13; // production year
+        // hardware, software and production info come in three frames
+        pendingOutput = Arrays.copyOfRange(version, 7, 28);
+        pendingOffset = 0;
+        versionFrames = true;
+        return response(Arrays.copyOf(version, 7), ApduResponse.ADDITIONAL_FRAME);
+    }
+
+    private byte[] getFreeMemory() {
+        int free = capacity - usedMemory();
+        return response(new byte[] {(byte) free, (byte) (free >> 8), (byte) (free >> 16)}, ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] getCardUid() {
+        if (authenticatedKey == NO_KEY) {
+            return status(ApduResponse.AUTHENTICATION_ERROR);
+        }
+        return response(uid, ApduResponse.OPERATION_OK);
+    }
+
+    private int usedMemory() {
+        int used = 0;
+        for (Application application : applications.values()) {
+            for (SimulatedFile file : application.files.values()) {
+                used += (file.footprint() + 31) / 32 * 32;
+            }
+        }
+        return used;
+    }
+
+    // ================ FILE MANAGEMENT ================
+
+    private byte[] getFileIds() {
+        if (selected.aid == PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int fileNo : selected.files.keySet()) {
+            out.write(fileNo);
+        }
+        return response(out.toByteArray(), ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] getFileSettings(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        return response(file.settings(), ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] changeFileSettings(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (!(file.changeRight() == FREE_ACCESS || file.changeRight() == authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        file.communicationSettings = data[1] & 0xFF;
+        file.accessRights = (data[2] & 0xFF) | ((data[3] & 0xFF) << 8);
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] createDataFile(byte[] data, int type) {
+        if (data.length != 7) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        SimulatedFile file = new SimulatedFile(type, data[1] & 0xFF, int16(data, 2));
+        file.allocate(int24(data, 4));
+        return addFile(data[0] & 0xFF, file);
+    }
+
+    private byte[] createValueFile(byte[] data) {
+        if (data.length != 17) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        SimulatedFile file = new SimulatedFile(FILE_VALUE, data[1] & 0xFF, int16(data, 2));
+        file.lowerLimit = int32(data, 4);
+        file.upperLimit = int32(data, 8);
+        file.value = int32(data, 12);
+        file.limitedCreditEnabled = (data[16] & 0x01) != 0;
+        if (file.lowerLimit > file.upperLimit || file.value < file.lowerLimit || file.value > file.upperLimit) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        file.pendingValue = file.value;
+        return addFile(data[0] & 0xFF, file);
+    }
+
+    private byte[] createRecordFile(byte[] data, int type) {
+        if (data.length != 10) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        SimulatedFile file = new SimulatedFile(type, data[1] & 0xFF, int16(data, 2));
+        file.recordSize = int24(data, 4);
+        file.maxRecords = int24(data, 7);
+        if (file.recordSize == 0 || file.maxRecords == 0 || type == FILE_CYCLIC_RECORD && file.maxRecords < 2) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        return addFile(data[0] & 0xFF, file);
+    }
+
+    private byte[] addFile(int fileNo, SimulatedFile file) {
+        if (selected.aid == PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        if (!masterOrFree()) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        if (fileNo > 0x1F) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (selected.files.containsKey(fileNo)) {
+            return status(ApduResponse.DUPLICATE_ERROR);
+        }
+        if (usedMemory() + file.footprint() > capacity) {
+            return status(ApduResponse.OUT_OF_EEPROM_ERROR);
+        }
+        selected.files.put(fileNo, file);
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] deleteFile(byte[] data) {
+        int fileNo = data[0] & 0xFF;
+        if (!selected.files.containsKey(fileNo)) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (!masterOrFree()) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        selected.files.remove(fileNo);
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    // ================ DATA FILES ================
+
+    private byte[] readData(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_STD && file.type != FILE_BACKUP) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canRead(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int offset = int24(data, 1);
+        int length = int24(data, 4);
+        if (length == 0) {
+            length = file.data.length - offset;
+        }
+        if (offset < 0 || length < 0 || offset + length > file.data.length) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        // reads see the committed state of backup files
+        return chained(Arrays.copyOfRange(file.data, offset, offset + length));
+    }
+
+    private byte[] writeData(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_STD && file.type != FILE_BACKUP) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canWrite(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int offset = int24(data, 1);
+        int length = int24(data, 4);
+        if (data.length != 7 + length) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        if (offset + length > file.data.length) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        byte[] target = file.type == FILE_BACKUP ? file.pendingData : file.data;
+        System.arraycopy(data, 7, target, offset, length);
+        file.dirty |= file.type == FILE_BACKUP;
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    // ================ VALUE FILES ================
+
+    private byte[] getValue(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_VALUE) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canRead(authenticatedKey) && !file.canWrite(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int value = file.value;
+        return response(new byte[] {(byte) value, (byte) (value >> 8), (byte) (value >> 16), (byte) (value >> 24)},
+                ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] changeValue(byte[] data, int command) {
+        if (data.length != 5) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_VALUE) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        int amount = int32(data, 1);
+        if (amount < 0) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+
+        long result;
+        switch (command) {
+            case 0x0C: // credit
+                if (!file.canReadWrite(authenticatedKey)) {
+                    return status(ApduResponse.PERMISSION_DENIED);
+                }
+                result = (long) file.pendingValue + amount;
+                break;
+            case 0x1C: // limited credit
+                if (!file.limitedCreditEnabled) {
+                    return status(ApduResponse.PERMISSION_DENIED);
+                }
+                if (!file.canWrite(authenticatedKey)) {
+                    return status(ApduResponse.PERMISSION_DENIED);
+                }
+                result = (long) file.pendingValue + amount;
+                break;
+            default: // debit
+                if (!file.canRead(authenticatedKey) && !file.canWrite(authenticatedKey)) {
+                    return status(ApduResponse.PERMISSION_DENIED);
+                }
+                result = (long) file.pendingValue - amount;
+                break;
+        }
+        if (result < file.lowerLimit || result > file.upperLimit) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        file.pendingValue = (int) result;
+        file.dirty = true;
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    // ================ RECORD FILES ================
+
+    private byte[] writeRecord(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_LINEAR_RECORD && file.type != FILE_CYCLIC_RECORD) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canWrite(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int offset = int24(data, 1);
+        int length = int24(data, 4);
+        if (data.length != 7 + length) {
+            return status(ApduResponse.LENGTH_ERROR);
+        }
+        if (offset + length > file.recordSize) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        if (file.pendingRecord == null) {
+            if (file.type == FILE_LINEAR_RECORD && file.records.size() >= file.maxRecords) {
+                return status(ApduResponse.BOUNDARY_ERROR);
+            }
+            file.pendingRecord = new byte[file.recordSize];
+        }
+        System.arraycopy(data, 7, file.pendingRecord, offset, length);
+        file.dirty = true;
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] readRecords(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_LINEAR_RECORD && file.type != FILE_CYCLIC_RECORD) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canRead(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        int offset = int24(data, 1); // records back from the newest one
+        int count = int24(data, 4);
+        int available = file.records.size();
+        if (offset >= available) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+        if (count == 0) {
+            count = available - offset;
+        }
+        if (offset + count > available) {
+            return status(ApduResponse.BOUNDARY_ERROR);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int newest = available - 1 - offset;
+        for (int i = newest - count + 1; i <= newest; i++) {
+            out.writeBytes(file.records.get(i));
+        }
+        return chained(out.toByteArray());
+    }
+
+    private byte[] clearRecordFile(byte[] data) {
+        SimulatedFile file = selected.files.get(data[0] & 0xFF);
+        if (file == null) {
+            return status(ApduResponse.FILE_NOT_FOUND);
+        }
+        if (file.type != FILE_LINEAR_RECORD && file.type != FILE_CYCLIC_RECORD) {
+            return status(ApduResponse.PARAMETER_ERROR);
+        }
+        if (!file.canReadWrite(authenticatedKey)) {
+            return status(ApduResponse.PERMISSION_DENIED);
+        }
+        file.pendingClear = true;
+        file.pendingRecord = null;
+        file.dirty = true;
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    // ================ TRANSACTIONS ================
+
+    private byte[] commitTransaction() {
+        if (selected.aid == PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        for (SimulatedFile file : selected.files.values()) {
+            file.commit();
+        }
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    private byte[] abortTransaction() {
+        if (selected.aid == PICC_AID) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        for (SimulatedFile file : selected.files.values()) {
+            file.abort();
+        }
+        return status(ApduResponse.OPERATION_OK);
+    }
+
+    // ================ FRAMES ================
+
+    private byte[] additionalFrame(byte[] data) {
+        if (handshake != null) {
+            return finishAuthentication(data);
+        }
+        if (pendingOutput == null) {
+            return status(ApduResponse.ILLEGAL_COMMAND_CODE);
+        }
+        if (versionFrames) {
+            // second frame: software info, third frame: production info
+            boolean last = pendingOffset > 0;
+            int length = last ? 14 : 7;
+            byte[] frame = Arrays.copyOfRange(pendingOutput, pendingOffset, pendingOffset + length);
+            pendingOffset += length;
+            if (last) {
+                pendingOutput = null;
+                versionFrames = false;
+                return response(frame, ApduResponse.OPERATION_OK);
+            }
+            return response(frame, ApduResponse.ADDITIONAL_FRAME);
+        }
+        return nextFrame();
+    }
+
+    private byte[] chained(byte[] data) {
+        pendingOutput = data;
+        pendingOffset = 0;
+        versionFrames = false;
+        return nextFrame();
+    }
+
+    private byte[] nextFrame() {
+        int length = Math.min(FRAME_SIZE, pendingOutput.length - pendingOffset);
+        byte[] frame = Arrays.copyOfRange(pendingOutput, pendingOffset, pendingOffset + length);
+        pendingOffset += length;
+        if (pendingOffset < pendingOutput.length) {
+            return response(frame, ApduResponse.ADDITIONAL_FRAME);
+        }
+        pendingOutput = null;
+        return response(frame, ApduResponse.OPERATION_OK);
+    }
+
+    // ================ HELPERS ================
+
+    /**
+     * Authenticated with the master key of the selected application, or free
+     * create/delete allowed by its key settings
+     */
+    private boolean masterOrFree() {
+        return authenticatedKey == 0 || (selected.keySettings & 0x04) != 0;
+    }
+
+    private static int keyLength(KeyType keyType) {
+        switch (keyType) {
+            case DES: return 8;
+            case TKTDES: return 24;
+            default: return 16;
+        }
+    }
+
+    private static int keyTypeFlag(KeyType keyType) {
+        switch (keyType) {
+            case TKTDES: return 0x40;
+            case AES: return 0x80;
+            default: return 0x00;
+        }
+    }
+
+    private static byte[] status(int code) {
+        return new byte[] {(byte) 0x91, (byte) code};
+    }
+
+    private static byte[] response(byte[] data, int code) {
+        byte[] response = Arrays.copyOf(data, data.length + 2);
+        response[data.length] = (byte) 0x91;
+        response[data.length + 1] = (byte) code;
+        return response;
+    }
+
+    private static int int24(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8) | ((data[offset + 2] & 0xFF) << 16);
+    }
+
+    private static int int16(byte[] data, int offset) {
+        return (data[offset] & 0xFF) | ((data[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int int32(byte[] data, int offset) {
+        return int24(data, offset) | ((data[offset + 3] & 0xFF) << 24);
+    }
+
+    /**
+     * One file of an application; pending fields hold uncommitted changes
+     */
+    private static final class SimulatedFile {
+
+        final int type;
+        int communicationSettings;
+        int accessRights; // read | write | read&write | change, 4 bits each from MSB
+        boolean dirty;
+
+        // data files
+        byte[] data = new byte[0];
+        byte[] pendingData;
+
+        // value files
+        int lowerLimit;
+        int upperLimit;
+        int value;
+        int pendingValue;
+        boolean limitedCreditEnabled;
+
+        // record files
+        int recordSize;
+        int maxRecords;
+        final List<byte[]> records = new ArrayList<>();
+        byte[] pendingRecord;
+        boolean pendingClear;
+
+        SimulatedFile(int type, int communicationSettings, int accessRights) {
+            this.type = type;
+            this.communicationSettings = communicationSettings;
+            this.accessRights = accessRights;
+        }
+
+        void allocate(int size) {
+            data = new byte[size];
+            pendingData = type == FILE_BACKUP ? new byte[size] : null;
+        }
+
+        int footprint() {
+            switch (type) {
+                case FILE_STD: return data.length;
+                case FILE_BACKUP: return 2 * data.length;
+                case FILE_VALUE: return 4;
+                default: return recordSize * maxRecords;
+            }
+        }
+
+        int readRight() {
+            return (accessRights >> 12) & 0x0F;
+        }
+
+        int writeRight() {
+            return (accessRights >> 8) & 0x0F;
+        }
+
+        int readWriteRight() {
+            return (accessRights >> 4) & 0x0F;
+        }
+
+        int changeRight() {
+            return accessRights & 0x0F;
+        }
+
+        boolean canRead(int key) {
+            return granted(readRight(), key) || canReadWrite(key);
+        }
+
+        boolean canWrite(int key) {
+            return granted(writeRight(), key) || canReadWrite(key);
+        }
+
+        boolean canReadWrite(int key) {
+            return granted(readWriteRight(), key);
+        }
+
+        private static boolean granted(int right, int key) {
+            return right == FREE_ACCESS || right != 0x0F && right == key;
+        }
+
+        void commit() {
+            if (!dirty) {
+                return;
+            }
+            switch (type) {
+                case FILE_BACKUP:
+                    System.arraycopy(pendingData, 0, data, 0, data.length);
+                    break;
+                case FILE_VALUE:
+                    value = pendingValue;
+                    break;
+                case FILE_LINEAR_RECORD:
+                case FILE_CYCLIC_RECORD:
+                    if (pendingClear) {
+                        records.clear();
+                    }
+                    if (pendingRecord != null) {
+                        // a cyclic file keeps one record slot free, as real cards do
+                        if (type == FILE_CYCLIC_RECORD && records.size() >= maxRecords - 1) {
+                            records.remove(0);
+                        }
+                        records.add(pendingRecord);
+                    }
+                    pendingRecord = null;
+                    pendingClear = false;
+                    break;
+                default:
+                    break;
+            }
+            dirty = false;
+        }
+
+        void abort() {
+            if (!dirty) {
+                return;
+            }
+            if (type == FILE_BACKUP) {
+                System.arraycopy(data, 0, pendingData, 0, data.length);
+            }
+            pendingValue = value;
+            pendingRecord = null;
+            pendingClear = false;
+            dirty = false;
+        }
+
+        byte[] settings() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(type);
+            out.write(communicationSettings);
+            out.write(accessRights);
+            out.write(accessRights >> 8);
+            switch (type) {
+                case FILE_STD:
+                case FILE_BACKUP:
+                    writeInt(out, data.length, 3);
+                    break;
+                case FILE_VALUE:
+                    writeInt(out, lowerLimit, 4);
+                    writeInt(out, upperLimit, 4);
+                    writeInt(out, 0, 4); // limited credit value
+                    out.write(limitedCreditEnabled ? 1 : 0);
+                    break;
+                default:
+                    writeInt(out, recordSize, 3);
+                    writeInt(out, maxRecords, 3);
+                    writeInt(out, records.size(), 3);
+                    break;
+            }
+            return out.toByteArray();
+        }
+
+        private static void writeInt(ByteArrayOutputStream out, int value, int length) {
+            for (int i = 0; i < length; i++) {
+                out.write(value >> (8 * i));
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package org.esupportail.desfire.simulator;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardNotPresentException;
+import javax.smartcardio.CardTerminal;
+
+/**
+ * Reader of a {@link SimulatedTerminals} into which simulated cards are
+ * tapped with {@link #insert(SimulatedPicc)} and {@link #remove()}
+ */
+public class SimulatedTerminal extends CardTerminal {
+
+    private final SimulatedTerminals terminals;
+    private final String name;
+    private SimulatedPicc picc; // guarded by terminals
+
+    // changes since the last waitForChange of the terminals, guarded by terminals
+    boolean inserted;
+    boolean removed;
+
+    SimulatedTerminal(SimulatedTerminals terminals, String name) {
+        this.terminals = terminals;
+        this.name = name;
+    }
+
+    /**
+     * Put a card in the field
+     */
+    public void insert(SimulatedPicc card) {
+        synchronized (terminals) {
+            picc = card;
+            card.reset();
+            inserted = true;
+            terminals.notifyAll();
+        }
+    }
+
+    /**
+     * Take the card out of the field
+     */
+    public void remove() {
+        synchronized (terminals) {
+            if (picc != null) {
+                picc = null;
+                removed = true;
+                terminals.notifyAll();
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public Card connect(String protocol) throws CardException {
+        synchronized (terminals) {
+            if (picc == null) {
+                throw new CardNotPresentException("No card present on " + name);
+            }
+            return new SimulatedCard(picc);
+        }
+    }
+
+    @Override
+    public boolean isCardPresent() {
+        synchronized (terminals) {
+            return picc != null;
+        }
+    }
+
+    @Override
+    public boolean waitForCardPresent(long timeout) throws CardException {
+        return waitFor(true, timeout);
+    }
+
+    @Override
+    public boolean waitForCardAbsent(long timeout) throws CardException {
+        return waitFor(false, timeout);
+    }
+
+    private boolean waitFor(boolean present, long timeout) throws CardException {
+        synchronized (terminals) {
+            long deadline = System.currentTimeMillis() + timeout;
+            while ((picc != null) != present) {
+                long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+                if (timeout != 0 && remaining <= 0) {
+                    return false;
+                }
+                try {
+                    terminals.wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CardException("Interrupted", e);
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimulatedTerminal: " + name;
+    }
+}
@@ -0,0 +1,115 @@
+package org.esupportail.desfire.simulator;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CardTerminal;
+import javax.smartcardio.CardTerminals;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Set of {@link SimulatedTerminal} readers with the
+ * <code>javax.smartcardio</code> change semantics:
+ * {@link #waitForChange(long)} blocks until a card is inserted or removed, and
+ * {@link #list(State)} with <code>CARD_INSERTION</code> or
+ * <code>CARD_REMOVAL</code> reports the changes seen by the last wait.
+ * Unplugging a reader with a card on it is reported as a removal from that
+ * reader, which {@link #list()} no longer returns.
+ */
+public class SimulatedTerminals extends CardTerminals {
+
+    private final List<SimulatedTerminal> terminals = new ArrayList<>();
+    private final List<CardTerminal> insertions = new ArrayList<>();
+    private final List<CardTerminal> removals = new ArrayList<>();
+    private final List<CardTerminal> unplugged = new ArrayList<>(); // with a card, removal not reported yet
+
+    /**
+     * Add a reader
+     */
+    public synchronized SimulatedTerminal add(String name) {
+        SimulatedTerminal terminal = new SimulatedTerminal(this, name);
+        terminals.add(terminal);
+        notifyAll();
+        return terminal;
+    }
+
+    /**
+     * Unplug a reader
+     */
+    public synchronized void unplug(SimulatedTerminal terminal) {
+        if (terminal.isCardPresent()) {
+            unplugged.add(terminal);
+        }
+        terminal.remove();
+        terminals.remove(terminal);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized List<CardTerminal> list(State state) throws CardException {
+        List<CardTerminal> result = new ArrayList<>();
+        switch (state) {
+            case CARD_INSERTION:
+                result.addAll(insertions);
+                break;
+            case CARD_REMOVAL:
+                result.addAll(removals);
+                break;
+            default:
+                for (SimulatedTerminal terminal : terminals) {
+                    boolean present = terminal.isCardPresent();
+                    if (state == State.ALL || present == (state == State.CARD_PRESENT)) {
+                        result.add(terminal);
+                    }
+                }
+                break;
+        }
+        return result;
+    }
+
+    @Override
+    public synchronized boolean waitForChange(long timeout) throws CardException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!changed()) {
+            long remaining = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+            if (timeout != 0 && remaining <= 0) {
+                insertions.clear();
+                removals.clear();
+                return false;
+            }
+            try {
+                wait(remaining);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CardException("Interrupted", e);
+            }
+        }
+
+        insertions.clear();
+        removals.clear();
+        removals.addAll(unplugged);
+        unplugged.clear();
+        for (SimulatedTerminal terminal : terminals) {
+            if (terminal.removed) {
+                removals.add(terminal);
+            }
+            if (terminal.inserted) {
+                insertions.add(terminal);
+            }
+            terminal.inserted = false;
+            terminal.removed = false;
+        }
+        return true;
+    }
+
+    private boolean changed() {
+        if (!unplugged.isEmpty()) {
+            return true;
+        }
+        for (SimulatedTerminal terminal : terminals) {
+            if (terminal.inserted || terminal.removed) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,156 @@
+package org.esupportail.desfire.core;
+
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+import org.esupportail.desfire.core.transport.RecordedTransport;
+import org.esupportail.desfire.core.util.AES;
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.model.KeyType;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.UnaryOperator;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for DESFireEngine and SessionContext
+ */
+public class DESFireEngineTest {
+
+    /**
+     * Card side of SELECT and of the AES 3-pass authentication
+     */
+    private static class AesCard implements UnaryOperator<byte[]> {
+
+        private final byte[] key;
+        private byte[] randB;
+        private byte[] lastBlock;
+
+        AesCard(byte[] key) {
+            this.key = key;
+        }
+
+        @Override
+        public byte[] apply(byte[] apdu) {
+            switch (apdu[1] & 0xFF) {
+                case 0x5A:
+                    return status(new byte[0], 0x00);
+                case 0xAA:
+                    randB = DesfireCrypto.random(16);
+                    byte[] encRandB = AES.encrypt(new byte[16], key, randB);
+                    lastBlock = encRandB;
+                    return status(encRandB, 0xAF);
+                case 0xAF:
+                    byte[] ciphertext = Arrays.copyOfRange(apdu, 5, 5 + (apdu[4] & 0xFF));
+                    byte[] plain = AES.decrypt(lastBlock, key, ciphertext);
+                    byte[] randA = Arrays.copyOfRange(plain, 0, 16);
+                    if (!Arrays.equals(Arrays.copyOfRange(plain, 16, 32), DesfireCrypto.rotateLeft(randB))) {
+                        return status(new byte[0], 0xAE);
+                    }
+                    byte[] iv = Arrays.copyOfRange(ciphertext, 16, 32);
+                    return status(AES.encrypt(iv, key, DesfireCrypto.rotateLeft(randA)), 0x00);
+                default:
+                    return status(new byte[0], 0x1C);
+            }
+        }
+
+        private static byte[] status(byte[] data, int sw2) {
+            byte[] response = Arrays.copyOf(data, data.length + 2);
+            response[data.length] = (byte) 0x91;
+            response[data.length + 1] = (byte) sw2;
+            return response;
+        }
+    }
+
+    private static InMemoryTransport card(byte[] key) {
+        return new InMemoryTransport(new AesCard(key));
+    }
+
+    @Test
+    public void testSelectUpdatesContext() {
+        DESFireEngine engine = new DESFireEngine();
+        SessionContext ctx = new SessionContext();
+        byte[] aid = {0x12, 0x34, 0x56};
+
+        assertTrue(engine.selectApplication(card(new byte[16]), ctx, aid));
+        assertArrayEquals(aid, ctx.getAid());
+        assertEquals(0x00, ctx.getLastStatus());
+        assertFalse(ctx.isAuthenticated());
+    }
+
+    @Test
+    public void testAuthenticateAes() {
+        byte[] key = new byte[16];
+        SessionContext ctx = new SessionContext();
+
+        byte[] sessionKey = new DESFireEngine().authenticate(card(key), ctx, key.clone(), (byte) 0x00, KeyType.AES);
+
+        assertNotNull(sessionKey);
+        assertTrue(ctx.isAuthenticated());
+        assertEquals(KeyType.AES, ctx.getKeyType());
+        assertArrayEquals(sessionKey, ctx.getSessionKey());
+    }
+
+    @Test
+    public void testWrongKeyFails() {
+        byte[] cardKey = new byte[16];
+        byte[] wrongKey = new byte[16];
+        wrongKey[0] = 0x01;
+        SessionContext ctx = new SessionContext();
+
+        assertNull(new DESFireEngine().authenticate(card(cardKey), ctx, wrongKey, (byte) 0x00, KeyType.AES));
+        assertFalse(ctx.isAuthenticated());
+    }
+
+    @Test
+    public void testBufferedCommandsAndChainedRead() {
+        String frame = "000102030405060708090A0B0C0D0E0F";
+        RecordedTransport transport = new RecordedTransport(Arrays.asList(
+                RecordedTransport.Exchange.of("90CD0000070100EEEE300000", "9100"),
+                RecordedTransport.Exchange.of("903D00000B01020000040000CAFEBABE", "9100"),
+                RecordedTransport.Exchange.of("90BD00000701000000000000", frame + "91AF"),
+                RecordedTransport.Exchange.of("90AF000000", frame + "91AF"),
+                RecordedTransport.Exchange.of("90AF000000", frame + "9100"),
+                RecordedTransport.Exchange.of("906E000000", "0020009100")));
+        DESFireEngine engine = new DESFireEngine();
+        SessionContext ctx = new SessionContext();
+
+        assertTrue(engine.createStdDataFile(transport, ctx, (byte) 0x01, (byte) 0x00, new byte[] {(byte) 0xEE, (byte) 0xEE}, 48));
+        assertTrue(engine.writeData(transport, ctx, (byte) 0x01, 2, new byte[] {(byte) 0xCA, (byte) 0xFE, (byte) 0xBA, (byte) 0xBE}));
+        byte[] data = engine.readData(transport, ctx, (byte) 0x01, 0, 0);
+        assertEquals(48, data.length);
+        assertEquals(0x0F, data[47]);
+        assertEquals(0x2000, engine.getFreeMemory(transport, ctx));
+        assertEquals(0, transport.remaining());
+    }
+
+    @Test
+    public void testSharedEngineConcurrentCards() throws Exception {
+        DESFireEngine engine = new DESFireEngine();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                final byte[] key = DesfireCrypto.random(16);
+                final byte[] aid = {0x00, 0x00, (byte) i};
+                results.add(executor.submit(() -> {
+                    SessionContext ctx = new SessionContext();
+                    InMemoryTransport transport = card(key);
+                    return engine.selectApplication(transport, ctx, aid)
+                            && engine.authenticate(transport, ctx, key.clone(), (byte) 0x00, KeyType.AES) != null
+                            && Arrays.equals(aid, ctx.getAid());
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
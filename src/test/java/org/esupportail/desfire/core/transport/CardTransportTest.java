@@ -0,0 +1,61 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.service.DESFireCompleteService;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for the CardTransport implementations
+ */
+public class CardTransportTest {
+
+    @Test
+    public void testRecordedSessionReplay() {
+        RecordedTransport transport = new RecordedTransport(Arrays.asList(
+                RecordedTransport.Exchange.of("905A000003000000", "9100"),
+                RecordedTransport.Exchange.of("9060000000", "04010101001A0591AF"),
+                RecordedTransport.Exchange.of("90AF000000", "04010101000E0591AF"),
+                RecordedTransport.Exchange.of("90AF000000", "04A1B2C3D4E5F6BA34CD0001131A9100")));
+        DESFireEV1 desfire = new DESFireEV1(transport);
+
+        assertTrue(desfire.connect());
+        assertTrue(desfire.selectApplication(new byte[3]));
+        byte[] version = desfire.getVersion();
+
+        assertEquals(28, version.length);
+        assertEquals("04A1B2C3D4E5F6", DesfireUtils.byteArrayToHexString(Arrays.copyOfRange(version, 14, 21)));
+        assertEquals(0, transport.remaining());
+    }
+
+    @Test
+    public void testRecordedSessionMismatch() {
+        RecordedTransport transport = new RecordedTransport(Arrays.asList(
+                RecordedTransport.Exchange.of("905A000003000000", "9100")));
+        try {
+            new DESFireEV1(transport).selectApplication(new byte[] {0x01, 0x02, 0x03});
+            fail("Should reject a command that was not recorded");
+        } catch (TransportException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected command 905A000003010203"));
+        }
+    }
+
+    @Test
+    public void testCompleteServiceOverInMemoryTransport() {
+        InMemoryTransport transport = new InMemoryTransport(apdu -> (apdu[1] & 0xFF) == 0x51
+                ? DesfireUtils.hexStringToByteArray("04A1B2C3D4E5F69100")
+                : DesfireUtils.hexStringToByteArray("911C"));
+        DESFireCompleteService service = new DESFireCompleteService(transport);
+
+        assertEquals("04A1B2C3D4E5F6", DesfireUtils.byteArrayToHexString(service.getCardUID()));
+        assertNull(service.getKeySettings());
+        assertTrue(service.disconnect());
+        assertFalse(service.isConnected());
+        assertNull(service.transmit(new byte[] {(byte) 0x90, 0x60, 0x00, 0x00, 0x00}));
+    }
+}
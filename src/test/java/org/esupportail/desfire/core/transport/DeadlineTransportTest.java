@@ -0,0 +1,186 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.DeadlineExceededException;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.DESFireCompleteService;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for Deadline and DeadlineTransport
+ */
+public class DeadlineTransportTest {
+
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+    private static final byte[] OK = {(byte) 0x91, 0x00};
+
+    /**
+     * Transport whose card never answers, until released
+     */
+    private static class StuckTransport extends InMemoryTransport {
+
+        final CountDownLatch release = new CountDownLatch(1);
+
+        StuckTransport() {
+            super(apdu -> OK);
+        }
+
+        @Override
+        public int transceive(ByteBuffer command, ByteBuffer response) {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return super.transceive(command, response);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void testBoundDeadlinesNest() throws Exception {
+        Deadline outer = Deadline.after(Duration.ofSeconds(10));
+        Deadline inner = Deadline.after(Duration.ofMillis(20));
+        assertEquals(Long.MAX_VALUE, Deadline.currentRemainingNanos());
+
+        try (Deadline.Scope o = outer.bind()) {
+            try (Deadline.Scope i = inner.bind()) {
+                assertTrue(Deadline.currentRemainingNanos() <= TimeUnit.MILLISECONDS.toNanos(20));
+                Thread.sleep(30);
+                assertTrue(inner.isExpired());
+                try {
+                    Deadline.checkCurrent("APDU");
+                    fail("Expired deadline should stop the thread");
+                } catch (DeadlineExceededException e) {
+                    assertEquals("APDU", e.getStep());
+                }
+            }
+            Deadline.checkCurrent("APDU");
+            assertTrue(Deadline.currentRemainingNanos() > TimeUnit.SECONDS.toNanos(5));
+            outer.cancel();
+            assertEquals(0, Deadline.currentRemainingNanos());
+        }
+        assertEquals(Long.MAX_VALUE, Deadline.currentRemainingNanos());
+        assertFalse(Deadline.none().isExpired());
+    }
+
+    @Test
+    public void testStuckCardIsAbandoned() {
+        StuckTransport card = new StuckTransport();
+        DeadlineTransport transport = new DeadlineTransport(card, Duration.ofMillis(100));
+
+        long start = System.nanoTime();
+        try {
+            transport.transceive(new byte[] {(byte) 0x90, 0x60, 0x00, 0x00, 0x00});
+            fail("Stuck card should time out");
+        } catch (DeadlineExceededException e) {
+            assertEquals("APDU", e.getStep());
+        }
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Gave up after " + elapsed + " ms", elapsed >= 100 && elapsed < 1000);
+        // the card was disconnected so the stuck call returns
+        assertTrue(waitFor(() -> !card.isConnected()));
+    }
+
+    @Test
+    public void testCancelStopsWaitingExchange() throws Exception {
+        StuckTransport card = new StuckTransport();
+        DeadlineTransport transport = new DeadlineTransport(card, Duration.ofSeconds(30));
+        Deadline deadline = Deadline.none();
+        ScheduledExecutorService canceller = Executors.newSingleThreadScheduledExecutor();
+        canceller.schedule(deadline::cancel, 50, TimeUnit.MILLISECONDS);
+
+        long start = System.nanoTime();
+        try (Deadline.Scope scope = deadline.bind()) {
+            transport.transceive(new byte[] {(byte) 0x90, 0x60, 0x00, 0x00, 0x00});
+            fail("Cancelled exchange should stop");
+        } catch (DeadlineExceededException e) {
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        } finally {
+            canceller.shutdown();
+        }
+    }
+
+    @Test
+    public void testAnsweringCardPassesThrough() {
+        DeadlineTransport transport = new DeadlineTransport(new InMemoryTransport(apdu -> OK), Duration.ofMillis(500));
+        try (ExclusiveSession session = ExclusiveSession.open(transport)) {
+            for (int i = 0; i < 100; i++) {
+                assertArrayEquals(OK, transport.transceive(new byte[] {(byte) 0x90, 0x60, 0x00, 0x00, 0x00}));
+            }
+        }
+        transport.close();
+        assertFalse(transport.isConnected());
+    }
+
+    @Test
+    public void testFlowReportsStepsDone() {
+        SimulatedPicc picc = new SimulatedPicc();
+        Deadline deadline = Deadline.after(Duration.ofSeconds(10));
+        AtomicInteger exchanges = new AtomicInteger();
+        DESFireCompleteService service = new DESFireCompleteService(new InMemoryTransport(apdu -> {
+            if (exchanges.incrementAndGet() == 2) {
+                deadline.cancel(); // walked away once the application is selected
+            }
+            return picc.process(apdu);
+        }));
+        assertTrue(service.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+
+        try {
+            service.readFileComplete(AID, (byte) 0x00, KeyType.AES, new byte[16], (byte) 0x01, 0, 16, deadline);
+            fail("Cancelled flow should stop");
+        } catch (DeadlineExceededException e) {
+            assertEquals("authenticate", e.getStep());
+            assertEquals(Collections.singletonList("select application"), e.getCompletedSteps());
+        }
+        assertEquals(2, exchanges.get());
+        assertFalse(service.isAuthenticated());
+    }
+
+    @Test
+    public void testExpiredDeadlineStopsBeforeFirstApdu() {
+        AtomicInteger exchanges = new AtomicInteger();
+        DESFireCompleteService service = new DESFireCompleteService(new InMemoryTransport(apdu -> {
+            exchanges.incrementAndGet();
+            return OK;
+        }));
+        Deadline expired = Deadline.none();
+        expired.cancel();
+        try {
+            service.createApplicationComplete(AID, (byte) 0x0F, (byte) 0x01, new byte[16], KeyType.AES, expired);
+            fail("Expired deadline should stop the flow");
+        } catch (DeadlineExceededException e) {
+            assertEquals("create application", e.getStep());
+            assertTrue(e.getCompletedSteps().isEmpty());
+        }
+        assertEquals(0, exchanges.get());
+    }
+
+    private static boolean waitFor(BooleanSupplier condition) {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(2);
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > end) {
+                return false;
+            }
+            Thread.yield();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,101 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.DESFireCompleteService;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ExclusiveSession
+ */
+public class ExclusiveSessionTest {
+
+    private static final byte[] GET_VERSION = {(byte) 0x90, 0x60, 0x00, 0x00, 0x00};
+
+    /**
+     * Counts begin/end calls
+     */
+    private static class CountingTransport extends InMemoryTransport {
+
+        int begins;
+        int ends;
+
+        CountingTransport() {
+            super(apdu -> new byte[] {(byte) 0x91, 0x00});
+        }
+
+        @Override
+        public void beginExclusive() {
+            begins++;
+        }
+
+        @Override
+        public void endExclusive() {
+            ends++;
+        }
+    }
+
+    @Test
+    public void testNestedSessionsTakeCardOnce() {
+        CountingTransport transport = new CountingTransport();
+
+        try (ExclusiveSession outer = ExclusiveSession.open(transport)) {
+            assertTrue(outer.isOutermost());
+            try (ExclusiveSession inner = ExclusiveSession.open(transport)) {
+                assertFalse(inner.isOutermost());
+                transport.transceive(GET_VERSION);
+            }
+            assertEquals(0, transport.ends);
+            assertFalse(outer.isClosed());
+        }
+        assertEquals(1, transport.begins);
+        assertEquals(1, transport.ends);
+
+        ExclusiveSession again = ExclusiveSession.open(transport);
+        again.close();
+        again.close();
+        assertTrue(again.isClosed());
+        assertEquals(2, transport.ends);
+        assertTrue(again.getElapsed().toNanos() >= 0);
+    }
+
+    @Test
+    public void testOtherClientsWaitForSession() throws Exception {
+        SimulatedCard card = new SimulatedCard();
+        CardTransport owner = card.transport();
+        CardTransport other = new ChannelTransport(card.getBasicChannel());
+
+        CompletableFuture<byte[]> blocked;
+        try (ExclusiveSession session = ExclusiveSession.open(owner)) {
+            owner.transceive(GET_VERSION);
+            blocked = CompletableFuture.supplyAsync(() -> other.transceive(GET_VERSION));
+            try {
+                blocked.get(100, TimeUnit.MILLISECONDS);
+                fail("Exchange of another client should wait for the session");
+            } catch (TimeoutException expected) {
+                // still held
+            }
+        }
+        assertEquals(9, blocked.get(2, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void testCompleteFlowReleasesCard() throws Exception {
+        SimulatedCard card = new SimulatedCard();
+        DESFireCompleteService service = new DESFireCompleteService(card.transport());
+
+        // no such application: the flow fails half way and must still release the card
+        assertNull(service.readFileComplete(new byte[] {0x01, 0x02, 0x03}, (byte) 0x00, KeyType.AES, new byte[16],
+                (byte) 0x01, 0, 16));
+
+        CardTransport other = new ChannelTransport(card.getBasicChannel());
+        byte[] version = CompletableFuture.supplyAsync(() -> other.transceive(GET_VERSION)).get(2, TimeUnit.SECONDS);
+        assertEquals(9, version.length);
+    }
+}
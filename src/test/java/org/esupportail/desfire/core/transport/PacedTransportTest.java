@@ -0,0 +1,91 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.exceptions.TransportException;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for the pacing policies and PacedTransport
+ */
+public class PacedTransportTest {
+
+    private static final byte[] GET_VERSION = {(byte) 0x90, 0x60, 0x00, 0x00, 0x00};
+
+    @Test
+    public void testAdaptiveBackOffAndDecay() {
+        AdaptivePacing pacing = new AdaptivePacing(1_000_000, 8_000_000);
+        assertEquals(0, pacing.delayNanos());
+
+        pacing.onFailure();
+        assertEquals(1_000_000, pacing.delayNanos());
+        pacing.onFailure();
+        pacing.onFailure();
+        pacing.onFailure();
+        pacing.onFailure();
+        assertEquals(8_000_000, pacing.delayNanos());
+
+        for (int i = 0; i < 20; i++) {
+            pacing.onSuccess();
+        }
+        assertEquals(0, pacing.delayNanos());
+    }
+
+    @Test
+    public void testConfigByReaderName() {
+        PacingConfig config = new PacingConfig()
+                .add("SAM", PacingPolicy::none)
+                .add("ACR1581", () -> PacingPolicy.fixed(Duration.ofMillis(20)));
+
+        assertEquals(20_000_000, config.policyFor("ACS ACR1581 1S Dual Reader(1)").delayNanos());
+        assertEquals(0, config.policyFor("ACS ACR1581 1S Dual Reader SAM").delayNanos());
+        assertEquals(0, config.policyFor("Identiv uTrust 3700 F").delayNanos());
+        assertTrue(PacingConfig.defaults().policyFor("ACS ACR122U") instanceof AdaptivePacing);
+        assertNotSame(config.policyFor("ACR1581"), config.policyFor("ACR1581"));
+    }
+
+    @Test
+    public void testTransientStatusBacksOff() {
+        AtomicInteger calls = new AtomicInteger();
+        InMemoryTransport reader = new InMemoryTransport(apdu -> calls.incrementAndGet() == 1
+                ? new byte[] {(byte) 0x91, (byte) 0xCA}
+                : new byte[] {(byte) 0x91, 0x00});
+        AdaptivePacing pacing = new AdaptivePacing(Duration.ofMillis(20).toNanos(), Duration.ofMillis(100).toNanos());
+        PacedTransport transport = new PacedTransport(reader, pacing);
+
+        transport.transceive(GET_VERSION);
+        assertEquals(Duration.ofMillis(20).toNanos(), pacing.delayNanos());
+
+        long start = System.nanoTime();
+        transport.transceive(GET_VERSION);
+        assertTrue(System.nanoTime() - start >= Duration.ofMillis(19).toNanos());
+        assertEquals(Duration.ofMillis(15).toNanos(), pacing.delayNanos());
+    }
+
+    @Test
+    public void testReaderErrorBacksOff() {
+        InMemoryTransport reader = new InMemoryTransport(apdu -> null);
+        AdaptivePacing pacing = new AdaptivePacing(1_000_000, 10_000_000);
+        PacedTransport transport = new PacedTransport(reader, pacing);
+        try {
+            transport.transceive(GET_VERSION);
+            fail("Should propagate the reader error");
+        } catch (TransportException e) {
+            assertEquals(1_000_000, pacing.delayNanos());
+        }
+    }
+
+    @Test
+    public void testNoPacingDoesNotSleep() {
+        PacedTransport transport = new PacedTransport(
+                new InMemoryTransport(apdu -> new byte[] {(byte) 0x91, 0x00}), PacingPolicy.none());
+        long start = System.nanoTime();
+        for (int i = 0; i < 30; i++) {
+            transport.transceive(GET_VERSION);
+        }
+        assertTrue(System.nanoTime() - start < Duration.ofMillis(500).toNanos());
+    }
+}
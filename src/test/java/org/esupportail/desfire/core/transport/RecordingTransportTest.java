@@ -0,0 +1,187 @@
+package org.esupportail.desfire.core.transport;
+
+import org.esupportail.desfire.core.DESFireEngine;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.DESFireCompleteService;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for RecordingTransport and capture replay
+ */
+public class RecordingTransportTest {
+
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testReplayCapturedTap() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("tap.dfr");
+        String version;
+        byte[] uid;
+        try (CardTransport transport = new RecordingTransport(new SimulatedCard().transport(), capture)) {
+            DESFireCompleteService service = new DESFireCompleteService(transport);
+            assertTrue(service.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+            assertTrue(service.selectApplication(AID));
+            version = service.getVersionComplete();
+            uid = service.getCardUID();
+        }
+
+        List<RecordedTransport.Exchange> exchanges = RecordingTransport.read(capture);
+        assertEquals("90CA000005123456", DesfireUtils.byteArrayToHexString(exchanges.get(0).getCommand()).substring(0, 16));
+
+        RecordedTransport replay = RecordedTransport.open(capture, RecordedTransport.Timing.FAST);
+        DESFireCompleteService service = new DESFireCompleteService(replay);
+        assertTrue(service.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+        assertTrue(service.selectApplication(AID));
+        assertEquals(version, service.getVersionComplete());
+        assertArrayEquals(uid, service.getCardUID());
+        assertEquals(0, replay.remaining());
+    }
+
+    @Test
+    public void testReplayAuthenticatedTap() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("auth.dfr");
+        byte[] data = {0x01, 0x02, 0x03, 0x04};
+        try (CardTransport transport = new RecordingTransport(new SimulatedCard().transport(), capture)) {
+            DESFireCompleteService service = new DESFireCompleteService(transport, new DESFireEngine(new Random(42)));
+            assertTrue(service.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+            assertTrue(service.selectApplication(AID));
+            assertNotNull(service.authenticate(new byte[16], (byte) 0x00, KeyType.AES));
+            assertTrue(service.createStdDataFile((byte) 0x01, (byte) 0x00, new byte[] {0x00, 0x00}, 4));
+            assertTrue(service.writeData((byte) 0x01, 0, data));
+            assertArrayEquals(data, service.readData((byte) 0x01, 0, 4));
+        }
+
+        // same seed, same PCD random number: every command matches the capture
+        RecordedTransport replay = RecordedTransport.open(capture, RecordedTransport.Timing.FAST);
+        DESFireCompleteService service = new DESFireCompleteService(replay, new DESFireEngine(new Random(42)));
+        assertTrue(service.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+        assertTrue(service.selectApplication(AID));
+        assertNotNull(service.authenticate(new byte[16], (byte) 0x00, KeyType.AES));
+        assertTrue(service.createStdDataFile((byte) 0x01, (byte) 0x00, new byte[] {0x00, 0x00}, 4));
+        assertTrue(service.writeData((byte) 0x01, 0, data));
+        assertArrayEquals(data, service.readData((byte) 0x01, 0, 4));
+        assertEquals(0, replay.remaining());
+
+        RecordedTransport other = RecordedTransport.open(capture, RecordedTransport.Timing.FAST);
+        DESFireCompleteService unseeded = new DESFireCompleteService(other);
+        assertTrue(unseeded.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+        assertTrue(unseeded.selectApplication(AID));
+        try {
+            unseeded.authenticate(new byte[16], (byte) 0x00, KeyType.AES);
+            fail("A fresh PCD random number should not match the capture");
+        } catch (TransportException e) {
+            assertTrue(e.getMessage().startsWith("Unexpected command"));
+        }
+    }
+
+    @Test
+    public void testOriginalTimingAndAppend() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("slow.dfr");
+        InMemoryTransport slowCard = new InMemoryTransport(apdu -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return new byte[] {(byte) 0x91, 0x00};
+        });
+        for (int session = 0; session < 2; session++) {
+            RecordingTransport transport = new RecordingTransport(slowCard, capture);
+            transport.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00});
+            transport.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00});
+        }
+
+        List<RecordedTransport.Exchange> exchanges = RecordingTransport.read(capture);
+        assertEquals(4, exchanges.size());
+        assertTrue(exchanges.get(0).getDurationNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertTrue(exchanges.get(1).getSentNanos() > exchanges.get(0).getSentNanos());
+
+        RecordedTransport fast = new RecordedTransport(exchanges, RecordedTransport.Timing.FAST);
+        long start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            fast.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00});
+        }
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(60));
+
+        RecordedTransport original = new RecordedTransport(exchanges, RecordedTransport.Timing.ORIGINAL);
+        start = System.nanoTime();
+        for (int i = 0; i < 4; i++) {
+            original.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00});
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(80));
+    }
+
+    @Test
+    public void testFailuresAndLenientMatching() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("failed.dfr");
+        InMemoryTransport card = new InMemoryTransport(apdu -> apdu[1] == 0x0A ? null : new byte[] {(byte) 0x91, 0x00});
+        try (RecordingTransport transport = new RecordingTransport(card, capture)) {
+            transport.transceive(DesfireUtils.hexStringToByteArray("905A00000301020300"));
+            try {
+                transport.transceive(DesfireUtils.hexStringToByteArray("900A0000010000"));
+                fail("Card should not answer");
+            } catch (TransportException expected) {
+                // recorded as a failure
+            }
+        }
+
+        RecordedTransport replay = RecordedTransport.open(capture, RecordedTransport.Timing.FAST).setStrict(false);
+        assertEquals(2, replay.transceive(DesfireUtils.hexStringToByteArray("905A00000304050600")).length);
+        try {
+            replay.transceive(DesfireUtils.hexStringToByteArray("900A0000010000"));
+            fail("Recorded failure should be replayed");
+        } catch (TransportException e) {
+            assertTrue(e.getMessage().startsWith("Recorded transport failure"));
+        }
+    }
+
+    @Test
+    public void testCaptureFailureKeepsResponse() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("interrupted.dfr");
+        // an interrupt closes the capture file channel on the next write
+        InMemoryTransport card = new InMemoryTransport(apdu -> {
+            Thread.currentThread().interrupt();
+            return new byte[] {(byte) 0x91, 0x00};
+        });
+        try (RecordingTransport transport = new RecordingTransport(card, capture)) {
+            assertArrayEquals(new byte[] {(byte) 0x91, 0x00},
+                    transport.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00}));
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    public void testTruncatedRecordEndsCapture() throws Exception {
+        Path capture = folder.getRoot().toPath().resolve("torn.dfr");
+        try (RecordingTransport transport = new RecordingTransport(
+                new InMemoryTransport(apdu -> new byte[] {(byte) 0x91, 0x00}), capture)) {
+            transport.transceive(new byte[] {(byte) 0x90, 0x6E, 0x00, 0x00, 0x00});
+            transport.transceive(new byte[] {(byte) 0x90, 0x60, 0x00, 0x00, 0x00});
+        }
+        try (FileChannel file = FileChannel.open(capture, StandardOpenOption.WRITE)) {
+            file.truncate(file.size() - 3);
+        }
+
+        List<RecordedTransport.Exchange> exchanges = RecordingTransport.read(capture);
+        assertEquals(1, exchanges.size());
+        assertEquals(0x6E, exchanges.get(0).getCommand()[1]);
+    }
+}
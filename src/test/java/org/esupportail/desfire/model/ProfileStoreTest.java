@@ -0,0 +1,140 @@
+package org.esupportail.desfire.model;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.service.ApduScriptBuilder;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for CompactProfile, ProfileCodec and ProfileStore
+ */
+public class ProfileStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DesfireTag profile(int i) {
+        DesfireApplication app = new DesfireApplication(String.format("%06X", i));
+        app.setIsoId("e1a0");
+        app.addKey(new DesfireKey("00", "00112233445566778899aabbccddeeff", "01", KeyType.AES));
+        app.addKey(new DesfireKey("01", "FFEEDDCCBBAA99887766554433221100", KeyType.AES));
+        DesfireFile file = new DesfireFile("01", "80");
+        file.setCommunicationSettings("03");
+        file.setAccessRights("1234");
+        file.setInitialValue(String.format("%08X", i));
+        app.addFile(file);
+
+        DesfireTag tag = new DesfireTag();
+        tag.setFormatBeforeWrite(i % 2 == 0);
+        tag.setKeyTypeStart(KeyType.DES);
+        tag.setKeyStart("0000000000000000");
+        tag.addApplication(app);
+        return tag;
+    }
+
+    @Test
+    public void testConvertRoundTrip() {
+        DesfireTag tag = CompactProfile.from(profile(0x123456)).toTag();
+
+        assertTrue(tag.isFormatBeforeWrite());
+        assertEquals("0000000000000000", tag.getKeyStart());
+        assertNull(tag.getKeyFinish());
+        assertNull(tag.getKeyVersionFinish());
+
+        DesfireApplication app = tag.getApplications().get(0);
+        assertEquals("123456", app.getDesfireAppId());
+        assertEquals("E1A0", app.getIsoId());
+        assertNull(app.getIsoName());
+        assertEquals("00112233445566778899AABBCCDDEEFF", app.getKeys().get(0).getKeyValue());
+        assertEquals("01", app.getKeys().get(0).getKeyVersion());
+        assertNull(app.getKeys().get(1).getKeyVersion());
+
+        DesfireFile file = app.getFiles().get(0);
+        assertEquals("01", file.getFileNumber());
+        assertEquals("80", file.getFileSize());
+        assertEquals("03", file.getCommunicationSettings());
+        assertEquals("1234", file.getAccessRights());
+        assertEquals("00123456", file.getInitialValue());
+    }
+
+    @Test
+    public void testCodecRoundTrip() {
+        CompactProfile profile = CompactProfile.from(profile(7));
+        byte[] encoded = ProfileCodec.encode(profile);
+
+        assertEquals(ProfileCodec.encodedSize(profile), encoded.length);
+        CompactProfile decoded = ProfileCodec.read(ByteBuffer.wrap(encoded));
+        assertArrayEquals(encoded, ProfileCodec.encode(decoded));
+        assertEquals(7, decoded.getApplications()[0].getAid());
+        assertEquals(0x80, decoded.getApplications()[0].getFiles()[0].getFileSize());
+    }
+
+    @Test
+    public void testStoreBuildsSameScripts() throws Exception {
+        Path file = folder.newFile("profiles.dfp").toPath();
+        List<CompactProfile> profiles = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            profiles.add(CompactProfile.from(profile(i)));
+        }
+        ProfileStore.write(file, profiles);
+
+        ProfileStore store = ProfileStore.open(file);
+        assertEquals(2000, store.size());
+
+        ApduScriptBuilder builder = new ApduScriptBuilder();
+        for (int i : new int[] {0, 1, 999, 1999}) {
+            List<byte[]> expected = builder.build(profile(i));
+            List<byte[]> actual = builder.build(store.get(i));
+            assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                assertArrayEquals(expected.get(j), actual.get(j));
+            }
+        }
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testOutOfRange() throws Exception {
+        Path file = folder.newFile("empty.dfp").toPath();
+        ProfileStore.write(file, new ArrayList<>());
+        ProfileStore.open(file).get(0);
+    }
+
+    @Test
+    public void testArraysAreCopied() {
+        CompactProfile profile = CompactProfile.from(profile(1));
+        profile.getKeyStart()[0] = 0x55;
+        profile.getApplications()[0].getKeys()[0].getValue()[0] = 0x55;
+        profile.getApplications()[0] = null;
+
+        assertEquals(0x00, profile.getKeyStart()[0]);
+        assertEquals(0x00, profile.getApplications()[0].getKeys()[0].getValue()[0]);
+    }
+
+    @Test
+    public void testTruncatedRecord() throws Exception {
+        Path file = folder.newFile("truncated.dfp").toPath();
+        List<CompactProfile> profiles = new ArrayList<>();
+        profiles.add(CompactProfile.from(profile(1)));
+        ProfileStore.write(file, profiles);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 6);
+        }
+
+        try {
+            ProfileStore.open(file).get(0);
+            fail("A truncated record should be reported");
+        } catch (DesfireException e) {
+            assertEquals("Corrupted profile record 0", e.getMessage());
+        }
+    }
+}
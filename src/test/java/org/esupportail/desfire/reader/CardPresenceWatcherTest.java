@@ -0,0 +1,91 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.esupportail.desfire.simulator.SimulatedTerminal;
+import org.esupportail.desfire.simulator.SimulatedTerminals;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for CardPresenceWatcher
+ */
+public class CardPresenceWatcherTest {
+
+    private static CardPresenceEvent next(BlockingQueue<CardPresenceEvent> events) throws InterruptedException {
+        CardPresenceEvent event = events.poll(2, TimeUnit.SECONDS);
+        assertNotNull("No card event received", event);
+        return event;
+    }
+
+    @Test
+    public void testInsertAndRemove() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        BlockingQueue<CardPresenceEvent> events = new LinkedBlockingQueue<>();
+
+        try (CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200)) {
+            watcher.addListener(events::add);
+            watcher.start();
+            assertTrue(watcher.isRunning());
+
+            long tap = System.nanoTime();
+            reader.insert(new SimulatedPicc());
+            CardPresenceEvent inserted = next(events);
+            assertEquals(CardPresenceEvent.Type.INSERTED, inserted.getType());
+            assertSame(reader, inserted.getTerminal());
+            // reported on the change, not on the next wait timeout
+            assertTrue(inserted.getNanoTime() - tap < TimeUnit.MILLISECONDS.toNanos(150));
+
+            reader.remove();
+            CardPresenceEvent removed = next(events);
+            assertEquals(CardPresenceEvent.Type.REMOVED, removed.getType());
+            assertSame(reader, removed.getTerminal());
+        }
+        assertNull(events.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCardPresentAtStart() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        terminals.add("Reader 0");
+        SimulatedTerminal reader = terminals.add("Reader 1");
+        reader.insert(new SimulatedPicc());
+        BlockingQueue<CardPresenceEvent> events = new LinkedBlockingQueue<>();
+
+        try (CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200)) {
+            watcher.addListener(events::add);
+            watcher.start();
+
+            CardPresenceEvent event = next(events);
+            assertEquals(CardPresenceEvent.Type.INSERTED, event.getType());
+            assertEquals("Reader 1", event.getTerminal().getName());
+        }
+    }
+
+    @Test
+    public void testFailingListenerDoesNotStopWatcher() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        BlockingQueue<CardPresenceEvent> events = new LinkedBlockingQueue<>();
+
+        CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200);
+        watcher.addListener(event -> {
+            throw new IllegalStateException("listener failure");
+        });
+        watcher.addListener(events::add);
+        watcher.start();
+
+        reader.insert(new SimulatedPicc());
+        assertEquals(CardPresenceEvent.Type.INSERTED, next(events).getType());
+        reader.remove();
+        assertEquals(CardPresenceEvent.Type.REMOVED, next(events).getType());
+
+        watcher.stop();
+        assertFalse(watcher.isRunning());
+    }
+}
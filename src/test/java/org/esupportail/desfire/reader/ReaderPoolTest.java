@@ -0,0 +1,150 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.esupportail.desfire.simulator.SimulatedTerminal;
+import org.esupportail.desfire.simulator.SimulatedTerminals;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ReaderPool
+ */
+public class ReaderPoolTest {
+
+    private static final byte[] GET_UID = {(byte) 0xFF, (byte) 0xCA, 0x00, 0x00, 0x00};
+
+    /**
+     * Reader with a new simulated card always present
+     */
+    private static CardSource reader(String name) {
+        return new CardSource() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public CardTransport awaitCard(long timeoutMillis) {
+                return new SimulatedCard().transport();
+            }
+        };
+    }
+
+    private static ReaderStats stats(ReaderPool pool, String name) {
+        for (ReaderStats stats : pool.getStats()) {
+            if (stats.getReader().equals(name)) {
+                return stats;
+            }
+        }
+        throw new AssertionError("No stats for " + name);
+    }
+
+    @Test
+    public void testSlowReaderDoesNotHoldBatch() throws Exception {
+        try (ReaderPool pool = new ReaderPool(Arrays.asList(reader("fast"), reader("slow")))) {
+            List<CompletableFuture<String>> results = new ArrayList<>();
+            for (int i = 0; i < 40; i++) {
+                results.add(pool.submit(card -> {
+                    if (Thread.currentThread().getName().endsWith("slow")) {
+                        Thread.sleep(100);
+                    }
+                    assertEquals(28, card.getVersion().length);
+                    return Thread.currentThread().getName();
+                }));
+            }
+            for (CompletableFuture<String> result : results) {
+                result.get(5, TimeUnit.SECONDS);
+            }
+
+            ReaderStats fast = stats(pool, "fast");
+            ReaderStats slow = stats(pool, "slow");
+            assertEquals(40, fast.getJobs() + slow.getJobs());
+            assertTrue(fast.toString(), fast.getJobs() > 30);
+            assertTrue(fast.getStolen() > 0);
+            assertTrue(fast.getThroughput() > slow.getThroughput());
+            assertEquals(0, pool.getQueued());
+        }
+    }
+
+    @Test
+    public void testFailuresAndClose() throws Exception {
+        ReaderPool pool = new ReaderPool(Arrays.asList(reader("reader")));
+        CompletableFuture<Object> failed = pool.submit(card -> {
+            throw new IllegalStateException("bad card");
+        });
+        try {
+            failed.get(2, TimeUnit.SECONDS);
+            fail("Job failure should reach the caller");
+        } catch (ExecutionException e) {
+            assertEquals("bad card", e.getCause().getMessage());
+        }
+        assertEquals(1, stats(pool, "reader").getFailures());
+
+        CompletableFuture<Object> blocking = pool.submit(card -> {
+            Thread.sleep(300);
+            return null;
+        });
+        CompletableFuture<Object> queued = pool.submit(card -> null);
+        Thread.sleep(50);
+        pool.close();
+        blocking.get(2, TimeUnit.SECONDS);
+        assertTrue("Queued job should be cancelled on close", queued.isCancelled());
+        // its permit is gone too, so no worker waits for it
+        assertEquals(0, pool.getQueued());
+        try {
+            pool.submit(card -> null);
+            fail("Closed pool should refuse jobs");
+        } catch (IllegalStateException expected) {
+            // closed
+        }
+    }
+
+    @Test
+    public void testErrorCompletesFuture() throws Exception {
+        try (ReaderPool pool = new ReaderPool(Arrays.asList(reader("reader")))) {
+            CompletableFuture<Object> broken = pool.submit(card -> {
+                throw new AssertionError("broken job");
+            });
+            try {
+                broken.get(2, TimeUnit.SECONDS);
+                fail("Error should reach the caller");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof AssertionError);
+            }
+            assertEquals(1, stats(pool, "reader").getFailures());
+        }
+    }
+
+    @Test
+    public void testTerminalServesEachCardOnce() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal terminal = terminals.add("Reader 0");
+        SimulatedPicc first = new SimulatedPicc();
+        SimulatedPicc second = new SimulatedPicc();
+
+        try (ReaderPool pool = ReaderPool.forTerminals(terminals.list())) {
+            CompletableFuture<byte[]> one = pool.submit(card -> Arrays.copyOf(card.transmit(GET_UID), 7));
+            CompletableFuture<byte[]> two = pool.submit(card -> Arrays.copyOf(card.transmit(GET_UID), 7));
+
+            terminal.insert(first);
+            assertArrayEquals(first.getUid(), one.get(2, TimeUnit.SECONDS));
+            Thread.sleep(300);
+            assertFalse("Same card must not be served twice", two.isDone());
+
+            terminal.remove();
+            Thread.sleep(50); // a card swap takes time
+            terminal.insert(second);
+            assertArrayEquals(second.getUid(), two.get(2, TimeUnit.SECONDS));
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ReaderProfile and ReaderProfiles
+ */
+public class ReaderProfileTest {
+
+    /**
+     * Reader stub recording control commands and refusing those starting with a given byte
+     */
+    private static class StubReader extends InMemoryTransport {
+
+        final List<String> controls = new ArrayList<>();
+        final int refused;
+        int controlCode;
+
+        StubReader(int refused) {
+            super(apdu -> new byte[] {(byte) 0x90, 0x00});
+            this.refused = refused;
+        }
+
+        @Override
+        public byte[] control(int controlCode, byte[] command) {
+            this.controlCode = controlCode;
+            controls.add(DesfireUtils.byteArrayToHexString(command));
+            if ((command[3] & 0xFF) == refused) {
+                throw new TransportException("Control command failed");
+            }
+            return new byte[] {(byte) 0x90, 0x00};
+        }
+    }
+
+    @Test
+    public void testAcsCommands() {
+        StubReader reader = new StubReader(-1);
+
+        assertEquals(3, ReaderProfile.acs(ReaderProfile.BitRate.KBPS_848).apply(reader));
+        assertEquals("E0000024020303", reader.controls.get(0));
+        assertEquals("E00000210100", reader.controls.get(1));
+        assertEquals("E00000230181", reader.controls.get(2));
+        assertEquals(ReaderProfile.escapeControlCode(), reader.controlCode);
+
+        reader.controls.clear();
+        ReaderProfile.acs(ReaderProfile.BitRate.KBPS_424, false).with("LED off", new byte[] {(byte) 0xE0, 0, 0, 0x29, 0x01, 0x00})
+                .apply(reader);
+        assertEquals("E0000024020202", reader.controls.get(0));
+        assertEquals("E00000230180", reader.controls.get(2));
+        assertEquals("E00000290100", reader.controls.get(3));
+    }
+
+    @Test
+    public void testRefusedCommandsFallBackToDefaults() {
+        StubReader reader = new StubReader(0x24);
+        assertEquals(2, ReaderProfile.acs(ReaderProfile.BitRate.KBPS_848).apply(reader));
+        assertEquals(3, reader.controls.size());
+
+        // no reader behind the transport at all
+        assertEquals(0, ReaderProfile.acs(ReaderProfile.BitRate.KBPS_848).apply(new SimulatedCard().transport()));
+        assertEquals(0, ReaderProfile.DEFAULT.apply(new InMemoryTransport(apdu -> apdu)));
+    }
+
+    @Test
+    public void testProfileSelection() {
+        ReaderProfiles profiles = ReaderProfiles.defaults();
+
+        assertEquals("acs-KBPS_848", profiles.profileFor("ACS ACR1581 1S Dual Reader PICC 0").getName());
+        assertSame(ReaderProfile.DEFAULT, profiles.profileFor("ACS ACR1581 1S Dual Reader SAM 0"));
+        assertSame(ReaderProfile.DEFAULT, profiles.profileFor("Identiv uTrust 3700 F"));
+        assertSame(ReaderProfile.DEFAULT, profiles.profileFor(null));
+
+        ReaderProfile custom = ReaderProfile.acs(ReaderProfile.BitRate.KBPS_212);
+        assertSame(custom, new ReaderProfiles().add("uTrust", custom).profileFor("Identiv uTrust 3700 F"));
+    }
+
+    @Test
+    public void testControlCommandIsCopied() {
+        byte[] bytes = {(byte) 0xE0, 0x00, 0x00, 0x21, 0x01, 0x00};
+        ReaderProfile.ControlCommand command = new ReaderProfile.ControlCommand("buzzer off", bytes);
+        bytes[5] = 0x01;
+        command.getCommand()[5] = 0x02;
+
+        assertEquals("E00000210100", DesfireUtils.byteArrayToHexString(command.getCommand()));
+    }
+}
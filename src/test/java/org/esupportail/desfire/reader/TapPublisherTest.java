@@ -0,0 +1,148 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.esupportail.desfire.simulator.SimulatedTerminal;
+import org.esupportail.desfire.simulator.SimulatedTerminals;
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for TapPublisher
+ */
+public class TapPublisherTest {
+
+    /**
+     * Queues the events it is given, requesting them one at a time
+     */
+    private static class QueueSubscriber implements Flow.Subscriber<TapEvent> {
+
+        final BlockingQueue<TapEvent> events = new LinkedBlockingQueue<>();
+        final CountDownLatch completed = new CountDownLatch(1);
+        Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            subscription.request(1);
+        }
+
+        @Override
+        public void onNext(TapEvent event) {
+            events.add(event);
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+
+        TapEvent next() throws InterruptedException {
+            TapEvent event = events.poll(2, TimeUnit.SECONDS);
+            assertNotNull("No tap event received", event);
+            return event;
+        }
+    }
+
+    @Test
+    public void testArrivalAndRemoval() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        SimulatedPicc picc = new SimulatedPicc();
+        QueueSubscriber subscriber = new QueueSubscriber();
+
+        try (TapPublisher taps = new TapPublisher(new CardPresenceWatcher(terminals, 200)).start()) {
+            taps.subscribe(subscriber);
+            long before = System.currentTimeMillis();
+            reader.insert(picc);
+
+            TapEvent arrived = subscriber.next();
+            assertEquals(TapEvent.Type.ARRIVED, arrived.getType());
+            assertEquals("Reader 0", arrived.getReaderName());
+            assertArrayEquals(new SimulatedCard().getATR().getBytes(), arrived.getAtr());
+            assertArrayEquals(picc.getUid(), arrived.getUid());
+            assertEquals(14, arrived.getUidHex().length());
+            assertTrue(arrived.getTimestamp() >= before);
+
+            reader.remove();
+            TapEvent removed = subscriber.next();
+            assertEquals(TapEvent.Type.REMOVED, removed.getType());
+            assertArrayEquals(picc.getUid(), removed.getUid());
+            assertTrue(removed.getNanoTime() >= arrived.getNanoTime());
+        }
+        assertTrue(subscriber.completed.await(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testSlowSubscriberDoesNotHoldBackOthers() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal first = terminals.add("Reader 0");
+        SimulatedTerminal second = terminals.add("Reader 1");
+        CountDownLatch release = new CountDownLatch(1);
+        QueueSubscriber fast = new QueueSubscriber();
+        QueueSubscriber slow = new QueueSubscriber() {
+            @Override
+            public void onNext(TapEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        ExecutorService executor = Executors.newCachedThreadPool();
+
+        try (TapPublisher taps = new TapPublisher(new CardPresenceWatcher(terminals, 200), executor, 1).start()) {
+            taps.subscribe(slow);
+            taps.subscribe(fast);
+            assertEquals(2, taps.getNumberOfSubscribers());
+
+            for (int i = 0; i < 3; i++) {
+                first.insert(new SimulatedPicc());
+                assertEquals("Reader 0", fast.next().getReaderName());
+                second.insert(new SimulatedPicc());
+                assertEquals("Reader 1", fast.next().getReaderName());
+                first.remove();
+                assertEquals(TapEvent.Type.REMOVED, fast.next().getType());
+                second.remove();
+                assertEquals(TapEvent.Type.REMOVED, fast.next().getType());
+            }
+            assertTrue(taps.getDropped() > 0);
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testSharedWatcherKeepsRunning() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        QueueSubscriber subscriber = new QueueSubscriber();
+
+        try (CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200)) {
+            watcher.start();
+            try (TapPublisher taps = new TapPublisher(watcher).start()) {
+                taps.subscribe(subscriber);
+                reader.insert(new SimulatedPicc());
+                assertEquals(TapEvent.Type.ARRIVED, subscriber.next().getType());
+            }
+            // the watcher belongs to its caller
+            assertTrue(watcher.isRunning());
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package org.esupportail.desfire.reader;
+
+import org.esupportail.desfire.core.SimpleSCR;
+import org.esupportail.desfire.service.PcscUsbService;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.esupportail.desfire.simulator.SimulatedTerminal;
+import org.esupportail.desfire.simulator.SimulatedTerminals;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for TerminalRegistry
+ */
+public class TerminalRegistryTest {
+
+    @Test
+    public void testRoles() {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal sam = terminals.add("ACS ACR1581 1S Dual Reader SAM 0");
+        SimulatedTerminal picc = terminals.add("ACS ACR1581 1S Dual Reader PICC 0");
+        TerminalRegistry registry = new TerminalRegistry(terminals);
+
+        assertEquals(2, registry.list().size());
+        assertSame(picc, registry.first(TerminalRegistry.Role.CONTACTLESS));
+        assertSame(sam, registry.first(TerminalRegistry.Role.SAM));
+        assertSame(sam, registry.get("ACS ACR1581 1S Dual Reader SAM 0"));
+        assertSame(picc, registry.get(1));
+        assertNull(registry.get(2));
+
+        registry.setPattern(TerminalRegistry.Role.CONTACTLESS, "Reader SAM");
+        assertTrue(registry.hasRole(sam, TerminalRegistry.Role.CONTACTLESS));
+        assertFalse(registry.hasRole(picc, TerminalRegistry.Role.CONTACTLESS));
+    }
+
+    @Test
+    public void testCachedUntilRefresh() {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        terminals.add("Reader 0");
+        TerminalRegistry registry = new TerminalRegistry(terminals);
+
+        SimulatedTerminal plugged = terminals.add("Reader 1");
+        assertEquals(1, registry.list().size());
+        registry.refresh();
+        assertSame(plugged, registry.get("Reader 1"));
+
+        terminals.unplug(plugged);
+        registry.refresh();
+        assertEquals(1, registry.list().size());
+    }
+
+    @Test
+    public void testHotPlugFromWatcher() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        TerminalRegistry registry = new TerminalRegistry(terminals);
+        assertTrue(registry.list().isEmpty());
+
+        CountDownLatch seen = new CountDownLatch(1);
+        try (CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200)) {
+            watcher.addListener(registry);
+            watcher.addListener(event -> seen.countDown());
+            watcher.start();
+
+            terminals.add("Reader 0").insert(new SimulatedPicc());
+            assertTrue(seen.await(2, TimeUnit.SECONDS));
+        }
+        assertEquals("Reader 0", registry.first(TerminalRegistry.Role.CONTACTLESS).getName());
+    }
+
+    @Test
+    public void testUnplugFromWatcher() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        reader.insert(new SimulatedPicc());
+        terminals.add("Reader 1");
+        TerminalRegistry registry = new TerminalRegistry(terminals);
+        assertEquals(2, registry.list().size());
+
+        CountDownLatch removed = new CountDownLatch(1);
+        try (CardPresenceWatcher watcher = new CardPresenceWatcher(terminals, 200)) {
+            watcher.addListener(registry);
+            watcher.addListener(event -> {
+                if (event.getType() == CardPresenceEvent.Type.REMOVED) {
+                    removed.countDown();
+                }
+            });
+            watcher.start();
+
+            terminals.unplug(reader);
+            assertTrue(removed.await(2, TimeUnit.SECONDS));
+        }
+        assertEquals(1, registry.list().size());
+        assertEquals("Reader 1", registry.first(TerminalRegistry.Role.CONTACTLESS).getName());
+    }
+
+    @Test
+    public void testSimpleSCRConnect() {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        SimulatedTerminal reader = terminals.add("Reader 0");
+        SimpleSCR scr = new SimpleSCR(new TerminalRegistry(terminals));
+
+        assertFalse(scr.connect());
+        reader.insert(new SimulatedPicc());
+        assertTrue(scr.connect());
+        byte[] uid = scr.transmit(new byte[] {(byte) 0xFF, (byte) 0xCA, 0, 0, 0});
+        assertEquals(9, uid.length);
+        assertEquals((byte) 0x90, uid[7]);
+        assertFalse(scr.connect(3));
+        assertTrue(scr.disconnect());
+    }
+
+    @Test
+    public void testPcscUsbServiceCardPresence() throws Exception {
+        SimulatedTerminals terminals = new SimulatedTerminals();
+        terminals.add("SAM Reader 0").insert(new SimulatedPicc());
+        SimulatedTerminal reader = terminals.add("Other Reader 0");
+        TerminalRegistry registry = new TerminalRegistry(terminals)
+                .setPattern(TerminalRegistry.Role.CONTACTLESS, PcscUsbService.DEFAULT_READER_PATTERN);
+        PcscUsbService service = new PcscUsbService(registry);
+
+        // default pattern: any reader but the SAM ones
+        assertFalse(service.isCardPresent());
+        reader.insert(new SimulatedPicc());
+        assertTrue(service.isCardPresent());
+
+        registry.setPattern(TerminalRegistry.Role.CONTACTLESS, "ACR122");
+        assertFalse(service.isCardPresent());
+    }
+}
@@ -0,0 +1,157 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ReaderBridgeServer, RemoteReaderClient and RemoteTransport
+ * over loopback
+ */
+public class ReaderBridgeTest {
+
+    private static final byte[] GET_UID = {(byte) 0xFF, (byte) 0xCA, 0x00, 0x00, 0x00};
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+
+    private final Map<String, SimulatedPicc> readers = new HashMap<>();
+    private final CountDownLatch slowReader = new CountDownLatch(1);
+    private ReaderBridgeServer server;
+    private RemoteReaderClient client;
+
+    @Before
+    public void setUp() throws Exception {
+        readers.put("Reader 0", new SimulatedPicc());
+        readers.put("Reader 1", new SimulatedPicc());
+        server = new ReaderBridgeServer(0, InetAddress.getLoopbackAddress(), name -> {
+            if (name.equals("Slow")) {
+                try {
+                    slowReader.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                name = "Reader 1";
+            }
+            SimulatedPicc picc = readers.get(name);
+            if (picc == null) {
+                throw new TransportException("No reader " + name);
+            }
+            return new SimulatedCard(picc).transport();
+        });
+        server.start();
+        client = new RemoteReaderClient(InetAddress.getLoopbackAddress().getHostAddress(), server.getPort());
+    }
+
+    @After
+    public void tearDown() {
+        slowReader.countDown();
+        client.close();
+        server.close();
+    }
+
+    @Test
+    public void testDesfireOverBridge() {
+        DESFireEV1 desfire = new DESFireEV1(client.open("Reader 0"));
+
+        assertTrue(desfire.connect());
+        assertTrue(desfire.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+        assertTrue(desfire.selectApplication(AID));
+        assertEquals(28, desfire.getVersion().length);
+        assertTrue(desfire.disconnect());
+        assertFalse(desfire.isConnected());
+    }
+
+    @Test
+    public void testPipelinedAndMultiplexed() throws Exception {
+        RemoteTransport first = client.open("Reader 0");
+        RemoteTransport second = client.open("Reader 1");
+
+        List<CompletableFuture<byte[]>> answers = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            answers.add((i % 2 == 0 ? first : second).transmitAsync(GET_UID));
+        }
+        for (int i = 0; i < answers.size(); i++) {
+            byte[] uid = Arrays.copyOf(answers.get(i).get(2, TimeUnit.SECONDS), 7);
+            SimulatedPicc picc = readers.get(i % 2 == 0 ? "Reader 0" : "Reader 1");
+            assertArrayEquals(picc.getUid(), uid);
+        }
+    }
+
+    @Test
+    public void testSlowOpenDoesNotBlockConnection() throws Exception {
+        RemoteTransport first = client.open("Reader 0");
+        CompletableFuture<RemoteTransport> slow = CompletableFuture.supplyAsync(() -> client.open("Slow"));
+
+        byte[] uid = first.transmitAsync(GET_UID).get(2, TimeUnit.SECONDS);
+        assertArrayEquals(readers.get("Reader 0").getUid(), Arrays.copyOf(uid, 7));
+        assertFalse(slow.isDone());
+
+        slowReader.countDown();
+        uid = slow.get(2, TimeUnit.SECONDS).transceive(GET_UID);
+        assertArrayEquals(readers.get("Reader 1").getUid(), Arrays.copyOf(uid, 7));
+    }
+
+    @Test
+    public void testErrors() {
+        try {
+            client.open("Reader 9");
+            fail("Unknown reader should not open");
+        } catch (TransportException e) {
+            assertTrue(e.getMessage().contains("No reader Reader 9"));
+        }
+
+        CardTransport transport = client.open("Reader 1");
+        transport.close();
+        try {
+            transport.transceive(GET_UID);
+            fail("Closed transport should not transmit");
+        } catch (TransportException e) {
+            assertEquals("Transport closed", e.getMessage());
+        }
+
+        CardTransport orphan = client.open("Reader 0");
+        client.close();
+        assertFalse(orphan.isConnected());
+    }
+
+    @Test
+    public void testSmallOverheadPerApdu() {
+        CardTransport local = new SimulatedCard(readers.get("Reader 0")).transport();
+        CardTransport remote = client.open("Reader 1");
+        for (int i = 0; i < 200; i++) { // warm up
+            local.transceive(GET_UID);
+            remote.transceive(GET_UID);
+        }
+
+        int rounds = 500;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            local.transceive(GET_UID);
+        }
+        long localNanos = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            remote.transceive(GET_UID);
+        }
+        long remoteNanos = System.nanoTime() - start;
+
+        long overhead = (remoteNanos - localNanos) / rounds;
+        assertTrue("Overhead per APDU " + overhead + " ns", overhead < TimeUnit.MILLISECONDS.toNanos(2));
+    }
+}
@@ -0,0 +1,207 @@
+package org.esupportail.desfire.remote;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.AuthHandshakeService;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ConsistentHashRing, AuthNodeServer and ShardedAuthClient
+ * over loopback
+ */
+public class ShardedAuthTest {
+
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+
+    private final List<AuthNodeServer> nodes = new ArrayList<>();
+    private final List<Process> processes = new ArrayList<>();
+    private final Map<Integer, AtomicInteger> begun = new ConcurrentHashMap<>();
+
+    @After
+    public void tearDown() {
+        for (AuthNodeServer node : nodes) {
+            node.close();
+        }
+        for (Process process : processes) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * Node of this JVM with all zero keys, counting the handshakes it began
+     */
+    private InetSocketAddress node() throws Exception {
+        AtomicInteger count = new AtomicInteger();
+        AuthNodeServer node = new AuthNodeServer(0, InetAddress.getLoopbackAddress(), (uid, aid, keyNo, keyType) -> {
+            count.incrementAndGet();
+            return new byte[16];
+        }, new AuthHandshakeService());
+        node.start();
+        nodes.add(node);
+        begun.put(node.getPort(), count);
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), node.getPort());
+    }
+
+    /**
+     * Node in a process of its own, with all zero keys
+     */
+    private InetSocketAddress process() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                AuthNodeServer.class.getName(), "0", "00000000000000000000000000000000")
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        processes.add(process);
+        BufferedReader out = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        String line;
+        while ((line = out.readLine()) != null) {
+            if (line.startsWith(AuthNodeServer.LISTENING)) {
+                int port = Integer.parseInt(line.substring(AuthNodeServer.LISTENING.length()).trim());
+                return new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+            }
+        }
+        throw new AssertionError("Authentication node process exited with " + process.waitFor());
+    }
+
+    /**
+     * Blank card with an AES application selected
+     */
+    private static SimulatedPicc card() {
+        SimulatedPicc picc = new SimulatedPicc();
+        DESFireEV1 desfire = new DESFireEV1(new InMemoryTransport(picc::process));
+        assertTrue(desfire.createApplication(AID, (byte) 0x0F, (byte) 0x81));
+        assertTrue(desfire.selectApplication(AID));
+        return picc;
+    }
+
+    private static void assertAuthenticated(ShardedAuthClient client, SimulatedPicc picc) {
+        byte[] sessionKey = client.authenticate(new InMemoryTransport(picc::process), picc.getUid(), AID,
+                (byte) 0x00, KeyType.AES);
+        assertNotNull(sessionKey);
+        assertArrayEquals(picc.getSessionKey(), sessionKey);
+    }
+
+    @Test
+    public void testRingSpreadAndStability() {
+        List<String> members = List.of("node-a:7400", "node-b:7400", "node-c:7400");
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>(members);
+        ConsistentHashRing<String> shrunk = new ConsistentHashRing<>(members.subList(0, 2));
+        Map<String, Integer> owned = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] uid = {0x04, (byte) (i >> 8), (byte) i, 0x21, (byte) 0x80, 0x1D, (byte) 0x80};
+            String owner = ring.route(uid);
+            owned.merge(owner, 1, Integer::sum);
+            if (!owner.equals("node-c:7400")) {
+                assertEquals(owner, shrunk.route(uid)); // only the keys of the member gone move
+            }
+            assertEquals(owner, ring.preferences(uid).get(0));
+            assertEquals(3, ring.preferences(uid).size());
+        }
+        for (String member : members) {
+            assertTrue(owned.toString(), owned.get(member) > 700);
+        }
+    }
+
+    @Test
+    public void testHandshakesSpreadOverNodes() throws Exception {
+        List<InetSocketAddress> members = List.of(node(), node(), node());
+        try (ShardedAuthClient client = new ShardedAuthClient(members)) {
+            for (int i = 0; i < 30; i++) {
+                assertAuthenticated(client, card());
+            }
+        }
+        int total = 0;
+        for (AuthNodeServer node : nodes) {
+            assertTrue(begun.get(node.getPort()).get() > 0);
+            assertEquals(0, node.getHandshakes());
+            total += begun.get(node.getPort()).get();
+        }
+        assertEquals(30, total);
+    }
+
+    @Test
+    public void testHandshakeFollowsItsNode() throws Exception {
+        InetSocketAddress first = node();
+        InetSocketAddress second = node();
+        try (ShardedAuthClient client = new ShardedAuthClient(List.of(first, second))) {
+            SimulatedPicc picc = card();
+            ShardedAuthClient.Handshake handshake = client.begin("reader-1", picc.getUid(), AID, (byte) 0x00,
+                    KeyType.AES);
+            InetSocketAddress owner = handshake.getMember();
+            // a membership change after the handshake began
+            client.setMembers(List.of(owner, node()));
+
+            InMemoryTransport card = new InMemoryTransport(picc::process);
+            byte[] challenge = card.transceive(handshake.getCommand());
+            byte[] answer = card.transceive(client.respond(handshake, Arrays.copyOf(challenge, 16)));
+            assertArrayEquals(picc.getSessionKey(), client.finish(handshake, Arrays.copyOf(answer, 16)));
+        }
+    }
+
+    @Test
+    public void testUnreachableMemberFailsOver() throws Exception {
+        InetSocketAddress up = node();
+        InetSocketAddress down = node();
+        nodes.get(1).close();
+        try (ShardedAuthClient client = new ShardedAuthClient(List.of(up, down))) {
+            for (int i = 0; i < 10; i++) {
+                SimulatedPicc picc = card();
+                assertAuthenticated(client, picc);
+            }
+        }
+        assertEquals(10, begun.get(up.getPort()).get());
+    }
+
+    @Test
+    public void testUnknownHandshakeRefused() throws Exception {
+        try (ShardedAuthClient client = new ShardedAuthClient(List.of(node()))) {
+            ShardedAuthClient.Handshake handshake = client.begin(card().getUid(), AID, (byte) 0x00, KeyType.AES);
+            client.discard(handshake);
+            try {
+                client.respond(handshake, new byte[16]);
+                fail("Discarded handshake answered");
+            } catch (TransportException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("Unknown handshake"));
+            }
+        }
+    }
+
+    @Test
+    public void testNodesInSeparateProcesses() throws Exception {
+        List<InetSocketAddress> members = List.of(process(), process());
+        try (ShardedAuthClient client = new ShardedAuthClient(members)) {
+            Map<InetSocketAddress, Integer> owners = new HashMap<>();
+            for (int i = 0; i < 20; i++) {
+                SimulatedPicc picc = card();
+                assertAuthenticated(client, picc);
+                owners.merge(client.route(picc.getUid()), 1, Integer::sum);
+            }
+            assertEquals(owners.toString(), 2, owners.size());
+        }
+        for (Process process : processes) {
+            process.destroy();
+            assertTrue(process.waitFor(5, TimeUnit.SECONDS));
+        }
+    }
+}
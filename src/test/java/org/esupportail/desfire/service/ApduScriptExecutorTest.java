@@ -0,0 +1,143 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.junit.Test;
+
+import javax.smartcardio.Card;
+import javax.smartcardio.CardChannel;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ApduScriptExecutor
+ */
+public class ApduScriptExecutorTest {
+
+    /**
+     * Channel answering from a fixed command to response table
+     */
+    private static class TableChannel extends CardChannel {
+
+        private final Map<String, String> responses = new HashMap<>();
+        private int transmitted;
+
+        TableChannel answer(String command, String response) {
+            responses.put(command, response);
+            return this;
+        }
+
+        @Override
+        public int transmit(ByteBuffer command, ByteBuffer response) {
+            byte[] apdu = new byte[command.remaining()];
+            command.get(apdu);
+            transmitted++;
+            String answer = responses.getOrDefault(DesfireUtils.byteArrayToHexString(apdu), "911C");
+            byte[] bytes = DesfireUtils.hexStringToByteArray(answer);
+            response.put(bytes);
+            return bytes.length;
+        }
+
+        @Override
+        public Card getCard() {
+            return null;
+        }
+
+        @Override
+        public int getChannelNumber() {
+            return 0;
+        }
+
+        @Override
+        public ResponseAPDU transmit(CommandAPDU command) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private static BufferedReader script(String... lines) {
+        return new BufferedReader(new StringReader(String.join("\n", lines)));
+    }
+
+    @Test
+    public void testScriptSucceeds() throws Exception {
+        TableChannel channel = new TableChannel()
+                .answer("905A000003000000", "9100")
+                .answer("9060000000", "04010101001A0591AF");
+
+        ScriptResult result = new ApduScriptExecutor(channel).execute(script(
+                "# 04A1B2C3D4E5F6",
+                "905A000003000000",
+                "",
+                "9060000000 91AF"));
+
+        assertTrue(result.isSuccess());
+        assertEquals(2, result.getSteps().size());
+        assertEquals(0x91AF, result.getSteps().get(1).getSw());
+        assertEquals(4, result.getSteps().get(1).getLineNumber());
+        assertTrue(result.getTotalNanos() > 0);
+    }
+
+    @Test
+    public void testStopsAtFirstMismatch() throws Exception {
+        TableChannel channel = new TableChannel()
+                .answer("905A000003123456", "91A0");
+
+        ScriptResult result = new ApduScriptExecutor(channel).execute(script(
+                "905A000003123456 91XX",
+                "905A000003123456 9100",
+                "9060000000"));
+
+        assertFalse(result.isSuccess());
+        assertEquals(2, result.getSteps().size());
+        assertEquals(2, result.getFailedStep().getLineNumber());
+        assertEquals(2, channel.transmitted);
+    }
+
+    @Test
+    public void testExpectedStatusParse() {
+        assertTrue(ExpectedStatus.parse("9100").matches(0x9100));
+        assertFalse(ExpectedStatus.parse("9100").matches(0x91AE));
+        assertTrue(ExpectedStatus.parse("91XX").matches(0x91AE));
+        assertTrue(ExpectedStatus.parse("6100/FF00").matches(0x6110));
+        assertFalse(ExpectedStatus.parse("6100/FF00").matches(0x9000));
+        assertTrue(ExpectedStatus.DESFIRE_OK.matches(0x9000));
+    }
+
+    @Test
+    public void testInvalidExpectedStatus() {
+        for (String status : new String[] {"91G0", "9100/FFZZ", "91 0"}) {
+            try {
+                ExpectedStatus.parse(status);
+                fail("Should reject " + status);
+            } catch (DesfireException e) {
+                assertTrue(e.getMessage().startsWith("Invalid expected status"));
+            }
+        }
+    }
+
+    @Test
+    public void testOverlongApdu() throws Exception {
+        StringBuilder apdu = new StringBuilder("903D0000FF");
+        for (int i = 0; i < 300; i++) {
+            apdu.append("00");
+        }
+        TableChannel channel = new TableChannel();
+        try {
+            new ApduScriptExecutor(channel).execute(script("# long write", apdu.toString()));
+            fail("Should reject an APDU longer than the command buffer");
+        } catch (DesfireException e) {
+            assertTrue(e.getMessage(), e.getMessage().endsWith("at line 2"));
+        }
+        assertEquals(0, channel.transmitted);
+    }
+}
@@ -0,0 +1,186 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for AsyncDESFireService
+ */
+public class AsyncDESFireServiceTest {
+
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+
+    /**
+     * Counts exclusive sessions taken on the card
+     */
+    private static class CountingTransport extends InMemoryTransport {
+
+        final AtomicInteger sessions = new AtomicInteger();
+        volatile boolean held;
+
+        CountingTransport() {
+            super(apdu -> new byte[] {(byte) 0x91, 0x00});
+        }
+
+        @Override
+        public void beginExclusive() {
+            sessions.incrementAndGet();
+            held = true;
+        }
+
+        @Override
+        public void endExclusive() {
+            held = false;
+        }
+    }
+
+    @Test
+    public void testCommandsOverSimulatedCard() throws Exception {
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(new SimulatedCard().transport()));
+
+        byte[] ids = card.createApplication(AID, (byte) 0x0F, (byte) 0x81)
+                .thenCompose(created -> card.getApplicationIds())
+                .get(2, TimeUnit.SECONDS);
+        assertEquals(3, ids.length);
+        assertTrue(card.selectApplication(AID).get(2, TimeUnit.SECONDS));
+        assertEquals(28, card.getVersion().get(2, TimeUnit.SECONDS).length);
+    }
+
+    @Test
+    public void testConcurrentSubmittersAreSerialized() throws Exception {
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(new SimulatedCard().transport()));
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        ExecutorService submitters = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        try {
+            List<CompletableFuture<List<CompletableFuture<byte[]>>>> batches = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                batches.add(CompletableFuture.supplyAsync(() -> {
+                    List<CompletableFuture<byte[]>> own = new ArrayList<>();
+                    for (int i = 0; i < 50; i++) {
+                        own.add(card.submit(service -> {
+                            if (running.incrementAndGet() > 1) {
+                                overlaps.incrementAndGet();
+                            }
+                            byte[] version = service.getVersion();
+                            running.decrementAndGet();
+                            return version;
+                        }));
+                    }
+                    return own;
+                }, submitters));
+            }
+            for (CompletableFuture<List<CompletableFuture<byte[]>>> batch : batches) {
+                results.addAll(batch.get(5, TimeUnit.SECONDS));
+            }
+            for (CompletableFuture<byte[]> result : results) {
+                assertEquals(28, result.get(5, TimeUnit.SECONDS).length);
+            }
+        } finally {
+            submitters.shutdown();
+        }
+        assertEquals(400, results.size());
+        assertEquals(0, overlaps.get());
+        assertTrue(card.getBatches() <= 400);
+    }
+
+    @Test
+    public void testQueuedCommandsShareOneSession() throws Exception {
+        CountingTransport transport = new CountingTransport();
+        ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(transport), pending::add);
+
+        List<CompletableFuture<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            results.add(card.selectApplication(AID));
+        }
+        assertEquals(1, pending.size());
+        pending.poll().run();
+
+        for (CompletableFuture<Boolean> result : results) {
+            assertTrue(result.get());
+        }
+        assertEquals(1, card.getBatches());
+        assertEquals(1, transport.sessions.get());
+        assertTrue(pending.isEmpty());
+    }
+
+    @Test
+    public void testFailureReachesCaller() throws Exception {
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(new CountingTransport()));
+        CompletableFuture<Object> failed = card.submit(service -> {
+            throw new IllegalStateException("boom");
+        });
+        try {
+            failed.get(2, TimeUnit.SECONDS);
+            fail("Failure should reach the caller");
+        } catch (ExecutionException e) {
+            assertEquals("boom", e.getCause().getMessage());
+        }
+        assertTrue(card.selectApplication(AID).get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testDependentStagesRunAfterRelease() throws Exception {
+        CountingTransport transport = new CountingTransport();
+        ConcurrentLinkedQueue<Runnable> pending = new ConcurrentLinkedQueue<>();
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(transport), pending::add);
+
+        CompletableFuture<Boolean> heldInStage = card.selectApplication(AID).thenApply(selected -> transport.held);
+        pending.poll().run();
+
+        assertFalse(heldInStage.get());
+    }
+
+    @Test
+    public void testErrorCompletesFuture() throws Exception {
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(new CountingTransport()));
+        CompletableFuture<Object> failed = card.submit(service -> {
+            throw new AssertionError("broken");
+        });
+        try {
+            failed.get(2, TimeUnit.SECONDS);
+            fail("Error should reach the caller");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        }
+        assertTrue(card.selectApplication(AID).get(2, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRejectedCommandsFailAndQueueRecovers() throws Exception {
+        AtomicBoolean shutDown = new AtomicBoolean(true);
+        AsyncDESFireService card = new AsyncDESFireService(new DESFireCompleteService(new CountingTransport()),
+                runnable -> {
+                    if (shutDown.get()) {
+                        throw new RejectedExecutionException("Executor shut down");
+                    }
+                    runnable.run();
+                });
+        try {
+            card.selectApplication(AID).get(2, TimeUnit.SECONDS);
+            fail("Rejected command should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+
+        shutDown.set(false);
+        assertTrue(card.selectApplication(AID).get(2, TimeUnit.SECONDS));
+    }
+}
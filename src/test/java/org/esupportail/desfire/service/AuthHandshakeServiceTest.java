@@ -0,0 +1,150 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.exceptions.DesfireException;
+import org.esupportail.desfire.model.KeyType;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for AuthHandshakeService
+ */
+public class AuthHandshakeServiceTest {
+
+    /**
+     * Card side of the 3-pass authentication
+     */
+    private static class Card {
+
+        private final byte[] key;
+        private final KeyType type;
+        private byte[] randB;
+        private byte[] encRandB;
+
+        Card(byte[] key, KeyType type) {
+            this.key = key;
+            this.type = type;
+        }
+
+        byte[] challenge() {
+            randB = DesfireCrypto.random(DesfireCrypto.blockSize(type));
+            encRandB = DesfireCrypto.encrypt(key, randB, type, new byte[DesfireCrypto.blockSize(type)]);
+            return encRandB;
+        }
+
+        byte[] answer(byte[] apdu) {
+            int block = DesfireCrypto.blockSize(type);
+            byte[] ciphertext = Arrays.copyOfRange(apdu, 5, 5 + (apdu[4] & 0xFF));
+            byte[] iv = Arrays.copyOfRange(encRandB, encRandB.length - block, encRandB.length);
+            byte[] plain = DesfireCrypto.decrypt(key, ciphertext, type, iv);
+            byte[] randA = Arrays.copyOfRange(plain, 0, block);
+            assertArrayEquals(DesfireCrypto.rotateLeft(randB), Arrays.copyOfRange(plain, block, 2 * block));
+            byte[] iv2 = Arrays.copyOfRange(ciphertext, ciphertext.length - block, ciphertext.length);
+            return DesfireCrypto.encrypt(key, DesfireCrypto.rotateLeft(randA), type, iv2);
+        }
+    }
+
+    @Test
+    public void testAesHandshake() {
+        AuthHandshakeService service = new AuthHandshakeService();
+        byte[] key = DesfireCrypto.random(16);
+        Card card = new Card(key, KeyType.AES);
+
+        AuthHandshakeService.Start start = service.begin((byte) 0x01, KeyType.AES, key);
+        assertEquals("90AA0000010100", DesfireUtils.byteArrayToHexString(start.getCommand()));
+        byte[] apdu = service.respond(start.getToken(), card.challenge());
+        byte[] sessionKey = service.finish(start.getToken(), card.answer(apdu));
+
+        assertNotNull(sessionKey);
+        assertEquals(16, sessionKey.length);
+        assertEquals(0, service.size());
+    }
+
+    @Test
+    public void testWrongCardAnswerFails() {
+        AuthHandshakeService service = new AuthHandshakeService();
+        byte[] key = new byte[8];
+        Card card = new Card(key, KeyType.DES);
+
+        AuthHandshakeService.Start start = service.begin((byte) 0x00, KeyType.DES, key);
+        byte[] apdu = service.respond(start.getToken(), card.challenge());
+        byte[] answer = card.answer(apdu);
+        answer[0] ^= 0x01;
+
+        assertNull(service.finish(start.getToken(), answer));
+        assertEquals(0, service.size());
+    }
+
+    @Test
+    public void testTokensAreNotSequential() {
+        AuthHandshakeService service = new AuthHandshakeService();
+        long first = service.begin((byte) 0x00, KeyType.AES, new byte[16]).getToken();
+        long second = service.begin((byte) 0x00, KeyType.AES, new byte[16]).getToken();
+
+        assertNotEquals(0, first);
+        assertNotEquals(0, second);
+        assertNotEquals(first + 1, second);
+    }
+
+    @Test
+    public void testShortChallengeDiscardsHandshake() {
+        AuthHandshakeService service = new AuthHandshakeService();
+        long token = service.begin((byte) 0x00, KeyType.AES, new byte[16]).getToken();
+        try {
+            service.respond(token, new byte[0]);
+            fail("Should reject an empty challenge");
+        } catch (DesfireException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("must be 16 bytes, got 0"));
+        }
+        assertEquals(0, service.size());
+    }
+
+    @Test
+    public void testExpiredHandshakesAreEvicted() throws Exception {
+        AuthHandshakeService service = new AuthHandshakeService(Duration.ofMillis(1));
+        AuthHandshakeService.Start start = service.begin((byte) 0x00, KeyType.AES, new byte[16]);
+        service.begin((byte) 0x00, KeyType.AES, new byte[16]);
+        Thread.sleep(5);
+
+        assertEquals(2, service.evictExpired());
+        try {
+            service.respond(start.getToken(), new byte[16]);
+            fail("Should reject an evicted handshake");
+        } catch (Exception e) {
+            assertTrue(e.getMessage().contains("Unknown handshake"));
+        }
+    }
+
+    @Test
+    public void testConcurrentHandshakes() throws Exception {
+        AuthHandshakeService service = new AuthHandshakeService();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<byte[]>> results = new ArrayList<>();
+            for (int i = 0; i < 500; i++) {
+                results.add(executor.submit(() -> {
+                    byte[] key = DesfireCrypto.random(16);
+                    Card card = new Card(key, KeyType.AES);
+                    AuthHandshakeService.Start start = service.begin((byte) 0x00, KeyType.AES, key);
+                    byte[] apdu = service.respond(start.getToken(), card.challenge());
+                    return service.finish(start.getToken(), card.answer(apdu));
+                }));
+            }
+            for (Future<byte[]> result : results) {
+                assertNotNull(result.get());
+            }
+            assertEquals(0, service.size());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.model.DesfireApplication;
+import org.esupportail.desfire.model.DesfireFile;
+import org.esupportail.desfire.model.DesfireKey;
+import org.esupportail.desfire.model.DesfireTag;
+import org.esupportail.desfire.model.KeyType;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ApduScriptBuilder and BulkScriptGenerator
+ */
+public class BulkScriptGeneratorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static DesfireTag profile() {
+        DesfireApplication app = new DesfireApplication("123456");
+        app.addKey(new DesfireKey("00", "00112233445566778899AABBCCDDEEFF", KeyType.AES));
+        app.addKey(new DesfireKey("01", "FFEEDDCCBBAA99887766554433221100", KeyType.AES));
+        DesfireFile file = new DesfireFile("01", "20");
+        file.setInitialValue("48656C6C6F");
+        app.addFile(file);
+
+        DesfireTag tag = new DesfireTag();
+        tag.addApplication(app);
+        return tag;
+    }
+
+    @Test
+    public void testBuildScriptOrder() {
+        List<byte[]> script = new ApduScriptBuilder().build(profile());
+
+        assertEquals(9, script.size());
+        assertEquals("905A000003000000", hex(script.get(0)));
+        assertEquals("900A00000100", hex(script.get(1)).substring(0, 12));
+        assertEquals("90CA0000051234560F82", hex(script.get(2)));
+        assertEquals("905A000003123456", hex(script.get(3)));
+        assertEquals("90CD00000701000000200000", hex(script.get(5)));
+        assertEquals("903D00000C01000000050000" + "48656C6C6F", hex(script.get(6)));
+        // key 1 is changed before the application master key
+        assertEquals(0x01, script.get(7)[5]);
+        assertEquals(0x00, script.get(8)[5]);
+    }
+
+    @Test
+    public void testGenerateLines() throws Exception {
+        Path output = folder.newFile("scripts.txt").toPath();
+        DesfireTag tag = profile();
+
+        long count = new BulkScriptGenerator(BulkScriptGenerator.Format.LINES)
+                .generate(IntStream.range(0, 1000).mapToObj(i -> new ScriptJob(String.format("04%012X", i), tag)), output);
+
+        assertEquals(1000, count);
+        List<String> lines = Files.readAllLines(output);
+        assertEquals(1000 * 10, lines.size());
+        assertEquals("# 04000000000000", lines.get(0));
+        assertEquals("905A000003000000", lines.get(1));
+        assertEquals("# 040000000003E7", lines.get(999 * 10));
+    }
+
+    @Test
+    public void testGenerateBinary() throws Exception {
+        Path output = folder.newFile("scripts.bin").toPath();
+        DesfireTag tag = profile();
+
+        new BulkScriptGenerator(new ApduScriptBuilder(), BulkScriptGenerator.Format.BINARY, 64)
+                .generate(IntStream.range(0, 50).mapToObj(i -> new ScriptJob("04A1B2C3D4E5F6", tag)), output);
+
+        ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(output));
+        assertEquals(BulkScriptGenerator.BINARY_MAGIC, in.getInt());
+        int cards = 0;
+        while (in.hasRemaining()) {
+            byte[] uid = new byte[in.get()];
+            in.get(uid);
+            assertEquals("04A1B2C3D4E5F6", hex(uid));
+            int apdus = in.getShort();
+            assertEquals(9, apdus);
+            for (int i = 0; i < apdus; i++) {
+                int length = in.getShort();
+                in.position(in.position() + length);
+            }
+            cards++;
+        }
+        assertEquals(50, cards);
+    }
+
+    private static String hex(byte[] bytes) {
+        return DesfireUtils.byteArrayToHexString(bytes);
+    }
+}
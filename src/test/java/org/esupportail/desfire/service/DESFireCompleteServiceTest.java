@@ -1,6 +1,10 @@
 package org.esupportail.desfire.service;
 
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+import org.esupportail.desfire.exceptions.TransportException;
 import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.simulator.PiccFixture;
 import org.junit.Before;
 import org.junit.Test;
 import static org.junit.Assert.*;
@@ -114,4 +118,19 @@ public class DESFireCompleteServiceTest {
         assertTrue("APDU service should be DESFireApduService", 
                    service.getApduService() instanceof DESFireApduService);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testReleaseFailureKeepsResult() {
+        PiccFixture fixture = new PiccFixture().application(PiccFixture.AID, 0x81).stdFile(PiccFixture.STD_FILE, 16);
+        DESFireCompleteService complete = new DESFireCompleteService(new InMemoryTransport(fixture.getPicc()::process) {
+            @Override
+            public void endExclusive() {
+                throw new TransportException("Card removed");
+            }
+        });
+        byte[] data = {1, 2, 3, 4};
+        assertTrue(complete.writeFileComplete(PiccFixture.AID, (byte) 0x00, KeyType.AES, new byte[16],
+                PiccFixture.STD_FILE, 0, data));
+        assertArrayEquals(data, new DESFireEV1(fixture.transport()).readData(PiccFixture.STD_FILE, 0, 4));
+    }
+}
@@ -0,0 +1,296 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.model.CompactProfile;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.reader.CardSource;
+import org.esupportail.desfire.reader.ReaderPool;
+import org.esupportail.desfire.simulator.SimulatedCard;
+import org.esupportail.desfire.simulator.SimulatedPicc;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for PersonalizationPipeline, PersonalizationJournal and KeyDerivation
+ */
+public class PersonalizationPipelineTest {
+
+    private static final int AID = 0x123456;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<SimulatedPicc> tapped = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * One application with a free access file, keys left at their default value
+     */
+    private static CompactProfile profile() {
+        byte[] initialValue = new byte[100];
+        Arrays.fill(initialValue, (byte) 0x5A);
+        CompactProfile.File file = new CompactProfile.File(1, 128, 0, null, null,
+                new byte[] {(byte) 0xEE, (byte) 0xEE}, initialValue);
+        CompactProfile.Key key = new CompactProfile.Key(0, 0, KeyType.AES, null);
+        CompactProfile.Application application = new CompactProfile.Application(AID, null, null, null,
+                new CompactProfile.Key[] {key}, new CompactProfile.File[] {file});
+        return new CompactProfile(false, null, null, null, null, CompactProfile.NONE,
+                new CompactProfile.Application[] {application});
+    }
+
+    private static List<PersonalizationJob> jobs(int from, int to) {
+        CompactProfile profile = profile();
+        List<PersonalizationJob> jobs = new ArrayList<>();
+        for (int id = from; id < to; id++) {
+            jobs.add(new PersonalizationJob(id, profile));
+        }
+        return jobs;
+    }
+
+    /**
+     * Reader with a new blank card always present
+     */
+    private CardSource reader(String name) {
+        return new CardSource() {
+            @Override
+            public String getName() {
+                return name;
+            }
+
+            @Override
+            public CardTransport awaitCard(long timeoutMillis) {
+                SimulatedPicc picc = new SimulatedPicc();
+                tapped.add(picc);
+                return new SimulatedCard(picc).transport();
+            }
+        };
+    }
+
+    private PersonalizationJournal journal() {
+        return new PersonalizationJournal(folder.getRoot().toPath().resolve("run.journal"), 4,
+                Duration.ofMillis(50));
+    }
+
+    @Test
+    public void testRunOnSeveralReaders() throws Exception {
+        try (ReaderPool pool = new ReaderPool(Arrays.asList(reader("a"), reader("b")));
+             PersonalizationJournal journal = journal()) {
+            PipelineStats stats = new PersonalizationPipeline(pool, journal).run(jobs(0, 20).iterator());
+
+            assertEquals(stats.toString(), 20, stats.getDone());
+            assertEquals(0, stats.getFailed());
+            assertTrue(stats.getCardsPerMinute() > 0);
+            assertEquals(20, journal.getDoneCount());
+            assertTrue(journal.getUnfinished().isEmpty());
+            for (int id = 0; id < 20; id++) {
+                assertTrue(journal.isPersonalized(journal.getCard(id)));
+            }
+        }
+    }
+
+    @Test
+    public void testRestartSkipsDoneJobs() throws Exception {
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader("a")));
+             PersonalizationJournal journal = journal()) {
+            assertEquals(10, new PersonalizationPipeline(pool, journal).run(jobs(0, 10).iterator()).getDone());
+        }
+        tapped.clear();
+
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader("a")));
+             PersonalizationJournal journal = journal()) {
+            assertEquals(10, journal.getDoneCount());
+            PipelineStats stats = new PersonalizationPipeline(pool, journal).run(jobs(0, 15).iterator());
+            assertEquals(10, stats.getSkipped());
+            assertEquals(5, stats.getDone());
+            assertEquals(15, journal.getDoneCount());
+        }
+    }
+
+    @Test
+    public void testFailedJobGoesToAnotherCard() throws Exception {
+        AtomicInteger encodings = new AtomicInteger();
+        ProfileEncoder encoder = new ProfileEncoder();
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader("a")));
+             PersonalizationJournal journal = journal()) {
+            PipelineStats stats = new PersonalizationPipeline(pool, journal)
+                    .setEncoder((card, profile) -> {
+                        if (encodings.incrementAndGet() == 1) {
+                            throw new IOException("Card removed");
+                        }
+                        encoder.encode(card, profile);
+                    })
+                    .run(jobs(0, 3).iterator());
+
+            assertEquals(3, stats.getDone());
+            assertEquals(1, stats.getRetries());
+            // the first card holds nothing
+            assertFalse(journal.isPersonalized(tapped.get(0).getUid()));
+            // and is never used again
+            assertTrue(journal.isUsed(tapped.get(0).getUid()));
+        }
+    }
+
+    @Test
+    public void testPersonalizedCardIsRejected() throws Exception {
+        SimulatedPicc reused = new SimulatedPicc();
+        ConcurrentLinkedQueue<SimulatedPicc> cards = new ConcurrentLinkedQueue<>(
+                Arrays.asList(reused, reused, new SimulatedPicc()));
+        CardSource reader = new CardSource() {
+            @Override
+            public String getName() {
+                return "queue";
+            }
+
+            @Override
+            public CardTransport awaitCard(long timeoutMillis) throws InterruptedException {
+                SimulatedPicc picc = cards.poll();
+                if (picc == null) {
+                    Thread.sleep(timeoutMillis);
+                    return null;
+                }
+                return new SimulatedCard(picc).transport();
+            }
+        };
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader));
+             PersonalizationJournal journal = journal()) {
+            PipelineStats stats = new PersonalizationPipeline(pool, journal).run(jobs(0, 2).iterator());
+
+            assertEquals(2, stats.getDone());
+            assertEquals(1, stats.getRejectedCards());
+            assertArrayEquals(reused.getUid(), journal.getCard(0));
+        }
+    }
+
+    @Test
+    public void testCrashAfterEncodedFinishesOnSameCard() throws Exception {
+        // job 0 was encoded on a card, then the process died before verifying it
+        SimulatedPicc encoded = new SimulatedPicc();
+        new ProfileEncoder().encode(new DESFireCompleteService(new SimulatedCard(encoded).transport()), profile());
+        try (PersonalizationJournal journal = journal()) {
+            journal.append(PersonalizationJournal.State.STARTED, 0, encoded.getUid());
+            journal.append(PersonalizationJournal.State.ENCODED, 0, encoded.getUid());
+        }
+
+        ConcurrentLinkedQueue<SimulatedPicc> cards = new ConcurrentLinkedQueue<>(
+                Arrays.asList(encoded, new SimulatedPicc()));
+        CardSource reader = new CardSource() {
+            @Override
+            public String getName() {
+                return "queue";
+            }
+
+            @Override
+            public CardTransport awaitCard(long timeoutMillis) throws InterruptedException {
+                SimulatedPicc picc = cards.poll();
+                if (picc == null) {
+                    Thread.sleep(timeoutMillis);
+                    return null;
+                }
+                tapped.add(picc);
+                return new SimulatedCard(picc).transport();
+            }
+        };
+        AtomicInteger encodings = new AtomicInteger();
+        ProfileEncoder encoder = new ProfileEncoder();
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader));
+             PersonalizationJournal journal = journal()) {
+            PipelineStats stats = new PersonalizationPipeline(pool, journal)
+                    .setEncoder((card, profile) -> {
+                        encodings.incrementAndGet();
+                        encoder.encode(card, profile);
+                    })
+                    .run(jobs(0, 2).iterator());
+
+            assertEquals(stats.toString(), 2, stats.getDone());
+            assertEquals(1, encodings.get());
+            assertArrayEquals(encoded.getUid(), journal.getCard(0));
+            assertFalse(Arrays.equals(encoded.getUid(), journal.getCard(1)));
+            assertTrue(journal.isDone(0));
+        }
+    }
+
+    @Test
+    public void testJournalReplayDropsTornRecord() throws Exception {
+        Path path = folder.getRoot().toPath().resolve("torn.journal");
+        byte[] uid = {0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+        try (PersonalizationJournal journal = new PersonalizationJournal(path)) {
+            journal.append(PersonalizationJournal.State.STARTED, 7, uid);
+            journal.append(PersonalizationJournal.State.DONE, 7, uid);
+        }
+        // a crash in the middle of the second record
+        int recordLength = 1 + 8 + 8 + 1 + uid.length + 4;
+        try (FileChannel file = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            file.write(ByteBuffer.wrap(new byte[4]), 4 + 2 * recordLength - 4);
+        }
+
+        try (PersonalizationJournal journal = new PersonalizationJournal(path)) {
+            assertEquals(PersonalizationJournal.State.STARTED, journal.getState(7));
+            assertFalse(journal.isPersonalized(uid));
+            assertEquals(Collections.singleton(7L), journal.getUnfinished());
+            // appending after the torn record
+            journal.append(PersonalizationJournal.State.DONE, 7, uid);
+        }
+        try (PersonalizationJournal journal = new PersonalizationJournal(path)) {
+            assertTrue(journal.isDone(7));
+        }
+    }
+
+    @Test
+    public void testDerivedKeysAreWrittenAndVerified() throws Exception {
+        byte[] masterKey = DesfireUtils.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+        byte[] initialValue = DesfireUtils.hexStringToByteArray("CAFEDECA");
+        // read with key 1 only, write and change with key 0
+        CompactProfile.File file = new CompactProfile.File(1, 16, 0, null, null,
+                new byte[] {0x00, 0x10}, initialValue);
+        CompactProfile.Application application = new CompactProfile.Application(AID, null, null, null,
+                new CompactProfile.Key[] {new CompactProfile.Key(0, 1, KeyType.AES, masterKey),
+                        new CompactProfile.Key(1, 1, KeyType.AES, masterKey)},
+                new CompactProfile.File[] {file});
+        CompactProfile profile = new CompactProfile(false, null, null, KeyType.AES, masterKey, 1,
+                new CompactProfile.Application[] {application});
+        KeyDerivation derivation = KeyDerivation.an10922(DesfireUtils.hexStringToByteArray("4E585020416275"));
+
+        try (ReaderPool pool = new ReaderPool(Collections.singletonList(reader("a")));
+             PersonalizationJournal journal = journal()) {
+            PipelineStats stats = new PersonalizationPipeline(pool, journal).setKeyDerivation(derivation)
+                    .run(Collections.singletonList(new PersonalizationJob(0, profile)).iterator());
+            assertEquals(stats.toString(), 1, stats.getDone());
+        }
+
+        SimulatedPicc picc = tapped.get(0);
+        CompactProfile derived = derivation.derive(profile, picc.getUid());
+        DESFireCompleteService card = new DESFireCompleteService(new SimulatedCard(picc).transport());
+        ProfileEncoder encoder = new ProfileEncoder();
+        assertTrue(encoder.verify(card, derived));
+        // the keys are not the master keys, and a wrong key is caught
+        assertFalse(encoder.verify(card, profile));
+        assertTrue(card.selectApplication(application.getAidBytes()));
+        byte[] readKey = derived.getApplications()[0].getKeys()[1].getValue();
+        assertTrue(card.authenticateWithCard((byte) 0x01, KeyType.AES, readKey));
+        assertArrayEquals(initialValue, card.readData((byte) 0x01, 0, 4));
+    }
+
+    @Test
+    public void testAn10922Derivation() {
+        byte[] key = DesfireUtils.hexStringToByteArray("00112233445566778899AABBCCDDEEFF");
+        byte[] derived = KeyDerivation.an10922(DesfireUtils.hexStringToByteArray("4E585020416275"))
+                .derive(key, KeyType.AES, DesfireUtils.hexStringToByteArray("04782E21801D80"),
+                        DesfireUtils.hexStringToByteArray("3042F5"));
+        assertArrayEquals(DesfireUtils.hexStringToByteArray("A8DD63A3B89D54B37CA802473FDA9175"), derived);
+    }
+}
@@ -0,0 +1,142 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.simulator.PiccFixture;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for ResumableWriter and the checkpoint stores
+ */
+public class ResumableWriterTest {
+
+    private static final byte[] AID = PiccFixture.AID;
+    private static final byte[] UID = {0x04, 0x11, 0x22, 0x33, 0x44, 0x55, 0x66};
+    private static final byte STD_FILE = PiccFixture.STD_FILE;
+    private static final byte BACKUP_FILE = 0x03;
+    private static final int INS_WRITE_DATA = 0x3D;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private PiccFixture fixture;
+    private final AtomicInteger writes = new AtomicInteger();
+
+    @Before
+    public void setUp() {
+        fixture = new PiccFixture().application(AID, 0x01).stdFile(STD_FILE, 256).backupFile(BACKUP_FILE, 128);
+    }
+
+    /**
+     * The card as seen on a new tap, leaving the field after <code>writesBeforeRemoval</code> writes
+     */
+    private DESFireEV1 tap(int writesBeforeRemoval) {
+        writes.set(0);
+        fixture.getPicc().reset();
+        DESFireEV1 desfire = new DESFireEV1(fixture.transport(apdu -> {
+            if ((apdu[1] & 0xFF) == INS_WRITE_DATA && writes.incrementAndGet() > writesBeforeRemoval) {
+                throw new TransportException("Card removed");
+            }
+            return null;
+        }));
+        assertTrue(desfire.selectApplication(AID));
+        return desfire;
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 7 + seed);
+        }
+        return data;
+    }
+
+    @Test
+    public void testWriteResumesOnNextTap() {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        ResumableWriter writer = new ResumableWriter(store, 32);
+        byte[] data = payload(200, 1);
+
+        ResumableWriter.Result first = writer.write(tap(3), UID, AID, STD_FILE, 10, data, false);
+        assertFalse(first.isComplete());
+        assertEquals(96, first.getConfirmed());
+        assertEquals(1, store.size());
+
+        DESFireEV1 card = tap(Integer.MAX_VALUE);
+        ResumableWriter.Result second = writer.write(card, UID, AID, STD_FILE, 10, data, false);
+        assertTrue(second.isComplete());
+        assertEquals(96, second.getResumedFrom());
+        assertEquals(4, writes.get()); // 104 bytes left in chunks of 32
+        assertArrayEquals(data, card.readData(STD_FILE, 10, 200));
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    public void testOtherPayloadStartsOver() {
+        MemoryCheckpointStore store = new MemoryCheckpointStore();
+        ResumableWriter writer = new ResumableWriter(store, 32);
+
+        assertFalse(writer.write(tap(2), UID, AID, STD_FILE, 0, payload(100, 1), false).isComplete());
+        ResumableWriter.Result other = writer.write(tap(Integer.MAX_VALUE), UID, AID, STD_FILE, 0, payload(100, 2), false);
+        assertTrue(other.isComplete());
+        assertEquals(0, other.getResumedFrom());
+        assertEquals(4, writes.get());
+    }
+
+    @Test
+    public void testBackupFileCommittedWhenComplete() {
+        ResumableWriter writer = new ResumableWriter(new MemoryCheckpointStore());
+        byte[] data = payload(128, 3);
+
+        DESFireEV1 card = tap(2);
+        ResumableWriter.Result cut = writer.write(card, UID, AID, BACKUP_FILE, 0, data, true);
+        assertFalse(cut.isComplete());
+        assertEquals(0, cut.getConfirmed());
+        card = tap(Integer.MAX_VALUE);
+        assertArrayEquals(new byte[128], card.readData(BACKUP_FILE, 0, 128));
+
+        ResumableWriter.Result result = writer.write(card, UID, AID, BACKUP_FILE, 0, data, true);
+        assertTrue(result.isComplete());
+        assertEquals(0, result.getResumedFrom());
+        assertArrayEquals(data, card.readData(BACKUP_FILE, 0, 128));
+    }
+
+    @Test
+    public void testFileStoreSurvivesReopen() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("checkpoints.dfc");
+        CheckpointStore.Key key = new CheckpointStore.Key(UID, AID, STD_FILE);
+        CheckpointStore.Key other = new CheckpointStore.Key(UID, AID, BACKUP_FILE);
+
+        try (FileCheckpointStore store = new FileCheckpointStore(path)) {
+            store.save(key, 42, 64);
+            store.save(key, 42, 96);
+            store.save(other, 7, 10);
+            store.remove(other);
+        }
+        // a record cut by a crash is dropped
+        Files.write(path, new byte[] {7, 1, 2}, StandardOpenOption.APPEND);
+
+        try (FileCheckpointStore store = new FileCheckpointStore(path)) {
+            assertEquals(1, store.size());
+            assertEquals(96, store.load(key, 42));
+            assertEquals(0, store.load(key, 43));
+            assertEquals(0, store.load(other, 7));
+            store.save(other, 7, 20);
+        }
+        try (FileCheckpointStore store = new FileCheckpointStore(path)) {
+            assertEquals(20, store.load(other, 7));
+            assertEquals(96, store.load(key, 42));
+        }
+    }
+}
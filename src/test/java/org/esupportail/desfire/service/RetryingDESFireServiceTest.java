@@ -0,0 +1,140 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.exceptions.TransportException;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.simulator.PiccFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for RetryPolicy and RetryingDESFireService
+ */
+public class RetryingDESFireServiceTest {
+
+    private static final byte[] AID = PiccFixture.AID;
+    private static final byte[] AES_KEY = new byte[16];
+    private static final byte[] ABORTED = {(byte) 0x91, (byte) 0xCA};
+
+    private static final int INS_AUTHENTICATE_AES = 0xAA;
+    private static final int INS_READ_DATA = 0xBD;
+    private static final int INS_WRITE_DATA = 0x3D;
+    private static final int INS_GET_VERSION = 0x60;
+    private static final int INS_FREE_MEMORY = 0x6E;
+
+    /** Instruction to disturb, and how many more times */
+    private int faultyIns;
+    private final AtomicInteger faults = new AtomicInteger();
+    private boolean throwFault;
+    private final AtomicInteger authentications = new AtomicInteger();
+    private RetryingDESFireService card;
+
+    @Before
+    public void setUp() {
+        // AES application with a file readable and writable with key 0 only
+        PiccFixture fixture = new PiccFixture().application(AID, 0x81);
+        card = new RetryingDESFireService(new DESFireCompleteService(fixture.transport(apdu -> {
+            int ins = apdu[1] & 0xFF;
+            if (ins == INS_AUTHENTICATE_AES) {
+                authentications.incrementAndGet();
+            }
+            if (ins == faultyIns && faults.getAndDecrement() > 0) {
+                if (throwFault) {
+                    throw new TransportException("APDU transmission failed");
+                }
+                return ABORTED;
+            }
+            return null;
+        })), new RetryPolicy(3, Duration.ofMillis(1), Duration.ofMillis(5)));
+
+        assertTrue(card.selectApplication(AID));
+        assertNotNull(card.authenticate(AES_KEY, (byte) 0x00, KeyType.AES));
+        assertTrue(card.getCard().createStdDataFile((byte) 0x01, (byte) 0x00, new byte[] {0x00, 0x00}, 32));
+        assertTrue(card.writeData((byte) 0x01, 0, new byte[] {1, 2, 3, 4}));
+    }
+
+    private void disturb(int ins, int times) {
+        faultyIns = ins;
+        faults.set(times);
+    }
+
+    @Test
+    public void testAbortedReadIsRetriedWithSession() {
+        int before = authentications.get();
+        disturb(INS_READ_DATA, 2);
+
+        assertArrayEquals(new byte[] {1, 2, 3, 4}, card.readData((byte) 0x01, 0, 4));
+        assertEquals(2, card.getRetries());
+        assertEquals(1, card.getRecovered());
+        assertEquals(2, card.getFailures(RetryPolicy.Failure.COMMAND_ABORTED));
+        // the card forgets the authentication on errors, so it is restored before each retry
+        assertEquals(before + 2, authentications.get());
+    }
+
+    @Test
+    public void testTransportFailureIsRetried() {
+        throwFault = true;
+        disturb(INS_GET_VERSION, 1);
+
+        assertEquals(28, card.getVersion().length);
+        assertEquals(1, card.getFailures(RetryPolicy.Failure.TRANSPORT));
+        assertEquals(1, card.getRecovered());
+    }
+
+    @Test
+    public void testAbortedFreeMemoryIsRetried() {
+        disturb(INS_FREE_MEMORY, 1);
+
+        assertTrue(card.getFreeMemory() > 0);
+        assertEquals(1, card.getFailures(RetryPolicy.Failure.COMMAND_ABORTED));
+        assertEquals(1, card.getRecovered());
+
+        disturb(INS_FREE_MEMORY, 10);
+        assertEquals(-1, card.getFreeMemory());
+        assertEquals(1, card.getGivenUp());
+    }
+
+    @Test
+    public void testGivesUpAfterMaxAttempts() {
+        disturb(INS_READ_DATA, 10);
+
+        assertNull(card.readData((byte) 0x01, 0, 4));
+        assertEquals(2, card.getRetries());
+        assertEquals(1, card.getGivenUp());
+        assertEquals(3, card.getFailures(RetryPolicy.Failure.COMMAND_ABORTED));
+    }
+
+    @Test
+    public void testWriteIsNotRetried() {
+        disturb(INS_WRITE_DATA, 1);
+
+        assertFalse(card.writeData((byte) 0x01, 0, new byte[] {9, 9, 9, 9}));
+        assertEquals(0, card.getRetries());
+        assertEquals(1, card.getGivenUp());
+    }
+
+    @Test
+    public void testPolicy() {
+        RetryPolicy policy = new RetryPolicy(5, Duration.ofMillis(10), Duration.ofMillis(50),
+                RetryPolicy.Failure.COMMAND_ABORTED);
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(10), policy.backoffNanos(1));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(20), policy.backoffNanos(2));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), policy.backoffNanos(4));
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(50), policy.backoffNanos(100));
+        assertTrue(policy.shouldRetry(RetryPolicy.Failure.COMMAND_ABORTED, 4));
+        assertFalse(policy.shouldRetry(RetryPolicy.Failure.COMMAND_ABORTED, 5));
+        assertFalse(policy.shouldRetry(RetryPolicy.Failure.TRANSPORT, 1));
+
+        assertEquals(RetryPolicy.Failure.INTEGRITY_ERROR, RetryPolicy.classify(0x1E));
+        assertNull(RetryPolicy.classify(0xAE));
+        assertEquals(RetryPolicy.Failure.CARD_REMOVED, RetryPolicy.classify(new TransportException("APDU transmission failed",
+                new CardException("SCardTransmit", new Exception("SCARD_W_REMOVED_CARD")))));
+        assertNull(RetryPolicy.classify(new IllegalStateException()));
+    }
+}
@@ -0,0 +1,120 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.simulator.PiccFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SpeculativeAuthenticator
+ */
+public class SpeculativeAuthenticatorTest {
+
+    private static final byte[] AID_A = PiccFixture.AID;
+    private static final byte[] AID_B = {0x65, 0x43, 0x21};
+    private static final byte[] ZERO_KEY = new byte[16];
+
+    private PiccFixture fixture;
+    private final List<Integer> commands = new CopyOnWriteArrayList<>();
+    private final CountDownLatch authenticating = new CountDownLatch(1);
+    private volatile long authenticateDelayMillis;
+
+    @Before
+    public void setUp() {
+        fixture = new PiccFixture().application(AID_A, 0x81).application(AID_B, 0x81);
+    }
+
+    /**
+     * The card as connected on arrival, recording the instruction of every command
+     */
+    private DESFireEV1 tap() {
+        return new DESFireEV1(fixture.transport(apdu -> {
+            commands.add(apdu[1] & 0xFF);
+            if ((apdu[1] & 0xFF) == 0xAA) {
+                authenticating.countDown();
+                try {
+                    Thread.sleep(authenticateDelayMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return null;
+        }));
+    }
+
+    @Test
+    public void testClaimedSessionIsHandedOver() {
+        SpeculativeAuthenticator speculative = new SpeculativeAuthenticator()
+                .addCandidate(AID_A, (byte) 0x00, KeyType.AES, ZERO_KEY);
+        DESFireEV1 card = tap();
+        try (SpeculativeAuthenticator.Speculation speculation = speculative.speculate(card)) {
+            assertArrayEquals(fixture.getPicc().getUid(), speculation.getUid());
+            assertTrue(speculation.claim(AID_A, (byte) 0x00));
+        }
+
+        assertTrue(card.isAuthenticated());
+        assertArrayEquals(AID_A, card.getCurrentAid());
+        assertArrayEquals(fixture.getPicc().getSessionKey(), card.getSessionKey());
+        assertEquals(1, speculative.getHits());
+        assertEquals(0, speculative.getDiscarded());
+    }
+
+    @Test
+    public void testMostClaimedCandidateIsTried() {
+        SpeculativeAuthenticator speculative = new SpeculativeAuthenticator()
+                .addCandidate(AID_A, (byte) 0x00, KeyType.AES, ZERO_KEY)
+                .addCandidate(AID_B, (byte) 0x00, KeyType.AES, ZERO_KEY);
+
+        try (SpeculativeAuthenticator.Speculation speculation = speculative.speculate(tap())) {
+            assertFalse(speculation.claim(AID_B, (byte) 0x00));
+        }
+        assertEquals(1, speculative.getMisses());
+
+        DESFireEV1 card = tap();
+        try (SpeculativeAuthenticator.Speculation speculation = speculative.speculate(card)) {
+            assertTrue(speculation.claim(AID_B, (byte) 0x00));
+        }
+        assertArrayEquals(AID_B, card.getCurrentAid());
+        assertEquals(1, speculative.getHits());
+    }
+
+    @Test
+    public void testDiscardStopsBeforeNextApdu() throws Exception {
+        authenticateDelayMillis = 100;
+        SpeculativeAuthenticator speculative = new SpeculativeAuthenticator()
+                .addCandidate(AID_A, (byte) 0x00, KeyType.AES, ZERO_KEY);
+        DESFireEV1 card = tap();
+        SpeculativeAuthenticator.Speculation speculation = speculative.speculate(card);
+        assertTrue(authenticating.await(2, TimeUnit.SECONDS));
+        speculation.discard();
+
+        assertFalse(commands.contains(0xAF)); // the handshake went no further
+        assertFalse(card.isAuthenticated());
+        assertEquals(1, speculative.getDiscarded());
+        // the card is free again
+        assertTrue(card.selectApplication(AID_A));
+        assertNotNull(card.authenticate(ZERO_KEY, (byte) 0x00, KeyType.AES));
+    }
+
+    @Test
+    public void testFailedSpeculationLeavesAuthenticationToCaller() {
+        byte[] wrongKey = new byte[16];
+        wrongKey[0] = 0x01;
+        SpeculativeAuthenticator speculative = new SpeculativeAuthenticator()
+                .addCandidate(AID_A, (byte) 0x00, KeyType.AES, wrongKey);
+        DESFireEV1 card = tap();
+        try (SpeculativeAuthenticator.Speculation speculation = speculative.speculate(card)) {
+            assertFalse(speculation.claim(AID_A, (byte) 0x00));
+        }
+        assertFalse(card.isAuthenticated());
+        assertEquals(1, speculative.getFailures());
+    }
+}
@@ -0,0 +1,146 @@
+package org.esupportail.desfire.service;
+
+import org.esupportail.desfire.core.transport.TimingTransport;
+import org.esupportail.desfire.simulator.PiccFixture;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for TapTransaction and TapTimings
+ */
+public class TapTransactionTest {
+
+    private static final byte FILE = PiccFixture.STD_FILE;
+    private static final long APDU_MILLIS = 5;
+
+    private PiccFixture fixture;
+    private DESFireCompleteService card;
+
+    @Before
+    public void setUp() {
+        fixture = new PiccFixture().application(PiccFixture.AID, 0x01).stdFile(FILE, 32);
+        card = new DESFireCompleteService(new TimingTransport(fixture.transport(apdu -> {
+            try {
+                Thread.sleep(APDU_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return null;
+        })));
+    }
+
+    private static TapTransaction.Action write(int offset, byte value) {
+        return card -> card.writeData(FILE, offset, new byte[] {value});
+    }
+
+    /**
+     * Ten reads declared as one
+     */
+    private static boolean readTenTimes(DESFireCompleteService card) {
+        for (int i = 0; i < 10; i++) {
+            if (card.readData(FILE, 0, 1) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private byte read(int offset) {
+        return card.readData(FILE, offset, 1)[0];
+    }
+
+    @Test
+    public void testAllStepsWithinBudget() {
+        TapTransaction.Result result = new TapTransaction(new TapTimings(), Duration.ofMillis(500))
+                .step("log", TapTransaction.Priority.OPTIONAL, 1, write(2, (byte) 3))
+                .step("debit", TapTransaction.Priority.CRITICAL, 1, write(0, (byte) 1))
+                .step("counter", TapTransaction.Priority.NORMAL, 1, write(1, (byte) 2))
+                .run(card);
+
+        assertTrue(result.toString(), result.isComplete());
+        assertEquals("debit", result.getCompleted().get(0).getName());
+        assertEquals("counter", result.getCompleted().get(1).getName());
+        assertEquals("log", result.getCompleted().get(2).getName());
+        assertEquals(1, read(0));
+        assertEquals(3, read(2));
+    }
+
+    @Test
+    public void testLearntStepDeferredToNextTap() {
+        TapTimings timings = new TapTimings(Duration.ofMillis(1), TapTimings.DEFAULT_ALPHA);
+        TapTransaction warmUp = new TapTransaction(timings, Duration.ofSeconds(10))
+                .step("debit", TapTransaction.Priority.CRITICAL, 1, write(0, (byte) 1))
+                .deferrableStep("log", TapTransaction.Priority.OPTIONAL, 1, TapTransactionTest::readTenTimes);
+        for (int i = 0; i < 8; i++) {
+            assertEquals(2, warmUp.run(card).getCompleted().size());
+        }
+        assertTrue(timings.getApdus("log") > 8);
+        assertTrue(timings.getApduTime().toNanos() >= Duration.ofMillis(APDU_MILLIS).toNanos() / 2);
+
+        TapTransaction shortTap = new TapTransaction(timings, Duration.ofMillis(40))
+                .step("debit", TapTransaction.Priority.CRITICAL, 1, write(0, (byte) 2))
+                .deferrableStep("log", TapTransaction.Priority.OPTIONAL, 1, TapTransactionTest::readTenTimes)
+                .step("stats", TapTransaction.Priority.OPTIONAL, 10, TapTransactionTest::readTenTimes);
+        TapTransaction.Result result = shortTap.run(card);
+        assertTrue(result.toString(), result.isComplete());
+        assertEquals(2, read(0));
+        assertEquals("log", result.getDeferred().get(0).getName());
+        assertEquals("stats", result.getSkipped().get(0).getName());
+
+        List<TapTransaction.Step> deferred = result.getDeferred();
+        TapTransaction.Result next = new TapTransaction(timings, Duration.ofSeconds(1)).addAll(deferred).run(card);
+        assertEquals("log", next.getCompleted().get(0).getName());
+    }
+
+    @Test
+    public void testCriticalStepsNotStartedWithoutTime() {
+        // grant alone fits the budget, grant and debit do not
+        TapTransaction.Result result = new TapTransaction(new TapTimings(), Duration.ofMillis(100))
+                .step("grant", TapTransaction.Priority.CRITICAL, 1, write(1, (byte) 7))
+                .step("debit", TapTransaction.Priority.CRITICAL, 20, write(0, (byte) 1))
+                .step("counter", TapTransaction.Priority.NORMAL, 1, write(2, (byte) 2))
+                .run(card);
+
+        assertFalse(result.isComplete());
+        assertTrue(result.getCompleted().isEmpty());
+        assertEquals(2, result.getDeferred().size());
+        assertEquals("counter", result.getSkipped().get(0).getName());
+        assertEquals(0, read(0));
+        assertEquals(0, read(1));
+        assertEquals(0, read(2));
+    }
+
+    @Test
+    public void testFailedCriticalStepAbortsGroup() {
+        byte backup = 0x02;
+        fixture.backupFile(backup, 32);
+        TapTransaction.Result result = new TapTransaction(new TapTimings(), Duration.ofMillis(500))
+                .step("grant", TapTransaction.Priority.CRITICAL, 1, card -> card.writeData(backup, 0, new byte[] {7}))
+                .step("debit", TapTransaction.Priority.CRITICAL, 1, card -> card.writeData((byte) 0x07, 0, new byte[1]))
+                .run(card);
+
+        assertFalse(result.isComplete());
+        assertTrue(result.getCompleted().isEmpty());
+        assertEquals(2, result.getFailed().size());
+        assertTrue(card.commitTransaction());
+        assertEquals(0, card.readData(backup, 0, 1)[0]);
+    }
+
+    @Test
+    public void testFailedCriticalStepStopsTransaction() {
+        TapTransaction.Result result = new TapTransaction(new TapTimings(), Duration.ofMillis(500))
+                .step("debit", TapTransaction.Priority.CRITICAL, 1, card -> card.writeData((byte) 0x07, 0, new byte[1]))
+                .deferrableStep("log", TapTransaction.Priority.OPTIONAL, 1, write(2, (byte) 3))
+                .run(card);
+
+        assertFalse(result.isComplete());
+        assertEquals("debit", result.getFailed().get(0).getName());
+        assertEquals("log", result.getDeferred().get(0).getName());
+        assertEquals(0, read(2));
+    }
+}
@@ -0,0 +1,91 @@
+package org.esupportail.desfire.simulator;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.transport.InMemoryTransport;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Simulated PICC prepared the way the service tests need it: applications
+ * with master key settings 0x0F and free access data files, plus in-memory
+ * transports that let a test watch or disturb every APDU.
+ */
+public final class PiccFixture {
+
+    public static final byte[] AID = {0x12, 0x34, 0x56};
+    public static final byte STD_FILE = 0x01;
+    public static final byte[] FREE_ACCESS = {(byte) 0xEE, (byte) 0xEE};
+    private static final byte[] PICC_AID = {0x00, 0x00, 0x00};
+
+    /**
+     * Sees every APDU before the PICC does
+     */
+    @FunctionalInterface
+    public interface Interceptor {
+
+        /**
+         * @return the response to send back instead of the PICC's, or <code>null</code> to pass the APDU on
+         */
+        byte[] intercept(byte[] apdu);
+    }
+
+    private final SimulatedPicc picc;
+    private final DESFireEV1 setup;
+
+    public PiccFixture() {
+        this(new SimulatedPicc());
+    }
+
+    public PiccFixture(SimulatedPicc picc) {
+        this.picc = picc;
+        this.setup = new DESFireEV1(transport());
+    }
+
+    public SimulatedPicc getPicc() {
+        return picc;
+    }
+
+    /**
+     * A transport straight to the PICC
+     */
+    public InMemoryTransport transport() {
+        return new InMemoryTransport(picc::process);
+    }
+
+    /**
+     * A transport that shows every APDU to the interceptor first
+     */
+    public InMemoryTransport transport(Interceptor interceptor) {
+        return new InMemoryTransport(apdu -> {
+            byte[] response = interceptor.intercept(apdu);
+            return response != null ? response : picc.process(apdu);
+        });
+    }
+
+    /**
+     * Create an application with master key settings 0x0F and select it
+     * @param numberOfKeys number of keys, with the key type bits (0x80 for AES)
+     */
+    public PiccFixture application(byte[] aid, int numberOfKeys) {
+        assertTrue(setup.selectApplication(PICC_AID));
+        assertTrue(setup.createApplication(aid, (byte) 0x0F, (byte) numberOfKeys));
+        assertTrue(setup.selectApplication(aid));
+        return this;
+    }
+
+    /**
+     * Create a free access standard data file in the selected application
+     */
+    public PiccFixture stdFile(byte fileNo, int fileSize) {
+        assertTrue(setup.createStdDataFile(fileNo, (byte) 0x00, FREE_ACCESS, fileSize));
+        return this;
+    }
+
+    /**
+     * Create a free access backup data file in the selected application
+     */
+    public PiccFixture backupFile(byte fileNo, int fileSize) {
+        assertTrue(setup.createBackupDataFile(fileNo, (byte) 0x00, FREE_ACCESS, fileSize));
+        return this;
+    }
+}
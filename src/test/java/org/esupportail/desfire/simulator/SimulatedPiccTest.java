@@ -0,0 +1,234 @@
+package org.esupportail.desfire.simulator;
+
+import org.esupportail.desfire.core.DESFireEV1;
+import org.esupportail.desfire.core.DESFireEngine;
+import org.esupportail.desfire.core.SessionContext;
+import org.esupportail.desfire.core.transport.CardTransport;
+import org.esupportail.desfire.core.util.DesfireCrypto;
+import org.esupportail.desfire.model.KeyType;
+import org.esupportail.desfire.service.ApduBuilder;
+import org.esupportail.desfire.service.ApduResponse;
+import org.esupportail.desfire.service.DesfireUtils;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test class for SimulatedPicc and SimulatedCard
+ */
+public class SimulatedPiccTest {
+
+    private static final byte[] AID = {0x12, 0x34, 0x56};
+    private static final byte[] AES_KEY = new byte[16];
+
+    private static int sw2(byte[] response) {
+        return response[response.length - 1] & 0xFF;
+    }
+
+    private static byte[] send(SimulatedPicc picc, String hex) {
+        return picc.process(DesfireUtils.hexStringToByteArray(hex));
+    }
+
+    /**
+     * Card with an AES application 123456, authenticated with key 0
+     */
+    private static DESFireEV1 personalizedCard(SimulatedCard card) {
+        DESFireEV1 desfire = new DESFireEV1(card.transport());
+        assertTrue(desfire.createApplication(AID, (byte) 0x0F, (byte) 0x82));
+        assertTrue(desfire.selectApplication(AID));
+        assertNotNull(desfire.authenticate(AES_KEY.clone(), (byte) 0x00, KeyType.AES));
+        return desfire;
+    }
+
+    @Test
+    public void testVersionAndPiccAuthentication() {
+        SimulatedCard card = new SimulatedCard();
+        DESFireEV1 desfire = new DESFireEV1(card.transport());
+
+        byte[] version = desfire.getVersion();
+        assertEquals(28, version.length);
+        assertArrayEquals(card.getPicc().getUid(), Arrays.copyOfRange(version, 14, 21));
+
+        byte[] sessionKey = desfire.authenticate(new byte[8], (byte) 0x00, KeyType.DES);
+        assertNotNull(sessionKey);
+        assertArrayEquals(card.getPicc().getSessionKey(), sessionKey);
+        assertEquals(8192, desfire.getFreeMemory());
+    }
+
+    @Test
+    public void testStdFileWithChainedRead() {
+        DESFireEV1 desfire = personalizedCard(new SimulatedCard());
+        byte[] data = DesfireCrypto.random(150);
+
+        assertTrue(desfire.createStdDataFile((byte) 0x01, (byte) 0x00, new byte[] {(byte) 0xEE, (byte) 0xEE}, 200));
+        assertTrue(desfire.writeData((byte) 0x01, 10, data));
+        byte[] read = desfire.readData((byte) 0x01, 10, 150);
+
+        assertArrayEquals(data, read);
+        assertEquals(200, desfire.readData((byte) 0x01, 0, 0).length);
+        assertNull(desfire.readData((byte) 0x01, 100, 101));
+        assertEquals(ApduResponse.BOUNDARY_ERROR, desfire.getLastResponseCode());
+    }
+
+    @Test
+    public void testAccessRightsAndWrongKey() {
+        SimulatedCard card = new SimulatedCard();
+        DESFireEV1 desfire = personalizedCard(card);
+        // read with key 1 only, write with key 0
+        assertTrue(desfire.createStdDataFile((byte) 0x02, (byte) 0x00, new byte[] {(byte) 0xFF, 0x10}, 16));
+        assertTrue(desfire.writeData((byte) 0x02, 0, new byte[4]));
+        assertNull(desfire.readData((byte) 0x02, 0, 4));
+        assertEquals(ApduResponse.PERMISSION_DENIED, desfire.getLastResponseCode());
+
+        byte[] wrongKey = new byte[16];
+        wrongKey[15] = 0x01;
+        assertNull(desfire.authenticate(wrongKey, (byte) 0x00, KeyType.AES));
+        assertEquals(ApduResponse.AUTHENTICATION_ERROR, desfire.getLastResponseCode());
+        assertFalse(desfire.writeData((byte) 0x02, 0, new byte[4]));
+    }
+
+    @Test
+    public void testEncipheredChangeKey() {
+        DESFireEV1 desfire = personalizedCard(new SimulatedCard());
+        byte[] key1 = DesfireCrypto.random(16);
+        byte[] key0 = DesfireCrypto.random(16);
+
+        // another key: XOR with the current one and CRC32 of the new key
+        assertFalse(desfire.changeKey((byte) 0x01, (byte) 0x01, KeyType.AES, key1, DesfireCrypto.random(16)));
+        assertEquals(ApduResponse.INTEGRITY_ERROR, desfire.getLastResponseCode());
+        assertNotNull(desfire.authenticate(AES_KEY.clone(), (byte) 0x00, KeyType.AES));
+        assertTrue(desfire.changeKey((byte) 0x01, (byte) 0x01, KeyType.AES, key1, AES_KEY));
+        assertNotNull(desfire.authenticate(key1.clone(), (byte) 0x01, KeyType.AES));
+
+        // the authenticated key ends the session
+        assertNotNull(desfire.authenticate(AES_KEY.clone(), (byte) 0x00, KeyType.AES));
+        assertTrue(desfire.changeKey((byte) 0x00, (byte) 0x02, KeyType.AES, key0, null));
+        assertFalse(desfire.isAuthenticated());
+        assertNull(desfire.authenticate(AES_KEY.clone(), (byte) 0x00, KeyType.AES));
+        assertNotNull(desfire.authenticate(key0.clone(), (byte) 0x00, KeyType.AES));
+    }
+
+    @Test
+    public void testPiccMasterKeyChangesType() {
+        DESFireEV1 desfire = new DESFireEV1(new SimulatedCard().transport());
+        byte[] tktdesKey = DesfireCrypto.random(24);
+        byte[] aesKey = DesfireCrypto.random(16);
+        DesfireCrypto.setKeyVersion(tktdesKey, 0, 24, (byte) 0x00);
+
+        // DES session, CRC16
+        assertNotNull(desfire.authenticate(new byte[8], (byte) 0x00, KeyType.DES));
+        assertTrue(desfire.changeKey((byte) 0x00, (byte) 0x00, KeyType.TKTDES, tktdesKey, null));
+        assertNotNull(desfire.authenticate(tktdesKey.clone(), (byte) 0x00, KeyType.TKTDES));
+
+        // 3K3DES session, CRC32
+        assertTrue(desfire.changeKey((byte) 0x00, (byte) 0x00, KeyType.AES, aesKey, null));
+        assertNotNull(desfire.authenticate(aesKey.clone(), (byte) 0x00, KeyType.AES));
+    }
+
+    @Test
+    public void testBackupFileTransaction() {
+        SimulatedCard card = new SimulatedCard();
+        DESFireEV1 desfire = personalizedCard(card);
+        SimulatedPicc picc = card.getPicc();
+
+        assertEquals(0x00, sw2(send(picc, "90CB0000070300EEEE200000")));
+        assertTrue(desfire.writeData((byte) 0x03, 0, new byte[] {1, 2, 3}));
+        assertArrayEquals(new byte[3], desfire.readData((byte) 0x03, 0, 3));
+
+        assertEquals(0x00, sw2(send(picc, "90A7000000")));
+        assertTrue(desfire.writeData((byte) 0x03, 0, new byte[] {4, 5, 6}));
+        assertEquals(0x00, sw2(send(picc, "90C7000000")));
+        assertArrayEquals(new byte[] {4, 5, 6}, desfire.readData((byte) 0x03, 0, 3));
+    }
+
+    @Test
+    public void testValueFile() {
+        SimulatedCard card = new SimulatedCard();
+        personalizedCard(card);
+        SimulatedPicc picc = card.getPicc();
+
+        // value file 4: limits 0..1000, value 100, limited credit enabled
+        assertEquals(0x00, sw2(send(picc, "90CC0000110400EEEE00000000E80300006400000001")));
+        assertEquals(0x00, sw2(send(picc, "900C0000050432000000")));    // credit 50
+        assertEquals(0x00, sw2(send(picc, "90DC0000050414000000")));    // debit 20
+        assertEquals("640000009100", DesfireUtils.byteArrayToHexString(send(picc, "906C00000104")));
+        assertEquals(0x00, sw2(send(picc, "90C7000000")));
+        assertEquals("820000009100", DesfireUtils.byteArrayToHexString(send(picc, "906C00000104")));
+        assertEquals(ApduResponse.BOUNDARY_ERROR, sw2(send(picc, "90DC00000504E8030000")));
+    }
+
+    @Test
+    public void testCyclicRecordFile() {
+        SimulatedCard card = new SimulatedCard();
+        personalizedCard(card);
+        SimulatedPicc picc = card.getPicc();
+
+        // cyclic file 5: 4 byte records, 3 slots (2 usable)
+        assertEquals(0x00, sw2(send(picc, "90C000000A0500EEEE040000030000")));
+        for (int i = 1; i <= 3; i++) {
+            assertEquals(0x00, sw2(send(picc, String.format("903B00000B05000000040000%02X000000", i))));
+            assertEquals(0x00, sw2(send(picc, "90C7000000")));
+        }
+        assertEquals("02000000030000009100", DesfireUtils.byteArrayToHexString(send(picc, "90BB0000070500000000000000")));
+        assertEquals("030000009100", DesfireUtils.byteArrayToHexString(send(picc, "90BB0000070500000001000000")));
+    }
+
+    @Test
+    public void testUidAndUnknownCommand() {
+        SimulatedPicc picc = new SimulatedPicc();
+        byte[] response = send(picc, "FFCA000000");
+
+        assertArrayEquals(picc.getUid(), Arrays.copyOf(response, 7));
+        assertEquals("9000", DesfireUtils.byteArrayToHexString(Arrays.copyOfRange(response, 7, 9)));
+        assertEquals(ApduResponse.ILLEGAL_COMMAND_CODE, sw2(send(picc, "9099000000")));
+        assertEquals(ApduResponse.APPLICATION_NOT_FOUND, sw2(picc.process(ApduBuilder.selectApplication(AID))));
+    }
+
+    @Test
+    public void testDisconnectedCard() {
+        SimulatedCard card = new SimulatedCard();
+        CardTransport transport = card.transport();
+        transport.close();
+        try {
+            card.getBasicChannel();
+            fail("Should reject a disconnected card");
+        } catch (IllegalStateException e) {
+            assertEquals("Card has been disconnected", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testManyCardsConcurrently() throws Exception {
+        DESFireEngine engine = new DESFireEngine();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                results.add(executor.submit(() -> {
+                    CardTransport transport = new SimulatedCard().transport();
+                    SessionContext ctx = new SessionContext();
+                    byte[] data = DesfireCrypto.random(64);
+                    boolean ok = engine.authenticate(transport, ctx, new byte[8], (byte) 0x00, KeyType.DES) != null
+                            && engine.createApplication(transport, ctx, AID, (byte) 0x0F, (byte) 0x82)
+                            && engine.selectApplication(transport, ctx, AID)
+                            && engine.authenticate(transport, ctx, AES_KEY.clone(), (byte) 0x00, KeyType.AES) != null
+                            && engine.createStdDataFile(transport, ctx, (byte) 0x01, (byte) 0x00, new byte[2], 64)
+                            && engine.writeData(transport, ctx, (byte) 0x01, 0, data);
+                    return ok && Arrays.equals(data, engine.readData(transport, ctx, (byte) 0x01, 0, 64));
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}